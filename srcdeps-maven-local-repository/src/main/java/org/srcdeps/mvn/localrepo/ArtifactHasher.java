@@ -0,0 +1,205 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.srcdeps.core.util.SrcdepsCoreUtils;
+
+/**
+ * Computes the checksums of installed artifacts using a given {@link HashAlgorithm}. Multiple files are hashed in
+ * parallel on a {@link ForkJoinPool}. Files of {@link #MAP_THRESHOLD} bytes and more are read through
+ * {@link FileChannel#map(MapMode, long, long)}, which saves copying their content to the Java heap. Memory-mapping is
+ * not used on Windows, where a mapped file cannot be deleted until the mapping is garbage collected.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class ArtifactHasher {
+    private static final int BUFFER_SIZE = 8192;
+    private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+    static final int MAP_THRESHOLD = 64 * 1024;
+    private static final long MAX_MAP_SIZE = 64L * 1024 * 1024;
+
+    static String toHex(byte[] bytes) {
+        final char[] result = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            result[2 * i] = HEX_DIGITS[(bytes[i] >> 4) & 0xf];
+            result[2 * i + 1] = HEX_DIGITS[bytes[i] & 0xf];
+        }
+        return new String(result);
+    }
+
+    private static IOException unwrap(ExecutionException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof IOException) {
+            return (IOException) cause;
+        } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException) cause;
+        } else if (cause instanceof Error) {
+            throw (Error) cause;
+        }
+        return new IOException(cause);
+    }
+
+    private final boolean map;
+    private final ForkJoinPool pool;
+
+    ArtifactHasher(ForkJoinPool pool) {
+        this(pool, !SrcdepsCoreUtils.isWindows());
+    }
+
+    ArtifactHasher(ForkJoinPool pool, boolean map) {
+        super();
+        this.pool = pool;
+        this.map = map;
+    }
+
+    /**
+     * Hashes the given {@code expected} files in parallel and compares the results with the given expected values.
+     * Each file is hashed with the {@link HashAlgorithm} its expected checksum was computed with. Once a mismatch is
+     * found, the files that have not been hashed yet are skipped; a skipped file is never reported as mismatching.
+     *
+     * @param expected
+     *            the files to hash mapped to their expected checksums
+     * @return the first file (in the iteration order of {@code expected}) whose checksum differs from the expected
+     *         one or {@code null} if all checksums match
+     * @throws IOException
+     *             on I/O errors
+     */
+    public Path findFirstMismatch(Map<Path, String> expected) throws IOException {
+        final AtomicBoolean mismatchFound = new AtomicBoolean();
+        final List<ForkJoinTask<Boolean>> tasks = new ArrayList<>(expected.size());
+        for (Entry<Path, String> en : expected.entrySet()) {
+            final Path file = en.getKey();
+            final String expectedHash = en.getValue();
+            tasks.add(pool.submit(() -> {
+                if (mismatchFound.get()) {
+                    /* Skipped: neither a match nor a mismatch */
+                    return null;
+                }
+                final boolean matches = matches(file, expectedHash);
+                if (!matches) {
+                    mismatchFound.set(true);
+                }
+                return matches;
+            }));
+        }
+        int i = 0;
+        for (Path file : expected.keySet()) {
+            final ForkJoinTask<Boolean> task = tasks.get(i++);
+            try {
+                if (Boolean.FALSE.equals(task.get())) {
+                    for (int j = i; j < tasks.size(); j++) {
+                        tasks.get(j).cancel(false);
+                    }
+                    return file;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while hashing " + file, e);
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param file
+     *            the file to hash
+     * @param algorithm
+     *            the {@link HashAlgorithm} to use
+     * @return the checksum of the given {@code file} formatted by {@link HashAlgorithm#format(byte[])}
+     * @throws IOException
+     *             on I/O errors
+     */
+    public String hash(Path file, HashAlgorithm algorithm) throws IOException {
+        final HashAlgorithm.Digester digest = algorithm.newDigester();
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            final long size = ch.size();
+            if (map && size >= MAP_THRESHOLD) {
+                for (long position = 0; position < size; position += MAX_MAP_SIZE) {
+                    digest.update(ch.map(MapMode.READ_ONLY, position, Math.min(MAX_MAP_SIZE, size - position)));
+                }
+            } else {
+                final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+                while (ch.read(buffer) >= 0) {
+                    buffer.flip();
+                    digest.update(buffer);
+                    buffer.clear();
+                }
+            }
+        }
+        return algorithm.format(digest.digest());
+    }
+
+    /**
+     * Hashes the given {@code files} in parallel.
+     *
+     * @param files
+     *            the files to hash
+     * @param algorithm
+     *            the {@link HashAlgorithm} to use
+     * @return the given {@code files} mapped to their checksums, in the iteration order of {@code files}
+     * @throws IOException
+     *             on I/O errors
+     */
+    public Map<Path, String> hashAll(Collection<Path> files, HashAlgorithm algorithm) throws IOException {
+        final List<ForkJoinTask<String>> tasks = new ArrayList<>(files.size());
+        for (Path file : files) {
+            tasks.add(pool.submit(() -> hash(file, algorithm)));
+        }
+        final Map<Path, String> result = new LinkedHashMap<>();
+        int i = 0;
+        for (Path file : files) {
+            try {
+                result.put(file, tasks.get(i++).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while hashing " + file, e);
+            } catch (ExecutionException e) {
+                throw unwrap(e);
+            }
+        }
+        return result;
+    }
+
+    private boolean matches(Path file, String expectedHash) throws IOException {
+        final HashAlgorithm algorithm;
+        try {
+            algorithm = HashAlgorithm.ofChecksum(expectedHash);
+        } catch (IllegalArgumentException e) {
+            return false;
+        }
+        return algorithm.isAvailable() && expectedHash.equals(hash(file, algorithm));
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.Flushable;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.shell.LineConsumer;
+
+/**
+ * A {@link LineConsumer} that passes the lines to a delegate {@link LineConsumer} asynchronously, so that the thread
+ * pumping the output of a nested build is not slowed down by a slow logger appender or file system.
+ * <p>
+ * The lines are put to a bounded lock-free ring buffer (Vyukov's bounded MPMC queue reduced to a single consumer)
+ * and passed to the delegate by a single writer thread. The writer drains whatever is available in one batch and
+ * flushes the delegate after each batch if the delegate is {@link Flushable}. When the buffer is full, the
+ * {@link OverflowPolicy} decides whether the producer waits for the writer or whether the line is dropped. The number
+ * of dropped lines is reported to the delegate with the next batch.
+ * <p>
+ * {@link #close()} waits until all buffered lines were passed to the delegate and closes the delegate.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class AsyncLineConsumer implements LineConsumer {
+
+    /**
+     * What to do with a line when the buffer is full.
+     */
+    enum OverflowPolicy {
+        /** Wait until the writer has made some room in the buffer; no line is lost */
+        block,
+        /** Drop the line and count it */
+        drop;
+
+        /**
+         * @param value
+         *            the name of the policy
+         * @return the {@link OverflowPolicy} having the given name
+         * @throws IllegalArgumentException
+         *             if there is no {@link OverflowPolicy} with the given name
+         */
+        public static OverflowPolicy ofName(String value) {
+            for (OverflowPolicy policy : values()) {
+                if (policy.name().equals(value)) {
+                    return policy;
+                }
+            }
+            throw new IllegalArgumentException(String.format("Unexpected overflow policy [%s]; expected one of %s",
+                    value, Arrays.toString(values())));
+        }
+    }
+
+    /** How long a blocked producer waits before it checks the buffer again */
+    private static final long BLOCK_PARK_NANOS = TimeUnit.MICROSECONDS.toNanos(100);
+    private static final Logger log = LoggerFactory.getLogger(AsyncLineConsumer.class);
+
+    private final AtomicReferenceArray<String> buffer;
+    private volatile boolean closed;
+    /** Accessed by {@link #writer} only */
+    private long consumerIndex;
+    private final LineConsumer delegate;
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong droppedTotal = new AtomicLong();
+    /** Accessed by {@link #writer} only */
+    private boolean failed;
+    private final int mask;
+    private final OverflowPolicy overflowPolicy;
+    private final AtomicLong producerIndex = new AtomicLong();
+    /** The slot at index {@code i} is free for the producer at position {@code p} iff {@code sequences[i] == p} */
+    private final AtomicLongArray sequences;
+    private volatile boolean waiting;
+    private final Thread writer;
+
+    /**
+     * @param delegate
+     *            the {@link LineConsumer} to pass the lines to
+     * @param capacity
+     *            the minimal number of lines the buffer can hold; rounded up to a power of two
+     * @param overflowPolicy
+     *            what to do when the buffer is full
+     * @param threadFactory
+     *            the {@link ThreadFactory} to create the writer thread with
+     */
+    AsyncLineConsumer(LineConsumer delegate, int capacity, OverflowPolicy overflowPolicy,
+            ThreadFactory threadFactory) {
+        super();
+        this.delegate = delegate;
+        this.overflowPolicy = overflowPolicy;
+        final int size = capacity <= 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1;
+        this.mask = size - 1;
+        this.buffer = new AtomicReferenceArray<>(size);
+        this.sequences = new AtomicLongArray(size);
+        for (int i = 0; i < size; i++) {
+            sequences.set(i, i);
+        }
+        this.writer = threadFactory.newThread(this::write);
+        writer.start();
+    }
+
+    @Override
+    public void accept(String line) {
+        if (closed) {
+            return;
+        }
+        if (!offer(line)) {
+            if (overflowPolicy == OverflowPolicy.drop) {
+                dropped.incrementAndGet();
+                droppedTotal.incrementAndGet();
+            } else {
+                do {
+                    LockSupport.unpark(writer);
+                    LockSupport.parkNanos(this, BLOCK_PARK_NANOS);
+                } while (!offer(line) && !closed);
+            }
+        }
+        if (waiting) {
+            LockSupport.unpark(writer);
+        }
+    }
+
+    /**
+     * Waits until all buffered lines were passed to the delegate and closes the delegate.
+     */
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            delegate.close();
+        }
+    }
+
+    private void deliver(String line) {
+        try {
+            delegate.accept(line);
+        } catch (RuntimeException e) {
+            if (!failed) {
+                failed = true;
+                log.warn("srcdeps: Could not pass a line of the build output to [" + delegate + "]", e);
+            }
+        }
+    }
+
+    private void flush() {
+        if (delegate instanceof Flushable) {
+            try {
+                ((Flushable) delegate).flush();
+            } catch (IOException | RuntimeException e) {
+                log.debug("srcdeps: Could not flush [{}]", delegate, e);
+            }
+        }
+    }
+
+    /**
+     * @return the number of lines dropped so far because the buffer was full
+     */
+    public long getDroppedCount() {
+        return droppedTotal.get();
+    }
+
+    private boolean isEmpty() {
+        return sequences.get((int) consumerIndex & mask) != consumerIndex + 1;
+    }
+
+    private boolean offer(String line) {
+        while (true) {
+            final long position = producerIndex.get();
+            final int index = (int) position & mask;
+            final long difference = sequences.get(index) - position;
+            if (difference == 0) {
+                if (producerIndex.compareAndSet(position, position + 1)) {
+                    buffer.lazySet(index, line);
+                    sequences.set(index, position + 1);
+                    return true;
+                }
+            } else if (difference < 0) {
+                /* full */
+                return false;
+            }
+            /* else another producer has claimed the slot in the meantime */
+        }
+    }
+
+    private String poll() {
+        final int index = (int) consumerIndex & mask;
+        if (sequences.get(index) != consumerIndex + 1) {
+            return null;
+        }
+        final String result = buffer.get(index);
+        buffer.lazySet(index, null);
+        sequences.set(index, consumerIndex + mask + 1);
+        consumerIndex++;
+        return result;
+    }
+
+    /**
+     * The loop of {@link #writer}.
+     */
+    private void write() {
+        while (true) {
+            String line;
+            while ((line = poll()) != null) {
+                deliver(line);
+            }
+            final long droppedLines = dropped.getAndSet(0);
+            if (droppedLines > 0) {
+                deliver("[srcdeps] Dropped " + droppedLines
+                        + " lines of the build output because they were produced faster than they could be written");
+            }
+            flush();
+            if (closed && isEmpty()) {
+                return;
+            }
+            waiting = true;
+            if (isEmpty() && !closed) {
+                LockSupport.park(this);
+            }
+            waiting = false;
+        }
+    }
+}
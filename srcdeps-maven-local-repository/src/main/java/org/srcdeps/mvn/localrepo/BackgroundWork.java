@@ -0,0 +1,85 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Lets the thread running an in-process build (see {@link InProcessMavenBuilder}) stop the srcdeps background work for
+ * the duration of the build. The tasks submitted to the background threads are wrapped via {@link #wrap(Callable)} or
+ * {@link #wrap(Runnable)}; {@link #pause()} waits for the running tasks to finish and keeps new ones from starting
+ * until {@link #resume()} is called by the same thread.
+ * <p>
+ * The wrapped tasks must not wait for the pausing thread or for other wrapped tasks, otherwise {@link #pause()} would
+ * never return.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class BackgroundWork {
+    private final ReadWriteLock lock = new ReentrantReadWriteLock();
+
+    /**
+     * Waits for the running tasks to finish and keeps the tasks that have not started yet from starting until
+     * {@link #resume()} is called.
+     */
+    public void pause() {
+        lock.writeLock().lock();
+    }
+
+    /**
+     * Lets the tasks held back by {@link #pause()} start. Must be called by the thread that called {@link #pause()}.
+     */
+    public void resume() {
+        lock.writeLock().unlock();
+    }
+
+    /**
+     * @param task
+     *            the task to wrap
+     * @return a {@link Callable} running the given {@code task} unless paused and waiting for {@link #resume()}
+     *         otherwise
+     */
+    public <T> Callable<T> wrap(Callable<T> task) {
+        return () -> {
+            lock.readLock().lock();
+            try {
+                return task.call();
+            } finally {
+                lock.readLock().unlock();
+            }
+        };
+    }
+
+    /**
+     * @param task
+     *            the task to wrap
+     * @return a {@link Runnable} running the given {@code task} unless paused and waiting for {@link #resume()}
+     *         otherwise
+     */
+    public Runnable wrap(Runnable task) {
+        return () -> {
+            lock.readLock().lock();
+            try {
+                task.run();
+            } finally {
+                lock.readLock().unlock();
+            }
+        };
+    }
+}
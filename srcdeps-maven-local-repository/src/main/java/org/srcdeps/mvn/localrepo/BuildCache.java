@@ -0,0 +1,211 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.file.DirectoryNotEmptyException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.util.SrcdepsCoreUtils;
+
+/**
+ * A content-addressed cache of the artifacts installed by nested builds, shareable between several local Maven
+ * repositories. An entry is keyed by the SCM repository ID, the commit ID the sources were built at and a hash of the
+ * build request; it is stored in {@code <rootDirectory>/<scmRepoId>/<commitId>/<key>} using the same directory layout
+ * as the local Maven repository.
+ * <p>
+ * An entry is first written to a temporary directory that is then atomically renamed, so that concurrent builds and
+ * crashes never leave a partial entry behind. Entries are never modified once written. When restoring, the files are
+ * hard linked to the local Maven repository if {@code link} is {@code true} and the file system supports that;
+ * otherwise they are copied. The files of an entry are read-only, so that a write to a hard linked file in the local
+ * Maven repository fails rather than modifying the entry; {@link #breakLinks(Collection)} has to be called before
+ * anything is installed over the restored files in place.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class BuildCache {
+    private static final Logger log = LoggerFactory.getLogger(BuildCache.class);
+
+    private static boolean isLinked(Path file) throws IOException {
+        try {
+            final Map<String, Object> attrs = Files.readAttributes(file, "unix:nlink");
+            return ((Number) attrs.get("nlink")).intValue() > 1;
+        } catch (UnsupportedOperationException | IllegalArgumentException e) {
+            /* The entries are read-only, so a read-only file may be a link */
+            return !Files.isWritable(file);
+        }
+    }
+
+    private final boolean link;
+    private final Path rootDirectory;
+
+    BuildCache(Path rootDirectory, boolean link) {
+        super();
+        this.rootDirectory = rootDirectory;
+        this.link = link;
+    }
+
+    /**
+     * Replaces the hard linked files restored by {@link #restore(String, String, String, Path)} in the given
+     * {@code gavDirectories} with writable copies, so that installing over them in place does not modify the entries
+     * of this cache. Does nothing if {@code link} is {@code false}.
+     *
+     * @param gavDirectories
+     *            the version directories in the local Maven repository
+     * @return the number of replaced files
+     * @throws IOException
+     *             on I/O errors
+     */
+    public int breakLinks(Collection<Path> gavDirectories) throws IOException {
+        if (!link) {
+            return 0;
+        }
+        int count = 0;
+        for (Path gavDir : gavDirectories) {
+            for (Path file : LocalBuildMetadataStore.listArtifacts(gavDir)) {
+                if (isLinked(file)) {
+                    final Path tmp = Files.createTempFile(gavDir, file.getFileName().toString(), ".tmp");
+                    try {
+                        Files.copy(file, tmp, StandardCopyOption.REPLACE_EXISTING,
+                                StandardCopyOption.COPY_ATTRIBUTES);
+                        tmp.toFile().setWritable(true);
+                        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(tmp);
+                    }
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    private Path resolve(String scmRepoId, String commitId, String key) {
+        return rootDirectory.resolve(scmRepoId).resolve(commitId).resolve(key);
+    }
+
+    /**
+     * Restores the artifacts stored under the given key to the given {@code localRepository}.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param commitId
+     *            the commit ID the sources were built at
+     * @param key
+     *            the hash of the build request
+     * @param localRepository
+     *            the root directory of the local Maven repository to restore to
+     * @return the number of restored files or {@code -1} if there is no such entry in this cache
+     * @throws IOException
+     *             on I/O errors
+     */
+    public int restore(String scmRepoId, String commitId, String key, Path localRepository) throws IOException {
+        final Path entry = resolve(scmRepoId, commitId, key);
+        if (!Files.isDirectory(entry)) {
+            return -1;
+        }
+        final AtomicInteger count = new AtomicInteger();
+        Files.walkFileTree(entry, new SimpleFileVisitor<Path>() {
+            private boolean linkable = link;
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final Path target = localRepository.resolve(entry.relativize(file).toString());
+                Files.createDirectories(target.getParent());
+                Files.deleteIfExists(target);
+                if (linkable) {
+                    try {
+                        Files.createLink(target, file);
+                        count.incrementAndGet();
+                        return FileVisitResult.CONTINUE;
+                    } catch (UnsupportedOperationException | IOException e) {
+                        log.debug("srcdeps[{}]: Could not hard link [{}] to [{}]; falling back to copying", scmRepoId,
+                                file, target, e);
+                        linkable = false;
+                    }
+                }
+                Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+                target.toFile().setWritable(true);
+                count.incrementAndGet();
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return count.get();
+    }
+
+    /**
+     * Copies the artifacts from the given {@code gavDirectories} to this cache unless there is an entry for the given
+     * key already.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param commitId
+     *            the commit ID the sources were built at
+     * @param key
+     *            the hash of the build request
+     * @param localRepository
+     *            the root directory of the local Maven repository
+     * @param gavDirectories
+     *            the version directories in the local Maven repository to store
+     * @return the number of stored files
+     * @throws IOException
+     *             on I/O errors
+     */
+    public int store(String scmRepoId, String commitId, String key, Path localRepository,
+            Collection<Path> gavDirectories) throws IOException {
+        final Path entry = resolve(scmRepoId, commitId, key);
+        if (Files.exists(entry)) {
+            return 0;
+        }
+        Files.createDirectories(entry.getParent());
+        final Path tmp = Files.createTempDirectory(entry.getParent(), key + ".tmp");
+        try {
+            int count = 0;
+            for (Path gavDir : gavDirectories) {
+                for (Path file : LocalBuildMetadataStore.listArtifacts(gavDir)) {
+                    final Path target = tmp.resolve(LocalBuildMetadataStore.toKey(localRepository, file));
+                    Files.createDirectories(target.getParent());
+                    Files.copy(file, target, StandardCopyOption.COPY_ATTRIBUTES);
+                    target.toFile().setWritable(false, false);
+                    count++;
+                }
+            }
+            try {
+                Files.move(tmp, entry, StandardCopyOption.ATOMIC_MOVE);
+            } catch (FileAlreadyExistsException | DirectoryNotEmptyException e) {
+                /* Stored by some other process in the meantime */
+                return 0;
+            }
+            return count;
+        } finally {
+            if (Files.exists(tmp)) {
+                SrcdepsCoreUtils.deleteDirectory(tmp);
+            }
+        }
+    }
+}
@@ -0,0 +1,68 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import org.srcdeps.core.SrcVersion;
+
+/**
+ * A pair of an SCM repository ID and a {@link SrcVersion} identifying a unit of work (checkout, build) of
+ * {@link SrcdepsLocalRepositoryManager}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+public final class BuildKey {
+    private final int hashCode;
+    private final String scmRepoId;
+    private final SrcVersion srcVersion;
+
+    public BuildKey(String scmRepoId, SrcVersion srcVersion) {
+        super();
+        this.scmRepoId = scmRepoId;
+        this.srcVersion = srcVersion;
+        this.hashCode = 31 * scmRepoId.hashCode() + srcVersion.hashCode();
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        if (this == obj) {
+            return true;
+        }
+        if (obj == null || getClass() != obj.getClass()) {
+            return false;
+        }
+        final BuildKey other = (BuildKey) obj;
+        return scmRepoId.equals(other.scmRepoId) && srcVersion.equals(other.srcVersion);
+    }
+
+    public String getScmRepoId() {
+        return scmRepoId;
+    }
+
+    public SrcVersion getSrcVersion() {
+        return srcVersion;
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return scmRepoId + "@" + srcVersion;
+    }
+}
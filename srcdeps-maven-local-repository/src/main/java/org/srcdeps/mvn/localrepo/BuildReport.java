@@ -0,0 +1,498 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Collects the durations of the phases of the srcdeps work done in a Maven session per {@link BuildKey}, together
+ * with the outcome of each unit of work and the reasons why source dependency lookups were skipped. At the end of
+ * the session, the report can be written as JSON via {@link #write(Path)} and summarized as a plain text table via
+ * {@link #toTable()}. If the {@link ModuleTimings} of a nested build were captured, the report contains the durations
+ * of its modules and mojo executions too.
+ * <p>
+ * All methods are thread safe. The {@link Record#lap(Phase)} timer of a {@link Record} is supposed to be used by the
+ * single thread working on the respective {@link BuildKey}; the phases running asynchronously are recorded via
+ * {@link Record#add(Phase, long)}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class BuildReport {
+
+    /**
+     * How a {@link BuildKey} was dealt with.
+     */
+    enum Outcome {
+        /** The whole source tree was built */
+        built,
+        /** Only the modules changed since the past build and their dependents were built */
+        builtIncrementally,
+        /** Checking out or building failed */
+        failed,
+        /** The source tree has not changed since the past build and so nothing was built */
+        nothingChanged,
+        /** The artifacts were restored from the local build cache */
+        restoredFromCache,
+        /** The artifacts were restored from the remote build cache */
+        restoredFromRemoteCache,
+        /** The artifacts installed in the local Maven repository were up to date */
+        upToDate
+    }
+
+    /**
+     * The phases of the work on a {@link BuildKey}.
+     */
+    enum Phase {
+        /** Waiting for the checkout started by prefetching */
+        prefetch,
+        /** Waiting for the lock of the build directory */
+        lock,
+        /** Scanning the dependent project for the required modules */
+        includes,
+        /** Checking out the sources */
+        checkout,
+        /** Checking whether the installed artifacts are up to date, including the checksum verification */
+        verify,
+        /** Removing the formerly installed artifacts */
+        uninstall,
+        /** Restoring the artifacts from the build caches */
+        restore,
+        /** The nested build, including the rewriting of versions */
+        build,
+        /** Moving the staged artifacts to the local Maven repository */
+        install,
+        /** Walking and checksumming the installed artifacts, partly asynchronous */
+        stamps,
+        /** Storing the installed artifacts in the build caches, asynchronous */
+        cacheStore
+    }
+
+    /**
+     * The durations and the outcome of the work on a single {@link BuildKey}.
+     */
+    static class Record {
+        private volatile String commitId;
+        private final BuildKey key;
+        private long mark = System.nanoTime();
+        private volatile ModuleTimings moduleTimings;
+        private final AtomicLongArray nanos = new AtomicLongArray(Phase.values().length);
+        private volatile Outcome outcome;
+        private volatile String reason;
+
+        Record(BuildKey key) {
+            super();
+            this.key = key;
+        }
+
+        /**
+         * Adds the given duration to the given {@link Phase}.
+         *
+         * @param phase
+         *            the {@link Phase} to add to
+         * @param durationNanos
+         *            the duration in nanoseconds
+         */
+        public void add(Phase phase, long durationNanos) {
+            nanos.addAndGet(phase.ordinal(), durationNanos);
+        }
+
+        public String getCommitId() {
+            return commitId;
+        }
+
+        public BuildKey getKey() {
+            return key;
+        }
+
+        /**
+         * @param phase
+         *            the {@link Phase} to look up
+         * @return the time spent in the given {@link Phase} in milliseconds
+         */
+        public long getMillis(Phase phase) {
+            return TimeUnit.NANOSECONDS.toMillis(nanos.get(phase.ordinal()));
+        }
+
+        /**
+         * @return the {@link ModuleTimings} of the nested build or {@code null} if none were captured
+         */
+        public ModuleTimings getModuleTimings() {
+            return moduleTimings;
+        }
+
+        public Outcome getOutcome() {
+            return outcome;
+        }
+
+        public String getReason() {
+            return reason;
+        }
+
+        /**
+         * @return the sum of the durations of all phases in milliseconds
+         */
+        public long getTotalMillis() {
+            long result = 0;
+            for (int i = 0; i < nanos.length(); i++) {
+                result += nanos.get(i);
+            }
+            return TimeUnit.NANOSECONDS.toMillis(result);
+        }
+
+        /**
+         * Adds the time elapsed since the previous call of this method (or {@link #mark()}) to the given
+         * {@link Phase}.
+         *
+         * @param phase
+         *            the {@link Phase} that has just finished
+         */
+        public void lap(Phase phase) {
+            final long now = System.nanoTime();
+            add(phase, now - mark);
+            mark = now;
+        }
+
+        /**
+         * Starts measuring the time for the next {@link #lap(Phase)}.
+         */
+        public void mark() {
+            mark = System.nanoTime();
+        }
+
+        /**
+         * @param commitId
+         *            the commit ID the sources were checked out at
+         */
+        public void setCommitId(String commitId) {
+            this.commitId = commitId;
+        }
+
+        /**
+         * @param moduleTimings
+         *            the {@link ModuleTimings} captured in the nested build
+         */
+        public void setModuleTimings(ModuleTimings moduleTimings) {
+            this.moduleTimings = moduleTimings;
+        }
+
+        /**
+         * @param outcome
+         *            the {@link Outcome} to set
+         * @param reason
+         *            a human readable reason of the {@code outcome} or {@code null}
+         */
+        public void setOutcome(Outcome outcome, String reason) {
+            this.outcome = outcome;
+            this.reason = reason;
+        }
+    }
+
+    /** The number of the slowest modules of a nested build listed by {@link #toTable()} */
+    private static final int SLOWEST_MODULES = 3;
+
+    static void appendJsonString(StringBuilder out, String value) {
+        if (value == null) {
+            out.append("null");
+            return;
+        }
+        out.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            final char c = value.charAt(i);
+            switch (c) {
+            case '"':
+                out.append("\\\"");
+                break;
+            case '\\':
+                out.append("\\\\");
+                break;
+            case '\n':
+                out.append("\\n");
+                break;
+            case '\r':
+                out.append("\\r");
+                break;
+            case '\t':
+                out.append("\\t");
+                break;
+            default:
+                if (c < 0x20) {
+                    out.append(String.format("\\u%04x", (int) c));
+                } else {
+                    out.append(c);
+                }
+            }
+        }
+        out.append('"');
+    }
+
+    private static void appendModules(StringBuilder out, ModuleTimings moduleTimings) {
+        out.append(",\n          \"modules\": [");
+        String moduleSeparator = "\n";
+        for (ModuleTimings.Module module : moduleTimings.getModules()) {
+            out.append(moduleSeparator).append("            {\"id\": ");
+            appendJsonString(out, module.getId());
+            out.append(", \"result\": ");
+            appendJsonString(out, module.getResult());
+            out.append(", \"ms\": ").append(module.getMillis()).append(", \"mojosMs\": {");
+            String separator = "";
+            for (Entry<String, Long> mojo : module.getMojoMillis().entrySet()) {
+                out.append(separator);
+                appendJsonString(out, mojo.getKey());
+                out.append(": ").append(mojo.getValue());
+                separator = ", ";
+            }
+            out.append("}}");
+            moduleSeparator = ",\n";
+        }
+        out.append(moduleTimings.getModules().isEmpty() ? "]" : "\n          ]");
+    }
+
+    private final ConcurrentMap<BuildKey, Record> records = new ConcurrentHashMap<>();
+    /** SCM repository IDs mapped to the reasons of skipped lookups mapped to their counts */
+    private final ConcurrentMap<String, ConcurrentMap<String, AtomicInteger>> skips = new ConcurrentHashMap<>();
+
+    /**
+     * @return {@code true} if nothing has been recorded yet
+     */
+    public boolean isEmpty() {
+        return records.isEmpty() && skips.isEmpty();
+    }
+
+    /**
+     * @param key
+     *            the {@link BuildKey} to look up
+     * @return the commit ID recorded for the given {@link BuildKey} or {@code null} if there is no record or the record
+     *         has no commit ID (yet)
+     */
+    public String findCommitId(BuildKey key) {
+        final Record record = records.get(key);
+        return record == null ? null : record.getCommitId();
+    }
+
+    /**
+     * @param key
+     *            the {@link BuildKey} to look up
+     * @return the {@link Record} for the given {@link BuildKey}, created on first access
+     */
+    public Record record(BuildKey key) {
+        return records.computeIfAbsent(key, Record::new);
+    }
+
+    /**
+     * Counts a lookup of an artifact of the given SCM repository that required no work for the given reason.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param reason
+     *            a short human readable reason
+     */
+    public void skip(String scmRepoId, String reason) {
+        skips.computeIfAbsent(scmRepoId, k -> new ConcurrentHashMap<>())
+                .computeIfAbsent(reason, k -> new AtomicInteger()).incrementAndGet();
+    }
+
+    private List<Record> sortedRecords() {
+        final List<Record> result = new ArrayList<>(records.values());
+        Collections.sort(result, Comparator.comparing((Record r) -> r.getKey().getScmRepoId())
+                .thenComparing(r -> String.valueOf(r.getKey().getSrcVersion())));
+        return result;
+    }
+
+    /**
+     * @return this report as a JSON document with an entry per SCM repository
+     */
+    public String toJson() {
+        final Map<String, List<Record>> byRepo = new TreeMap<>();
+        for (String scmRepoId : skips.keySet()) {
+            byRepo.put(scmRepoId, new ArrayList<>());
+        }
+        for (Record record : sortedRecords()) {
+            byRepo.computeIfAbsent(record.getKey().getScmRepoId(), k -> new ArrayList<>()).add(record);
+        }
+        final StringBuilder out = new StringBuilder();
+        out.append("{\n  \"repositories\": [");
+        String repoSeparator = "\n";
+        for (Entry<String, List<Record>> repo : byRepo.entrySet()) {
+            out.append(repoSeparator).append("    {\n      \"id\": ");
+            appendJsonString(out, repo.getKey());
+            out.append(",\n      \"skips\": {");
+            final Map<String, AtomicInteger> repoSkips = skips.get(repo.getKey());
+            if (repoSkips != null) {
+                String separator = "";
+                for (Entry<String, AtomicInteger> skip : new TreeMap<>(repoSkips).entrySet()) {
+                    out.append(separator);
+                    appendJsonString(out, skip.getKey());
+                    out.append(": ").append(skip.getValue().get());
+                    separator = ", ";
+                }
+            }
+            out.append("},\n      \"builds\": [");
+            String buildSeparator = "\n";
+            for (Record record : repo.getValue()) {
+                out.append(buildSeparator).append("        {\n          \"srcVersion\": ");
+                appendJsonString(out, String.valueOf(record.getKey().getSrcVersion()));
+                out.append(",\n          \"commitId\": ");
+                appendJsonString(out, record.getCommitId());
+                out.append(",\n          \"outcome\": ");
+                appendJsonString(out, record.getOutcome() == null ? null : record.getOutcome().name());
+                out.append(",\n          \"reason\": ");
+                appendJsonString(out, record.getReason());
+                out.append(",\n          \"totalMs\": ").append(record.getTotalMillis());
+                out.append(",\n          \"phasesMs\": {");
+                String separator = "";
+                for (Phase phase : Phase.values()) {
+                    out.append(separator).append('"').append(phase.name()).append("\": ")
+                            .append(record.getMillis(phase));
+                    separator = ", ";
+                }
+                out.append('}');
+                final ModuleTimings moduleTimings = record.getModuleTimings();
+                if (moduleTimings != null) {
+                    appendModules(out, moduleTimings);
+                }
+                out.append("\n        }");
+                buildSeparator = ",\n";
+            }
+            out.append(repo.getValue().isEmpty() ? "]\n    }" : "\n      ]\n    }");
+            repoSeparator = ",\n";
+        }
+        out.append(byRepo.isEmpty() ? "]\n}\n" : "\n  ]\n}\n");
+        return out.toString();
+    }
+
+    /**
+     * @return a plain text table with a row per {@link BuildKey} and a column per {@link Phase} that took any time
+     */
+    public String toTable() {
+        final List<Record> sorted = sortedRecords();
+        final List<Phase> phases = new ArrayList<>();
+        for (Phase phase : Phase.values()) {
+            for (Record record : sorted) {
+                if (record.getMillis(phase) > 0) {
+                    phases.add(phase);
+                    break;
+                }
+            }
+        }
+        final List<String[]> rows = new ArrayList<>();
+        final String[] header = new String[phases.size() + 4];
+        header[0] = "SCM repository";
+        header[1] = "Source version";
+        header[2] = "Outcome";
+        header[3] = "Total ms";
+        for (int i = 0; i < phases.size(); i++) {
+            header[i + 4] = phases.get(i).name();
+        }
+        rows.add(header);
+        for (Record record : sorted) {
+            final String[] row = new String[header.length];
+            row[0] = record.getKey().getScmRepoId();
+            row[1] = String.valueOf(record.getKey().getSrcVersion());
+            row[2] = record.getOutcome() == null ? "unknown" : record.getOutcome().name();
+            row[3] = String.valueOf(record.getTotalMillis());
+            for (int i = 0; i < phases.size(); i++) {
+                row[i + 4] = String.valueOf(record.getMillis(phases.get(i)));
+            }
+            rows.add(row);
+        }
+        final int[] widths = new int[header.length];
+        for (String[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                widths[i] = Math.max(widths[i], row[i].length());
+            }
+        }
+        final StringBuilder out = new StringBuilder();
+        for (String[] row : rows) {
+            for (int i = 0; i < row.length; i++) {
+                if (i > 0) {
+                    out.append("  ");
+                }
+                /* Left-align the texts, right-align the numbers */
+                out.append(String.format("%" + (i < 3 ? "-" : "") + widths[i] + "s", row[i]));
+            }
+            out.append('\n');
+        }
+        for (Record record : sorted) {
+            final ModuleTimings moduleTimings = record.getModuleTimings();
+            if (moduleTimings == null || moduleTimings.getModules().isEmpty()) {
+                continue;
+            }
+            out.append("Slowest modules of ").append(record.getKey().getScmRepoId()).append(' ')
+                    .append(record.getKey().getSrcVersion()).append(':');
+            final List<ModuleTimings.Module> modules = moduleTimings.getModules();
+            for (ModuleTimings.Module module : modules.subList(0, Math.min(SLOWEST_MODULES, modules.size()))) {
+                out.append(' ').append(module.getId()).append(' ').append(module.getMillis()).append(" ms");
+                final Iterator<Entry<String, Long>> mojos = module.getMojoMillis().entrySet().iterator();
+                if (mojos.hasNext()) {
+                    final Entry<String, Long> slowest = mojos.next();
+                    out.append(" (").append(slowest.getKey()).append(' ').append(slowest.getValue()).append(" ms)");
+                }
+                out.append(';');
+            }
+            out.setLength(out.length() - 1);
+            out.append('\n');
+        }
+        for (Entry<String, ConcurrentMap<String, AtomicInteger>> repo : new TreeMap<>(skips).entrySet()) {
+            out.append("Skipped lookups of ").append(repo.getKey()).append(":");
+            for (Entry<String, AtomicInteger> skip : new TreeMap<>(repo.getValue()).entrySet()) {
+                out.append(" ").append(skip.getKey()).append(" ").append(skip.getValue().get()).append("x;");
+            }
+            out.setLength(out.length() - 1);
+            out.append('\n');
+        }
+        return out.toString();
+    }
+
+    /**
+     * Writes {@link #toJson()} to the given {@code file} atomically.
+     *
+     * @param file
+     *            the file to write to
+     * @throws IOException
+     *             on I/O errors
+     */
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        final Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write(toJson());
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
@@ -0,0 +1,143 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An in-JVM scheduler of nested builds. Builds of different {@link BuildKey}s run in parallel on a thread pool of a
+ * configurable size. A build is scheduled at most once per {@link BuildKey}; any further callers asking for the same
+ * {@link BuildKey} get the {@link CompletableFuture} of the build that is running or that has finished already.
+ * This holds for failed builds too: a failure is remembered for the rest of the session rather than retried, the
+ * same way as a failed build used to fail every subsequent lookup of its artifacts before.
+ * <p>
+ * After {@link #shutdown()}, the builds that have not started yet are cancelled and {@link #awaitTermination(long,
+ * TimeUnit)} can be used to wait for the running ones, which are never interrupted so that they do not leave the
+ * local Maven repository and the build directories in an inconsistent state.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class BuildScheduler {
+
+    /**
+     * A unit of work submitted to {@link BuildScheduler}.
+     */
+    interface Task {
+        void run() throws Exception;
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(BuildScheduler.class);
+
+    private final ConcurrentMap<BuildKey, CompletableFuture<Void>> builds = new ConcurrentHashMap<>();
+    private final ExecutorService executor;
+    private volatile boolean shutdown;
+
+    BuildScheduler(int maxParallelism) {
+        super();
+        this.executor = Executors.newFixedThreadPool(maxParallelism, new DaemonThreadFactory("srcdeps-build"));
+    }
+
+    /**
+     * Waits for the running builds to finish after {@link #shutdown()}.
+     *
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the unit of {@code timeout}
+     * @return {@code true} if all running builds have finished; {@code false} if the timeout elapsed before
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * @param key
+     *            the key of the build
+     * @return the {@link CompletableFuture} of the task scheduled for the given {@code key} or {@code null} if there
+     *         is none
+     */
+    public CompletableFuture<Void> get(BuildKey key) {
+        return builds.get(key);
+    }
+
+    /**
+     * Schedules the given {@code task} to run once the given {@code prerequisites} are done unless there is a task
+     * scheduled for the given {@code key} already. The {@code task} is run regardless of whether the
+     * {@code prerequisites} completed normally or exceptionally.
+     *
+     * @param key
+     *            the key of the build
+     * @param prerequisites
+     *            the builds that must finish before the given {@code task} can start
+     * @param task
+     *            the build to run
+     * @return the {@link CompletableFuture} of the newly scheduled or of the previously scheduled task
+     */
+    public CompletableFuture<Void> schedule(BuildKey key, CompletableFuture<?> prerequisites, Task task) {
+        return builds.computeIfAbsent(key, k -> {
+            log.debug("srcdeps[{}]: Scheduling a build of [{}]", key.getScmRepoId(), key.getSrcVersion());
+            return prerequisites.handle((result, e) -> null).thenRunAsync(() -> {
+                if (shutdown) {
+                    log.debug("srcdeps[{}]: Cancelled the build of [{}] on shutdown", key.getScmRepoId(),
+                            key.getSrcVersion());
+                    throw new CancellationException();
+                }
+                try {
+                    task.run();
+                } catch (RuntimeException e) {
+                    throw e;
+                } catch (Exception e) {
+                    throw new CompletionException(e);
+                }
+            }, executor);
+        });
+    }
+
+    /**
+     * Schedules the given {@code task} unless there is a task scheduled for the given {@code key} already.
+     *
+     * @param key
+     *            the key of the build
+     * @param task
+     *            the build to run
+     * @return the {@link CompletableFuture} of the newly scheduled or of the previously scheduled task
+     */
+    public CompletableFuture<Void> schedule(BuildKey key, Task task) {
+        return schedule(key, CompletableFuture.completedFuture(null), task);
+    }
+
+    /**
+     * Stops accepting new builds and cancels the scheduled builds that have not started yet. The running ones are let
+     * to finish.
+     */
+    public void shutdown() {
+        shutdown = true;
+        executor.shutdown();
+    }
+}
@@ -0,0 +1,205 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Runs the SCM checkouts of source dependencies ahead of time on a bounded thread pool so that the later
+ * {@link SrcdepsLocalRepositoryManager#find(org.eclipse.aether.RepositorySystemSession, org.eclipse.aether.repository.LocalArtifactRequest)}
+ * calls only need to wait for the work that is already running.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class CheckoutPrefetcher {
+
+    /**
+     * The result of a prefetched checkout.
+     */
+    static class Checkout {
+        private final Path buildDirectory;
+        private final boolean checkedOut;
+        private final String commitId;
+
+        Checkout(Path buildDirectory, String commitId) {
+            this(buildDirectory, commitId, true);
+        }
+
+        /**
+         * @param buildDirectory
+         *            the directory where the sources were checked out
+         * @param commitId
+         *            the commit ID the sources were checked out at
+         * @param checkedOut
+         *            {@code true} if the sources were actually checked out; {@code false} if the checkout was skipped
+         *            because the {@code buildDirectory} was at the current remote head {@code commitId} already
+         */
+        Checkout(Path buildDirectory, String commitId, boolean checkedOut) {
+            super();
+            this.buildDirectory = buildDirectory;
+            this.commitId = commitId;
+            this.checkedOut = checkedOut;
+        }
+
+        /**
+         * @return the directory where the sources were checked out
+         */
+        public Path getBuildDirectory() {
+            return buildDirectory;
+        }
+
+        /**
+         * @return the commit ID the sources were checked out at
+         */
+        public String getCommitId() {
+            return commitId;
+        }
+
+        /**
+         * @return {@code true} if the sources were actually checked out; {@code false} if the checkout was skipped
+         *         because the build directory was at the current remote head already, in which case the working tree
+         *         may still contain the changes made by the past build
+         */
+        public boolean isCheckedOut() {
+            return checkedOut;
+        }
+
+        /**
+         * @param dir
+         *            the build directory locked for the build
+         * @return {@code true} if this {@link Checkout} was made in the given {@code dir} and thus can be used instead
+         *         of checking out synchronously; {@code false} if the build got a different build directory, e.g.
+         *         because the prefetched one was locked by some other process in the meantime
+         */
+        public boolean isReusableIn(Path dir) {
+            return buildDirectory.equals(dir);
+        }
+    }
+
+    private static final Logger log = LoggerFactory.getLogger(CheckoutPrefetcher.class);
+
+    private final BackgroundWork backgroundWork;
+    private final ConcurrentMap<BuildKey, Future<Checkout>> checkouts = new ConcurrentHashMap<>();
+    private final ThreadPoolExecutor executor;
+
+    CheckoutPrefetcher(int threads) {
+        this(threads, new BackgroundWork());
+    }
+
+    /**
+     * @param threads
+     *            the number of checkouts that can run in parallel
+     * @param backgroundWork
+     *            the {@link BackgroundWork} through which the checkouts can be paused
+     */
+    CheckoutPrefetcher(int threads, BackgroundWork backgroundWork) {
+        super();
+        this.backgroundWork = backgroundWork;
+        this.executor = (ThreadPoolExecutor) Executors.newFixedThreadPool(threads,
+                new DaemonThreadFactory("srcdeps-prefetch"));
+    }
+
+    /**
+     * Waits for the running checkouts to finish after {@link #shutdown()}.
+     *
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the unit of {@code timeout}
+     * @return {@code true} if all running checkouts have finished; {@code false} if the timeout elapsed before
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return executor.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Waits for the prefetched checkout of the given {@link BuildKey} if there is any.
+     *
+     * @param key
+     *            the checkout to wait for
+     * @return the finished {@link Checkout} or {@code null} if no checkout was prefetched for the given {@code key} or
+     *         if the prefetch failed
+     */
+    public Checkout await(BuildKey key) {
+        final Future<Checkout> future = checkouts.get(key);
+        if (future == null) {
+            return null;
+        }
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return null;
+        } catch (CancellationException e) {
+            log.debug("srcdeps[{}]: Prefetching [{}] was cancelled", key.getScmRepoId(), key.getSrcVersion());
+            return null;
+        } catch (ExecutionException e) {
+            log.warn("srcdeps[" + key.getScmRepoId() + "]: Prefetching [" + key.getSrcVersion()
+                    + "] failed; will retry on demand", e.getCause());
+            return null;
+        }
+    }
+
+    /**
+     * Submits the given {@code checkout} unless some checkout for the given {@link BuildKey} was submitted already.
+     *
+     * @param key
+     *            the key of the checkout
+     * @param checkout
+     *            the checkout to run
+     * @return {@code true} if the {@code checkout} was submitted, {@code false} otherwise
+     */
+    public boolean prefetch(BuildKey key, Callable<Checkout> checkout) {
+        final boolean[] submitted = new boolean[1];
+        checkouts.computeIfAbsent(key, k -> {
+            log.debug("srcdeps[{}]: Prefetching [{}]", key.getScmRepoId(), key.getSrcVersion());
+            submitted[0] = true;
+            return executor.submit(backgroundWork.wrap(checkout));
+        });
+        return submitted[0];
+    }
+
+    /**
+     * Stops accepting new checkouts and cancels the submitted checkouts that have not started yet. The running ones
+     * are let to finish.
+     */
+    public void shutdown() {
+        executor.shutdown();
+        /* Cancelling all checkouts would discard the results of the running ones */
+        final List<Runnable> notStarted = new ArrayList<>();
+        executor.getQueue().drainTo(notStarted);
+        for (Runnable checkout : notStarted) {
+            ((Future<?>) checkout).cancel(false);
+        }
+    }
+}
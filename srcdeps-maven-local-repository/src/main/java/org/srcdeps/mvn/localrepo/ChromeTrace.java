@@ -0,0 +1,239 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the spans of the work done in a Maven session, such as the executions of the reactor projects, the
+ * checkouts and the nested builds, and writes them as a
+ * <a href="https://docs.google.com/document/d/1CvAClvFfyA5R-PhYUmn5OOQtYMH4h6I0nSsKchNAySU">Trace Event Format</a>
+ * JSON file that can be opened in {@code chrome://tracing} or <a href="https://ui.perfetto.dev">Perfetto</a>. Every
+ * thread gets its own lane, so that the overlaps and the critical path of the session become visible.
+ * <p>
+ * All methods are thread safe. If tracing is disabled, {@link #begin(String, String)} returns a shared no-op
+ * {@link Span}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class ChromeTrace {
+
+    /**
+     * A running span. Closing it adds a complete event to the {@link ChromeTrace} it was started by. A {@link Span}
+     * is supposed to be closed by the thread that has started it.
+     */
+    static class Span implements AutoCloseable {
+        private final Map<String, String> args = new LinkedHashMap<>();
+        private final String category;
+        private final String name;
+        private final long startNanos = System.nanoTime();
+        private final long threadId;
+        private final ChromeTrace trace;
+
+        Span(ChromeTrace trace, String category, String name) {
+            super();
+            this.trace = trace;
+            this.category = category;
+            this.name = name;
+            this.threadId = Thread.currentThread().getId();
+        }
+
+        /**
+         * Adds an argument to be shown in the details of this {@link Span}.
+         *
+         * @param key
+         *            the name of the argument
+         * @param value
+         *            the value of the argument; {@code null} values are ignored
+         * @return this {@link Span}
+         */
+        public Span arg(String key, Object value) {
+            if (trace != null && value != null) {
+                args.put(key, value.toString());
+            }
+            return this;
+        }
+
+        @Override
+        public void close() {
+            if (trace != null) {
+                trace.events.add(new Event(this, System.nanoTime() - startNanos));
+            }
+        }
+    }
+
+    /**
+     * A finished {@link Span}.
+     */
+    private static class Event {
+        private final Map<String, String> args;
+        private final String category;
+        private final long durationNanos;
+        private final String name;
+        private final long startNanos;
+        private final long threadId;
+
+        Event(Span span, long durationNanos) {
+            super();
+            this.args = span.args;
+            this.category = span.category;
+            this.durationNanos = durationNanos;
+            this.name = span.name;
+            this.startNanos = span.startNanos;
+            this.threadId = span.threadId;
+        }
+    }
+
+    static final ChromeTrace DISABLED = new ChromeTrace(false);
+    private static final Span NOOP = new Span(null, null, null);
+
+    private static void appendArgs(StringBuilder out, Map<String, String> args) {
+        out.append("\"args\": {");
+        String separator = "";
+        for (Entry<String, String> arg : args.entrySet()) {
+            out.append(separator);
+            BuildReport.appendJsonString(out, arg.getKey());
+            out.append(": ");
+            BuildReport.appendJsonString(out, arg.getValue());
+            separator = ", ";
+        }
+        out.append('}');
+    }
+
+    /**
+     * @param enabled
+     *            {@code true} if the spans should be collected
+     * @return a new {@link ChromeTrace} or {@link #DISABLED} if {@code enabled} is {@code false}
+     */
+    static ChromeTrace create(boolean enabled) {
+        return enabled ? new ChromeTrace(true) : DISABLED;
+    }
+
+    private final boolean enabled;
+    private final ConcurrentLinkedQueue<Event> events = new ConcurrentLinkedQueue<>();
+    /** The time all timestamps are relative to */
+    private final long originNanos = System.nanoTime();
+    private final ConcurrentMap<Long, String> threadNames = new ConcurrentHashMap<>();
+
+    private ChromeTrace(boolean enabled) {
+        super();
+        this.enabled = enabled;
+    }
+
+    /**
+     * Starts a new {@link Span} on the lane of the current thread.
+     *
+     * @param category
+     *            the category of the span, such as {@code project}, {@code checkout} or {@code build}
+     * @param name
+     *            the name of the span
+     * @return a new {@link Span} or a no-op {@link Span} if this {@link ChromeTrace} is disabled
+     */
+    public Span begin(String category, String name) {
+        if (!enabled) {
+            return NOOP;
+        }
+        final Thread thread = Thread.currentThread();
+        threadNames.putIfAbsent(thread.getId(), thread.getName());
+        return new Span(this, category, name);
+    }
+
+    /**
+     * @return {@code true} if nothing has been recorded yet
+     */
+    public boolean isEmpty() {
+        return events.isEmpty();
+    }
+
+    /**
+     * @return {@code true} if this {@link ChromeTrace} collects spans; {@code false} otherwise
+     */
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return this trace as a Trace Event Format JSON document with a complete ({@code "ph": "X"}) event per finished
+     *         {@link Span}, ordered by start time, and a {@code thread_name} metadata event per thread lane
+     */
+    public String toJson() {
+        final List<Event> sorted = new ArrayList<>(events);
+        Collections.sort(sorted, Comparator.comparingLong((Event e) -> e.startNanos).thenComparing(e -> e.name));
+        final StringBuilder out = new StringBuilder();
+        out.append("{\n  \"displayTimeUnit\": \"ms\",\n  \"traceEvents\": [\n");
+        out.append("    {\"name\": \"process_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": 0, ");
+        out.append("\"args\": {\"name\": \"maven\"}}");
+        for (Entry<Long, String> thread : new TreeMap<>(threadNames).entrySet()) {
+            out.append(",\n    {\"name\": \"thread_name\", \"ph\": \"M\", \"pid\": 1, \"tid\": ")
+                    .append(thread.getKey()).append(", \"args\": {\"name\": ");
+            BuildReport.appendJsonString(out, thread.getValue());
+            out.append("}}");
+        }
+        for (Event event : sorted) {
+            out.append(",\n    {\"name\": ");
+            BuildReport.appendJsonString(out, event.name);
+            out.append(", \"cat\": ");
+            BuildReport.appendJsonString(out, event.category);
+            out.append(", \"ph\": \"X\", \"ts\": ")
+                    .append(TimeUnit.NANOSECONDS.toMicros(event.startNanos - originNanos)).append(", \"dur\": ")
+                    .append(TimeUnit.NANOSECONDS.toMicros(event.durationNanos)).append(", \"pid\": 1, \"tid\": ")
+                    .append(event.threadId).append(", ");
+            appendArgs(out, event.args);
+            out.append('}');
+        }
+        out.append("\n  ]\n}\n");
+        return out.toString();
+    }
+
+    /**
+     * Writes {@link #toJson()} to the given {@code file} atomically.
+     *
+     * @param file
+     *            the file to write to
+     * @throws IOException
+     *             on I/O errors
+     */
+    public void write(Path file) throws IOException {
+        Files.createDirectories(file.getParent());
+        final Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+        try {
+            try (Writer out = Files.newBufferedWriter(tmp, StandardCharsets.UTF_8)) {
+                out.write(toJson());
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+}
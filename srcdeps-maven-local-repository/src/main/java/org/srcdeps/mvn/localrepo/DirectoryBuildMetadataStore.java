@@ -0,0 +1,109 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.BuildMetadataStore;
+
+/**
+ * A {@link LocalBuildMetadataStore} storing the {@link Stamps} of each build request in a separate text file
+ * {@code <rootDirectory>/<scmRepoId>/<hash>.txt}. The commit IDs are delegated to the given
+ * {@link BuildMetadataStore}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class DirectoryBuildMetadataStore extends LocalBuildMetadataStore {
+    private static final Logger log = LoggerFactory.getLogger(DirectoryBuildMetadataStore.class);
+
+    private final BuildMetadataStore commitIdStore;
+    private final Path rootDirectory;
+
+    DirectoryBuildMetadataStore(Path rootDirectory, BuildMetadataStore commitIdStore, ArtifactHasher hasher) {
+        super(hasher);
+        this.rootDirectory = rootDirectory;
+        this.commitIdStore = commitIdStore;
+    }
+
+    /**
+     * Deletes the {@link Stamps} stored for the given {@code scmRepoId} and {@code hash}.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param hash
+     *            the hash of the build request
+     * @throws IOException
+     *             on I/O errors
+     */
+    public void delete(String scmRepoId, String hash) throws IOException {
+        Files.deleteIfExists(resolve(scmRepoId, hash));
+    }
+
+    public Path getRootDirectory() {
+        return rootDirectory;
+    }
+
+    @Override
+    public Stamps load(String scmRepoId, String hash) throws IOException {
+        final Path file = resolve(scmRepoId, hash);
+        final String text;
+        try {
+            text = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+        final Stamps result = Stamps.parse(hasher, scmRepoId, hash, text);
+        if (result == null) {
+            log.warn("srcdeps[{}]: Ignoring malformed stamps file [{}]", scmRepoId, file);
+        }
+        return result;
+    }
+
+    private Path resolve(String scmRepoId, String hash) {
+        return rootDirectory.resolve(scmRepoId).resolve(hash + ".txt");
+    }
+
+    @Override
+    public String retrieveCommitId(String scmRepoId, String hash) {
+        return commitIdStore.retrieveCommitId(scmRepoId, hash);
+    }
+
+    @Override
+    public void save(Stamps stamps) throws IOException {
+        final Path file = resolve(stamps.getScmRepoId(), stamps.getHash());
+        Files.createDirectories(file.getParent());
+        final Path tmp = Files.createTempFile(file.getParent(), stamps.getHash(), ".tmp");
+        try {
+            Files.write(tmp, stamps.format().getBytes(StandardCharsets.UTF_8));
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+    }
+
+    @Override
+    public void storeCommitId(String scmRepoId, String hash, String commitId) {
+        commitIdStore.storeCommitId(scmRepoId, hash, commitId);
+    }
+}
@@ -0,0 +1,160 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.SrcVersion;
+
+/**
+ * A persistent record of when the source versions of SCM repositories were last seen in the remote repository and
+ * which commits they pointed at. Unlike {@link org.srcdeps.core.FetchLog}, which only lives as long as the current
+ * JVM, the stamps are stored in {@code <directory>/<scmRepoId>.properties}, so that consecutive and concurrent Maven
+ * invocations on the same machine can skip fetching a branch that some of them has fetched recently.
+ * <p>
+ * Each properties file is read and written under an exclusive {@link FileLock} on
+ * {@code <directory>/<scmRepoId>.lock} and under a JVM wide monitor, because a {@link FileLock} cannot be used to
+ * exclude the threads of a single JVM. Failures to read or write the stamps are logged and otherwise ignored, so that
+ * the callers fall back to fetching.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class FetchStamps {
+    /** Shared by all instances, because those sharing a directory would otherwise overlap their {@link FileLock}s */
+    private static final ConcurrentMap<Path, Object> locks = new ConcurrentHashMap<>();
+    private static final Logger log = LoggerFactory.getLogger(FetchStamps.class);
+
+    /**
+     * @return the key under which the stamp of the given {@code srcVersion} fetched from the given {@code scmUrls} is
+     *         stored, so that changing the URLs of an SCM repository invalidates its stamps
+     */
+    static String toKey(List<String> scmUrls, SrcVersion srcVersion) {
+        final StringBuilder result = new StringBuilder(srcVersion.toString());
+        for (String url : scmUrls) {
+            result.append(' ').append(url);
+        }
+        return result.toString();
+    }
+
+    private final Path directory;
+
+    FetchStamps(Path directory) {
+        super();
+        this.directory = directory;
+    }
+
+    /**
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param scmUrls
+     *            the URLs of the SCM repository
+     * @param srcVersion
+     *            the source version to look up
+     * @param maxAgeMillis
+     *            how long a stamp is considered fresh
+     * @param now
+     *            the current time in milliseconds since the epoch
+     * @return the commit ID the given {@code srcVersion} pointed at when it was stamped no more than
+     *         {@code maxAgeMillis} before {@code now} or {@code null} if there is no such fresh stamp
+     */
+    public String get(String scmRepoId, List<String> scmUrls, SrcVersion srcVersion, long maxAgeMillis, long now) {
+        final String value = lockAndUpdate(scmRepoId, toKey(scmUrls, srcVersion), null);
+        if (value == null) {
+            return null;
+        }
+        final int comma = value.indexOf(',');
+        try {
+            final long stamp = Long.parseLong(value.substring(comma + 1));
+            if (comma > 0 && stamp <= now && now - stamp <= maxAgeMillis) {
+                return value.substring(0, comma);
+            }
+        } catch (NumberFormatException e) {
+            log.debug("srcdeps[{}]: Ignoring malformed fetch stamp [{}]", scmRepoId, value, e);
+        }
+        return null;
+    }
+
+    private String lockAndUpdate(String scmRepoId, String key, String newValue) {
+        final Path lockFile = directory.resolve(scmRepoId + ".lock").toAbsolutePath().normalize();
+        final Path file = directory.resolve(scmRepoId + ".properties");
+        synchronized (locks.computeIfAbsent(lockFile, k -> new Object())) {
+            try {
+                Files.createDirectories(directory);
+                try (FileChannel ch = FileChannel.open(lockFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+                        FileLock lock = ch.lock()) {
+                    final Properties stamps = new Properties();
+                    if (Files.exists(file)) {
+                        try (InputStream in = Files.newInputStream(file)) {
+                            stamps.load(in);
+                        }
+                    }
+                    if (newValue == null) {
+                        return stamps.getProperty(key);
+                    }
+                    stamps.setProperty(key, newValue);
+                    final Path tmp = Files.createTempFile(directory, scmRepoId, ".tmp");
+                    try {
+                        try (OutputStream out = Files.newOutputStream(tmp)) {
+                            stamps.store(out, null);
+                        }
+                        Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                    } finally {
+                        Files.deleteIfExists(tmp);
+                    }
+                    return newValue;
+                }
+            } catch (IOException e) {
+                log.warn("srcdeps[{}]: Could not access the fetch stamps in [{}]: {}", scmRepoId, file,
+                        e.getMessage());
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Records that the given {@code srcVersion} fetched from the given {@code scmUrls} pointed at the given
+     * {@code commitId} at the given time.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param scmUrls
+     *            the URLs of the SCM repository
+     * @param srcVersion
+     *            the source version that was fetched
+     * @param commitId
+     *            the commit ID the {@code srcVersion} pointed at
+     * @param now
+     *            the current time in milliseconds since the epoch
+     */
+    public void put(String scmRepoId, List<String> scmUrls, SrcVersion srcVersion, String commitId, long now) {
+        lockAndUpdate(scmRepoId, toKey(scmUrls, srcVersion), commitId + "," + now);
+    }
+}
@@ -0,0 +1,223 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.lang.annotation.Annotation;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Constructor;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Custom Java Flight Recorder events for the work done by {@link SrcdepsLocalRepositoryManager}. All event types
+ * belong to the {@code srcdeps} category and have the {@code scmRepoId}, {@code srcVersion} and {@code artifact}
+ * fields; the fields not known at the given call site are left empty.
+ * <p>
+ * As we still compile and run on Java 8, the event types are not declared as subclasses of {@code jdk.jfr.Event}.
+ * Instead, they are created at runtime via {@code jdk.jfr.EventFactory} looked up reflectively. If the events are
+ * disabled or JFR is not available, {@link #begin(Type, String, Object, Object)} returns a shared no-op {@link Span},
+ * so that the instrumentation costs just a virtual call.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class FlightRecorderEvents {
+
+    /**
+     * A running event. Closing it ends the event and commits it if it passes the settings of the recording.
+     */
+    static class Span implements AutoCloseable {
+        private final Object event;
+        private final FlightRecorderEvents events;
+
+        Span(FlightRecorderEvents events, Object event) {
+            super();
+            this.events = events;
+            this.event = event;
+        }
+
+        @Override
+        public void close() {
+            if (event != null) {
+                events.commit(event);
+            }
+        }
+    }
+
+    /**
+     * The srcdeps event types.
+     */
+    enum Type {
+        build("Build", "A nested build of a source dependency", null),
+        checkout("Checkout", "A checkout of the sources of a source dependency", null),
+        lock("Lock", "Waiting for the lock of a build directory", null),
+        /* Most lookups are fast hits of non-source dependencies */
+        lookup("Lookup", "A lookup of an artifact in the local Maven repository", "1 ms"),
+        metadata("Metadata", "Reading or writing the build metadata of a source dependency", null),
+        walk("GavSetWalk", "Walking the GAV directories of a source dependency in the local Maven repository", null);
+
+        private final String description;
+        private final String simpleName;
+        /** The default threshold or {@code null} to record all events */
+        private final String threshold;
+
+        Type(String simpleName, String description, String threshold) {
+            this.simpleName = simpleName;
+            this.description = description;
+            this.threshold = threshold;
+        }
+    }
+
+    static final FlightRecorderEvents DISABLED = new FlightRecorderEvents(null, null, null, null, null);
+    private static final String[] FIELDS = { "scmRepoId", "srcVersion", "artifact" };
+    private static final Logger log = LoggerFactory.getLogger(FlightRecorderEvents.class);
+
+    /**
+     * @param enabled
+     *            {@code true} if the events should be emitted
+     * @return a new {@link FlightRecorderEvents} or {@link #DISABLED} if {@code enabled} is {@code false} or if JFR
+     *         is not available in the current JVM
+     */
+    static FlightRecorderEvents create(boolean enabled) {
+        if (!enabled) {
+            return DISABLED;
+        }
+        try {
+            final ClassLoader cl = ClassLoader.getSystemClassLoader();
+            final Class<?> annotationElementClass = Class.forName("jdk.jfr.AnnotationElement", true, cl);
+            final Class<?> valueDescriptorClass = Class.forName("jdk.jfr.ValueDescriptor", true, cl);
+            final Class<?> eventFactoryClass = Class.forName("jdk.jfr.EventFactory", true, cl);
+            final Class<?> eventClass = Class.forName("jdk.jfr.Event", true, cl);
+            final Constructor<?> annotationElement = annotationElementClass.getConstructor(Class.class, Object.class);
+            final Constructor<?> valueDescriptor = valueDescriptorClass.getConstructor(Class.class, String.class,
+                    List.class);
+            final Class<? extends Annotation> name = annotation("jdk.jfr.Name", cl);
+            final Class<? extends Annotation> label = annotation("jdk.jfr.Label", cl);
+            final Class<? extends Annotation> description = annotation("jdk.jfr.Description", cl);
+            final Class<? extends Annotation> category = annotation("jdk.jfr.Category", cl);
+            final Class<? extends Annotation> threshold = annotation("jdk.jfr.Threshold", cl);
+
+            final List<Object> fields = new ArrayList<>(FIELDS.length);
+            for (String field : FIELDS) {
+                fields.add(valueDescriptor.newInstance(String.class, field,
+                        Collections.singletonList(annotationElement.newInstance(label, field))));
+            }
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            final MethodHandle createFactory = lookup.findStatic(eventFactoryClass, "create",
+                    MethodType.methodType(eventFactoryClass, List.class, List.class));
+            final MethodHandle newEvent = lookup.findVirtual(eventFactoryClass, "newEvent",
+                    MethodType.methodType(eventClass));
+            final Type[] types = Type.values();
+            final MethodHandle[] newEvents = new MethodHandle[types.length];
+            for (Type type : types) {
+                final List<Object> annotations = new ArrayList<>(Arrays.asList( //
+                        annotationElement.newInstance(name, "org.srcdeps." + type.simpleName), //
+                        annotationElement.newInstance(label, "srcdeps " + type.simpleName), //
+                        annotationElement.newInstance(description, type.description), //
+                        annotationElement.newInstance(category, new String[] { "srcdeps" })));
+                if (type.threshold != null) {
+                    annotations.add(annotationElement.newInstance(threshold, type.threshold));
+                }
+                final Object factory = createFactory.invoke(annotations, fields);
+                newEvents[type.ordinal()] = newEvent.bindTo(factory);
+            }
+            return new FlightRecorderEvents(newEvents,
+                    lookup.findVirtual(eventClass, "begin", MethodType.methodType(void.class)),
+                    lookup.findVirtual(eventClass, "set", MethodType.methodType(void.class, int.class, Object.class)),
+                    lookup.findVirtual(eventClass, "end", MethodType.methodType(void.class)),
+                    lookup.findVirtual(eventClass, "commit", MethodType.methodType(void.class)));
+        } catch (Throwable e) {
+            log.warn("srcdeps: Java Flight Recorder events are not available in this JVM", e);
+            return DISABLED;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Class<? extends Annotation> annotation(String className, ClassLoader cl)
+            throws ClassNotFoundException {
+        return (Class<? extends Annotation>) Class.forName(className, true, cl);
+    }
+
+    private final MethodHandle begin;
+    private final MethodHandle commit;
+    private final MethodHandle end;
+    private final MethodHandle[] newEvents;
+    private final Span noop = new Span(this, null);
+    private final MethodHandle set;
+
+    private FlightRecorderEvents(MethodHandle[] newEvents, MethodHandle begin, MethodHandle set, MethodHandle end,
+            MethodHandle commit) {
+        super();
+        this.newEvents = newEvents;
+        this.begin = begin;
+        this.set = set;
+        this.end = end;
+        this.commit = commit;
+    }
+
+    /**
+     * Starts a new event of the given {@link Type}.
+     *
+     * @param type
+     *            the {@link Type} of the event
+     * @param scmRepoId
+     *            the ID of the SCM repository or {@code null}
+     * @param srcVersion
+     *            the {@code SrcVersion} or {@code null}
+     * @param artifact
+     *            the artifact or {@code null}
+     * @return a {@link Span} to close once the measured work is done
+     */
+    public Span begin(Type type, String scmRepoId, Object srcVersion, Object artifact) {
+        if (newEvents == null) {
+            return noop;
+        }
+        try {
+            final Object event = newEvents[type.ordinal()].invoke();
+            set.invoke(event, 0, scmRepoId);
+            set.invoke(event, 1, srcVersion == null ? null : srcVersion.toString());
+            set.invoke(event, 2, artifact == null ? null : artifact.toString());
+            begin.invoke(event);
+            return new Span(this, event);
+        } catch (Throwable e) {
+            log.debug("srcdeps: Could not begin a Java Flight Recorder event", e);
+            return noop;
+        }
+    }
+
+    private void commit(Object event) {
+        try {
+            end.invoke(event);
+            commit.invoke(event);
+        } catch (Throwable e) {
+            log.debug("srcdeps: Could not commit a Java Flight Recorder event", e);
+        }
+    }
+
+    /**
+     * @return {@code true} if this {@link FlightRecorderEvents} emits any events
+     */
+    public boolean isEnabled() {
+        return newEvents != null;
+    }
+}
@@ -0,0 +1,235 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.zip.Checksum;
+
+/**
+ * The algorithms available for detecting whether an installed artifact has changed since srcdeps built it. None of
+ * them needs to be collision resistant, so the non-cryptographic ones are preferable for speed.
+ * <p>
+ * The checksums are stored as {@code <prefix>:<hex>}, except for {@link #sha1} that is stored as plain hex for
+ * compatibility with the entries written before the algorithm became configurable. See {@link #ofChecksum(String)}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+enum HashAlgorithm {
+    /**
+     * CRC32C via {@code java.util.zip.CRC32C}, available on Java 9+ only.
+     */
+    crc32c("crc32c") {
+        @Override
+        Digester newDigester() {
+            if (CRC32C_CONSTRUCTOR == null) {
+                throw new IllegalStateException("java.util.zip.CRC32C is not available on Java "
+                        + System.getProperty("java.specification.version"));
+            }
+            final Checksum checksum;
+            try {
+                checksum = (Checksum) CRC32C_CONSTRUCTOR.invoke();
+            } catch (Throwable e) {
+                throw new IllegalStateException(e);
+            }
+            return new Digester() {
+                @Override
+                public byte[] digest() {
+                    return toBytes(checksum.getValue(), 4);
+                }
+
+                @Override
+                public void update(ByteBuffer input) {
+                    try {
+                        CRC32C_UPDATE.invoke(checksum, input);
+                    } catch (RuntimeException | Error e) {
+                        throw e;
+                    } catch (Throwable e) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+
+        @Override
+        boolean isAvailable() {
+            return CRC32C_CONSTRUCTOR != null;
+        }
+    },
+    /**
+     * SHA-1, the only algorithm used by srcdeps before it became configurable.
+     */
+    sha1(null) {
+        @Override
+        Digester newDigester() {
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-1");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            return new Digester() {
+                @Override
+                public byte[] digest() {
+                    return digest.digest();
+                }
+
+                @Override
+                public void update(ByteBuffer input) {
+                    digest.update(input);
+                }
+            };
+        }
+    },
+    /**
+     * The 64-bit non-cryptographic <a href="https://cyan4973.github.io/xxHash/">XXH64</a>.
+     */
+    xxh64("xxh64") {
+        @Override
+        Digester newDigester() {
+            final XxHash64 hash = new XxHash64();
+            return new Digester() {
+                @Override
+                public byte[] digest() {
+                    return toBytes(hash.digest(), 8);
+                }
+
+                @Override
+                public void update(ByteBuffer input) {
+                    hash.update(input);
+                }
+            };
+        }
+    };
+
+    /**
+     * A single use hash computation.
+     */
+    interface Digester {
+        /**
+         * @return the hash of all bytes passed to {@link #update(ByteBuffer)}
+         */
+        byte[] digest();
+
+        /**
+         * Consumes all remaining bytes of the given {@code input}.
+         *
+         * @param input
+         *            the bytes to hash
+         */
+        void update(ByteBuffer input);
+    }
+
+    private static final MethodHandle CRC32C_CONSTRUCTOR;
+    private static final MethodHandle CRC32C_UPDATE;
+
+    static {
+        MethodHandle constructor = null;
+        MethodHandle update = null;
+        try {
+            /* Looked up reflectively because we still compile and run on Java 8 */
+            final Class<?> cl = Class.forName("java.util.zip.CRC32C");
+            final MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+            constructor = lookup.findConstructor(cl, MethodType.methodType(void.class));
+            update = lookup.findVirtual(cl, "update", MethodType.methodType(void.class, ByteBuffer.class));
+        } catch (ClassNotFoundException | NoSuchMethodException | IllegalAccessException e) {
+            constructor = null;
+            update = null;
+        }
+        CRC32C_CONSTRUCTOR = constructor;
+        CRC32C_UPDATE = update;
+    }
+
+    /**
+     * @param checksum
+     *            a checksum as produced by {@link #format(byte[])}
+     * @return the {@link HashAlgorithm} the given {@code checksum} was computed with; {@link #sha1} for checksums
+     *         without any prefix
+     * @throws IllegalArgumentException
+     *             if the prefix is not known
+     */
+    static HashAlgorithm ofChecksum(String checksum) {
+        final int colonPos = checksum.indexOf(':');
+        if (colonPos < 0) {
+            return sha1;
+        }
+        return ofName(checksum.substring(0, colonPos));
+    }
+
+    /**
+     * @param name
+     *            the name of the algorithm, case insensitive
+     * @return the {@link HashAlgorithm} having the given {@code name}
+     * @throws IllegalArgumentException
+     *             if there is no such algorithm
+     */
+    static HashAlgorithm ofName(String name) {
+        final String n = name.toLowerCase(Locale.ROOT).replace("-", "");
+        for (HashAlgorithm a : values()) {
+            if (a.name().equals(n)) {
+                return a;
+            }
+        }
+        throw new IllegalArgumentException(String.format("Unknown hash algorithm [%s]; expected one of %s", name,
+                Arrays.toString(values())));
+    }
+
+    private static byte[] toBytes(long value, int length) {
+        final byte[] result = new byte[length];
+        for (int i = length - 1; i >= 0; i--) {
+            result[i] = (byte) value;
+            value >>>= 8;
+        }
+        return result;
+    }
+
+    private final String prefix;
+
+    HashAlgorithm(String prefix) {
+        this.prefix = prefix;
+    }
+
+    /**
+     * @param hash
+     *            the result of {@link Digester#digest()}
+     * @return the given {@code hash} as lower case hex string prefixed with the name of this algorithm
+     */
+    String format(byte[] hash) {
+        final String hex = ArtifactHasher.toHex(hash);
+        return prefix == null ? hex : prefix + ":" + hex;
+    }
+
+    /**
+     * @return {@code true} if this algorithm can be used on the current JVM
+     */
+    boolean isAvailable() {
+        return true;
+    }
+
+    /**
+     * @return a new {@link Digester}
+     * @throws IllegalStateException
+     *             if this algorithm is not available on the current JVM
+     */
+    abstract Digester newDigester();
+}
@@ -0,0 +1,423 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent index of artifacts with immutable {@link org.srcdeps.core.SrcVersion}s (tags and revisions) that were
+ * built and installed to the local Maven repository already. Once an artifact with an immutable version is there, it
+ * does not need to be looked up via the delegate {@link org.eclipse.aether.repository.LocalRepositoryManager} anymore:
+ * it is enough to check that the installed file still has the size and last modification time recorded here.
+ * <p>
+ * The index is an append-only file consisting of a header ({@link #MAGIC}, {@link #FORMAT_VERSION}) followed by
+ * records of the form {@code [int keyLength][key bytes in UTF-8][long size][long lastModified]}. A later record for
+ * the same key overrides any earlier one. The file is read once when the index is opened; a truncated trailing record
+ * (e.g. after a crash) is ignored when reading and truncated before the next record is appended. Records are appended
+ * under a {@link FileLock} held on a separate {@code <file>.lock} file, so that concurrent Maven processes sharing the
+ * same local repository do not corrupt the file. Before appending, the index reads only the records appended by other
+ * processes since it last read or wrote the file; the whole file is re-read only if it was replaced or truncated in
+ * the meantime.
+ * <p>
+ * Once more than {@link #COMPACTION_RATIO} of the records are overridden ones and the file is bigger than
+ * {@link #COMPACTION_THRESHOLD} bytes, the live records are written to a temporary file that then atomically replaces
+ * the index.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class ImmutableArtifactIndex {
+
+    /**
+     * The size and last modification time of an installed file.
+     */
+    static final class Stamp {
+        static final Stamp NONE = new Stamp(-1L, -1L);
+
+        /**
+         * @param file
+         *            the file to stat
+         * @return the {@link Stamp} of the given {@code file} or {@link #NONE} if the file does not exist
+         * @throws IOException
+         *             on I/O errors other than {@link NoSuchFileException}
+         */
+        static Stamp of(Path file) throws IOException {
+            try {
+                final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+                return new Stamp(attrs.size(), attrs.lastModifiedTime().toMillis());
+            } catch (NoSuchFileException e) {
+                return NONE;
+            }
+        }
+
+        private final long lastModified;
+        private final long size;
+
+        Stamp(long size, long lastModified) {
+            super();
+            this.size = size;
+            this.lastModified = lastModified;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (this == obj) {
+                return true;
+            }
+            if (obj == null || getClass() != obj.getClass()) {
+                return false;
+            }
+            final Stamp other = (Stamp) obj;
+            return size == other.size && lastModified == other.lastModified;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        @Override
+        public int hashCode() {
+            return 31 * Long.hashCode(size) + Long.hashCode(lastModified);
+        }
+
+        @Override
+        public String toString() {
+            return "Stamp [size=" + size + ", lastModified=" + lastModified + "]";
+        }
+    }
+
+    /** Compact if the total number of records is greater than the number of live ones times this ratio */
+    static final int COMPACTION_RATIO = 2;
+    /** Do not compact files smaller than this number of bytes */
+    static final long COMPACTION_THRESHOLD = 1024 * 1024;
+    static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final Logger log = LoggerFactory.getLogger(ImmutableArtifactIndex.class);
+    static final int MAGIC = 0x53444949; // SDII
+    private static final int MAX_KEY_LENGTH = 4096;
+
+    private static Object fileKey(Path file) throws IOException {
+        try {
+            final Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+            return fileKey == null ? "" : fileKey;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Reads the index stored in the given {@code indexFile}. If the file does not exist or if it has an unexpected
+     * header, an empty index is returned and the file gets (re)created on the first {@link #put(String, Path)}.
+     *
+     * @param indexFile
+     *            the path to the index file
+     * @return a new {@link ImmutableArtifactIndex}
+     * @throws IOException
+     *             on I/O errors
+     */
+    public static ImmutableArtifactIndex open(Path indexFile) throws IOException {
+        final ImmutableArtifactIndex result = new ImmutableArtifactIndex(indexFile);
+        synchronized (result) {
+            result.refresh();
+            if (result.needsCompaction()) {
+                result.compact();
+            }
+        }
+        return result;
+    }
+
+    private static ByteBuffer readFully(FileChannel ch, long position, int length) throws IOException {
+        final ByteBuffer result = ByteBuffer.allocate(length);
+        while (result.hasRemaining() && ch.read(result, position + result.position()) >= 0) {
+            /* keep reading */
+        }
+        result.flip();
+        return result;
+    }
+
+    private static ByteBuffer toRecord(byte[] keyBytes, Stamp stamp) {
+        final ByteBuffer result = ByteBuffer.allocate(4 + keyBytes.length + 16);
+        result.putInt(keyBytes.length).put(keyBytes).putLong(stamp.getSize()).putLong(stamp.getLastModified());
+        result.flip();
+        return result;
+    }
+
+    private static void write(FileChannel ch, ByteBuffer buffer, long position) throws IOException {
+        while (buffer.hasRemaining()) {
+            ch.write(buffer, position + buffer.position());
+        }
+    }
+
+    /** The end of the last valid record in {@link #indexFile} as far as this index has read or written it */
+    private long end;
+    private final ConcurrentMap<String, Stamp> entries = new ConcurrentHashMap<>();
+    /** The file key of the {@link #indexFile} the records were read from */
+    private Object fileKey;
+    private final Path indexFile;
+    private final Path lockFile;
+    /** The total number of valid records up to {@link #end}, including the overridden ones */
+    private int recordCount;
+
+    ImmutableArtifactIndex(Path indexFile) {
+        super();
+        this.indexFile = indexFile;
+        this.lockFile = indexFile.resolveSibling(indexFile.getFileName().toString() + ".lock");
+    }
+
+    /**
+     * Reads the records appended to the {@link #indexFile} since this index read or wrote it the last time. The whole
+     * file is re-read only if it was replaced or truncated in the meantime.
+     *
+     * @throws IOException
+     *             on I/O errors
+     */
+    private void catchUp() throws IOException {
+        final Object currentKey = fileKey(indexFile);
+        if (currentKey == null || !currentKey.equals(fileKey)) {
+            refresh();
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            final long size = ch.size();
+            if (size < end) {
+                refresh();
+            } else if (size > end) {
+                readRecords(ch, size);
+            }
+        }
+    }
+
+    /**
+     * Rewrites the index file so that it contains only the live records.
+     *
+     * @throws IOException
+     *             on I/O errors
+     */
+    synchronized void compact() throws IOException {
+        Files.createDirectories(indexFile.getParent());
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE); FileLock lock = lockChannel.lock()) {
+            catchUp();
+            if (end < HEADER_LENGTH) {
+                return;
+            }
+            final Map<String, Stamp> live = new TreeMap<>(entries);
+            final Path tmp = Files.createTempFile(indexFile.getParent(), indexFile.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(FORMAT_VERSION);
+                    header.flip();
+                    long position = 0;
+                    write(ch, header, position);
+                    position += HEADER_LENGTH;
+                    for (Entry<String, Stamp> en : live.entrySet()) {
+                        final ByteBuffer record = toRecord(en.getKey().getBytes(StandardCharsets.UTF_8), en.getValue());
+                        final int length = record.remaining();
+                        write(ch, record, position);
+                        position += length;
+                    }
+                    ch.force(true);
+                }
+                final long oldSize = end;
+                Files.move(tmp, indexFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                refresh();
+                log.debug("srcdeps: Compacted [{}] from {} to {} bytes", indexFile, oldSize, end);
+            } catch (IOException e) {
+                /* e.g. on Windows, where a file opened by another process cannot be replaced */
+                log.debug("srcdeps: Could not compact [{}]", indexFile, e);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * @return the total number of valid records in the index file, including the overridden ones
+     */
+    synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * @param key
+     *            the key of the artifact to look up
+     * @param file
+     *            the path of the artifact in the local Maven repository
+     * @return {@code true} if the given {@code key} is in this index and the given {@code file} still has the
+     *         {@link Stamp} recorded for it; {@code false} otherwise
+     */
+    public boolean isInstalled(String key, Path file) {
+        final Stamp stamp = entries.get(key);
+        if (stamp == null) {
+            return false;
+        }
+        try {
+            return stamp.equals(Stamp.of(file));
+        } catch (IOException e) {
+            log.debug("srcdeps: Could not stat [{}]", file, e);
+            return false;
+        }
+    }
+
+    private boolean needsCompaction() {
+        return end > COMPACTION_THRESHOLD && recordCount > COMPACTION_RATIO * entries.size();
+    }
+
+    /**
+     * Records the current {@link Stamp} of the given {@code file} under the given {@code key} unless the same
+     * {@link Stamp} is recorded already. The new entry is appended to the index file immediately.
+     *
+     * @param key
+     *            the key of the artifact
+     * @param file
+     *            the path of the artifact in the local Maven repository
+     * @throws IOException
+     *             on I/O errors
+     */
+    public void put(String key, Path file) throws IOException {
+        final Stamp stamp = Stamp.of(file);
+        if (stamp == Stamp.NONE || stamp.equals(entries.get(key))) {
+            return;
+        }
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        if (keyBytes.length > MAX_KEY_LENGTH) {
+            entries.put(key, stamp);
+            return;
+        }
+        synchronized (this) {
+            Files.createDirectories(indexFile.getParent());
+            try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE); FileLock lock = lockChannel.lock()) {
+                /* Another process may have appended, replaced or truncated the file since we read it */
+                catchUp();
+                try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                        StandardOpenOption.WRITE)) {
+                    if (end < HEADER_LENGTH) {
+                        /* A new or invalid file */
+                        ch.truncate(0);
+                        final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC)
+                                .putInt(FORMAT_VERSION);
+                        header.flip();
+                        write(ch, header, 0);
+                        end = HEADER_LENGTH;
+                    } else if (ch.size() > end) {
+                        /* Drop the invalid tail */
+                        ch.truncate(end);
+                    }
+                    final ByteBuffer record = toRecord(keyBytes, stamp);
+                    final int length = record.remaining();
+                    write(ch, record, end);
+                    end += length;
+                    recordCount++;
+                    entries.put(key, stamp);
+                }
+                fileKey = fileKey(indexFile);
+            }
+            if (needsCompaction()) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Reads the records between {@link #end} and the given {@code size} of the given channel.
+     *
+     * @param ch
+     *            the channel to read from
+     * @param size
+     *            the current size of {@code ch}
+     * @throws IOException
+     *             on I/O errors
+     */
+    private void readRecords(FileChannel ch, long size) throws IOException {
+        if (size - end > Integer.MAX_VALUE) {
+            throw new IOException(String.format("File [%s] is too big", indexFile));
+        }
+        final ByteBuffer buffer = readFully(ch, end, (int) (size - end));
+        if (end < HEADER_LENGTH) {
+            if (buffer.remaining() < HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                if (size > 0) {
+                    log.warn("srcdeps: Ignoring the invalid immutable artifact index [{}]", indexFile);
+                }
+                end = 0;
+                return;
+            }
+            end = HEADER_LENGTH;
+        }
+        while (buffer.remaining() >= 4) {
+            final int keyLength = buffer.getInt();
+            if (keyLength <= 0 || keyLength > MAX_KEY_LENGTH || keyLength + 16 > buffer.remaining()) {
+                /* a truncated or garbled trailing record */
+                break;
+            }
+            final byte[] keyBytes = new byte[keyLength];
+            buffer.get(keyBytes);
+            final long fileSize = buffer.getLong();
+            final long lastModified = buffer.getLong();
+            entries.put(new String(keyBytes, StandardCharsets.UTF_8), new Stamp(fileSize, lastModified));
+            recordCount++;
+            end += 4 + keyLength + 16;
+        }
+    }
+
+    /**
+     * Re-reads the whole index file.
+     *
+     * @throws IOException
+     *             on I/O errors
+     */
+    private void refresh() throws IOException {
+        entries.clear();
+        recordCount = 0;
+        end = 0;
+        fileKey = fileKey(indexFile);
+        if (fileKey == null) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.READ)) {
+            readRecords(ch, ch.size());
+        }
+    }
+
+    /**
+     * @return the number of entries in this index
+     */
+    public int size() {
+        return entries.size();
+    }
+}
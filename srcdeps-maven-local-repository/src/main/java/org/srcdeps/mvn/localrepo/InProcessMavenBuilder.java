@@ -0,0 +1,428 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.BuildException;
+import org.srcdeps.core.BuildRequest;
+import org.srcdeps.core.Ga;
+import org.srcdeps.core.config.scalar.Verbosity;
+import org.srcdeps.core.shell.LineConsumer;
+
+/**
+ * Runs nested Maven builds inside the current JVM rather than forking a new {@code mvn} process for each of them.
+ * This saves the JVM startup, the construction of the plugin realms and the JIT warm-up, which is what most of the
+ * time of a small nested build is spent on otherwise.
+ * <p>
+ * The Maven runtime is loaded from the {@code lib} and {@code boot} directories of the given Maven home (typically
+ * the one of the outer build) through a {@link URLClassLoader} isolated from the class realm of this extension. The
+ * class loader is created lazily and reused by all in-process builds of the current session, so that the Maven core
+ * classes stay loaded and JIT compiled. The builds are run via {@code org.apache.maven.cli.MavenCli.doMain()}.
+ * Each of them creates its own Plexus container and {@code RepositorySystem}; nothing of the outer build other than
+ * the Maven home is reused.
+ * <p>
+ * Note that an in-process build has JVM-global side effects: {@code MavenCli} sets system properties and redirects
+ * {@link System#out} and {@link System#err} for the duration of the build, which any other thread of the JVM
+ * observes too. Therefore the in-process builds are serialized, the system properties are restored after each
+ * build and in-process builds must not be used when other threads may run concurrently: the nested builds must not
+ * run in parallel, the outer build must not be multi-threaded (see {@link #isMultiThreaded(List)}) and the caller
+ * has to pause its own background threads, see {@link BackgroundWork}.
+ * <p>
+ * Source trees that pin their own Maven version via the Maven wrapper and non-Maven source trees are not eligible,
+ * see {@link #canBuild(Path)}. The build timeout of the {@link BuildRequest} is not enforced in-process.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class InProcessMavenBuilder implements Closeable {
+
+    /**
+     * An {@link OutputStream} passing whole lines to a {@link Consumer}. Because {@code MavenCli} redirects
+     * {@link System#out} to this stream, whatever the {@link Consumer} itself writes to {@link System#out} (e.g. via
+     * the logger of the outer build) would come back here; such output is passed to the {@code fallback} stream
+     * instead.
+     */
+    static class LineOutputStream extends OutputStream {
+        private boolean accepting;
+        private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(256);
+        private final Consumer<String> consumer;
+        private final OutputStream fallback;
+
+        LineOutputStream(Consumer<String> consumer, OutputStream fallback) {
+            super();
+            this.consumer = consumer;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (buffer.size() > 0) {
+                flushLine();
+            }
+            fallback.flush();
+        }
+
+        private void flushLine() {
+            int len = buffer.size();
+            final byte[] bytes = buffer.toByteArray();
+            if (len > 0 && bytes[len - 1] == '\r') {
+                len--;
+            }
+            buffer.reset();
+            accepting = true;
+            try {
+                consumer.accept(new String(bytes, 0, len, StandardCharsets.UTF_8));
+            } finally {
+                accepting = false;
+            }
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) throws IOException {
+            if (accepting) {
+                fallback.write(b, off, len);
+            } else {
+                for (int i = off; i < off + len; i++) {
+                    write(b[i]);
+                }
+            }
+        }
+
+        @Override
+        public synchronized void write(int b) throws IOException {
+            if (accepting) {
+                fallback.write(b);
+            } else if (b == '\n') {
+                flushLine();
+            } else {
+                buffer.write(b);
+            }
+        }
+    }
+
+    private static final List<String> DEFAULT_ARGS = Arrays.asList("clean", "install");
+    private static final String DEFAULT_VERSIONS_MAVEN_PLUGIN_VERSION = "2.7";
+    private static final Logger log = LoggerFactory.getLogger(InProcessMavenBuilder.class);
+    private static final String MAVEN_CLI = "org.apache.maven.cli.MavenCli";
+    private static final String MAVEN_CONFIG = ".mvn/maven.config";
+    private static final String MULTI_MODULE_PROJECT_DIRECTORY = "maven.multiModuleProjectDirectory";
+    static final String WRAPPER_PROPERTIES = ".mvn/wrapper/maven-wrapper.properties";
+
+    private static void addJars(Path dir, List<URL> urls) throws IOException {
+        if (!Files.isDirectory(dir)) {
+            return;
+        }
+        final List<Path> jars = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(dir, "*.jar")) {
+            for (Path jar : files) {
+                jars.add(jar);
+            }
+        }
+        Collections.sort(jars);
+        for (Path jar : jars) {
+            urls.add(jar.toUri().toURL());
+        }
+    }
+
+    /**
+     * @param request
+     *            the {@link BuildRequest} to translate
+     * @return the {@code mvn} command line arguments (without the executable) equivalent to the given
+     *         {@link BuildRequest}
+     */
+    static List<String> buildArguments(BuildRequest request) {
+        final List<String> result = new ArrayList<>();
+        result.add("-B");
+        if (request.isAddDefaultBuildArguments()) {
+            result.addAll(DEFAULT_ARGS);
+        }
+        result.addAll(request.getBuildArguments());
+        if (request.isSkipTests()) {
+            result.add("-DskipTests");
+        }
+        result.addAll(verbosityArguments(request.getVerbosity()));
+        result.addAll(forwardedProperties(request.getForwardPropertyNames(), request.getForwardPropertyValues(),
+                System.getProperties()));
+        final Set<Ga> includes = request.getBuildIncludes();
+        if (includes != null && !includes.isEmpty()) {
+            result.add("-pl");
+            result.add(includes.stream().map(ga -> ga.getGroupId() + ":" + ga.getArtifactId())
+                    .collect(Collectors.joining(",")));
+            result.add("-am");
+        }
+        return result;
+    }
+
+    /**
+     * @param names
+     *            the names of the properties to forward; a trailing {@code *} matches any suffix
+     * @param values
+     *            the properties to forward with the given values regardless of {@code properties}
+     * @param properties
+     *            the properties to look the {@code names} up in
+     * @return {@code -Dname=value} arguments
+     */
+    static List<String> forwardedProperties(Collection<String> names, Map<String, String> values,
+            Properties properties) {
+        final List<String> result = new ArrayList<>();
+        if (names != null) {
+            for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+                for (String name : names) {
+                    if (name.endsWith("*") ? key.startsWith(name.substring(0, name.length() - 1)) : key.equals(name)) {
+                        result.add("-D" + key + "=" + properties.getProperty(key));
+                        break;
+                    }
+                }
+            }
+        }
+        if (values != null) {
+            for (Entry<String, String> en : values.entrySet()) {
+                result.add("-D" + en.getKey() + "=" + en.getValue());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param args
+     *            the {@code mvn} command line arguments to check
+     * @return {@code true} if the given arguments request a multi-threaded build via {@code -T} or {@code --threads}
+     *         with anything but a single thread
+     */
+    static boolean isMultiThreaded(List<String> args) {
+        for (int i = 0; i < args.size(); i++) {
+            final String arg = args.get(i);
+            final String threads;
+            if (arg.equals("-T") || arg.equals("--threads")) {
+                threads = i + 1 < args.size() ? args.get(i + 1) : null;
+            } else if (arg.startsWith("--threads=")) {
+                threads = arg.substring("--threads=".length());
+            } else if (arg.startsWith("-T")) {
+                threads = arg.substring(2);
+            } else {
+                continue;
+            }
+            if (threads != null && !threads.equals("1")) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @param multimoduleProjectRootDirectory
+     *            the root directory of the outer build
+     * @param systemProperties
+     *            the system properties of the outer build
+     * @param mavenArgs
+     *            the value of the {@code MAVEN_ARGS} environment variable or {@code null}
+     * @return the command line arguments of the outer build as far as they can be determined: the ones stored in
+     *         {@value #MAVEN_CONFIG}, in {@code MAVEN_ARGS} and in the {@code sun.java.command} system property
+     */
+    static List<String> outerBuildArguments(Path multimoduleProjectRootDirectory, Properties systemProperties,
+            String mavenArgs) {
+        final List<String> result = new ArrayList<>();
+        if (multimoduleProjectRootDirectory != null) {
+            final Path mavenConfig = multimoduleProjectRootDirectory.resolve(MAVEN_CONFIG);
+            if (Files.exists(mavenConfig)) {
+                try {
+                    for (String line : Files.readAllLines(mavenConfig, StandardCharsets.UTF_8)) {
+                        result.addAll(split(line));
+                    }
+                } catch (IOException e) {
+                    log.debug("srcdeps: Could not read [{}]", mavenConfig, e);
+                }
+            }
+        }
+        result.addAll(split(mavenArgs));
+        result.addAll(split(systemProperties.getProperty("sun.java.command")));
+        return result;
+    }
+
+    private static List<String> split(String args) {
+        if (args == null || args.trim().isEmpty()) {
+            return Collections.emptyList();
+        }
+        return Arrays.asList(args.trim().split("\\s+"));
+    }
+
+    private static List<String> verbosityArguments(Verbosity verbosity) {
+        if (verbosity == null) {
+            return Collections.emptyList();
+        }
+        switch (verbosity) {
+        case trace:
+        case debug:
+            return Collections.singletonList("-X");
+        case warn:
+        case error:
+            return Collections.singletonList("-q");
+        default:
+            return Collections.emptyList();
+        }
+    }
+
+    private URLClassLoader classLoader;
+    private Method doMain;
+    private Class<?> mavenCliClass;
+    private final Path mavenHome;
+
+    /**
+     * @param mavenHome
+     *            the Maven installation to load the Maven runtime from
+     */
+    InProcessMavenBuilder(Path mavenHome) {
+        super();
+        this.mavenHome = mavenHome;
+    }
+
+    /**
+     * Runs the build requested by the given {@link BuildRequest} in the current JVM: sets the versions of the source
+     * tree via {@code versions-maven-plugin} first and then runs the build itself.
+     *
+     * @param request
+     *            the {@link BuildRequest} to build
+     * @throws BuildException
+     *             if the Maven runtime cannot be loaded or if any of the builds fails
+     */
+    public synchronized void build(BuildRequest request) throws BuildException {
+        final String scmRepoId = request.getScmRepositoryId();
+        final Path dir = request.getProjectRootDirectory();
+
+        final List<String> versionsArgs = new ArrayList<>();
+        versionsArgs.add("-B");
+        final String pluginVersion = request.getVersionsMavenPluginVersion();
+        versionsArgs.add("org.codehaus.mojo:versions-maven-plugin:"
+                + (pluginVersion == null ? DEFAULT_VERSIONS_MAVEN_PLUGIN_VERSION : pluginVersion) + ":set");
+        versionsArgs.add("-DnewVersion=" + request.getVersion());
+        versionsArgs.add("-DartifactId=*");
+        versionsArgs.add("-DgroupId=*");
+        versionsArgs.add("-DoldVersion=*");
+        versionsArgs.add("-DgenerateBackupPoms=false");
+        for (String arg : request.getBuildArguments()) {
+            if (arg.startsWith("-D") || arg.startsWith("-s") || arg.startsWith("--settings")) {
+                versionsArgs.add(arg);
+            }
+        }
+
+        try (LineConsumer output = request.getOutput().get()) {
+            run(scmRepoId, dir, versionsArgs, output);
+            run(scmRepoId, dir, buildArguments(request), output);
+        } catch (IOException e) {
+            throw new BuildException(String.format("srcdeps[%s]: Could not close the build output", scmRepoId), e);
+        }
+    }
+
+    /**
+     * @param projectRootDirectory
+     *            the root directory of the source tree to build
+     * @return {@code true} if the Maven runtime is available in the Maven home and if the given source tree is a
+     *         Maven source tree that does not pin its own Maven version via the Maven wrapper
+     */
+    public boolean canBuild(Path projectRootDirectory) {
+        return Files.isDirectory(mavenHome.resolve("lib")) && Files.exists(projectRootDirectory.resolve("pom.xml"))
+                && !Files.exists(projectRootDirectory.resolve(WRAPPER_PROPERTIES));
+    }
+
+    /**
+     * Releases the Maven runtime loaded by this {@link InProcessMavenBuilder}.
+     */
+    @Override
+    public synchronized void close() {
+        if (classLoader != null) {
+            try {
+                classLoader.close();
+            } catch (IOException e) {
+                log.warn("srcdeps: Could not close the class loader of the in-process Maven builds", e);
+            }
+            classLoader = null;
+            mavenCliClass = null;
+            doMain = null;
+        }
+    }
+
+    private void init() throws IOException, ReflectiveOperationException {
+        if (mavenCliClass == null) {
+            final List<URL> urls = new ArrayList<>();
+            addJars(mavenHome.resolve("lib/ext"), urls);
+            addJars(mavenHome.resolve("lib"), urls);
+            addJars(mavenHome.resolve("boot"), urls);
+            urls.add(mavenHome.resolve("conf/logging").toUri().toURL());
+            log.debug("srcdeps: Loading the Maven runtime for in-process builds from [{}]", mavenHome);
+            /* The parent of the system class loader sees only the JDK classes */
+            classLoader = new URLClassLoader(urls.toArray(new URL[0]), ClassLoader.getSystemClassLoader().getParent());
+            mavenCliClass = classLoader.loadClass(MAVEN_CLI);
+            doMain = mavenCliClass.getMethod("doMain", String[].class, String.class, PrintStream.class,
+                    PrintStream.class);
+        }
+    }
+
+    private void run(String scmRepoId, Path dir, List<String> args, LineConsumer output) throws BuildException {
+        log.info("srcdeps[{}]: Running in-process Maven build in [{}] with arguments {}", scmRepoId, dir, args);
+        final Properties systemProperties = (Properties) System.getProperties().clone();
+        final Thread thread = Thread.currentThread();
+        final ClassLoader contextClassLoader = thread.getContextClassLoader();
+        final int exitCode;
+        try (PrintStream out = new PrintStream(new LineOutputStream(output, System.out), true, "UTF-8")) {
+            init();
+            thread.setContextClassLoader(classLoader);
+            System.setProperty(MULTI_MODULE_PROJECT_DIRECTORY, dir.toString());
+            final Object cli = mavenCliClass.getConstructor().newInstance();
+            exitCode = ((Integer) doMain.invoke(cli, args.toArray(new String[0]), dir.toString(), out, out))
+                    .intValue();
+        } catch (InvocationTargetException e) {
+            throw new BuildException(String.format("srcdeps[%s]: In-process Maven build in [%s] failed", scmRepoId,
+                    dir), e.getCause());
+        } catch (IOException | ReflectiveOperationException e) {
+            throw new BuildException(String.format("srcdeps[%s]: Could not load the Maven runtime from [%s]",
+                    scmRepoId, mavenHome), e);
+        } finally {
+            thread.setContextClassLoader(contextClassLoader);
+            System.setProperties(systemProperties);
+        }
+        if (exitCode != 0) {
+            throw new BuildException(String.format(
+                    "srcdeps[%s]: In-process Maven build in [%s] failed with exit code %d", scmRepoId, dir, exitCode));
+        }
+    }
+}
@@ -0,0 +1,470 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+
+/**
+ * Stores the metadata of the nested builds needed to decide whether a source dependency needs to be rebuilt: the
+ * commit ID the sources were built at and the {@link Stamp}s (size, last modification time, file key and checksum) of
+ * the artifacts the build installed. The {@link Stamp}s let a later session tell cheaply whether any of the installed
+ * artifacts was changed by some third party in the meantime: a file is hashed only if its size, last modification
+ * time or file key (inode) differs from the recorded ones; the hashing itself is delegated to {@link ArtifactHasher}.
+ * <p>
+ * The {@link Stamps} are persisted in a textual form, one line per installed file:
+ * {@code <path relative to the local repo>\t<size>\t<lastModified>\t<fileKey>\t<checksum>}, where
+ * {@code <checksum>} is formatted by {@link HashAlgorithm#format(byte[])}. A change of the configured
+ * {@link HashAlgorithm} thus does not invalidate the stamps stored before: they are verified with the algorithm they
+ * were computed with. An empty {@code <checksum>} stands for a file stamped by
+ * {@link #stat(String, String, Path, Collection)} whose checksum has not been added yet; such a file counts as changed
+ * once its stat data differs from the recorded one.
+ * <p>
+ * Where exactly the metadata is stored is up to the subclasses.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+abstract class LocalBuildMetadataStore {
+
+    /**
+     * The stamp of a single installed file.
+     */
+    static final class Stamp {
+
+        /**
+         * @param file
+         *            the file to stat
+         * @return a new {@link Stamp} having {@link #getChecksum()} set to {@code null}
+         * @throws IOException
+         *             on I/O errors
+         */
+        static Stamp of(Path file) throws IOException {
+            final BasicFileAttributes attrs = Files.readAttributes(file, BasicFileAttributes.class);
+            final Object fileKey = attrs.fileKey();
+            return new Stamp(attrs.size(), attrs.lastModifiedTime().toMillis(),
+                    fileKey == null ? "" : fileKey.toString(), null);
+        }
+
+        private final String checksum;
+        private final String fileKey;
+        private final long lastModified;
+        private final long size;
+
+        Stamp(long size, long lastModified, String fileKey, String checksum) {
+            super();
+            this.size = size;
+            this.lastModified = lastModified;
+            this.fileKey = fileKey;
+            this.checksum = checksum;
+        }
+
+        public String getChecksum() {
+            return checksum;
+        }
+
+        public String getFileKey() {
+            return fileKey;
+        }
+
+        public long getLastModified() {
+            return lastModified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        /**
+         * @param other
+         *            the {@link Stamp} to compare with
+         * @return {@code true} if size, last modification time and file key of this and the {@code other}
+         *         {@link Stamp} are equal; the checksum is not compared
+         */
+        public boolean statEquals(Stamp other) {
+            return size == other.size && lastModified == other.lastModified && fileKey.equals(other.fileKey);
+        }
+
+        Stamp withChecksum(String checksum) {
+            return new Stamp(size, lastModified, fileKey, checksum);
+        }
+    }
+
+    /**
+     * The {@link Stamp}s of all files installed by a single nested build.
+     */
+    static final class Stamps {
+
+        /**
+         * @param hasher
+         *            the {@link ArtifactHasher} to use in {@link #findChanged(Path, Collection)}
+         * @param scmRepoId
+         *            the ID of the SCM repository
+         * @param hash
+         *            the hash of the build request
+         * @param text
+         *            the output of {@link #format()}
+         * @return new {@link Stamps} or {@code null} if the given {@code text} is malformed
+         */
+        static Stamps parse(ArtifactHasher hasher, String scmRepoId, String hash, String text) {
+            final Map<String, Stamp> stamps = new TreeMap<>();
+            for (String line : text.split("\n")) {
+                if (line.isEmpty()) {
+                    continue;
+                }
+                final String[] cols = line.split("\t", -1);
+                if (cols.length != 5) {
+                    return null;
+                }
+                try {
+                    stamps.put(cols[0],
+                            new Stamp(Long.parseLong(cols[1]), Long.parseLong(cols[2]), cols[3], cols[4]));
+                } catch (NumberFormatException e) {
+                    return null;
+                }
+            }
+            return new Stamps(hasher, scmRepoId, hash, stamps);
+        }
+
+        private boolean dirty;
+        private final String hash;
+        private final ArtifactHasher hasher;
+        private final String scmRepoId;
+        /** Paths relative to the local Maven repository mapped to their {@link Stamp}s */
+        private final Map<String, Stamp> stamps;
+
+        Stamps(ArtifactHasher hasher, String scmRepoId, String hash, Map<String, Stamp> stamps) {
+            super();
+            this.hasher = hasher;
+            this.scmRepoId = scmRepoId;
+            this.hash = hash;
+            this.stamps = stamps;
+        }
+
+        /**
+         * Compares the files currently installed in the given {@code gavDirectories} with the recorded
+         * {@link Stamp}s. A file is hashed only if its stat data differs from the recorded one. The suspicious files
+         * are hashed in parallel and the comparison stops at the first changed file.
+         *
+         * @param localRepository
+         *            the root directory of the local Maven repository
+         * @param gavDirectories
+         *            the version directories in the local Maven repository to check
+         * @return the first changed, added or removed file or {@code null} if nothing has changed
+         * @throws IOException
+         *             on I/O errors
+         */
+        public Path findChanged(Path localRepository, Collection<Path> gavDirectories) throws IOException {
+            int count = 0;
+            final Map<Path, String> suspects = new LinkedHashMap<>();
+            final Map<Path, Stamp> suspectStamps = new HashMap<>();
+            for (Path gavDir : gavDirectories) {
+                for (Path file : listArtifacts(gavDir)) {
+                    final Stamp recorded = stamps.get(toKey(localRepository, file));
+                    if (recorded == null) {
+                        return file;
+                    }
+                    final Stamp current = Stamp.of(file);
+                    if (!current.statEquals(recorded)) {
+                        suspects.put(file, recorded.getChecksum());
+                        suspectStamps.put(file, current.withChecksum(recorded.getChecksum()));
+                    }
+                    count++;
+                }
+            }
+            if (count != stamps.size()) {
+                /* Some of the recorded files were removed */
+                for (String key : stamps.keySet()) {
+                    final Path file = localRepository.resolve(key);
+                    if (!Files.exists(file)) {
+                        return file;
+                    }
+                }
+            }
+            if (!suspects.isEmpty()) {
+                final Path changed = hasher.findFirstMismatch(suspects);
+                if (changed != null) {
+                    return changed;
+                }
+                /* Touched but not changed: remember the new stat data to avoid hashing next time */
+                for (Entry<Path, Stamp> en : suspectStamps.entrySet()) {
+                    stamps.put(toKey(localRepository, en.getKey()), en.getValue());
+                }
+                dirty = true;
+            }
+            return null;
+        }
+
+        /**
+         * @return this {@link Stamps} in a textual form parseable by
+         *         {@link #parse(ArtifactHasher, String, String, String)}
+         */
+        public String format() {
+            final StringBuilder sb = new StringBuilder(stamps.size() * 128);
+            for (Entry<String, Stamp> en : stamps.entrySet()) {
+                final Stamp stamp = en.getValue();
+                sb.append(en.getKey()).append('\t') //
+                        .append(stamp.getSize()).append('\t') //
+                        .append(stamp.getLastModified()).append('\t') //
+                        .append(stamp.getFileKey()).append('\t') //
+                        .append(stamp.getChecksum()).append('\n');
+            }
+            return sb.toString();
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public String getScmRepoId() {
+            return scmRepoId;
+        }
+
+        /**
+         * @return {@code true} if some of the {@link Stamp}s were updated by {@link #findChanged(Path, Collection)}
+         */
+        public boolean isDirty() {
+            return dirty;
+        }
+
+        public int size() {
+            return stamps.size();
+        }
+    }
+
+    /**
+     * @param file
+     *            the file to check
+     * @return {@code true} if the given {@code file} is a build output rather than some resolver bookkeeping that can
+     *         change without the artifacts being changed
+     */
+    static boolean isArtifact(Path file) {
+        final String name = file.getFileName().toString();
+        return !name.startsWith("_") && !name.startsWith("maven-metadata") && !name.endsWith(".lastUpdated")
+                && !name.equals("resolver-status.properties");
+    }
+
+    static List<Path> listArtifacts(Path gavDirectory) throws IOException {
+        final List<Path> result = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(gavDirectory)) {
+            for (Path file : files) {
+                if (isArtifact(file) && Files.isRegularFile(file)) {
+                    result.add(file);
+                }
+            }
+        } catch (NoSuchFileException e) {
+            return Collections.emptyList();
+        }
+        Collections.sort(result);
+        return result;
+    }
+
+    static String toKey(Path localRepository, Path file) {
+        return localRepository.relativize(file).toString().replace('\\', '/');
+    }
+
+    protected final ArtifactHasher hasher;
+
+    LocalBuildMetadataStore(ArtifactHasher hasher) {
+        super();
+        this.hasher = hasher;
+    }
+
+    /**
+     * Hashes the files recorded in the given stat-only {@code stamps} (see
+     * {@link #stat(String, String, Path, Collection)}) and stores the {@link Stamps} with the checksums. The files are
+     * stat-ed again after hashing and those whose stat data changed since the given {@code stamps} were taken are
+     * left out, because their checksum may not describe the recorded content; a file without a {@link Stamp} counts
+     * as changed in {@link Stamps#findChanged(Path, Collection)}.
+     *
+     * @param stamps
+     *            the {@link Stamps} returned by {@link #stat(String, String, Path, Collection)}
+     * @param algorithm
+     *            the {@link HashAlgorithm} to compute the checksums with
+     * @param localRepository
+     *            the root directory of the local Maven repository
+     * @return the stored {@link Stamps}
+     * @throws IOException
+     *             on I/O errors
+     */
+    public Stamps addChecksums(Stamps stamps, HashAlgorithm algorithm, Path localRepository) throws IOException {
+        final Stamps result = new Stamps(hasher, stamps.getScmRepoId(), stamps.getHash(),
+                checksum(stamps.stamps, algorithm, localRepository));
+        save(result);
+        return result;
+    }
+
+    /**
+     * @param stats
+     *            the {@link Stamp}s to add the checksums to
+     * @param algorithm
+     *            the {@link HashAlgorithm} to compute the checksums with
+     * @param localRepository
+     *            the root directory of the local Maven repository
+     * @return new {@link Stamp}s with checksums for those of the given {@code stats} whose stat data are the same
+     *         after hashing
+     * @throws IOException
+     *             on I/O errors
+     */
+    private Map<String, Stamp> checksum(Map<String, Stamp> stats, HashAlgorithm algorithm, Path localRepository)
+            throws IOException {
+        final Map<Path, Stamp> files = new LinkedHashMap<>();
+        for (Entry<String, Stamp> en : stats.entrySet()) {
+            files.put(localRepository.resolve(en.getKey()), en.getValue());
+        }
+        final Map<Path, String> hashes = hasher.hashAll(files.keySet(), algorithm);
+        final Map<String, Stamp> result = new TreeMap<>();
+        for (Entry<Path, Stamp> en : files.entrySet()) {
+            final Path file = en.getKey();
+            final Stamp before = en.getValue();
+            if (Stamp.of(file).statEquals(before)) {
+                result.put(toKey(localRepository, file), before.withChecksum(hashes.get(file)));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param hash
+     *            the hash of the build request
+     * @return the {@link Stamps} stored for the given {@code scmRepoId} and {@code hash} or {@code null} if there are
+     *         none
+     * @throws IOException
+     *             on I/O errors
+     */
+    public abstract Stamps load(String scmRepoId, String hash) throws IOException;
+
+    /**
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param hash
+     *            the hash of the build request
+     * @return the commit ID stored for the given {@code scmRepoId} and {@code hash} or {@code null} if there is none
+     * @throws IOException
+     *             on I/O errors
+     */
+    public abstract String retrieveCommitId(String scmRepoId, String hash) throws IOException;
+
+    /**
+     * Stores the given {@link Stamps}.
+     *
+     * @param stamps
+     *            the {@link Stamps} to store
+     * @throws IOException
+     *             on I/O errors
+     */
+    public abstract void save(Stamps stamps) throws IOException;
+
+    /**
+     * Stats all artifacts in the given {@code gavDirectories} and stores the resulting {@link Stamps} without
+     * checksums, so that the stamps can be recorded quickly while the artifacts cannot change. The checksums are to
+     * be added later via {@link #addChecksums(Stamps, HashAlgorithm, Path)}.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param hash
+     *            the hash of the build request
+     * @param localRepository
+     *            the root directory of the local Maven repository
+     * @param gavDirectories
+     *            the version directories in the local Maven repository to record
+     * @return the stored {@link Stamps}
+     * @throws IOException
+     *             on I/O errors
+     */
+    public Stamps stat(String scmRepoId, String hash, Path localRepository, Collection<Path> gavDirectories)
+            throws IOException {
+        final Stamps result = new Stamps(hasher, scmRepoId, hash, statAll(localRepository, gavDirectories));
+        save(result);
+        return result;
+    }
+
+    /**
+     * @param localRepository
+     *            the root directory of the local Maven repository
+     * @param gavDirectories
+     *            the version directories in the local Maven repository to stat
+     * @return the {@link Stamp}s with empty checksums of all artifacts in the given {@code gavDirectories}
+     * @throws IOException
+     *             on I/O errors
+     */
+    private Map<String, Stamp> statAll(Path localRepository, Collection<Path> gavDirectories) throws IOException {
+        final Map<String, Stamp> result = new TreeMap<>();
+        for (Path gavDir : gavDirectories) {
+            for (Path file : listArtifacts(gavDir)) {
+                result.put(toKey(localRepository, file), Stamp.of(file).withChecksum(""));
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Stats and hashes all artifacts in the given {@code gavDirectories} and stores the resulting {@link Stamps}. The
+     * files are hashed in parallel using {@link ArtifactHasher}. The files are stat-ed before hashing, so that a file
+     * changing while being hashed cannot get the old stat data recorded with the new checksum; those whose stat data
+     * differ after hashing are left out as in {@link #addChecksums(Stamps, HashAlgorithm, Path)}.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param hash
+     *            the hash of the build request
+     * @param algorithm
+     *            the {@link HashAlgorithm} to compute the checksums with
+     * @param localRepository
+     *            the root directory of the local Maven repository
+     * @param gavDirectories
+     *            the version directories in the local Maven repository to record
+     * @return the stored {@link Stamps}
+     * @throws IOException
+     *             on I/O errors
+     */
+    public Stamps store(String scmRepoId, String hash, HashAlgorithm algorithm, Path localRepository,
+            Collection<Path> gavDirectories) throws IOException {
+        final Stamps result = new Stamps(hasher, scmRepoId, hash,
+                checksum(statAll(localRepository, gavDirectories), algorithm, localRepository));
+        save(result);
+        return result;
+    }
+
+    /**
+     * Stores the given {@code commitId} under the given {@code scmRepoId} and {@code hash}.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param hash
+     *            the hash of the build request
+     * @param commitId
+     *            the commit ID to store
+     * @throws IOException
+     *             on I/O errors
+     */
+    public abstract void storeCommitId(String scmRepoId, String hash, String commitId) throws IOException;
+}
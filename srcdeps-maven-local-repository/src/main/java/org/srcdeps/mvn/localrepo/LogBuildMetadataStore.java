@@ -0,0 +1,191 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.util.SrcdepsCoreUtils;
+
+/**
+ * A {@link LocalBuildMetadataStore} keeping all metadata of an SCM repository in a single {@link MetadataLog}
+ * {@code <logDirectory>/<scmRepoId>.log}. Compared to {@link DirectoryBuildMetadataStore}, this saves creating,
+ * opening and reading many small files when there are many build requests per SCM repository.
+ * <p>
+ * The metadata stored by the given {@code legacyStore} is migrated: the {@link Stamps} of an SCM repository are moved
+ * to the log when the log is opened for the first time and the commit IDs are copied to the log when they are first
+ * {@link #retrieveCommitId(String, String) retrieved}. The directory of a build request in the store of srcdeps-core
+ * (holding its commit ID and the SHA-1 sums of its artifacts) is deleted as soon as the log holds both the commit ID
+ * and the {@link Stamps} of the build request, because from then on neither of them is read from there anymore.
+ * The build requests which are never looked up again stay in the store of srcdeps-core, because their files do not
+ * tell which SCM repository they belong to.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class LogBuildMetadataStore extends LocalBuildMetadataStore {
+    private static final String COMMIT_ID_PREFIX = "commit/";
+    private static final Logger log = LoggerFactory.getLogger(LogBuildMetadataStore.class);
+    private static final String STAMPS_PREFIX = "stamps/";
+
+    private final Function<String, Path> legacyBuildRequestDirectories;
+    private final DirectoryBuildMetadataStore legacyStore;
+    private final Path logDirectory;
+    private final Map<String, MetadataLog> logs = new HashMap<>();
+
+    /**
+     * @param logDirectory
+     *            the directory to store the {@link MetadataLog}s in
+     * @param legacyStore
+     *            the {@link DirectoryBuildMetadataStore} to migrate from
+     * @param legacyBuildRequestDirectories
+     *            a function returning the directory in which the store of srcdeps-core keeps the metadata of the build
+     *            request with the given hash
+     * @param hasher
+     *            the {@link ArtifactHasher} to use
+     */
+    LogBuildMetadataStore(Path logDirectory, DirectoryBuildMetadataStore legacyStore,
+            Function<String, Path> legacyBuildRequestDirectories, ArtifactHasher hasher) {
+        super(hasher);
+        this.logDirectory = logDirectory;
+        this.legacyStore = legacyStore;
+        this.legacyBuildRequestDirectories = legacyBuildRequestDirectories;
+    }
+
+    /**
+     * Deletes the directory of the build request with the given {@code hash} from the store of srcdeps-core if the
+     * given {@code metadataLog} holds both the commit ID and the {@link Stamps} of the build request.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param hash
+     *            the hash of the build request
+     * @param metadataLog
+     *            the {@link MetadataLog} of the given {@code scmRepoId}
+     * @throws IOException
+     *             on I/O errors
+     */
+    private void deleteLegacyBuildRequest(String scmRepoId, String hash, MetadataLog metadataLog)
+            throws IOException {
+        if (metadataLog.get(COMMIT_ID_PREFIX + hash) == null || metadataLog.get(STAMPS_PREFIX + hash) == null) {
+            return;
+        }
+        final Path dir = legacyBuildRequestDirectories.apply(hash);
+        if (dir != null && Files.exists(dir)) {
+            SrcdepsCoreUtils.deleteDirectory(dir);
+            log.debug("srcdeps[{}]: Deleted the migrated build metadata [{}]", scmRepoId, dir);
+        }
+    }
+
+    private synchronized MetadataLog getLog(String scmRepoId) throws IOException {
+        MetadataLog result = logs.get(scmRepoId);
+        if (result == null) {
+            result = MetadataLog.open(logDirectory.resolve(scmRepoId + ".log"));
+            migrate(scmRepoId, result);
+            logs.put(scmRepoId, result);
+        }
+        return result;
+    }
+
+    @Override
+    public Stamps load(String scmRepoId, String hash) throws IOException {
+        final String text = getLog(scmRepoId).get(STAMPS_PREFIX + hash);
+        if (text == null) {
+            return null;
+        }
+        final Stamps result = Stamps.parse(hasher, scmRepoId, hash, text);
+        if (result == null) {
+            log.warn("srcdeps[{}]: Ignoring malformed stamps [{}] in [{}]", scmRepoId, hash, logDirectory);
+        }
+        return result;
+    }
+
+    /**
+     * Moves the {@link Stamps} stored by {@link #legacyStore} for the given {@code scmRepoId} to the given
+     * {@code metadataLog}.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param metadataLog
+     *            the {@link MetadataLog} to migrate to
+     * @throws IOException
+     *             on I/O errors
+     */
+    private void migrate(String scmRepoId, MetadataLog metadataLog) throws IOException {
+        final Path legacyDir = legacyStore.getRootDirectory().resolve(scmRepoId);
+        final List<String> hashes = new ArrayList<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(legacyDir, "*.txt")) {
+            for (Path file : files) {
+                final String fileName = file.getFileName().toString();
+                hashes.add(fileName.substring(0, fileName.length() - ".txt".length()));
+            }
+        } catch (NoSuchFileException e) {
+            return;
+        }
+        final Map<String, String> entries = new HashMap<>();
+        for (String hash : hashes) {
+            final Stamps stamps = legacyStore.load(scmRepoId, hash);
+            if (stamps != null && metadataLog.get(STAMPS_PREFIX + hash) == null) {
+                entries.put(STAMPS_PREFIX + hash, stamps.format());
+            }
+        }
+        metadataLog.putAll(entries);
+        for (String hash : hashes) {
+            legacyStore.delete(scmRepoId, hash);
+        }
+        log.info("srcdeps[{}]: Migrated [{}] stamp files from [{}] to [{}]", scmRepoId, entries.size(), legacyDir,
+                logDirectory);
+    }
+
+    @Override
+    public String retrieveCommitId(String scmRepoId, String hash) throws IOException {
+        final MetadataLog metadataLog = getLog(scmRepoId);
+        final String key = COMMIT_ID_PREFIX + hash;
+        String result = metadataLog.get(key);
+        if (result == null) {
+            result = legacyStore.retrieveCommitId(scmRepoId, hash);
+            if (result != null) {
+                metadataLog.put(key, result);
+                deleteLegacyBuildRequest(scmRepoId, hash, metadataLog);
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public void save(Stamps stamps) throws IOException {
+        final MetadataLog metadataLog = getLog(stamps.getScmRepoId());
+        metadataLog.put(STAMPS_PREFIX + stamps.getHash(), stamps.format());
+        deleteLegacyBuildRequest(stamps.getScmRepoId(), stamps.getHash(), metadataLog);
+    }
+
+    @Override
+    public void storeCommitId(String scmRepoId, String hash, String commitId) throws IOException {
+        final MetadataLog metadataLog = getLog(scmRepoId);
+        metadataLog.put(COMMIT_ID_PREFIX + hash, commitId);
+        deleteLegacyBuildRequest(scmRepoId, hash, metadataLog);
+    }
+}
@@ -0,0 +1,387 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileChannel.MapMode;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A persistent string key-value map stored in a single append-only file. The file consists of a header
+ * ({@link #MAGIC}, {@link #FORMAT_VERSION}) followed by records of the form
+ * {@code [int length][int crc32][int keyLength][key bytes][value bytes]}, where {@code length} is the number of
+ * bytes following the {@code crc32} and {@code crc32} is the CRC-32 of those bytes. A later record for the same key
+ * overrides any earlier one.
+ * <p>
+ * The file is memory-mapped and scanned once when the log is opened, building an in-memory index of the keys to the
+ * positions of their values in the mapping; the values are decoded only when they are {@link #get(String) requested}.
+ * A torn or garbled trailing record (e.g. after a crash) fails the CRC check: it is ignored when reading and truncated
+ * before the next record is appended. Records are appended under a {@link FileLock} held on a separate
+ * {@code <file>.lock} file, so that concurrent Maven processes sharing the same local repository do not corrupt the
+ * log. Before appending, the log catches up with the records appended by other processes in the meantime.
+ * <p>
+ * Once more than {@link #COMPACTION_RATIO} of the records are overridden ones and the file is bigger than
+ * {@link #COMPACTION_THRESHOLD} bytes, the live records are written to a temporary file that then atomically replaces
+ * the log.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class MetadataLog {
+    /** Compact if the total number of records is greater than the number of live ones times this ratio */
+    static final int COMPACTION_RATIO = 2;
+    /** Do not compact files smaller than this number of bytes */
+    static final long COMPACTION_THRESHOLD = 1024 * 1024;
+    static final int FORMAT_VERSION = 1;
+    private static final int HEADER_LENGTH = 8;
+    private static final Logger log = LoggerFactory.getLogger(MetadataLog.class);
+    static final int MAGIC = 0x53444d4c; // SDML
+    private static final int RECORD_HEADER_LENGTH = 12;
+
+    private static long crc32(ByteBuffer buffer) {
+        final CRC32 crc = new CRC32();
+        crc.update(buffer);
+        return crc.getValue();
+    }
+
+    private static Object fileKey(Path file) throws IOException {
+        try {
+            final Object fileKey = Files.readAttributes(file, BasicFileAttributes.class).fileKey();
+            return fileKey == null ? "" : fileKey;
+        } catch (NoSuchFileException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Opens the log stored in the given {@code file}. If the file does not exist or if it has an unexpected header,
+     * an empty log is returned and the file gets (re)created on the first {@link #put(String, String)}.
+     *
+     * @param file
+     *            the path to the log file
+     * @return a new {@link MetadataLog}
+     * @throws IOException
+     *             on I/O errors
+     */
+    public static MetadataLog open(Path file) throws IOException {
+        final MetadataLog result = new MetadataLog(file);
+        synchronized (result) {
+            result.refresh();
+            if (result.needsCompaction()) {
+                result.compact();
+            }
+        }
+        return result;
+    }
+
+    private static long pack(int position, int length) {
+        return ((long) position << 32) | (length & 0xffffffffL);
+    }
+
+    private static ByteBuffer toRecord(String key, String value) {
+        final byte[] keyBytes = key.getBytes(StandardCharsets.UTF_8);
+        final byte[] valueBytes = value.getBytes(StandardCharsets.UTF_8);
+        final int length = 4 + keyBytes.length + valueBytes.length;
+        final ByteBuffer body = ByteBuffer.allocate(length);
+        body.putInt(keyBytes.length).put(keyBytes).put(valueBytes);
+        body.flip();
+        final ByteBuffer record = ByteBuffer.allocate(8 + length);
+        record.putInt(length).putInt((int) crc32(body.duplicate())).put(body);
+        record.flip();
+        return record;
+    }
+
+    /** The end of the last valid record in {@link #mapping} */
+    private int end;
+    private final Path file;
+    /** The file key of the {@link #file} {@link #mapping} was created from */
+    private Object fileKey;
+    /** The keys mapped to the positions and lengths of their values in {@link #mapping}; see {@link #pack(int, int)} */
+    private final Map<String, Long> index = new HashMap<>();
+    private final Path lockFile;
+    private ByteBuffer mapping;
+    private int recordCount;
+
+    MetadataLog(Path file) {
+        super();
+        this.file = file;
+        this.lockFile = file.resolveSibling(file.getFileName().toString() + ".lock");
+    }
+
+    private void append(FileChannel ch, ByteBuffer records) throws IOException {
+        ch.position(end);
+        while (records.hasRemaining()) {
+            ch.write(records);
+        }
+        ch.force(false);
+        remap(ch);
+    }
+
+    /**
+     * Rewrites the log so that it contains only the live records.
+     *
+     * @throws IOException
+     *             on I/O errors
+     */
+    synchronized void compact() throws IOException {
+        Files.createDirectories(file.getParent());
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE); FileLock lock = lockChannel.lock()) {
+            refresh();
+            if (end < HEADER_LENGTH) {
+                return;
+            }
+            final Map<String, String> live = new TreeMap<>();
+            for (String key : index.keySet()) {
+                live.put(key, get(key));
+            }
+            final Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                try (FileChannel ch = FileChannel.open(tmp, StandardOpenOption.WRITE)) {
+                    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(FORMAT_VERSION);
+                    header.flip();
+                    ch.write(header);
+                    for (Entry<String, String> en : live.entrySet()) {
+                        final ByteBuffer record = toRecord(en.getKey(), en.getValue());
+                        while (record.hasRemaining()) {
+                            ch.write(record);
+                        }
+                    }
+                    ch.force(true);
+                }
+                final long oldSize = Files.size(file);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+                refresh();
+                log.debug("srcdeps: Compacted [{}] from {} to {} bytes", file, oldSize, end);
+            } catch (IOException e) {
+                /* e.g. on Windows, where a file mapped by another process cannot be replaced */
+                log.debug("srcdeps: Could not compact [{}]", file, e);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        }
+    }
+
+    /**
+     * @param key
+     *            the key to look up
+     * @return the value stored under the given {@code key} or {@code null} if there is none
+     * @throws IOException
+     *             on I/O errors
+     */
+    public synchronized String get(String key) throws IOException {
+        Long location = index.get(key);
+        if (location == null) {
+            /* Another process might have appended the record meanwhile */
+            if (!isUpToDate()) {
+                refresh();
+                location = index.get(key);
+            }
+            if (location == null) {
+                return null;
+            }
+        }
+        final long loc = location.longValue();
+        final int position = (int) (loc >>> 32);
+        final byte[] value = new byte[(int) loc];
+        final ByteBuffer buffer = mapping.duplicate();
+        buffer.position(position);
+        buffer.get(value);
+        return new String(value, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @return the total number of valid records in the log file, including the overridden ones
+     */
+    synchronized int getRecordCount() {
+        return recordCount;
+    }
+
+    private boolean isUpToDate() throws IOException {
+        final Object currentKey = fileKey(file);
+        return currentKey != null && currentKey.equals(fileKey) && Files.size(file) == end;
+    }
+
+    private boolean needsCompaction() {
+        return end > COMPACTION_THRESHOLD && recordCount > COMPACTION_RATIO * index.size();
+    }
+
+    /**
+     * Stores the given {@code value} under the given {@code key} and appends it to the log file immediately.
+     *
+     * @param key
+     *            the key
+     * @param value
+     *            the value to store
+     * @throws IOException
+     *             on I/O errors
+     */
+    public void put(String key, String value) throws IOException {
+        final Map<String, String> entries = new HashMap<>(2);
+        entries.put(key, value);
+        putAll(entries);
+    }
+
+    /**
+     * Stores all given {@code entries} and appends them to the log file immediately, holding the file lock only once.
+     *
+     * @param entries
+     *            the key-value pairs to store
+     * @throws IOException
+     *             on I/O errors
+     */
+    public synchronized void putAll(Map<String, String> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        Files.createDirectories(file.getParent());
+        try (FileChannel lockChannel = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                StandardOpenOption.WRITE); FileLock lock = lockChannel.lock()) {
+            if (!isUpToDate()) {
+                refresh();
+            }
+            try (FileChannel ch = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+                    StandardOpenOption.WRITE)) {
+                if (end < HEADER_LENGTH) {
+                    /* A new or invalid file */
+                    ch.truncate(0);
+                    end = 0;
+                    final ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH).putInt(MAGIC).putInt(FORMAT_VERSION);
+                    header.flip();
+                    append(ch, header);
+                } else if (ch.size() > end) {
+                    /* Drop the invalid tail */
+                    ch.truncate(end);
+                }
+                int length = 0;
+                final ByteBuffer[] records = new ByteBuffer[entries.size()];
+                int i = 0;
+                for (Entry<String, String> en : entries.entrySet()) {
+                    records[i] = toRecord(en.getKey(), en.getValue());
+                    length += records[i].remaining();
+                    i++;
+                }
+                final ByteBuffer all = ByteBuffer.allocate(length);
+                for (ByteBuffer record : records) {
+                    all.put(record);
+                }
+                all.flip();
+                append(ch, all);
+            }
+        }
+        if (needsCompaction()) {
+            compact();
+        }
+    }
+
+    /**
+     * Re-reads the whole log file.
+     *
+     * @throws IOException
+     *             on I/O errors
+     */
+    private void refresh() throws IOException {
+        index.clear();
+        recordCount = 0;
+        end = 0;
+        mapping = ByteBuffer.allocate(0);
+        fileKey = fileKey(file);
+        if (fileKey == null) {
+            return;
+        }
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ)) {
+            remap(ch);
+        }
+    }
+
+    /**
+     * Maps the given channel and indexes the records beyond {@link #end}.
+     *
+     * @param ch
+     *            the channel to map
+     * @throws IOException
+     *             on I/O errors
+     */
+    private void remap(FileChannel ch) throws IOException {
+        final long size = ch.size();
+        if (size > Integer.MAX_VALUE) {
+            throw new IOException(String.format("File [%s] is too big", file));
+        }
+        mapping = ch.map(MapMode.READ_ONLY, 0, size);
+        final ByteBuffer buffer = mapping.duplicate();
+        if (end < HEADER_LENGTH) {
+            if (size < HEADER_LENGTH || buffer.getInt() != MAGIC || buffer.getInt() != FORMAT_VERSION) {
+                if (size > 0) {
+                    log.warn("srcdeps: Ignoring the invalid metadata log [{}]", file);
+                }
+                end = 0;
+                return;
+            }
+            end = HEADER_LENGTH;
+        }
+        buffer.position(end);
+        while (buffer.remaining() >= RECORD_HEADER_LENGTH) {
+            final int position = buffer.position();
+            final int length = buffer.getInt();
+            final int crc = buffer.getInt();
+            if (length < 4 || length > buffer.remaining()) {
+                break;
+            }
+            final ByteBuffer body = buffer.slice();
+            body.limit(length);
+            if ((int) crc32(body.duplicate()) != crc) {
+                break;
+            }
+            final int keyLength = body.getInt();
+            if (keyLength < 0 || keyLength > length - 4) {
+                break;
+            }
+            final byte[] keyBytes = new byte[keyLength];
+            body.get(keyBytes);
+            final int valuePosition = position + RECORD_HEADER_LENGTH + keyLength;
+            index.put(new String(keyBytes, StandardCharsets.UTF_8),
+                    pack(valuePosition, length - 4 - keyLength));
+            recordCount++;
+            buffer.position(position + 8 + length);
+            end = buffer.position();
+        }
+        fileKey = fileKey(file);
+    }
+
+    /**
+     * @return the number of keys in this log
+     */
+    public synchronized int size() {
+        return index.size();
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.maven.eventspy.AbstractEventSpy;
+import org.apache.maven.execution.ExecutionEvent;
+import org.apache.maven.plugin.MojoExecution;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * An {@link org.apache.maven.eventspy.EventSpy} injected into the nested Maven builds via
+ * {@code -Dmaven.ext.class.path} by {@link ModuleTimings}. It measures the durations of the reactor projects and of
+ * the mojo executions of the nested build and writes them to the file given by the {@value #FILE_PROPERTY} user
+ * property when the nested build ends. Does nothing if the property is not set.
+ * <p>
+ * This class is copied alone into the extension JAR of the nested builds, so it must not depend on any other class of
+ * srcdeps and it must not have any inner or anonymous classes. The lines of the output file have tab separated
+ * columns:
+ *
+ * <pre>
+ * project  groupId:artifactId  millis  success|failure
+ * mojo     groupId:artifactId  pluginArtifactId:goal (executionId)  millis  success|failure
+ * </pre>
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+public class ModuleTimingSpy extends AbstractEventSpy {
+    public static final String FAILURE = "failure";
+    public static final String FILE_PROPERTY = "srcdeps.timings.file";
+    public static final String MOJO = "mojo";
+    public static final String PROJECT = "project";
+    public static final String SUCCESS = "success";
+
+    private static String toKey(MavenProject project) {
+        return project.getGroupId() + ":" + project.getArtifactId();
+    }
+
+    private static String toKey(MojoExecution mojoExecution) {
+        return mojoExecution.getArtifactId() + ":" + mojoExecution.getGoal() + " (" + mojoExecution.getExecutionId()
+                + ")";
+    }
+
+    private Path file;
+    private final List<String> lines = new ArrayList<>();
+    /** The keys of the running projects and mojo executions mapped to their start times */
+    private final Map<String, Long> starts = new ConcurrentHashMap<>();
+
+    private void begin(String key) {
+        starts.put(key, System.nanoTime());
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (file == null) {
+            return;
+        }
+        final Path parent = file.getParent();
+        if (parent != null) {
+            Files.createDirectories(parent);
+        }
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            synchronized (lines) {
+                for (String line : lines) {
+                    out.write(line);
+                    out.write('\n');
+                }
+            }
+        }
+    }
+
+    private void end(String key, String line, String result) {
+        final Long start = starts.remove(key);
+        if (start != null) {
+            final long millis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start.longValue());
+            synchronized (lines) {
+                lines.add(line + '\t' + millis + '\t' + result);
+            }
+        }
+    }
+
+    @Override
+    public void init(Context context) {
+        final Object userProperties = context.getData().get("userProperties");
+        if (userProperties instanceof Properties) {
+            final String value = ((Properties) userProperties).getProperty(FILE_PROPERTY);
+            if (value != null && !value.isEmpty()) {
+                file = Paths.get(value);
+            }
+        }
+    }
+
+    @Override
+    public void onEvent(Object event) {
+        if (file == null || !(event instanceof ExecutionEvent)) {
+            return;
+        }
+        final ExecutionEvent executionEvent = (ExecutionEvent) event;
+        final MavenProject project = executionEvent.getProject();
+        if (project == null) {
+            return;
+        }
+        final String projectKey = toKey(project);
+        final MojoExecution mojoExecution = executionEvent.getMojoExecution();
+        final String mojoKey = mojoExecution == null ? null : projectKey + '\t' + toKey(mojoExecution);
+        /* No switch here as a switch over an enum would need a synthetic inner class */
+        final ExecutionEvent.Type type = executionEvent.getType();
+        if (type == ExecutionEvent.Type.ProjectStarted) {
+            begin(projectKey);
+        } else if (type == ExecutionEvent.Type.ProjectSucceeded) {
+            end(projectKey, PROJECT + '\t' + projectKey, SUCCESS);
+        } else if (type == ExecutionEvent.Type.ProjectFailed) {
+            end(projectKey, PROJECT + '\t' + projectKey, FAILURE);
+        } else if (mojoKey != null) {
+            if (type == ExecutionEvent.Type.MojoStarted) {
+                begin(mojoKey);
+            } else if (type == ExecutionEvent.Type.MojoSucceeded) {
+                end(mojoKey, MOJO + '\t' + mojoKey, SUCCESS);
+            } else if (type == ExecutionEvent.Type.MojoFailed) {
+                end(mojoKey, MOJO + '\t' + mojoKey, FAILURE);
+            }
+        }
+    }
+
+}
@@ -0,0 +1,245 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+
+/**
+ * The durations of the reactor projects and of their mojo executions measured in a nested Maven build by
+ * {@link ModuleTimingSpy}.
+ * <p>
+ * The {@link ModuleTimingSpy} is injected into the nested builds via a small JAR created by
+ * {@link #createSpyJar(Path)} and passed through {@code -Dmaven.ext.class.path}, see
+ * {@link #buildArguments(List, Path, Path)}. The JAR contains nothing but the {@link ModuleTimingSpy} class and a
+ * Plexus component descriptor, so that the nested build does not get to see any other srcdeps component.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class ModuleTimings {
+
+    /**
+     * The timing of a single reactor project.
+     */
+    static class Module {
+        private final String id;
+        private final long millis;
+        /** The mojo executions mapped to their durations in milliseconds, the slowest first */
+        private final Map<String, Long> mojoMillis;
+        private final String result;
+
+        Module(String id, long millis, String result, Map<String, Long> mojoMillis) {
+            super();
+            this.id = id;
+            this.millis = millis;
+            this.result = result;
+            this.mojoMillis = mojoMillis;
+        }
+
+        /**
+         * @return {@code groupId:artifactId} of the reactor project
+         */
+        public String getId() {
+            return id;
+        }
+
+        public long getMillis() {
+            return millis;
+        }
+
+        /**
+         * @return the mojo executions in the {@code pluginArtifactId:goal (executionId)} format mapped to their
+         *         durations in milliseconds, the slowest first
+         */
+        public Map<String, Long> getMojoMillis() {
+            return mojoMillis;
+        }
+
+        /**
+         * @return {@value ModuleTimingSpy#SUCCESS} or {@value ModuleTimingSpy#FAILURE}
+         */
+        public String getResult() {
+            return result;
+        }
+    }
+
+    private static final String COMPONENTS_XML = "META-INF/plexus/components.xml";
+    static final String EXT_CLASS_PATH = "maven.ext.class.path";
+
+    /**
+     * @param buildArguments
+     *            the arguments of the nested build
+     * @param spyJar
+     *            the JAR created by {@link #createSpyJar(Path)}
+     * @param timingsFile
+     *            the file the {@link ModuleTimingSpy} should write the timings to
+     * @return the given {@code buildArguments} with the {@code spyJar} appended to {@value #EXT_CLASS_PATH} and with
+     *         {@value ModuleTimingSpy#FILE_PROPERTY} set to the given {@code timingsFile}
+     */
+    static List<String> buildArguments(List<String> buildArguments, Path spyJar, Path timingsFile) {
+        final List<String> result = new ArrayList<>(buildArguments.size() + 2);
+        final String extClassPathArg = "-D" + EXT_CLASS_PATH + "=";
+        boolean extClassPathSet = false;
+        for (String arg : buildArguments) {
+            if (arg.startsWith(extClassPathArg)) {
+                result.add(arg + File.pathSeparator + spyJar);
+                extClassPathSet = true;
+            } else {
+                result.add(arg);
+            }
+        }
+        if (!extClassPathSet) {
+            result.add(extClassPathArg + spyJar);
+        }
+        result.add("-D" + ModuleTimingSpy.FILE_PROPERTY + "=" + timingsFile);
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Creates the extension JAR containing {@link ModuleTimingSpy} in the given {@code directory} unless it exists
+     * already. The name of the JAR contains a hash of its content, so that the JARs of different srcdeps versions
+     * do not interfere.
+     *
+     * @param directory
+     *            the directory to create the JAR in
+     * @return the path to the JAR
+     * @throws IOException
+     *             on I/O errors
+     */
+    static Path createSpyJar(Path directory) throws IOException {
+        final String classEntry = ModuleTimingSpy.class.getName().replace('.', '/') + ".class";
+        final byte[] classBytes;
+        try (InputStream in = ModuleTimingSpy.class.getClassLoader().getResourceAsStream(classEntry)) {
+            if (in == null) {
+                throw new IOException(String.format("srcdeps: Could not find [%s] on the class path", classEntry));
+            }
+            final ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+            final byte[] chunk = new byte[8192];
+            int len;
+            while ((len = in.read(chunk)) >= 0) {
+                buffer.write(chunk, 0, len);
+            }
+            classBytes = buffer.toByteArray();
+        }
+        final byte[] componentsXml = ("<component-set>\n" //
+                + "  <components>\n" //
+                + "    <component>\n" //
+                + "      <role>org.apache.maven.eventspy.EventSpy</role>\n" //
+                + "      <role-hint>srcdeps-module-timing</role-hint>\n" //
+                + "      <implementation>" + ModuleTimingSpy.class.getName() + "</implementation>\n" //
+                + "    </component>\n" //
+                + "  </components>\n" //
+                + "</component-set>\n").getBytes(StandardCharsets.UTF_8);
+
+        final HashAlgorithm.Digester digester = HashAlgorithm.xxh64.newDigester();
+        digester.update(ByteBuffer.wrap(classBytes));
+        digester.update(ByteBuffer.wrap(componentsXml));
+        final Path jar = directory
+                .resolve("srcdeps-module-timing-spy-" + ArtifactHasher.toHex(digester.digest()) + ".jar");
+        if (Files.exists(jar)) {
+            return jar;
+        }
+        Files.createDirectories(directory);
+        final Path tmp = Files.createTempFile(directory, jar.getFileName().toString(), ".tmp");
+        try {
+            final Manifest manifest = new Manifest();
+            manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+            try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(tmp), manifest)) {
+                write(out, COMPONENTS_XML, componentsXml);
+                write(out, classEntry, classBytes);
+            }
+            Files.move(tmp, jar, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        return jar;
+    }
+
+    /**
+     * @param file
+     *            the file written by {@link ModuleTimingSpy}
+     * @return the {@link ModuleTimings} read from the given {@code file}
+     * @throws IOException
+     *             on I/O errors
+     */
+    static ModuleTimings read(Path file) throws IOException {
+        final Map<String, String[]> projects = new LinkedHashMap<>();
+        final Map<String, Map<String, Long>> mojos = new LinkedHashMap<>();
+        for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+            final String[] columns = line.split("\t");
+            if (columns.length == 4 && ModuleTimingSpy.PROJECT.equals(columns[0])) {
+                projects.put(columns[1], columns);
+            } else if (columns.length == 5 && ModuleTimingSpy.MOJO.equals(columns[0])) {
+                mojos.computeIfAbsent(columns[1], k -> new LinkedHashMap<>()).merge(columns[2],
+                        Long.valueOf(columns[3]), Long::sum);
+            }
+        }
+        final List<Module> modules = new ArrayList<>(projects.size());
+        for (String[] project : projects.values()) {
+            final Map<String, Long> projectMojos = mojos.getOrDefault(project[1], Collections.emptyMap());
+            final List<Entry<String, Long>> sortedMojos = new ArrayList<>(projectMojos.entrySet());
+            Collections.sort(sortedMojos, Entry.<String, Long> comparingByValue().reversed());
+            final Map<String, Long> mojoMillis = new LinkedHashMap<>();
+            for (Entry<String, Long> mojo : sortedMojos) {
+                mojoMillis.put(mojo.getKey(), mojo.getValue());
+            }
+            modules.add(new Module(project[1], Long.parseLong(project[2]), project[3],
+                    Collections.unmodifiableMap(mojoMillis)));
+        }
+        Collections.sort(modules, Comparator.comparingLong(Module::getMillis).reversed());
+        return new ModuleTimings(Collections.unmodifiableList(modules));
+    }
+
+    private static void write(JarOutputStream out, String entry, byte[] bytes) throws IOException {
+        out.putNextEntry(new JarEntry(entry));
+        out.write(bytes);
+        out.closeEntry();
+    }
+
+    private final List<Module> modules;
+
+    ModuleTimings(List<Module> modules) {
+        super();
+        this.modules = modules;
+    }
+
+    /**
+     * @return the reactor projects of the nested build, the slowest first
+     */
+    public List<Module> getModules() {
+        return modules;
+    }
+
+}
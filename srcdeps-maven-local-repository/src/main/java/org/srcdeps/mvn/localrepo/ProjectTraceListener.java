@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.maven.execution.ProjectExecutionEvent;
+import org.apache.maven.execution.ProjectExecutionListener;
+import org.apache.maven.lifecycle.LifecycleExecutionException;
+import org.apache.maven.project.MavenProject;
+
+/**
+ * A {@link ProjectExecutionListener} that adds a span per execution of a reactor project to the {@link ChromeTrace}
+ * of the {@link SrcdepsLocalRepositoryManager} active in the current session, so that the trace shows the outer
+ * build alongside the checkouts and nested builds of source dependencies. Does nothing if the trace is disabled.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+@Named("srcdeps-trace")
+@Singleton
+public class ProjectTraceListener implements ProjectExecutionListener {
+
+    private static ChromeTrace getChromeTrace(ProjectExecutionEvent event) {
+        final SrcdepsLocalRepositoryManager lrm = SrcdepsSessionParticipant
+                .getSrcdepsLocalRepositoryManager(event.getSession());
+        return lrm == null ? ChromeTrace.DISABLED : lrm.getChromeTrace();
+    }
+
+    private final ConcurrentMap<MavenProject, ChromeTrace.Span> spans = new ConcurrentHashMap<>();
+
+    @Override
+    public void afterProjectExecutionFailure(ProjectExecutionEvent event) {
+        end(event, "failure");
+    }
+
+    @Override
+    public void afterProjectExecutionSuccess(ProjectExecutionEvent event) throws LifecycleExecutionException {
+        end(event, "success");
+    }
+
+    @Override
+    public void beforeProjectExecution(ProjectExecutionEvent event) throws LifecycleExecutionException {
+        final ChromeTrace trace = getChromeTrace(event);
+        if (trace.isEnabled()) {
+            final MavenProject project = event.getProject();
+            spans.put(project, trace.begin("project", project.getGroupId() + ":" + project.getArtifactId())
+                    .arg("version", project.getVersion()));
+        }
+    }
+
+    @Override
+    public void beforeProjectLifecycleExecution(ProjectExecutionEvent event) throws LifecycleExecutionException {
+    }
+
+    private void end(ProjectExecutionEvent event, String result) {
+        final ChromeTrace.Span span = spans.remove(event.getProject());
+        if (span != null) {
+            span.arg("result", result).close();
+        }
+    }
+
+}
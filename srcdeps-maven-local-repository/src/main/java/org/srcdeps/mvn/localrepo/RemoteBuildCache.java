@@ -0,0 +1,337 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.SocketException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiPredicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+import java.util.zip.ZipOutputStream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.util.SrcdepsCoreUtils;
+
+/**
+ * A client of a remote cache of the artifacts installed by nested builds. The cache is a plain HTTP endpoint
+ * supporting {@code GET} and {@code PUT} of ZIP archives at {@code <baseUri>/<scmRepoId>/<commitId>/<key>.zip}, where
+ * {@code key} is the same hash of the build request as used by {@link BuildCache}. The paths of the archive entries
+ * are relative to the root of the local Maven repository. If the {@code baseUri} contains user info, it is sent as
+ * HTTP Basic credentials and removed from the URLs used in log messages and exceptions.
+ * <p>
+ * When restoring, only artifact files in the version directories of the expected GAVs are accepted; any other entry
+ * fails the whole restore. The archive is extracted to a temporary directory first and the files are moved to the
+ * local Maven repository only after the whole archive was read successfully.
+ * <p>
+ * All requests are subject to the given timeout. Failures are reported to the caller, who is supposed to fall back to
+ * building locally. The hits and misses are counted per SCM repository and can be logged via
+ * {@link #logStatistics()}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class RemoteBuildCache {
+    private static final int BUFFER_SIZE = 8192;
+    private static final Logger log = LoggerFactory.getLogger(RemoteBuildCache.class);
+
+    /**
+     * @return {@code true} if the given archive entry name denotes an artifact file in the version directory of a GAV
+     *         having the given {@code version} and a {@code groupId} and {@code artifactId} accepted by the given
+     *         {@code includes}; {@code false} otherwise
+     */
+    static boolean isExpected(String entryName, BiPredicate<String, String> includes, String version) {
+        final String[] segments = entryName.split("/");
+        if (segments.length < 4) {
+            return false;
+        }
+        for (String segment : segments) {
+            if (segment.isEmpty() || segment.equals(".") || segment.equals("..") || segment.indexOf('\\') >= 0) {
+                return false;
+            }
+        }
+        final String fileName = segments[segments.length - 1];
+        final String artifactId = segments[segments.length - 3];
+        final String groupId = String.join(".", Arrays.asList(segments).subList(0, segments.length - 3));
+        return segments[segments.length - 2].equals(version) && includes.test(groupId, artifactId)
+                && LocalBuildMetadataStore.isArtifact(Paths.get(fileName));
+    }
+
+    /**
+     * @return the given {@code uri} without its user info, so that the credentials never appear in the URLs used in
+     *         log messages and exceptions
+     */
+    static URI withoutUserInfo(URI uri) {
+        if (uri.getRawUserInfo() == null) {
+            return uri;
+        }
+        try {
+            return new URI(uri.getScheme(), null, uri.getHost(), uri.getPort(), uri.getPath(), uri.getQuery(),
+                    uri.getFragment());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    private static void checkStatus(HttpURLConnection connection, URL url) throws IOException {
+        final int status = connection.getResponseCode();
+        if (status < 200 || status >= 300) {
+            throw new IOException(String.format("srcdeps: Unexpected HTTP status %d %s from [%s]", status,
+                    connection.getResponseMessage(), url));
+        }
+    }
+
+    private final String authorization;
+    private final URI baseUri;
+    /** The SCM repository IDs mapped to the number of their hits and misses */
+    private final ConcurrentMap<String, AtomicInteger[]> statistics = new ConcurrentHashMap<>();
+    private final int timeoutMs;
+    private final boolean upload;
+
+    /**
+     * @param baseUri
+     *            the base URI of the remote cache
+     * @param timeoutMs
+     *            the connect and read timeout in milliseconds
+     * @param upload
+     *            {@code true} if {@link #upload(String, String, String, Path, Collection)} should actually upload;
+     *            {@code false} for a read-only cache
+     */
+    RemoteBuildCache(URI baseUri, int timeoutMs, boolean upload) {
+        super();
+        final String userInfo = baseUri.getUserInfo();
+        this.authorization = userInfo == null ? null
+                : "Basic " + Base64.getEncoder().encodeToString(userInfo.getBytes(StandardCharsets.UTF_8));
+        final URI publicUri = withoutUserInfo(baseUri);
+        final String base = publicUri.toString();
+        this.baseUri = base.endsWith("/") ? publicUri : URI.create(base + "/");
+        this.timeoutMs = timeoutMs;
+        this.upload = upload;
+    }
+
+    private void count(String scmRepoId, int index) {
+        final AtomicInteger[] counts = statistics.computeIfAbsent(scmRepoId,
+                k -> new AtomicInteger[] { new AtomicInteger(), new AtomicInteger() });
+        counts[index].incrementAndGet();
+    }
+
+    /**
+     * @return the statistics of the given {@code scmRepoId}: {@code [hits, misses]}
+     */
+    int[] getStatistics(String scmRepoId) {
+        final AtomicInteger[] counts = statistics.get(scmRepoId);
+        return counts == null ? new int[] { 0, 0 } : new int[] { counts[0].get(), counts[1].get() };
+    }
+
+    /**
+     * @return {@code true} if this cache accepts uploads
+     */
+    public boolean isUpload() {
+        return upload;
+    }
+
+    /**
+     * Logs the number of hits and misses per SCM repository.
+     */
+    public void logStatistics() {
+        for (Entry<String, AtomicInteger[]> en : new TreeMap<>(statistics).entrySet()) {
+            log.info("srcdeps[{}]: Remote build cache hits: [{}], misses: [{}]", en.getKey(), en.getValue()[0].get(),
+                    en.getValue()[1].get());
+        }
+    }
+
+    private HttpURLConnection open(URL url, String method) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) url.openConnection();
+        connection.setRequestMethod(method);
+        connection.setConnectTimeout(timeoutMs);
+        connection.setReadTimeout(timeoutMs);
+        connection.setUseCaches(false);
+        if (authorization != null) {
+            connection.setRequestProperty("Authorization", authorization);
+        }
+        return connection;
+    }
+
+    private void put(URL url, Path archive) throws IOException {
+        final HttpURLConnection connection = open(url, "PUT");
+        try {
+            connection.setDoOutput(true);
+            connection.setRequestProperty("Content-Type", "application/zip");
+            connection.setFixedLengthStreamingMode(Files.size(archive));
+            try (OutputStream out = connection.getOutputStream(); InputStream in = Files.newInputStream(archive)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int len;
+                while ((len = in.read(buffer)) >= 0) {
+                    out.write(buffer, 0, len);
+                }
+            }
+            checkStatus(connection, url);
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    /**
+     * Downloads the archive stored under the given key and extracts it to the given {@code localRepository}.
+     * Nothing is written to the {@code localRepository} unless all entries of the archive are artifacts of the
+     * expected GAVs and the whole archive could be read.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param commitId
+     *            the commit ID the sources were built at
+     * @param key
+     *            the hash of the build request
+     * @param localRepository
+     *            the root directory of the local Maven repository to restore to
+     * @param includes
+     *            accepts the {@code groupId} and {@code artifactId} of the GAVs expected in the archive
+     * @param version
+     *            the version of the GAVs expected in the archive
+     * @return the number of restored files or {@code -1} if the remote cache has no such entry
+     * @throws IOException
+     *             on I/O errors, timeouts, unexpected HTTP responses and unexpected archive entries
+     */
+    public int restore(String scmRepoId, String commitId, String key, Path localRepository,
+            BiPredicate<String, String> includes, String version) throws IOException {
+        final URL url = toUrl(scmRepoId, commitId, key);
+        final HttpURLConnection connection = open(url, "GET");
+        try {
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_NOT_FOUND) {
+                count(scmRepoId, 1);
+                log.info("srcdeps[{}]: Remote build cache miss for revision [{}] at [{}]", scmRepoId, commitId, url);
+                return -1;
+            }
+            checkStatus(connection, url);
+            final Path root = localRepository.toAbsolutePath().normalize();
+            final Map<String, Path> extracted = new TreeMap<>();
+            Files.createDirectories(root.getParent());
+            final Path tmp = Files.createTempDirectory(root.getParent(), "srcdeps-restore");
+            try {
+                try (ZipInputStream in = new ZipInputStream(connection.getInputStream())) {
+                    ZipEntry entry;
+                    while ((entry = in.getNextEntry()) != null) {
+                        if (entry.isDirectory()) {
+                            continue;
+                        }
+                        final String name = entry.getName();
+                        if (!isExpected(name, includes, version) || extracted.containsKey(name)) {
+                            throw new IOException(String.format("srcdeps: Unexpected entry [%s] in [%s]", name, url));
+                        }
+                        final Path file = tmp.resolve(Integer.toString(extracted.size()));
+                        Files.copy(in, file);
+                        extracted.put(name, file);
+                    }
+                }
+                for (Entry<String, Path> en : extracted.entrySet()) {
+                    final Path target = root.resolve(en.getKey());
+                    Files.createDirectories(target.getParent());
+                    Files.move(en.getValue(), target, StandardCopyOption.REPLACE_EXISTING);
+                }
+            } finally {
+                SrcdepsCoreUtils.deleteDirectory(tmp);
+            }
+            final int result = extracted.size();
+            count(scmRepoId, 0);
+            log.info("srcdeps[{}]: Remote build cache hit for revision [{}]: restored [{}] files from [{}]", scmRepoId,
+                    commitId, result, url);
+            return result;
+        } finally {
+            connection.disconnect();
+        }
+    }
+
+    private URL toUrl(String scmRepoId, String commitId, String key) throws IOException {
+        return baseUri.resolve(scmRepoId + "/" + commitId + "/" + key + ".zip").toURL();
+    }
+
+    /**
+     * Archives the artifacts from the given {@code gavDirectories} and uploads the archive under the given key. Does
+     * nothing if {@link #isUpload()} is {@code false}.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param commitId
+     *            the commit ID the sources were built at
+     * @param key
+     *            the hash of the build request
+     * @param localRepository
+     *            the root directory of the local Maven repository
+     * @param gavDirectories
+     *            the version directories in the local Maven repository to upload
+     * @return the number of uploaded files
+     * @throws IOException
+     *             on I/O errors, timeouts and unexpected HTTP responses
+     */
+    public int upload(String scmRepoId, String commitId, String key, Path localRepository,
+            Collection<Path> gavDirectories) throws IOException {
+        if (!upload) {
+            return 0;
+        }
+        final Map<String, Path> files = new TreeMap<>();
+        for (Path gavDir : gavDirectories) {
+            for (Path file : LocalBuildMetadataStore.listArtifacts(gavDir)) {
+                files.put(LocalBuildMetadataStore.toKey(localRepository, file), file);
+            }
+        }
+        final Path archive = Files.createTempFile("srcdeps-" + key, ".zip");
+        try {
+            try (ZipOutputStream out = new ZipOutputStream(Files.newOutputStream(archive))) {
+                for (Entry<String, Path> en : files.entrySet()) {
+                    out.putNextEntry(new ZipEntry(en.getKey()));
+                    Files.copy(en.getValue(), out);
+                    out.closeEntry();
+                }
+            }
+            final URL url = toUrl(scmRepoId, commitId, key);
+            try {
+                put(url, archive);
+            } catch (SocketException e) {
+                /*
+                 * A streamed request is not retried by HttpURLConnection when it was sent over a pooled keep-alive
+                 * connection the server has closed in the meantime, so we retry once on a fresh connection
+                 */
+                log.debug("srcdeps[{}]: Retrying the upload to [{}] after [{}]", scmRepoId, url, e.getMessage());
+                put(url, archive);
+            }
+            log.info("srcdeps[{}]: Uploaded [{}] files built at revision [{}] to [{}]", scmRepoId, files.size(),
+                    commitId, url);
+            return files.size();
+        } finally {
+            Files.deleteIfExists(archive);
+        }
+    }
+}
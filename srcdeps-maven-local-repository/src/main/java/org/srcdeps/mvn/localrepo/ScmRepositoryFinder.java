@@ -0,0 +1,114 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.srcdeps.core.ConfigurationQueryService;
+import org.srcdeps.core.ConfigurationQueryService.ScmRepositoryResult;
+import org.srcdeps.core.config.ScmRepository;
+
+/**
+ * A memoizing front end of {@link ConfigurationQueryService#findScmRepo(String, String, String)}.
+ * <p>
+ * {@link ConfigurationQueryService} matches the given GAV against the {@code GavSet}s of all SCM repositories defined in
+ * {@code srcdeps.yaml} on every call. As {@link SrcdepsLocalRepositoryManager#find(org.eclipse.aether.RepositorySystemSession, org.eclipse.aether.repository.LocalArtifactRequest)}
+ * is called for every single artifact the resolver touches and mostly for artifacts that are not source dependencies,
+ * we remember both positive and negative results here, so that any subsequent lookup of the same GAV costs just a
+ * single hash lookup. The memo lives as long as the owning {@link SrcdepsLocalRepositoryManager}, i.e. one Maven
+ * session.
+ * <p>
+ * The results are keyed by the whole GAV rather than by GA only because both the {@code GavSet} selectors and
+ * {@code buildVersionPattern} can take the version into account.
+ * <p>
+ * {@link #findAllScmRepos(String, String, String)} is not memoized: it is only used to check the GAVs uninstalled
+ * before a rebuild for conflicts and each GAV is uninstalled at most once per session, so a memo would never be hit.
+ * The {@code GavSet}s can only be queried via {@code contains()}, which rules out indexing them by GA upfront.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class ScmRepositoryFinder {
+    private static String key(String groupId, String artifactId, String version) {
+        return new StringBuilder(groupId.length() + artifactId.length() + version.length() + 2).append(groupId)
+                .append(':').append(artifactId).append(':').append(version).toString();
+    }
+
+    private final ConfigurationQueryService delegate;
+    private final List<ScmRepository> repositories;
+    private final ConcurrentMap<String, ScmRepositoryResult> results = new ConcurrentHashMap<>();
+
+    ScmRepositoryFinder(ConfigurationQueryService delegate, List<ScmRepository> repositories) {
+        super();
+        this.delegate = delegate;
+        this.repositories = repositories;
+    }
+
+    /**
+     * @param groupId
+     *            the groupId of the artifact to look up
+     * @param artifactId
+     *            the artifactId of the artifact to look up
+     * @param version
+     *            the version of the artifact to look up
+     * @return the list of all SCM repositories whose {@code GavSet}s contain the given GAV, in the order they are
+     *         defined in {@code srcdeps.yaml}
+     */
+    public List<ScmRepository> findAllScmRepos(String groupId, String artifactId, String version) {
+        List<ScmRepository> result = Collections.emptyList();
+        for (ScmRepository repo : repositories) {
+            if (repo.getGavSet().contains(groupId, artifactId, version)) {
+                if (result.isEmpty()) {
+                    result = new ArrayList<>(2);
+                }
+                result.add(repo);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @param groupId
+     *            the groupId of the artifact to look up
+     * @param artifactId
+     *            the artifactId of the artifact to look up
+     * @param version
+     *            the version of the artifact to look up
+     * @return the possibly cached result of
+     *         {@link ConfigurationQueryService#findScmRepo(String, String, String)}
+     */
+    public ScmRepositoryResult findScmRepo(String groupId, String artifactId, String version) {
+        final String key = key(groupId, artifactId, version);
+        final ScmRepositoryResult cached = results.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final ScmRepositoryResult result = delegate.findScmRepo(groupId, artifactId, version);
+        final ScmRepositoryResult race = results.putIfAbsent(key, result);
+        return race != null ? race : result;
+    }
+
+    /**
+     * @return the number of distinct GAVs looked up so far
+     */
+    public int size() {
+        return results.size();
+    }
+}
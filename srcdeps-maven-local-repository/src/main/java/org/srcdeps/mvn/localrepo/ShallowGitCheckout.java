@@ -0,0 +1,523 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.BuildException;
+import org.srcdeps.core.BuildRequest;
+import org.srcdeps.core.ScmService;
+import org.srcdeps.core.SrcVersion;
+import org.srcdeps.core.util.SrcdepsCoreUtils;
+
+/**
+ * Checks out git repositories using the {@code git} command line client so that only a limited number of commits
+ * ({@code --depth}) and/or only a subset of objects ({@code --filter}, a.k.a. partial clone) is fetched. This is used
+ * by {@link SrcdepsLocalRepositoryManager} instead of {@link org.srcdeps.core.ScmService#checkout(BuildRequest)} for
+ * the SCM repositories having {@value SrcdepsRepositoryManagerOptions#CHECKOUT_DEPTH},
+ * {@value SrcdepsRepositoryManagerOptions#CHECKOUT_FILTER} or {@value SrcdepsRepositoryManagerOptions#CHECKOUT_MIRROR}
+ * set.
+ * <p>
+ * Branches and tags are fetched by their names. Revisions are fetched directly by their commit IDs if the server
+ * allows that; otherwise the branches of the remote are fetched with the given depth and then deepened until the
+ * requested revision becomes reachable or the whole history has been fetched. Tags and revisions that are available
+ * locally already are not fetched again.
+ * <p>
+ * With {@code mirror} enabled, the objects are fetched to a bare mirror {@code <mirrorsDirectory>/<scmRepoId>.git}
+ * shared by all build directories of the given SCM repository. The build directories are then attached to the mirror
+ * as {@code git worktree}s, so that checking out another {@link SrcVersion} of the same SCM repository needs no
+ * network access as long as the requested commit is in the mirror already. The mirror is guarded by a {@link FileLock}
+ * on {@code <mirrorsDirectory>/<scmRepoId>.git.lock}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class ShallowGitCheckout {
+    /** The default of {@link #timeoutMs} */
+    static final long DEFAULT_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+    static final String GIT_PREFIX = "git:";
+    private static final Logger log = LoggerFactory.getLogger(ShallowGitCheckout.class);
+    /** Deepen by at most this many commits per fetch before falling back to {@code --unshallow} */
+    static final int MAX_DEEPEN = 1024;
+    private static final String REMOTE = "origin";
+
+    private static void deleteQuietly(Path file) {
+        if (file != null) {
+            try {
+                Files.deleteIfExists(file);
+            } catch (IOException e) {
+                log.debug("srcdeps: Could not delete [{}]", file, e);
+            }
+        }
+    }
+
+    /**
+     * @param scmUrls
+     *            the URLs to check
+     * @return {@code true} if any of the given {@code scmUrls} is a git URL
+     */
+    static boolean hasGitUrl(List<String> scmUrls) {
+        for (String url : scmUrls) {
+            if (url.startsWith(GIT_PREFIX)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static String read(Path file) throws IOException {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8).trim();
+    }
+
+    private final List<String> gitCommand;
+    private final ConcurrentMap<Path, Object> mirrorLocks = new ConcurrentHashMap<>();
+    private final Path mirrorsDirectory;
+    /** The maximum time a single {@code git} invocation may take before it is killed */
+    private final long timeoutMs;
+
+    /**
+     * @param gitCommand
+     *            the {@code git} executable possibly followed by some global options such as {@code -c key=value}
+     * @param mirrorsDirectory
+     *            the directory where the bare mirrors should be stored
+     */
+    ShallowGitCheckout(List<String> gitCommand, Path mirrorsDirectory) {
+        this(gitCommand, mirrorsDirectory, DEFAULT_TIMEOUT_MS);
+    }
+
+    /**
+     * @param gitCommand
+     *            the {@code git} executable possibly followed by some global options such as {@code -c key=value}
+     * @param mirrorsDirectory
+     *            the directory where the bare mirrors should be stored
+     * @param timeoutMs
+     *            the maximum time in milliseconds a single {@code git} invocation may take before it is killed
+     */
+    ShallowGitCheckout(List<String> gitCommand, Path mirrorsDirectory, long timeoutMs) {
+        super();
+        this.gitCommand = gitCommand;
+        this.mirrorsDirectory = mirrorsDirectory;
+        this.timeoutMs = timeoutMs;
+    }
+
+    /**
+     * @param mirrorsDirectory
+     *            the directory where the bare mirrors should be stored
+     */
+    ShallowGitCheckout(Path mirrorsDirectory) {
+        this(Collections.singletonList("git"), mirrorsDirectory);
+    }
+
+    /**
+     * Attaches the given {@code dir} to the given {@code mirrorDir} as a {@code git worktree} checked out at the
+     * given {@code commitId}. A {@code dir} that is not a worktree of {@code mirrorDir} yet is wiped first.
+     */
+    private void attachWorktree(Path mirrorDir, Path dir, String commitId) throws BuildException {
+        git(mirrorDir, "worktree", "prune");
+        if (isWorktreeOf(dir, mirrorDir)) {
+            git(dir, "-c", "advice.detachedHead=false", "checkout", "--force", "--detach", commitId);
+        } else {
+            try {
+                if (Files.exists(dir)) {
+                    SrcdepsCoreUtils.deleteDirectory(dir);
+                }
+                Files.createDirectories(dir.getParent());
+            } catch (IOException e) {
+                throw new BuildException(String.format("srcdeps: Could not prepare [%s]", dir), e);
+            }
+            git(mirrorDir, "worktree", "add", "--force", "--detach", dir.toAbsolutePath().toString(), commitId);
+        }
+    }
+
+    /**
+     * Lists the paths changed between the given commits of the git repository in the given {@code dir}. Works for the
+     * checkouts made by {@link ScmService} as well as for the ones made by this class.
+     *
+     * @param dir
+     *            the root directory of a git working tree
+     * @param fromCommitId
+     *            the older commit
+     * @param toCommitId
+     *            the newer commit
+     * @return the paths relative to {@code dir} of the files added, removed or modified between the given commits or
+     *         {@code null} if the changes cannot be determined, e.g. because {@code fromCommitId} is not available in
+     *         a shallow clone
+     */
+    public List<String> changedPaths(Path dir, String fromCommitId, String toCommitId) {
+        if (!Files.exists(dir.resolve(".git")) || !hasCommit(dir, fromCommitId)) {
+            return null;
+        }
+        final String output;
+        try {
+            output = git(dir, "-c", "core.quotePath=false", "diff", "--name-only", "--no-renames", fromCommitId,
+                    toCommitId);
+        } catch (BuildException e) {
+            log.debug("srcdeps: Could not list the changes between [{}] and [{}] in [{}]", fromCommitId, toCommitId,
+                    dir, e);
+            return null;
+        }
+        final List<String> result = new ArrayList<>();
+        for (String line : output.split("\n")) {
+            if (!line.isEmpty()) {
+                result.add(line);
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Checks out the sources requested by the given {@link BuildRequest} to
+     * {@link BuildRequest#getProjectRootDirectory()}.
+     *
+     * @param buildRequest
+     *            the {@link BuildRequest} to check out
+     * @param depth
+     *            the number of commits to fetch or {@code 0} to fetch the whole history
+     * @param filter
+     *            the partial clone filter to pass to {@code git fetch --filter} or {@code null}
+     * @param mirror
+     *            if {@code true} the objects are fetched to a bare mirror shared with the other build directories of
+     *            the same SCM repository
+     * @return the commit ID of the checked out revision
+     * @throws BuildException
+     *             if the checkout failed for all git URLs of the given {@link BuildRequest}
+     */
+    public String checkout(BuildRequest buildRequest, int depth, String filter, boolean mirror)
+            throws BuildException {
+        return checkout(buildRequest.getScmRepositoryId(), buildRequest.getScmUrls(), buildRequest.getSrcVersion(),
+                buildRequest.getProjectRootDirectory(), depth, filter, mirror);
+    }
+
+    String checkout(String scmRepoId, List<String> scmUrls, SrcVersion srcVersion, Path dir, int depth,
+            String filter, boolean mirror) throws BuildException {
+        BuildException lastException = null;
+        for (String url : scmUrls) {
+            if (!url.startsWith(GIT_PREFIX)) {
+                continue;
+            }
+            try {
+                return checkout(scmRepoId, url.substring(GIT_PREFIX.length()), srcVersion, dir, depth, filter,
+                        mirror);
+            } catch (BuildException e) {
+                log.warn("srcdeps[{}]: Could not check out [{}] from [{}]: {}", scmRepoId, srcVersion, url,
+                        e.getMessage());
+                lastException = e;
+            }
+        }
+        if (lastException != null) {
+            throw lastException;
+        }
+        throw new BuildException(String.format("srcdeps[%s]: No git URL in %s", scmRepoId, scmUrls));
+    }
+
+    private String checkout(String scmRepoId, String url, SrcVersion srcVersion, Path dir, int depth, String filter,
+            boolean mirror) throws BuildException {
+        final long start = System.currentTimeMillis();
+        final String commitId;
+        if (mirror) {
+            final Path mirrorDir = mirrorsDirectory.resolve(scmRepoId + ".git");
+            final Path lockFile = mirrorsDirectory.resolve(scmRepoId + ".git.lock");
+            synchronized (mirrorLocks.computeIfAbsent(mirrorDir, k -> new Object())) {
+                try {
+                    Files.createDirectories(mirrorsDirectory);
+                    try (FileChannel ch = FileChannel.open(lockFile, StandardOpenOption.CREATE,
+                            StandardOpenOption.WRITE); FileLock lock = ch.lock()) {
+                        init(mirrorDir, true, url, filter);
+                        final String target = fetch(scmRepoId, mirrorDir, true, srcVersion, depth, filter);
+                        commitId = git(mirrorDir, "rev-parse", target);
+                        attachWorktree(mirrorDir, dir, commitId);
+                    }
+                } catch (IOException e) {
+                    throw new BuildException(String.format("srcdeps[%s]: Could not lock [%s]", scmRepoId, lockFile),
+                            e);
+                }
+            }
+        } else {
+            init(dir, false, url, filter);
+            final String target = fetch(scmRepoId, dir, false, srcVersion, depth, filter);
+            git(dir, "-c", "advice.detachedHead=false", "checkout", "--force", "--detach", target);
+            commitId = git(dir, "rev-parse", "HEAD");
+        }
+        git(dir, "clean", "-ffdx");
+        log.info(
+                "srcdeps[{}]: Checked out [{}] at revision [{}] with depth [{}], filter [{}] and mirror [{}] in [{}] ms",
+                scmRepoId, srcVersion, commitId, depth, filter, mirror, System.currentTimeMillis() - start);
+        return commitId;
+    }
+
+    /**
+     * Fetches the given {@code srcVersion} unless it is available in the given {@code gitDir} already.
+     *
+     * @return the revision expression to check out
+     */
+    private String fetch(String scmRepoId, Path gitDir, boolean bare, SrcVersion srcVersion, int depth,
+            String filter) throws BuildException {
+        final String branchPrefix = bare ? "refs/heads/" : "refs/remotes/" + REMOTE + "/";
+        final String scmVersion = srcVersion.getScmVersion();
+        switch (srcVersion.getWellKnownType()) {
+        case branch:
+            fetch(gitDir, bare, depth, filter, "+refs/heads/" + scmVersion + ":" + branchPrefix + scmVersion);
+            return branchPrefix + scmVersion;
+        case tag:
+            final String tagRef = "refs/tags/" + scmVersion;
+            if (!hasCommit(gitDir, tagRef)) {
+                fetch(gitDir, bare, depth, filter, "+" + tagRef + ":" + tagRef);
+            }
+            return tagRef + "^{commit}";
+        case revision:
+            if (!hasCommit(gitDir, scmVersion)) {
+                fetchRevision(scmRepoId, gitDir, bare, depth, filter, scmVersion);
+            }
+            return scmVersion;
+        default:
+            throw new IllegalStateException("Unexpected " + SrcVersion.WellKnownType.class.getName() + ": "
+                    + srcVersion.getWellKnownType());
+        }
+    }
+
+    private void fetch(Path dir, boolean bare, int depth, String filter, String... refSpecs) throws BuildException {
+        final List<String> args = new ArrayList<>();
+        args.add("fetch");
+        if (!bare) {
+            /* Unlike build directories, mirrors collect the tags pointing at the fetched commits */
+            args.add("--no-tags");
+        }
+        if (depth > 0) {
+            args.add("--depth=" + depth);
+        }
+        if (filter != null) {
+            args.add("--filter=" + filter);
+        }
+        args.add(REMOTE);
+        args.addAll(Arrays.asList(refSpecs));
+        git(dir, args.toArray(new String[0]));
+    }
+
+    /**
+     * Fetches the given {@code revision} directly or, if the server does not allow fetching unadvertised commits,
+     * deepens the history of all remote branches until the {@code revision} is reachable.
+     */
+    private void fetchRevision(String scmRepoId, Path dir, boolean bare, int depth, String filter, String revision)
+            throws BuildException {
+        final String branchPrefix = bare ? "refs/heads/" : "refs/remotes/" + REMOTE + "/";
+        try {
+            fetch(dir, bare, depth, filter, revision);
+            if (hasCommit(dir, revision)) {
+                return;
+            }
+        } catch (BuildException e) {
+            log.debug("srcdeps[{}]: Could not fetch revision [{}] directly", scmRepoId, revision, e);
+        }
+        fetch(dir, bare, depth, filter, "+refs/heads/*:" + branchPrefix + "*");
+        int deepenBy = Math.max(depth, 1);
+        while (!hasCommit(dir, revision)) {
+            if (!"true".equals(git(dir, "rev-parse", "--is-shallow-repository"))) {
+                throw new BuildException(String.format(
+                        "srcdeps[%s]: Revision [%s] is not reachable from any branch of the remote repository",
+                        scmRepoId, revision));
+            }
+            if (deepenBy > MAX_DEEPEN) {
+                log.info("srcdeps[{}]: Fetching the whole history to find revision [{}]", scmRepoId, revision);
+                git(dir, "fetch", "--no-tags", "--unshallow", REMOTE);
+            } else {
+                log.debug("srcdeps[{}]: Deepening by [{}] commits to find revision [{}]", scmRepoId, deepenBy,
+                        revision);
+                git(dir, "fetch", "--no-tags", "--deepen=" + deepenBy, REMOTE);
+                deepenBy *= 2;
+            }
+        }
+    }
+
+    private String git(Path dir, String... args) throws BuildException {
+        final List<String> command = new ArrayList<>(gitCommand.size() + args.length);
+        command.addAll(gitCommand);
+        command.addAll(Arrays.asList(args));
+        log.debug("srcdeps: Executing {} in [{}]", command, dir);
+        final ProcessBuilder pb = new ProcessBuilder(command).directory(dir.toFile());
+        /* Never wait for credentials, passphrases or host key confirmations that nobody is going to enter */
+        final Map<String, String> env = pb.environment();
+        env.put("GIT_TERMINAL_PROMPT", "0");
+        if (!env.containsKey("GIT_SSH_COMMAND") && !env.containsKey("GIT_SSH")) {
+            env.put("GIT_SSH_COMMAND", "ssh -o BatchMode=yes");
+        }
+        Path outputFile = null;
+        Path errorFile = null;
+        try {
+            /*
+             * Files rather than pipes, so that we can wait with a timeout without threads draining the pipes. The
+             * standard error is kept apart, because the standard output is parsed as commit IDs and paths
+             */
+            outputFile = Files.createTempFile("srcdeps-git", ".out");
+            errorFile = Files.createTempFile("srcdeps-git", ".err");
+            pb.redirectOutput(outputFile.toFile());
+            pb.redirectError(errorFile.toFile());
+            final Process process = pb.start();
+            process.getOutputStream().close();
+            if (!process.waitFor(timeoutMs, TimeUnit.MILLISECONDS)) {
+                process.destroyForcibly();
+                throw new BuildException(String.format("srcdeps: %s did not finish within %d ms: %s", command,
+                        timeoutMs, read(errorFile)));
+            }
+            final int exitCode = process.exitValue();
+            if (exitCode != 0) {
+                throw new BuildException(String.format("srcdeps: %s failed with exit code %d: %s", command, exitCode,
+                        read(errorFile)));
+            }
+            return read(outputFile);
+        } catch (IOException e) {
+            throw new BuildException(String.format("srcdeps: Could not execute %s", command), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new BuildException(String.format("srcdeps: Interrupted while executing %s", command), e);
+        } finally {
+            deleteQuietly(outputFile);
+            deleteQuietly(errorFile);
+        }
+    }
+
+    private boolean hasCommit(Path dir, String revision) {
+        try {
+            git(dir, "cat-file", "-e", revision + "^{commit}");
+            return true;
+        } catch (BuildException e) {
+            return false;
+        }
+    }
+
+    /**
+     * @param dir
+     *            the root directory of a git working tree
+     * @return the commit ID the given working tree is checked out at or {@code null} if {@code dir} is not a git
+     *         working tree or if the commit ID cannot be determined
+     */
+    public String head(Path dir) {
+        if (!Files.exists(dir.resolve(".git"))) {
+            return null;
+        }
+        try {
+            return git(dir, "rev-parse", "--verify", "HEAD");
+        } catch (BuildException e) {
+            log.debug("srcdeps: Could not determine the HEAD of [{}]", dir, e);
+            return null;
+        }
+    }
+
+    /**
+     * Makes sure that there is a git repository in the given {@code gitDir} having a remote with the given
+     * {@code url}. A {@code gitDir} not containing any git repository is wiped first.
+     */
+    private void init(Path gitDir, boolean bare, String url, String filter) throws BuildException {
+        try {
+            if (!Files.exists(gitDir.resolve(bare ? "HEAD" : ".git"))) {
+                if (Files.exists(gitDir)) {
+                    SrcdepsCoreUtils.deleteDirectory(gitDir);
+                }
+                Files.createDirectories(gitDir);
+                if (bare) {
+                    git(gitDir, "init", "--quiet", "--bare");
+                } else {
+                    git(gitDir, "init", "--quiet");
+                }
+                git(gitDir, "remote", "add", REMOTE, url);
+                if (bare) {
+                    /* Mirror the branches as they are */
+                    git(gitDir, "config", "remote." + REMOTE + ".fetch", "+refs/heads/*:refs/heads/*");
+                }
+            } else {
+                git(gitDir, "remote", "set-url", REMOTE, url);
+            }
+        } catch (IOException e) {
+            throw new BuildException(String.format("srcdeps: Could not prepare [%s]", gitDir), e);
+        }
+        if (filter != null) {
+            /* The same what git clone --filter does */
+            git(gitDir, "config", "core.repositoryformatversion", "1");
+            git(gitDir, "config", "extensions.partialClone", REMOTE);
+            git(gitDir, "config", "remote." + REMOTE + ".promisor", "true");
+            git(gitDir, "config", "remote." + REMOTE + ".partialclonefilter", filter);
+        }
+    }
+
+    private boolean isWorktreeOf(Path dir, Path mirrorDir) {
+        if (!Files.isRegularFile(dir.resolve(".git"))) {
+            return false;
+        }
+        try {
+            final Path commonDir = dir.resolve(git(dir, "rev-parse", "--git-common-dir"));
+            return Files.isSameFile(commonDir, mirrorDir);
+        } catch (BuildException | IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Asks the remote repository for the commit ID the branch given by {@code srcVersion} points at via
+     * {@code git ls-remote}, which is just a single round trip transferring no objects. The git URLs from
+     * {@code scmUrls} are tried in the given order.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param scmUrls
+     *            the URLs of the SCM repository
+     * @param srcVersion
+     *            the {@link SrcVersion} to look up
+     * @param dir
+     *            an existing directory to run {@code git} in
+     * @return the commit ID or {@code null} if {@code srcVersion} is not a branch, if there is no git URL in
+     *         {@code scmUrls} or if none of the remotes could tell the commit ID
+     */
+    public String remoteHead(String scmRepoId, List<String> scmUrls, SrcVersion srcVersion, Path dir) {
+        if (srcVersion.getWellKnownType() != SrcVersion.WellKnownType.branch) {
+            return null;
+        }
+        final String ref = "refs/heads/" + srcVersion.getScmVersion();
+        for (String url : scmUrls) {
+            if (!url.startsWith(GIT_PREFIX)) {
+                continue;
+            }
+            try {
+                final String output = git(dir, "ls-remote", url.substring(GIT_PREFIX.length()), ref);
+                for (String line : output.split("\n")) {
+                    final int tab = line.indexOf('\t');
+                    if (tab > 0 && line.substring(tab + 1).trim().equals(ref)) {
+                        return line.substring(0, tab);
+                    }
+                }
+                log.debug("srcdeps[{}]: No [{}] in [{}]", scmRepoId, ref, url);
+                return null;
+            } catch (BuildException e) {
+                log.debug("srcdeps[{}]: Could not list [{}] of [{}]", scmRepoId, ref, url, e);
+            }
+        }
+        return null;
+    }
+}
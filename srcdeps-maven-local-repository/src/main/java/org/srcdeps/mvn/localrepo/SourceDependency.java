@@ -0,0 +1,65 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import org.eclipse.aether.artifact.Artifact;
+import org.srcdeps.core.SrcVersion;
+import org.srcdeps.core.config.ScmRepository;
+
+/**
+ * An {@link Artifact} that needs to be built from the given {@link ScmRepository} at the given {@link SrcVersion}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class SourceDependency {
+    private final Artifact artifact;
+    private final BuildKey key;
+    private final ScmRepository scmRepository;
+    private final SrcVersion srcVersion;
+
+    SourceDependency(Artifact artifact, ScmRepository scmRepository, SrcVersion srcVersion) {
+        super();
+        this.artifact = artifact;
+        this.scmRepository = scmRepository;
+        this.srcVersion = srcVersion;
+        this.key = new BuildKey(scmRepository.getId(), srcVersion);
+    }
+
+    /**
+     * @return the artifact through which this {@link SourceDependency} was found
+     */
+    public Artifact getArtifact() {
+        return artifact;
+    }
+
+    public BuildKey getKey() {
+        return key;
+    }
+
+    public ScmRepository getScmRepository() {
+        return scmRepository;
+    }
+
+    public SrcVersion getSrcVersion() {
+        return srcVersion;
+    }
+
+    @Override
+    public String toString() {
+        return key + " via " + artifact;
+    }
+}
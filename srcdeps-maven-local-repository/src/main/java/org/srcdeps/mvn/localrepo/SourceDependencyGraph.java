@@ -0,0 +1,120 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+/**
+ * A directed graph of {@link BuildKey}s where an edge from {@code A} to {@code B} means that the sources of {@code A}
+ * depend on some artifact built by {@code B}. Not thread safe.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class SourceDependencyGraph {
+    private static final int VISITED = 2;
+    private static final int VISITING = 1;
+
+    /** Nodes mapped to their direct upstreams */
+    private final Map<BuildKey, Set<BuildKey>> upstreams = new LinkedHashMap<>();
+
+    /**
+     * Adds an edge from {@code downstream} to {@code upstream} adding any of the two nodes if necessary. Self-edges
+     * are ignored.
+     *
+     * @param downstream
+     *            the node depending on {@code upstream}
+     * @param upstream
+     *            the node {@code downstream} depends on
+     */
+    public void addEdge(BuildKey downstream, BuildKey upstream) {
+        addNode(upstream);
+        final Set<BuildKey> ups = addNode(downstream);
+        if (!downstream.equals(upstream)) {
+            ups.add(upstream);
+        }
+    }
+
+    /**
+     * Adds the given node unless it is there already.
+     *
+     * @param key
+     *            the node to add
+     * @return the mutable set of direct upstreams of the given node
+     */
+    public Set<BuildKey> addNode(BuildKey key) {
+        return upstreams.computeIfAbsent(key, k -> new LinkedHashSet<>());
+    }
+
+    /**
+     * @param key
+     *            the node whose upstreams should be returned
+     * @return an unmodifiable set of direct upstreams of the given node; an empty set if the node is not in this
+     *         graph
+     */
+    public Set<BuildKey> getUpstreams(BuildKey key) {
+        final Set<BuildKey> result = upstreams.get(key);
+        return result == null ? Collections.<BuildKey>emptySet() : Collections.unmodifiableSet(result);
+    }
+
+    /**
+     * @return the nodes of this graph sorted so that every node comes after all its upstreams
+     * @throws IllegalStateException
+     *             if there is a cycle in the graph
+     */
+    public List<BuildKey> topologicalOrder() {
+        final List<BuildKey> result = new ArrayList<>(upstreams.size());
+        final Map<BuildKey, Integer> states = new LinkedHashMap<>();
+        for (BuildKey key : upstreams.keySet()) {
+            visit(key, states, result, new ArrayList<>());
+        }
+        return result;
+    }
+
+    @Override
+    public String toString() {
+        final StringBuilder sb = new StringBuilder();
+        for (Entry<BuildKey, Set<BuildKey>> en : upstreams.entrySet()) {
+            sb.append(en.getKey()).append(" -> ").append(en.getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private void visit(BuildKey key, Map<BuildKey, Integer> states, List<BuildKey> result, List<BuildKey> path) {
+        final Integer state = states.get(key);
+        if (state == null) {
+            states.put(key, VISITING);
+            path.add(key);
+            for (BuildKey upstream : upstreams.get(key)) {
+                visit(upstream, states, result, path);
+            }
+            path.remove(path.size() - 1);
+            states.put(key, VISITED);
+            result.add(key);
+        } else if (state.intValue() == VISITING) {
+            final List<BuildKey> cycle = new ArrayList<>(path.subList(path.indexOf(key), path.size()));
+            cycle.add(key);
+            throw new IllegalStateException(String.format("Cycle in source dependencies: %s", cycle));
+        }
+    }
+}
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.Ga;
+import org.srcdeps.core.GavSet;
+import org.srcdeps.core.MavenSourceTree;
+import org.srcdeps.core.MavenSourceTree.ActiveProfiles;
+
+/**
+ * Caches the {@link MavenSourceTree}s parsed during a session, so that the same source tree is not parsed over and
+ * over, e.g. when the required includes of several SCM repositories are computed for the dependent project or when a
+ * source tree scanned while planning the builds is built later. The trees are keyed by the {@link #fingerprint(Path)}
+ * of all their {@code pom.xml} files.
+ * <p>
+ * Because {@link MavenSourceTree} is not serializable, only the results of
+ * {@link MavenSourceTree#filterDependencies(GavSet, java.util.function.Predicate)} are persisted across sessions, one
+ * {@code groupId:artifactId} per line in {@code <directory>/<key>.txt}. The key is a hash of the
+ * {@link #fingerprint(Path)} of the source tree, the SCM repository ID, the build arguments (which determine the
+ * active profiles) and the {@link #configurationFingerprint(Path, Properties)}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class SourceTreeCache {
+    private static final Logger log = LoggerFactory.getLogger(SourceTreeCache.class);
+    private static final String POM_XML = "pom.xml";
+
+    /**
+     * @param rootDirectory
+     *            the root directory of the Maven project
+     * @param properties
+     *            the system properties
+     * @return a hash of the {@code srcdeps.yaml} files and of the {@code srcdeps.*} {@code properties}, i.e. of the
+     *         inputs of the srcdeps configuration
+     * @throws IOException
+     *             on I/O errors
+     */
+    static String configurationFingerprint(Path rootDirectory, Properties properties) throws IOException {
+        final HashAlgorithm.Digester digester = HashAlgorithm.sha1.newDigester();
+        for (Path config : new Path[] { rootDirectory.resolve("srcdeps.yaml"),
+                rootDirectory.resolve(".mvn/srcdeps.yaml") }) {
+            update(digester, config.toString());
+            try {
+                digester.update(ByteBuffer.wrap(Files.readAllBytes(config)));
+            } catch (NoSuchFileException e) {
+                /* not there */
+            }
+        }
+        for (String key : new TreeSet<>(properties.stringPropertyNames())) {
+            if (key.startsWith("srcdeps.")) {
+                update(digester, key);
+                update(digester, properties.getProperty(key));
+            }
+        }
+        return ArtifactHasher.toHex(digester.digest());
+    }
+
+    /**
+     * @param rootDirectory
+     *            the root directory of a Maven source tree
+     * @return a hash of the paths and contents of all {@code pom.xml} files under the given {@code rootDirectory};
+     *         hidden directories and {@code target} directories are skipped
+     * @throws IOException
+     *             on I/O errors
+     */
+    static String fingerprint(Path rootDirectory) throws IOException {
+        final Map<String, Path> poms = new TreeMap<>();
+        Files.walkFileTree(rootDirectory, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                final String name = dir.getFileName().toString();
+                return !dir.equals(rootDirectory) && (name.startsWith(".") || name.equals("target"))
+                        ? FileVisitResult.SKIP_SUBTREE
+                        : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                if (POM_XML.equals(file.getFileName().toString())) {
+                    poms.put(LocalBuildMetadataStore.toKey(rootDirectory, file), file);
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        final HashAlgorithm.Digester digester = HashAlgorithm.sha1.newDigester();
+        for (Entry<String, Path> en : poms.entrySet()) {
+            update(digester, en.getKey());
+            digester.update(ByteBuffer.wrap(Files.readAllBytes(en.getValue())));
+        }
+        return ArtifactHasher.toHex(digester.digest());
+    }
+
+    private static void update(HashAlgorithm.Digester digester, String value) {
+        digester.update(ByteBuffer.wrap(value.getBytes(StandardCharsets.UTF_8)));
+        digester.update(ByteBuffer.wrap(new byte[] { 0 }));
+    }
+
+    private final String configurationFingerprint;
+    private final Path directory;
+    private final Map<String, Set<Ga>> requiredIncludes = new ConcurrentHashMap<>();
+    private final Map<String, MavenSourceTree> trees = new ConcurrentHashMap<>();
+
+    /**
+     * @param directory
+     *            the directory where the results of
+     *            {@link #filterDependencies(String, Path, String, Charset, GavSet, List)} are persisted
+     * @param configurationFingerprint
+     *            the {@link #configurationFingerprint(Path, Properties)} of the current session
+     */
+    SourceTreeCache(Path directory, String configurationFingerprint) {
+        super();
+        this.directory = directory;
+        this.configurationFingerprint = configurationFingerprint;
+    }
+
+    /**
+     * Forgets the {@link MavenSourceTree} of the given {@code rootDirectory}. To be called before the
+     * {@code pom.xml} files of the source tree are modified.
+     *
+     * @param rootDirectory
+     *            the root directory of a Maven source tree
+     */
+    public void evict(Path rootDirectory) {
+        final String prefix = rootDirectory.toString() + '@';
+        trees.keySet().removeIf(key -> key.startsWith(prefix));
+    }
+
+    /**
+     * A cached equivalent of calling {@code filterDependencies(gavSet, ActiveProfiles.ofArgs(buildArguments))} on
+     * {@link #get(Path, String, Charset)}.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository whose {@link GavSet} is passed
+     * @param rootDirectory
+     *            the root directory of a Maven source tree
+     * @param fingerprint
+     *            the {@link #fingerprint(Path)} of {@code rootDirectory}
+     * @param encoding
+     *            the encoding of the {@code pom.xml} files
+     * @param gavSet
+     *            the artifacts to look for
+     * @param buildArguments
+     *            the arguments determining the active profiles
+     * @return the modules of the given source tree depending on any artifact from the given {@code gavSet}
+     */
+    public Set<Ga> filterDependencies(String scmRepoId, Path rootDirectory, String fingerprint, Charset encoding,
+            GavSet gavSet, List<String> buildArguments) {
+        final HashAlgorithm.Digester digester = HashAlgorithm.sha1.newDigester();
+        update(digester, fingerprint);
+        update(digester, scmRepoId);
+        update(digester, configurationFingerprint);
+        for (String arg : buildArguments) {
+            update(digester, arg);
+        }
+        final String key = ArtifactHasher.toHex(digester.digest());
+        final Set<Ga> cached = requiredIncludes.get(key);
+        if (cached != null) {
+            return cached;
+        }
+        final Path file = directory.resolve(key + ".txt");
+        Set<Ga> result = read(file);
+        if (result == null) {
+            result = Collections.unmodifiableSet(new TreeSet<>(get(rootDirectory, fingerprint, encoding)
+                    .filterDependencies(gavSet, ActiveProfiles.ofArgs(buildArguments))));
+            write(file, result);
+        } else {
+            log.debug("srcdeps[{}]: Loaded the required includes of [{}] from [{}]", scmRepoId, rootDirectory, file);
+        }
+        requiredIncludes.put(key, result);
+        return result;
+    }
+
+    /**
+     * @param rootDirectory
+     *            the root directory of a Maven source tree
+     * @param fingerprint
+     *            the {@link #fingerprint(Path)} of {@code rootDirectory}
+     * @param encoding
+     *            the encoding of the {@code pom.xml} files
+     * @return the {@link MavenSourceTree} of the given {@code rootDirectory}, parsed only if it was not parsed with
+     *         the same {@code fingerprint} in this session yet
+     */
+    public MavenSourceTree get(Path rootDirectory, String fingerprint, Charset encoding) {
+        return trees.computeIfAbsent(rootDirectory.toString() + '@' + fingerprint,
+                k -> MavenSourceTree.of(rootDirectory.resolve(POM_XML), encoding));
+    }
+
+    private Set<Ga> read(Path file) {
+        final List<String> lines;
+        try {
+            lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        } catch (NoSuchFileException e) {
+            return null;
+        } catch (IOException e) {
+            log.warn("srcdeps: Could not read [" + file + "]", e);
+            return null;
+        }
+        final Set<Ga> result = new TreeSet<>();
+        for (String line : lines) {
+            if (!line.isEmpty()) {
+                result.add(Ga.of(line));
+            }
+        }
+        return Collections.unmodifiableSet(result);
+    }
+
+    private void write(Path file, Set<Ga> gas) {
+        final List<String> lines = new ArrayList<>(gas.size());
+        for (Ga ga : gas) {
+            lines.add(ga.getGroupId() + ":" + ga.getArtifactId());
+        }
+        try {
+            Files.createDirectories(file.getParent());
+            final Path tmp = Files.createTempFile(file.getParent(), file.getFileName().toString(), ".tmp");
+            try {
+                Files.write(tmp, lines, StandardCharsets.UTF_8);
+                Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(tmp);
+            }
+        } catch (IOException e) {
+            log.warn("srcdeps: Could not write [" + file + "]", e);
+        }
+    }
+}
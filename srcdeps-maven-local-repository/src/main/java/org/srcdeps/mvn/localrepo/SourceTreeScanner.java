@@ -0,0 +1,451 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.DocumentBuilder;
+import javax.xml.parsers.DocumentBuilderFactory;
+import javax.xml.parsers.ParserConfigurationException;
+
+import org.apache.maven.model.Dependency;
+import org.w3c.dom.Document;
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Collects the modules and the dependencies declared in all {@code pom.xml} files of a Maven source tree, following
+ * the {@code <modules>} of the root {@code pom.xml} and of its profiles. The versions of the dependencies are
+ * interpolated using the properties inherited along the module hierarchy and the dependencies without a version get
+ * it from the inherited {@code <dependencyManagement>}; dependencies whose version cannot be resolved this way are
+ * left out. {@code <dependencyManagement>} entries alone do not count as dependencies. Which profiles are active is
+ * decided by {@link ProfileActivation}.
+ * <p>
+ * This is a deliberately simple and fast approximation of the effective model: it is good enough to find the
+ * {@code -SRC-} versions a source tree depends on, but it should not be used for anything that requires Maven's full
+ * model building. {@code MavenSourceTree} cannot be used instead because it only knows the {@code groupId}s and
+ * {@code artifactId}s of the dependencies, not their interpolated and managed versions. The {@code pom.xml} files are
+ * parsed with DOCTYPE declarations, external entities and external DTDs disallowed.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class SourceTreeScanner {
+
+    /**
+     * Decides which {@code <profile>}s of a {@code pom.xml} are active for the given build arguments, following
+     * Maven's rules as far as they can be evaluated without building the effective model: a profile is active if it
+     * is activated via {@code -P} or if all its {@code <property>} and {@code <file>} activation conditions are met
+     * by the {@code -D} build arguments and the files in the module directory; {@code <jdk>} and {@code <os>}
+     * conditions are considered met. The {@code activeByDefault} profiles are active only if no other profile of the
+     * same {@code pom.xml} is active. Profiles deactivated via {@code -P !id} or {@code -P -id} are never active.
+     */
+    static class ProfileActivation {
+        /** All profiles are active */
+        static final ProfileActivation ALL = new ProfileActivation(Collections.<String>emptySet(),
+                Collections.<String>emptySet(), Collections.<String, String>emptyMap()) {
+            @Override
+            List<Element> filter(List<Element> profiles, Path dir) {
+                return profiles;
+            }
+        };
+
+        /**
+         * @param args
+         *            the arguments of a Maven build
+         * @return a new {@link ProfileActivation} for the {@code -P} and {@code -D} options found in the given
+         *         {@code args}
+         */
+        static ProfileActivation ofArgs(List<String> args) {
+            final Set<String> activated = new HashSet<>();
+            final Set<String> deactivated = new HashSet<>();
+            final Map<String, String> properties = new HashMap<>();
+            for (int i = 0; i < args.size(); i++) {
+                final String arg = args.get(i);
+                if ((arg.equals("-P") || arg.equals("--activate-profiles")) && i + 1 < args.size()) {
+                    addProfiles(args.get(++i), activated, deactivated);
+                } else if (arg.startsWith("-P")) {
+                    addProfiles(arg.substring(2), activated, deactivated);
+                } else if ((arg.equals("-D") || arg.equals("--define")) && i + 1 < args.size()) {
+                    addProperty(args.get(++i), properties);
+                } else if (arg.startsWith("-D")) {
+                    addProperty(arg.substring(2), properties);
+                }
+            }
+            return new ProfileActivation(activated, deactivated, properties);
+        }
+
+        private static void addProfiles(String value, Set<String> activated, Set<String> deactivated) {
+            for (String rawId : value.split(",")) {
+                final String id = rawId.trim();
+                if (id.startsWith("!") || id.startsWith("-")) {
+                    deactivated.add(id.substring(1));
+                } else if (id.startsWith("+") || id.startsWith("?")) {
+                    activated.add(id.substring(1));
+                } else if (!id.isEmpty()) {
+                    activated.add(id);
+                }
+            }
+        }
+
+        private static void addProperty(String value, Map<String, String> properties) {
+            final int eq = value.indexOf('=');
+            if (eq < 0) {
+                properties.put(value, "true");
+            } else {
+                properties.put(value.substring(0, eq), value.substring(eq + 1));
+            }
+        }
+
+        private final Set<String> activated;
+        private final Set<String> deactivated;
+        private final Map<String, String> properties;
+
+        private ProfileActivation(Set<String> activated, Set<String> deactivated, Map<String, String> properties) {
+            super();
+            this.activated = activated;
+            this.deactivated = deactivated;
+            this.properties = properties;
+        }
+
+        /**
+         * @param profiles
+         *            the {@code <profile>} elements of a {@code pom.xml}
+         * @param dir
+         *            the directory containing the {@code pom.xml}
+         * @return the active ones out of the given {@code profiles}
+         */
+        List<Element> filter(List<Element> profiles, Path dir) {
+            final List<Element> result = new ArrayList<>();
+            final List<Element> byDefault = new ArrayList<>();
+            for (Element profile : profiles) {
+                final String id = text(profile, "id");
+                final Element activation = child(profile, "activation");
+                if (deactivated.contains(id)) {
+                    continue;
+                } else if (activated.contains(id) || isActivated(activation, dir)) {
+                    result.add(profile);
+                } else if ("true".equals(text(activation, "activeByDefault"))) {
+                    byDefault.add(profile);
+                }
+            }
+            return result.isEmpty() ? byDefault : result;
+        }
+
+        private boolean isActivated(Element activation, Path dir) {
+            if (activation == null) {
+                return false;
+            }
+            boolean hasCondition = child(activation, "jdk") != null || child(activation, "os") != null;
+            final Element property = child(activation, "property");
+            if (property != null) {
+                hasCondition = true;
+                String name = text(property, "name");
+                final boolean negatedName = name != null && name.startsWith("!");
+                name = negatedName ? name.substring(1) : name;
+                final String actual = properties.get(name);
+                final String expected = text(property, "value");
+                if (negatedName) {
+                    if (actual != null) {
+                        return false;
+                    }
+                } else if (actual == null) {
+                    return false;
+                } else if (expected != null && (expected.startsWith("!") ? actual.equals(expected.substring(1))
+                        : !actual.equals(expected))) {
+                    return false;
+                }
+            }
+            final Element file = child(activation, "file");
+            if (file != null) {
+                hasCondition = true;
+                final Map<String, String> basedir = new HashMap<>();
+                basedir.put("basedir", dir.toString());
+                basedir.put("project.basedir", dir.toString());
+                final String exists = interpolate(text(file, "exists"), basedir);
+                final String missing = interpolate(text(file, "missing"), basedir);
+                if (exists != null && !Files.exists(dir.resolve(exists))
+                        || missing != null && Files.exists(dir.resolve(missing))) {
+                    return false;
+                }
+            }
+            return hasCondition;
+        }
+    }
+
+    private static final int MAX_INTERPOLATION_ROUNDS = 8;
+    private static final Pattern PROPERTY_PATTERN = Pattern.compile("\\$\\{([^}]+)\\}");
+
+    /**
+     * @param modules
+     *            the output of {@link #modules(Path)}
+     * @param changedPaths
+     *            paths relative to the root directory of the source tree, using {@code /} as separator
+     * @return the {@code groupId:artifactId} of the innermost modules containing any of the given
+     *         {@code changedPaths}
+     */
+    static Set<String> changedModules(Map<String, String> modules, Collection<String> changedPaths) {
+        final Set<String> result = new TreeSet<>();
+        for (String path : changedPaths) {
+            String dir = path;
+            while (true) {
+                final int slash = dir.lastIndexOf('/');
+                dir = slash < 0 ? "" : dir.substring(0, slash);
+                final String module = modules.get(dir);
+                if (module != null) {
+                    result.add(module);
+                    break;
+                } else if (dir.isEmpty()) {
+                    break;
+                }
+            }
+        }
+        return result;
+    }
+
+    private static List<Element> children(Element parent, String name) {
+        if (parent == null) {
+            return Collections.emptyList();
+        }
+        final List<Element> result = new ArrayList<>();
+        for (Node n = parent.getFirstChild(); n != null; n = n.getNextSibling()) {
+            if (n.getNodeType() == Node.ELEMENT_NODE && name.equals(n.getNodeName())) {
+                result.add((Element) n);
+            }
+        }
+        return result;
+    }
+
+    private static Element child(Element parent, String name) {
+        final List<Element> children = children(parent, name);
+        return children.isEmpty() ? null : children.get(0);
+    }
+
+    static String interpolate(String value, Map<String, String> properties) {
+        if (value == null) {
+            return null;
+        }
+        String result = value;
+        for (int i = 0; i < MAX_INTERPOLATION_ROUNDS && result.indexOf("${") >= 0; i++) {
+            final Matcher m = PROPERTY_PATTERN.matcher(result);
+            final StringBuffer sb = new StringBuffer();
+            boolean replaced = false;
+            while (m.find()) {
+                final String replacement = properties.get(m.group(1));
+                if (replacement != null) {
+                    replaced = true;
+                    m.appendReplacement(sb, Matcher.quoteReplacement(replacement));
+                } else {
+                    m.appendReplacement(sb, Matcher.quoteReplacement(m.group()));
+                }
+            }
+            m.appendTail(sb);
+            result = sb.toString();
+            if (!replaced) {
+                break;
+            }
+        }
+        return result.indexOf("${") >= 0 ? null : result;
+    }
+
+    private static String text(Element parent, String name) {
+        final Element e = child(parent, name);
+        if (e == null) {
+            return null;
+        }
+        final String result = e.getTextContent();
+        return result == null ? null : result.trim();
+    }
+
+    private final DocumentBuilder documentBuilder;
+
+    SourceTreeScanner() {
+        super();
+        try {
+            final DocumentBuilderFactory factory = DocumentBuilderFactory.newInstance();
+            factory.setNamespaceAware(false);
+            /* The pom.xml files come from arbitrary remote repositories; no DTDs or external entities */
+            factory.setFeature(XMLConstants.FEATURE_SECURE_PROCESSING, true);
+            factory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+            factory.setFeature("http://xml.org/sax/features/external-general-entities", false);
+            factory.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+            factory.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+            factory.setXIncludeAware(false);
+            factory.setExpandEntityReferences(false);
+            this.documentBuilder = factory.newDocumentBuilder();
+            /* Fatal errors are thrown and reported by scan(); the default handler would also print them to stderr */
+            documentBuilder.setErrorHandler(new DefaultHandler());
+        } catch (ParserConfigurationException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void collectDependencies(Element container, Map<String, String> properties, Map<String, String> managed,
+            List<Dependency> result) {
+        final Element deps = child(container, "dependencies");
+        for (Element dep : children(deps, "dependency")) {
+            final String groupId = interpolate(text(dep, "groupId"), properties);
+            final String artifactId = interpolate(text(dep, "artifactId"), properties);
+            final String version = text(dep, "version") == null ? managed.get(groupId + ":" + artifactId)
+                    : interpolate(text(dep, "version"), properties);
+            if (version == null || version.isEmpty()) {
+                continue;
+            }
+            final Dependency d = new Dependency();
+            d.setGroupId(groupId);
+            d.setArtifactId(artifactId);
+            d.setVersion(version);
+            final String type = text(dep, "type");
+            if (type != null) {
+                d.setType(type);
+            }
+            d.setClassifier(text(dep, "classifier"));
+            if (d.getGroupId() != null && d.getArtifactId() != null) {
+                result.add(d);
+            }
+        }
+    }
+
+    /**
+     * Finds all modules of the Maven source tree rooted in the given {@code rootDirectory}, including the ones
+     * declared in profiles.
+     *
+     * @param rootDirectory
+     *            the directory containing the root {@code pom.xml}
+     * @return the directories of the modules relative to {@code rootDirectory} (using {@code /} as separator and
+     *         {@code ""} for the root module) mapped to their {@code groupId:artifactId}
+     * @throws IOException
+     *             on read or parse errors
+     */
+    public Map<String, String> modules(Path rootDirectory) throws IOException {
+        final Map<String, String> result = new LinkedHashMap<>();
+        final Path root = rootDirectory.toAbsolutePath().normalize();
+        visit(root.resolve("pom.xml"), Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(),
+                ProfileActivation.ALL, new HashSet<>(), new ArrayList<>(), root, result);
+        return result;
+    }
+
+    /**
+     * Scans the Maven source tree rooted in the given {@code rootDirectory}.
+     *
+     * @param rootDirectory
+     *            the directory containing the root {@code pom.xml}
+     * @param buildArgs
+     *            the arguments of the build of the source tree, used to decide which profiles are active
+     * @return the dependencies declared in all visited {@code pom.xml} files and in their active profiles
+     * @throws IOException
+     *             on read or parse errors
+     */
+    public List<Dependency> scan(Path rootDirectory, List<String> buildArgs) throws IOException {
+        final List<Dependency> result = new ArrayList<>();
+        final Path root = rootDirectory.toAbsolutePath().normalize();
+        visit(root.resolve("pom.xml"), Collections.<String, String>emptyMap(), Collections.<String, String>emptyMap(),
+                ProfileActivation.ofArgs(buildArgs), new HashSet<>(), result, root, new HashMap<>());
+        return result;
+    }
+
+    private void visit(Path pomXml, Map<String, String> inheritedProperties, Map<String, String> inheritedManaged,
+            ProfileActivation profileActivation, Set<Path> visited, List<Dependency> result, Path rootDirectory,
+            Map<String, String> modulesResult) throws IOException {
+        final Path normalized = pomXml.toAbsolutePath().normalize();
+        if (!visited.add(normalized) || !Files.isRegularFile(normalized)) {
+            return;
+        }
+        final Document doc;
+        try (InputStream in = Files.newInputStream(normalized)) {
+            doc = documentBuilder.parse(in);
+        } catch (SAXException e) {
+            throw new IOException("Could not parse " + normalized, e);
+        }
+        final Element project = doc.getDocumentElement();
+
+        final Map<String, String> props = new HashMap<>(inheritedProperties);
+        final Element parent = child(project, "parent");
+        final String groupId = text(project, "groupId") != null ? text(project, "groupId") : text(parent, "groupId");
+        final String version = text(project, "version") != null ? text(project, "version") : text(parent, "version");
+        if (parent != null) {
+            props.put("project.parent.version", text(parent, "version"));
+        }
+        if (groupId != null) {
+            props.put("project.groupId", groupId);
+        }
+        if (version != null) {
+            props.put("project.version", version);
+            props.put("version", version);
+        }
+        final String artifactId = text(project, "artifactId");
+        if (groupId != null && artifactId != null) {
+            modulesResult.put(rootDirectory.relativize(normalized.getParent()).toString().replace('\\', '/'),
+                    groupId + ":" + artifactId);
+        }
+        for (Element properties : children(project, "properties")) {
+            for (Node n = properties.getFirstChild(); n != null; n = n.getNextSibling()) {
+                if (n.getNodeType() == Node.ELEMENT_NODE) {
+                    props.put(n.getNodeName(), n.getTextContent().trim());
+                }
+            }
+        }
+
+        final Path dir = normalized.getParent();
+        final List<Element> containers = new ArrayList<>();
+        containers.add(project);
+        containers.addAll(profileActivation.filter(children(child(project, "profiles"), "profile"), dir));
+
+        final Map<String, String> managed = new HashMap<>(inheritedManaged);
+        for (Element container : containers) {
+            final Element dependencyManagement = child(container, "dependencyManagement");
+            for (Element dep : children(child(dependencyManagement, "dependencies"), "dependency")) {
+                final String managedVersion = interpolate(text(dep, "version"), props);
+                if (managedVersion != null) {
+                    managed.put(interpolate(text(dep, "groupId"), props) + ":"
+                            + interpolate(text(dep, "artifactId"), props), managedVersion);
+                }
+            }
+        }
+
+        final List<String> modules = new ArrayList<>();
+        for (Element container : containers) {
+            collectDependencies(container, props, managed, result);
+            for (Element m : children(child(container, "modules"), "module")) {
+                modules.add(m.getTextContent().trim());
+            }
+        }
+        for (String module : modules) {
+            final Path modulePath = dir.resolve(module);
+            visit(module.endsWith(".xml") ? modulePath : modulePath.resolve("pom.xml"), props, managed,
+                    profileActivation, visited, result, rootDirectory, modulesResult);
+        }
+    }
+
+}
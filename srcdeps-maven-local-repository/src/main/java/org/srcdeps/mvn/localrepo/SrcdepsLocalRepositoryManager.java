@@ -17,22 +17,44 @@
 package org.srcdeps.mvn.localrepo;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.net.URI;
+import java.nio.ByteBuffer;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
+import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Predicate;
 import java.util.function.Supplier;
 
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.model.Dependency;
 import org.eclipse.aether.RepositorySystemSession;
 import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactTypeRegistry;
 import org.eclipse.aether.metadata.Metadata;
 import org.eclipse.aether.repository.LocalArtifactRegistration;
 import org.eclipse.aether.repository.LocalArtifactRequest;
@@ -70,8 +92,11 @@ import org.srcdeps.core.fs.PathLock;
 import org.srcdeps.core.fs.PathLocker;
 import org.srcdeps.core.fs.PersistentBuildMetadataStore;
 import org.srcdeps.core.shell.LineConsumer;
-import org.srcdeps.core.util.SrcdepsCoreUtils;
 import org.srcdeps.mvn.config.ConfigurationProducer;
+import org.srcdeps.mvn.localrepo.BuildReport.Outcome;
+import org.srcdeps.mvn.localrepo.BuildReport.Phase;
+import org.srcdeps.mvn.localrepo.FlightRecorderEvents.Span;
+import org.srcdeps.mvn.localrepo.FlightRecorderEvents.Type;
 
 /**
  * A {@link LocalRepositoryManager} able to build the requested artifacts from their sources.
@@ -79,6 +104,8 @@ import org.srcdeps.mvn.config.ConfigurationProducer;
  * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
  */
 public class SrcdepsLocalRepositoryManager implements LocalRepositoryManager {
+    /** Replaces the paths specific to the current local Maven repository in the build cache keys */
+    private static final String BUILD_CACHE_PLACEHOLDER = "srcdeps-build-cache";
     private static final Logger log = LoggerFactory.getLogger(SrcdepsLocalRepositoryManager.class);
 
     private static List<String> enhanceBuildArguments(String scmRepoId, List<String> buildArguments, String localRepo) {
@@ -110,30 +137,118 @@ public class SrcdepsLocalRepositoryManager implements LocalRepositoryManager {
         return LineConsumer.rotate(logFilePath, 4);
     }
 
+    /** Paused for the duration of the in-process builds */
+    private final BackgroundWork backgroundWork = new BackgroundWork();
+    private final BuildCache buildCache;
     private final BuildDirectoriesManager buildDirectoriesManager;
-    private final BuildMetadataStore buildMetadataStore;
+    private final PersistentBuildMetadataStore buildMetadataStore;
+    private volatile CompletableFuture<Void> buildPlan = CompletableFuture.completedFuture(null);
+    private final BuildScheduler buildScheduler;
     private final BuildService buildService;
+    private final ChromeTrace chromeTrace;
     private final Configuration configuration;
     private final ConfigurationProducer configurationProducer;
-    private final ConfigurationQueryService configurationQueryService;
     private final LocalRepositoryManager delegate;
+    /** Computed lazily by {@link #dependentProjectFingerprint()} */
+    private volatile String dependentProjectFingerprint;
     private final FetchLog fetchLog;
+    private final FetchStamps fetchStamps;
+    private final FlightRecorderEvents flightRecorderEvents;
+    private final ForkJoinPool hashPool;
+    private final ImmutableArtifactIndex immutableArtifactIndex;
+    private final InProcessMavenBuilder inProcessMavenBuilder;
+    /** The reason why {@link #inProcessMavenBuilder} is {@code null} */
+    private final String inProcessUnavailable;
+    private final LocalBuildMetadataStore localBuildMetadataStore;
+    private final Path localRepositoryPath;
+    /** Created lazily by {@link #moduleTimingSpyJar()} */
+    private Path moduleTimingSpyJar;
+    private final SrcdepsRepositoryManagerOptions options;
+    private final ThreadFactory outputThreadFactory = new DaemonThreadFactory("srcdeps-output");
+    private final Set<CompletableFuture<?>> pendingStores = ConcurrentHashMap.newKeySet();
+    /** The nodes of {@link #sourceDependencyGraph} */
+    private volatile Map<BuildKey, SourceDependency> plannedDependencies = Collections.emptyMap();
+    private final ExecutorService planner;
+    private final CheckoutPrefetcher prefetcher;
+    private final RemoteBuildCache remoteBuildCache;
+    private final Set<BuildKey> rebuilt = ConcurrentHashMap.newKeySet();
+    private final BuildReport report = new BuildReport();
+    private final ScmRepositoryFinder scmRepositoryFinder;
     private final ScmService scmService;
     private final Path scrdepsDir;
+    private final ShallowGitCheckout shallowGitCheckout;
+    private volatile SourceDependencyGraph sourceDependencyGraph = new SourceDependencyGraph();
+    private final SourceTreeCache sourceTreeCache;
+    /** Adds the checksums to the stamps and stores to {@link #buildCache} and {@link #remoteBuildCache} */
+    private final ExecutorService storeExecutor;
+    private final Trash trash;
 
     public SrcdepsLocalRepositoryManager(LocalRepositoryManager delegate, BuildService buildService,
-            ScmService scmService, PathLocker<SrcVersion> pathLocker, ConfigurationProducer configurationProducer) {
+            ScmService scmService, PathLocker<SrcVersion> pathLocker, ConfigurationProducer configurationProducer,
+            SrcdepsRepositoryManagerOptions options) {
         super();
         this.delegate = delegate;
+        this.options = options;
         this.buildService = buildService;
         this.scmService = scmService;
-        this.scrdepsDir = delegate.getRepository().getBasedir().toPath().getParent().resolve("srcdeps");
+        this.localRepositoryPath = delegate.getRepository().getBasedir().toPath();
+        this.scrdepsDir = localRepositoryPath.getParent().resolve("srcdeps");
         this.buildMetadataStore = new PersistentBuildMetadataStore(scrdepsDir.resolve("build-metadata"));
+        this.hashPool = new ForkJoinPool(options.getHashParallelism());
+        final ArtifactHasher hasher = new ArtifactHasher(hashPool);
+        final DirectoryBuildMetadataStore directoryStore = new DirectoryBuildMetadataStore(
+                scrdepsDir.resolve("build-stamps"), buildMetadataStore, hasher);
+        this.localBuildMetadataStore = options.isMetadataLog()
+                ? new LogBuildMetadataStore(scrdepsDir.resolve("build-metadata-log"), directoryStore,
+                        buildMetadataStore::createBuildRequestIdPath, hasher)
+                : directoryStore;
         this.buildDirectoriesManager = new BuildDirectoriesManager(scrdepsDir, pathLocker);
+        final Path cacheDirectory = options.getCacheDirectory();
+        this.buildCache = cacheDirectory == null ? null : new BuildCache(cacheDirectory, options.isCacheLink());
+        final URI remoteCacheUri = options.getRemoteCacheUri();
+        this.remoteBuildCache = remoteCacheUri == null ? null
+                : new RemoteBuildCache(remoteCacheUri, options.getRemoteCacheTimeoutMs(),
+                        options.isRemoteCacheUpload());
+        this.shallowGitCheckout = new ShallowGitCheckout(Collections.singletonList("git"),
+                scrdepsDir.resolve("git-mirrors"), options.getCheckoutTimeoutMs());
+        this.trash = new Trash(scrdepsDir.resolve("trash"), backgroundWork);
+        this.flightRecorderEvents = FlightRecorderEvents.create(options.isJfr());
+        final Path mavenHome = options.getMavenHome();
         this.configurationProducer = configurationProducer;
+        /* See the javadoc of InProcessMavenBuilder for why it cannot run concurrently with other threads */
+        if (mavenHome == null) {
+            this.inProcessUnavailable = "the Maven home of the outer build is unknown";
+        } else if (!options.isBuildInProcessAnywhere()) {
+            /* Otherwise getBuildParallelism() is 1 */
+            this.inProcessUnavailable = SrcdepsRepositoryManagerOptions.PREFIX
+                    + SrcdepsRepositoryManagerOptions.BUILD_IN_PROCESS + " is not enabled";
+        } else if (InProcessMavenBuilder.isMultiThreaded(InProcessMavenBuilder.outerBuildArguments(
+                configurationProducer.getMultimoduleProjectRootDirectory(), System.getProperties(),
+                System.getenv("MAVEN_ARGS")))) {
+            this.inProcessUnavailable = "the outer build is multi-threaded";
+        } else {
+            this.inProcessUnavailable = null;
+        }
+        this.inProcessMavenBuilder = inProcessUnavailable == null ? new InProcessMavenBuilder(mavenHome) : null;
+        this.chromeTrace = ChromeTrace
+                .create(options.getTraceFile(configurationProducer.getMultimoduleProjectRootDirectory()) != null);
         this.fetchLog = new FetchLog();
+        this.fetchStamps = new FetchStamps(scrdepsDir.resolve("fetch-stamps"));
         this.configuration = configurationProducer.getConfiguration();
-        this.configurationQueryService = new ConfigurationQueryService(this.configuration);
+        try {
+            this.sourceTreeCache = new SourceTreeCache(scrdepsDir.resolve("source-trees"), SourceTreeCache
+                    .configurationFingerprint(configurationProducer.getMultimoduleProjectRootDirectory(),
+                            System.getProperties()));
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        this.scmRepositoryFinder = new ScmRepositoryFinder(new ConfigurationQueryService(this.configuration),
+                this.configuration.getRepositories());
+        this.prefetcher = new CheckoutPrefetcher(options.getPrefetchThreads(), backgroundWork);
+        this.buildScheduler = new BuildScheduler(options.getBuildParallelism());
+        this.planner = Executors.newSingleThreadExecutor(new DaemonThreadFactory("srcdeps-planner"));
+        this.storeExecutor = Executors.newSingleThreadExecutor(new DaemonThreadFactory("srcdeps-cache-store"));
+        this.immutableArtifactIndex = options.isImmutableIndex() ? openImmutableArtifactIndex() : null;
     }
 
     /**
@@ -158,6 +273,132 @@ public class SrcdepsLocalRepositoryManager implements LocalRepositoryManager {
         delegate.add(session, request);
     }
 
+    /**
+     * @param scmRepoId
+     *            the ID of the SCM repository being built
+     * @param delegate
+     *            the {@link LineConsumer} to write the build output to
+     * @return an {@link AsyncLineConsumer} wrapping the given {@code delegate} or the {@code delegate} itself if the
+     *         output of the given SCM repository should be written synchronously
+     */
+    private LineConsumer asyncOutput(String scmRepoId, LineConsumer delegate) {
+        final int capacity = options.getBuildOutputBuffer(scmRepoId);
+        return capacity == 0 ? delegate
+                : new AsyncLineConsumer(delegate, capacity, options.getBuildOutputOverflow(scmRepoId),
+                        outputThreadFactory);
+    }
+
+    /**
+     * Builds the given {@link BuildRequest} either in-process via {@link #inProcessMavenBuilder} if so configured for
+     * the given SCM repository and if the source tree is eligible or in a forked process via {@link #buildService}
+     * otherwise.
+     *
+     * @param buildRequest
+     *            the {@link BuildRequest} to build
+     * @throws BuildException
+     *             if the build fails
+     */
+    private void build(BuildRequest buildRequest) throws BuildException {
+        final String scmRepoId = buildRequest.getScmRepositoryId();
+        final SrcVersion srcVersion = buildRequest.getSrcVersion();
+        try (Span span = flightRecorderEvents.begin(Type.build, scmRepoId, srcVersion, null);
+                ChromeTrace.Span traceSpan = chromeTrace.begin("build", scmRepoId).arg("srcVersion", srcVersion)) {
+            build(scmRepoId, buildRequest);
+        }
+    }
+
+    /**
+     * Builds the given SCM repository with the given {@code buildArgs}, capturing the {@link ModuleTimings} of the
+     * nested build in the given {@code record} if so configured and if the source tree is a Maven source tree.
+     */
+    private void build(ScmRepository scmRepo, SrcVersion srcVersion, String version, Path projectBuildDir,
+            List<String> buildArgs, Set<Ga> buildIncludes, BuildReport.Record record) throws BuildException {
+        final String scmRepoId = scmRepo.getId();
+        Path timingsFile = null;
+        List<String> args = buildArgs;
+        if (options.isBuildTimings(scmRepoId) && Files.exists(projectBuildDir.resolve("pom.xml"))) {
+            try {
+                final Path spyJar = moduleTimingSpyJar();
+                timingsFile = projectBuildDir.getParent().resolve(projectBuildDir.getFileName() + "-timings.txt");
+                Files.deleteIfExists(timingsFile);
+                args = ModuleTimings.buildArguments(buildArgs, spyJar, timingsFile);
+            } catch (IOException e) {
+                log.warn("srcdeps[" + scmRepoId + "]: Could not set up the capturing of module timings", e);
+                timingsFile = null;
+            }
+        }
+        try {
+            build(createBuildRequest(scmRepo, srcVersion, version, projectBuildDir, args, buildIncludes));
+        } finally {
+            if (timingsFile != null && Files.exists(timingsFile)) {
+                try {
+                    record.setModuleTimings(ModuleTimings.read(timingsFile));
+                } catch (IOException | RuntimeException e) {
+                    log.warn("srcdeps[" + scmRepoId + "]: Could not read the module timings from [" + timingsFile
+                            + "]", e);
+                }
+            }
+        }
+    }
+
+    private void build(String scmRepoId, BuildRequest buildRequest) throws BuildException {
+        if (options.isBuildInProcess(scmRepoId)) {
+            if (inProcessMavenBuilder == null) {
+                log.warn("srcdeps[{}]: Forking the build because {}", scmRepoId, inProcessUnavailable);
+            } else if (inProcessMavenBuilder.canBuild(buildRequest.getProjectRootDirectory())) {
+                pauseBackgroundWork();
+                try {
+                    inProcessMavenBuilder.build(buildRequest);
+                } finally {
+                    backgroundWork.resume();
+                }
+                return;
+            } else {
+                log.info(
+                        "srcdeps[{}]: Forking the build because [{}] is not a Maven source tree or it requires its own Maven version via [{}]",
+                        scmRepoId, buildRequest.getProjectRootDirectory(), InProcessMavenBuilder.WRAPPER_PROPERTIES);
+            }
+        }
+        buildService.build(buildRequest);
+    }
+
+    /**
+     * @return the hash of a {@link BuildRequest} equivalent to the one created by
+     *         {@link #buildScmRepository(Artifact, ScmRepository, SrcVersion, FetchId, RepositorySystemSession, LocalArtifactRequest)}
+     *         but having the paths specific to the current local Maven repository replaced by a placeholder, so that
+     *         the key is the same for all local Maven repositories sharing the {@link #buildCache} or the
+     *         {@link #remoteBuildCache}; the commit IDs of the upstream source dependencies of the given {@code key}
+     *         are folded in, because the cached binaries were built against them. {@code null} if the commit ID of
+     *         some upstream is not known in the current session, in which case the caches must not be used at all
+     */
+    private String buildCacheKey(BuildKey key, ScmRepository scmRepo, SrcVersion srcVersion, String version,
+            Set<Ga> buildIncludes) {
+        final List<String> buildArgs = enhanceBuildArguments(scmRepo.getId(), scmRepo.getBuildArguments(),
+                BUILD_CACHE_PLACEHOLDER);
+        final String requestHash = createBuildRequest(scmRepo, srcVersion, version,
+                Paths.get(BUILD_CACHE_PLACEHOLDER), buildArgs, buildIncludes).getHash();
+        final Set<BuildKey> upstreams = sourceDependencyGraph.getUpstreams(key);
+        if (upstreams.isEmpty()) {
+            return requestHash;
+        }
+        final SortedSet<String> upstreamCommits = new TreeSet<>();
+        for (BuildKey upstream : upstreams) {
+            final String commitId = report.findCommitId(upstream);
+            if (commitId == null) {
+                log.debug("srcdeps[{}]: Not using the build cache for [{}] because the commit of its upstream [{}] is"
+                        + " not known", scmRepo.getId(), srcVersion, upstream);
+                return null;
+            }
+            upstreamCommits.add(upstream + "=" + commitId);
+        }
+        final HashAlgorithm.Digester digester = HashAlgorithm.sha1.newDigester();
+        digester.update(ByteBuffer.wrap(requestHash.getBytes(StandardCharsets.UTF_8)));
+        for (String upstreamCommit : upstreamCommits) {
+            digester.update(ByteBuffer.wrap(("\n" + upstreamCommit).getBytes(StandardCharsets.UTF_8)));
+        }
+        return ArtifactHasher.toHex(digester.digest());
+    }
+
     private LocalArtifactResult buildDependency(Artifact artifact, ScmRepository scmRepo, LocalArtifactResult result,
             SrcVersion srcVersion, RepositorySystemSession session, LocalArtifactRequest request) {
         final FetchId fetchId = new FetchId(scmRepo.getId(), scmRepo.getUrls());
@@ -165,13 +406,81 @@ public class SrcdepsLocalRepositoryManager implements LocalRepositoryManager {
             log.debug(
                     "srcdeps[{}]: SCM repository [{}] has been marked as built and up-to-date in this JVM. The artifact [{}] must be there in the local maven repository",
                     scmRepo.getId(), fetchId, artifact);
+            report.skip(scmRepo.getId(), "built in this session");
+            return result;
+        }
+
+        final String scmRepoId = scmRepo.getId();
+
+        /* Let the builds planned by prefetch() get scheduled first */
+        try {
+            buildPlan.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return result;
+        } catch (ExecutionException e) {
+            log.warn("srcdeps: Could not plan the builds of source dependencies", e.getCause());
+        }
+
+        /*
+         * Builds of distinct SCM repositories run in parallel; the callers asking for a build that was scheduled
+         * already just wait for it to finish
+         */
+        final AtomicBoolean triggered = new AtomicBoolean();
+        final BuildKey key = new BuildKey(scmRepoId, srcVersion);
+        final CompletableFuture<Void> build = buildScheduler.schedule(key, scheduleUpstreams(key, session), () -> {
+            triggered.set(true);
+            try {
+                buildScmRepository(artifact, scmRepo, srcVersion, fetchId, session, request);
+            } catch (BuildException | IOException | RuntimeException e) {
+                report.record(key).setOutcome(Outcome.failed, e.getMessage());
+                throw e;
+            }
+        });
+        try {
+            build.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return result;
+        } catch (ExecutionException e) {
+            if (triggered.get()) {
+                log.error("srcdeps[" + scmRepoId + "]: Could not build request [" + request + "]", e.getCause());
+            } else {
+                log.debug("srcdeps[{}]: The build of [{}] triggered by another lookup failed", scmRepoId, srcVersion);
+            }
             return result;
         }
 
+        /* check once again if the delegate sees the built artifact */
+        final LocalArtifactResult newResult = delegate.find(session, request);
+        if (triggered.get() && !newResult.isAvailable()) {
+            throw new RuntimeException(String.format(
+                    "srcdeps: Build succeeded but the artifact [%s] is still not available in the local repository",
+                    artifact));
+        }
+        if (newResult.isAvailable() && srcVersion.isImmutable()) {
+            index(artifact, newResult);
+        }
+        return newResult;
+    }
+
+    /**
+     * Checks out, builds and installs the given {@code scmRepo} at the given {@code srcVersion} unless the artifacts
+     * installed in the local Maven repository are up to date already. Run by {@link #buildScheduler}.
+     */
+    private void buildScmRepository(Artifact artifact, ScmRepository scmRepo, SrcVersion srcVersion, FetchId fetchId,
+            RepositorySystemSession session, LocalArtifactRequest request) throws BuildException, IOException {
         final String scmRepoId = scmRepo.getId();
+        final BuildKey key = new BuildKey(scmRepoId, srcVersion);
+        final BuildReport.Record record = report.record(key);
+        record.mark();
 
-        try (PathLock projectBuildDir = buildDirectoriesManager.openBuildDirectory(scmRepo.getId(),
-                scmRepo.getIdAsPath(), srcVersion)) {
+        /* Wait for the checkout possibly started by prefetch() before we try to lock the build directory */
+        final CheckoutPrefetcher.Checkout prefetched = prefetcher.await(key);
+        record.lap(Phase.prefetch);
+
+        try (PathLock projectBuildDir = openBuildDirectory(scmRepo, srcVersion)) {
+            record.lap(Phase.lock);
 
             /* query the delegate again, because things may have changed since we requested the lock */
             final LocalArtifactResult result2 = delegate.find(session, request);
@@ -180,136 +489,279 @@ public class SrcdepsLocalRepositoryManager implements LocalRepositoryManager {
                 log.debug(
                         "srcdeps[{}]: SCM repository [{}] has been marked as built and up-to-date in this JVM. The artifact [{}] must be there in the local maven repository",
                         scmRepo.getId(), fetchId, artifact);
-                return result2;
-            } else {
-                /* The repo has not been fetched in the current JVM yet */
+                report.skip(scmRepoId, "built in this session");
+                return;
+            }
 
-                List<String> buildArgs = enhanceBuildArguments(scmRepoId, scmRepo.getBuildArguments(),
-                        delegate.getRepository().getBasedir().getAbsolutePath());
-                final ScmRepositoryMaven maven = scmRepo.getMaven();
+            /* The repo has not been fetched in the current JVM yet */
+            List<String> buildArgs = enhanceBuildArguments(scmRepoId, scmRepo.getBuildArguments(),
+                    delegate.getRepository().getBasedir().getAbsolutePath());
+            final ScmRepositoryMaven maven = scmRepo.getMaven();
 
-                final Predicate<Profile> isProfileActive = ActiveProfiles.ofArgs(buildArgs);
-                if (!maven.getIncludes().isEmpty()) {
-                    log.info("srcdeps[{}]: Initial includes defined by user: {}", scmRepoId, maven.getIncludes());
-                }
-                final Set<Ga> buildIncludes = collectBuildIncludes(scmRepoId,
-                        configurationProducer.getMultimoduleProjectRootDirectory(), scmRepo.getEncoding(),
-                        scmRepo.getGavSet(), maven.isIncludeRequired(), maven.getIncludes(), isProfileActive);
-                final Supplier<LineConsumer> output;
-                if (scmRepo.isLogToFile() && scmRepo.isLogToConsole()) {
-                    output = () -> LineConsumer.tee(loggerLineConsumer(scmRepoId), rotate(projectBuildDir.getPath()));
-                } else if (scmRepo.isLogToFile()) {
-                    output = () -> rotate(projectBuildDir.getPath());
-                } else if (scmRepo.isLogToConsole()) {
-                    output = () -> loggerLineConsumer(scmRepoId);
-                } else {
-                    output = () -> LineConsumer.dummy();
-                }
+            final Predicate<Profile> isProfileActive = ActiveProfiles.ofArgs(buildArgs);
+            if (!maven.getIncludes().isEmpty()) {
+                log.info("srcdeps[{}]: Initial includes defined by user: {}", scmRepoId, maven.getIncludes());
+            }
+            final Set<Ga> buildIncludes = collectBuildIncludes(scmRepoId,
+                    configurationProducer.getMultimoduleProjectRootDirectory(), scmRepo.getEncoding(),
+                    scmRepo.getGavSet(), maven.isIncludeRequired(), maven.getIncludes(), buildArgs);
+            final BuildRequest buildRequest = createBuildRequest(scmRepo, srcVersion, version,
+                    projectBuildDir.getPath(), buildArgs, buildIncludes);
+            record.lap(Phase.includes);
 
-                BuildRequest buildRequest = BuildRequest.builder() //
-                        .scmRepositoryId(scmRepo.getId()) //
-                        .encoding(scmRepo.getEncoding()) //
-                        .dependentProjectRootDirectory(configurationProducer.getMultimoduleProjectRootDirectory()) //
-                        .projectRootDirectory(projectBuildDir.getPath()) //
-                        .scmUrls(scmRepo.getUrls()) //
-                        .srcVersion(srcVersion) //
-                        .version(version) //
-                        .buildArguments(buildArgs) //
-                        .timeoutMs(scmRepo.getBuildTimeout().toMilliseconds()) //
-                        .skipTests(scmRepo.isSkipTests()) //
-                        .forwardPropertyNames(configuration.getForwardProperties()) //
-                        .forwardPropertyValues(configuration.getForwardPropertyValues()) //
-                        .addDefaultBuildArguments(scmRepo.isAddDefaultBuildArguments()) //
-                        .verbosity(scmRepo.getVerbosity()) //
-                        .output(output) //
-                        .versionsMavenPluginVersion(maven.getVersionsMavenPluginVersion()) //
-                        .useVersionsMavenPlugin(maven.isUseVersionsMavenPlugin()).buildIncludes(buildIncludes)
-                        .excludeNonRequired(maven.isExcludeNonRequired())
-                        .gradleModelTransformer(scmRepo.getGradle().getModelTransformer()) //
-                        .build();
-
-                final String buildRequestHash = buildRequest.getHash();
-                final String sourceTreeCommitId = scmService.checkout(buildRequest);
-                log.info("srcdeps[{}]: Mapped artifact [{}] to revision [{}] via [{}]", scmRepoId, artifact,
-                        sourceTreeCommitId, srcVersion);
+            final String buildRequestHash = buildRequest.getHash();
+            final String pastCommitId;
+            try (Span span = flightRecorderEvents.begin(Type.metadata, scmRepoId, srcVersion, artifact)) {
+                pastCommitId = localBuildMetadataStore.retrieveCommitId(scmRepoId, buildRequestHash);
+            }
+            final Path localMavenRepoPath = delegate.getRepository().getBasedir().toPath();
+            final GavSet gavSet = scmRepo.getGavSet();
+            final GavSetWalker gavSetWalker = new GavSetWalker(localMavenRepoPath, gavSet, version);
+
+            final boolean isPrefetched = prefetched != null && prefetched.isReusableIn(projectBuildDir.getPath());
+            final String remoteHead;
+            if (isPrefetched) {
+                remoteHead = prefetched.isCheckedOut() ? null : prefetched.getCommitId();
+            } else {
+                remoteHead = remoteHead(buildRequest);
+            }
+            record.lap(Phase.checkout);
+            if (remoteHead != null && remoteHead.equals(pastCommitId) && result2.isAvailable()
+                    && !isAnyUpstreamRebuilt(key) && !isAnyArtifactChanged(scmRepoId, buildRequestHash, gavSetWalker)) {
+                /* No need to fetch and check out what we have built already */
+                log.info(
+                        "srcdeps[{}]: The remote head [{}] of [{}] has not changed since we built it in the past and the artifact in the local Maven repo is intact: [{}]",
+                        scmRepoId, remoteHead, srcVersion, artifact);
+                record.setCommitId(remoteHead);
+                record.lap(Phase.verify);
+                record.setOutcome(Outcome.upToDate, "remote head unchanged");
                 fetchLog.add(fetchId);
+                return;
+            }
 
-                final String pastCommitId = buildMetadataStore.retrieveCommitId(scmRepoId, buildRequestHash);
-                final Path localMavenRepoPath = delegate.getRepository().getBasedir().toPath();
-                final GavSet gavSet = scmRepo.getGavSet();
-                final GavSetWalker gavSetWalker = new GavSetWalker(localMavenRepoPath, gavSet, version);
-                if (result2.isAvailable() && sourceTreeCommitId.equals(pastCommitId)) {
-
-                    BuildMetadataStore.CheckSha1Consumer checkSha1Consumer = buildMetadataStore
-                            .createCheckSha1Checker(scmRepoId, buildRequestHash);
-                    gavSetWalker.walk(checkSha1Consumer);
-                    if (!checkSha1Consumer.isAnyArtifactChanged()) {
-                        /*
-                         * The artifact installed in the local Maven repo is the same as we built in the past hence
-                         * there is no need to rebuild it
-                         */
-                        log.info(
-                                "srcdeps[{}]: The artifact in the local Maven repo has not changed since we built it in the past: [{}]",
-                                scmRepoId, artifact);
-                        return result2;
+            final String sourceTreeCommitId = isPrefetched && prefetched.isCheckedOut() ? prefetched.getCommitId()
+                    : checkout(buildRequest);
+            record.setCommitId(sourceTreeCommitId);
+            record.lap(Phase.checkout);
+            log.info("srcdeps[{}]: Mapped artifact [{}] to revision [{}] via [{}]", scmRepoId, artifact,
+                    sourceTreeCommitId, srcVersion);
+            fetchLog.add(fetchId);
+
+            final String rebuildReason;
+            if (!result2.isAvailable()) {
+                rebuildReason = "artifact not installed";
+            } else if (!sourceTreeCommitId.equals(pastCommitId)) {
+                rebuildReason = pastCommitId == null ? "no past build" : "new revision";
+            } else if (isAnyUpstreamRebuilt(key)) {
+                rebuildReason = "upstream rebuilt";
+            } else if (isAnyArtifactChanged(scmRepoId, buildRequestHash, gavSetWalker)) {
+                rebuildReason = "installed artifacts changed";
+            } else {
+                /*
+                 * The artifact installed in the local Maven repo is the same as we built in the past hence there is no
+                 * need to rebuild it
+                 */
+                log.info(
+                        "srcdeps[{}]: The artifact in the local Maven repo has not changed since we built it in the past: [{}]",
+                        scmRepoId, artifact);
+                record.lap(Phase.verify);
+                record.setOutcome(Outcome.upToDate, null);
+                return;
+            }
+
+            /* We need to rebuild from sources for whatever reason */
+            log.debug("srcdeps[{}]: A rebuild of [{}] was triggered by [{}] lookup", scmRepoId, fetchId, artifact);
+
+            /* Rebuild only what has changed since the past build if the user wants and if the past build is intact */
+            final List<String> incrementalBuildArgs = options.isBuildIncremental(scmRepoId) && pastCommitId != null
+                    && buildIncludes.isEmpty() && result2.isAvailable() && !isAnyUpstreamRebuilt(key)
+                    && !isAnyArtifactChanged(scmRepoId, buildRequestHash, gavSetWalker)
+                            ? incrementalBuildArguments(scmRepoId, projectBuildDir.getPath(), pastCommitId,
+                                    sourceTreeCommitId, buildArgs)
+                            : null;
+            record.lap(Phase.verify);
+
+            final String cacheKey = buildCache == null && remoteBuildCache == null ? null
+                    : buildCacheKey(key, scmRepo, srcVersion, version, buildIncludes);
+            boolean restored = false;
+            if (incrementalBuildArgs == null && options.isBuildStaged(scmRepoId)
+                    && StagingRepository.canStage(buildArgs, localRepositoryPath)
+                    && isStagingSupported(scmRepoId, projectBuildDir.getPath())) {
+                /* Keep the installed artifacts available until the new ones are ready to be swapped in */
+                try (StagingRepository staging = StagingRepository.create(scrdepsDir.resolve("staging"), scmRepoId,
+                        localRepositoryPath)) {
+                    final GavSetWalker stagedGavSetWalker = new GavSetWalker(staging.getRoot(), gavSet, version);
+                    restored = cacheKey != null && restoreFromBuildCache(scmRepoId, sourceTreeCommitId, cacheKey,
+                            staging.getRoot(), scmRepo, version, stagedGavSetWalker, record, rebuildReason);
+                    record.lap(Phase.restore);
+                    if (!restored) {
+                        reduceSourceTree(scmRepoId, projectBuildDir.getPath(), buildIncludes, buildRequest,
+                                isProfileActive);
+                        build(scmRepo, srcVersion, version, projectBuildDir.getPath(),
+                                staging.buildArguments(buildArgs), buildIncludes, record);
+                        record.lap(Phase.build);
+                        record.setOutcome(Outcome.built, rebuildReason);
                     }
+                    final GavSetWalker.GavPathCollector staged = new GavSetWalker.GavPathCollector();
+                    walk(stagedGavSetWalker, staged, scmRepoId);
+                    final GavSetWalker.GavPathCollector installed = new GavSetWalker.GavPathCollector();
+                    walk(gavSetWalker, installed, scmRepoId);
+                    final int count = staging.commit(staged.getGavPaths().keySet(),
+                            installed.getGavPaths().keySet());
+                    log.debug("srcdeps[{}]: Moved [{}] staged files to [{}]", scmRepoId, count, localRepositoryPath);
                 }
-
-                /* We need to rebuild from sources for whatever reason */
-                log.debug("srcdeps[{}]: A rebuild of [{}] was triggered by [{}] lookup", scmRepoId, fetchId, artifact);
+                record.lap(Phase.install);
+            } else if (incrementalBuildArgs == null) {
                 /* Uninstall all matching artifacts */
                 uninstallGavSet(scmRepoId, scmRepo, gavSetWalker);
+                record.lap(Phase.uninstall);
 
-                /* Reduce the build tree if the user wants */
-                final Path pomXml = projectBuildDir.getPath().resolve("pom.xml");
-                if (Files.exists(pomXml)) {
-                    final MavenSourceTree depTree = MavenSourceTree.of(pomXml, StandardCharsets.UTF_8);
-                    if (!buildIncludes.isEmpty() && buildRequest.isExcludeNonRequired()) {
-                        Set<Ga> includesClosure = depTree.computeModuleClosure(buildIncludes, isProfileActive);
-                        log.info("srcdeps[{}]: Closure of required includes: {}", scmRepoId, includesClosure);
-                        depTree.unlinkUneededModules(includesClosure, isProfileActive);
-                    }
+                restored = cacheKey != null && restoreFromBuildCache(scmRepoId, sourceTreeCommitId, cacheKey,
+                        localRepositoryPath, scmRepo, version, gavSetWalker, record, rebuildReason);
+                record.lap(Phase.restore);
+                if (!restored) {
+                    reduceSourceTree(scmRepoId, projectBuildDir.getPath(), buildIncludes, buildRequest,
+                            isProfileActive);
+                    build(scmRepo, srcVersion, version, projectBuildDir.getPath(), buildArgs, buildIncludes,
+                            record);
+                    record.lap(Phase.build);
+                    record.setOutcome(Outcome.built, rebuildReason);
                 }
-
-                buildService.build(buildRequest);
-
-                buildMetadataStore.storeCommitId(scmRepoId, buildRequestHash, sourceTreeCommitId);
-                BuildMetadataStore.StoreSha1Consumer gavtcPathConsumer = buildMetadataStore
-                        .createStoreSha1Consumer(scmRepoId, buildRequestHash);
-                gavSetWalker.walk(gavtcPathConsumer);
-                log.debug("srcdeps[{}]: Installed [{}] artifacts to [{}]", scmRepoId, gavtcPathConsumer.getCount(),
-                        localMavenRepoPath);
-
-                /* check once again if the delegate sees the newly built artifact */
-                final LocalArtifactResult newResult = delegate.find(session, request);
-                if (!newResult.isAvailable()) {
-                    throw new RuntimeException(String.format(
-                            "srcdeps: Build succeeded but the artifact [%s] is still not available in the local repository",
-                            artifact));
+            } else if (!incrementalBuildArgs.isEmpty()) {
+                /* The unchanged artifacts stay installed; the hash of the full buildRequest keeps identifying them */
+                if (buildCache != null) {
+                    /* Maven installs over the existing files in place, which must not go through to the cache */
+                    final GavSetWalker.GavPathCollector installed = new GavSetWalker.GavPathCollector();
+                    walk(gavSetWalker, installed, scmRepoId);
+                    final int count = buildCache.breakLinks(installed.getGavPaths().keySet());
+                    log.debug("srcdeps[{}]: Replaced [{}] files linked to the build cache by copies", scmRepoId,
+                            count);
                 }
-                return newResult;
+                build(scmRepo, srcVersion, version, projectBuildDir.getPath(), incrementalBuildArgs, buildIncludes,
+                        record);
+                record.lap(Phase.build);
+                record.setOutcome(Outcome.builtIncrementally, rebuildReason);
+            } else {
+                record.setOutcome(Outcome.nothingChanged, rebuildReason);
+            }
+            /* Nothing was installed if no module has changed, so the dependents need no rebuild */
+            final boolean installed = record.getOutcome() != Outcome.nothingChanged;
+            if (installed) {
+                rebuilt.add(key);
             }
 
-        } catch (BuildException | IOException e) {
-            log.error("srcdeps[" + scmRepoId + "]: Could not build request [" + request + "]", e);
+            try (Span span = flightRecorderEvents.begin(Type.metadata, scmRepoId, srcVersion, artifact)) {
+                localBuildMetadataStore.storeCommitId(scmRepoId, buildRequestHash, sourceTreeCommitId);
+            }
+            final GavSetWalker.GavPathCollector paths = new GavSetWalker.GavPathCollector();
+            walk(gavSetWalker, paths, scmRepoId);
+            final Set<Path> gavDirectories = paths.getGavPaths().keySet();
+            final CompletableFuture<LocalBuildMetadataStore.Stamps> stamps = storeStamps(scmRepoId,
+                    buildRequestHash, gavDirectories, record);
+            record.lap(Phase.stamps);
+            if (cacheKey != null) {
+                storeInBuildCache(scmRepoId, sourceTreeCommitId, cacheKey, gavDirectories, stamps,
+                        installed && !restored, record);
+            }
+        }
+    }
+
+    /**
+     * Checks out the sources requested by the given {@link BuildRequest} either via {@link #shallowGitCheckout} if
+     * a checkout depth, filter or mirror is configured for the given SCM repository or via {@link #scmService}
+     * otherwise.
+     *
+     * @param buildRequest
+     *            the {@link BuildRequest} to check out
+     * @return the commit ID of the checked out revision
+     * @throws BuildException
+     *             if the checkout fails
+     */
+    private String checkout(BuildRequest buildRequest) throws BuildException {
+        final String scmRepoId = buildRequest.getScmRepositoryId();
+        final int depth = options.getCheckoutDepth(scmRepoId);
+        final String filter = options.getCheckoutFilter(scmRepoId);
+        final boolean mirror = options.isCheckoutMirror(scmRepoId);
+        final SrcVersion srcVersion = buildRequest.getSrcVersion();
+        try (Span span = flightRecorderEvents.begin(Type.checkout, scmRepoId, srcVersion, null);
+                ChromeTrace.Span traceSpan = chromeTrace.begin("checkout", scmRepoId).arg("srcVersion",
+                        srcVersion)) {
+            final String commitId;
+            if ((depth > 0 || filter != null || mirror) && ShallowGitCheckout.hasGitUrl(buildRequest.getScmUrls())) {
+                commitId = shallowGitCheckout.checkout(buildRequest, depth, filter, mirror);
+            } else {
+                commitId = scmService.checkout(buildRequest);
+            }
+            stampHead(buildRequest, commitId);
+            return commitId;
         }
-        return result;
     }
 
     private Set<Ga> collectBuildIncludes(String scmRepoId, Path dependentProjectRoot, Charset encoding, GavSet gavSet,
-            boolean includeRequired, List<String> includes, Predicate<Profile> isProfileActive) {
+            boolean includeRequired, List<String> includes, List<String> buildArgs) throws IOException {
         final Set<Ga> result = new TreeSet<>();
         includes.stream().map(Ga::of).forEach(result::add);
         final Path pomXml = dependentProjectRoot.resolve("pom.xml");
         if (includeRequired && Files.exists(pomXml)) {
-            final MavenSourceTree mst = MavenSourceTree.of(pomXml, encoding);
-            final Set<Ga> requiredIncludes = mst.filterDependencies(gavSet, isProfileActive);
+            final Set<Ga> requiredIncludes = sourceTreeCache.filterDependencies(scmRepoId, dependentProjectRoot,
+                    dependentProjectFingerprint(), encoding, gavSet, buildArgs);
             log.info("srcdeps[{}]: Required includes: {}", scmRepoId, requiredIncludes);
             result.addAll(requiredIncludes);
         }
         return result;
     }
 
+    private BuildRequest createBuildRequest(ScmRepository scmRepo, SrcVersion srcVersion, String version,
+            Path projectBuildDir, List<String> buildArgs, Set<Ga> buildIncludes) {
+        final String scmRepoId = scmRepo.getId();
+        final ScmRepositoryMaven maven = scmRepo.getMaven();
+        final Supplier<LineConsumer> output;
+        if (scmRepo.isLogToFile() && scmRepo.isLogToConsole()) {
+            output = () -> asyncOutput(scmRepoId,
+                    LineConsumer.tee(loggerLineConsumer(scmRepoId), rotate(projectBuildDir)));
+        } else if (scmRepo.isLogToFile()) {
+            output = () -> asyncOutput(scmRepoId, rotate(projectBuildDir));
+        } else if (scmRepo.isLogToConsole()) {
+            output = () -> asyncOutput(scmRepoId, loggerLineConsumer(scmRepoId));
+        } else {
+            output = () -> LineConsumer.dummy();
+        }
+
+        return BuildRequest.builder() //
+                .scmRepositoryId(scmRepoId) //
+                .encoding(scmRepo.getEncoding()) //
+                .dependentProjectRootDirectory(configurationProducer.getMultimoduleProjectRootDirectory()) //
+                .projectRootDirectory(projectBuildDir) //
+                .scmUrls(scmRepo.getUrls()) //
+                .srcVersion(srcVersion) //
+                .version(version) //
+                .buildArguments(buildArgs) //
+                .timeoutMs(scmRepo.getBuildTimeout().toMilliseconds()) //
+                .skipTests(scmRepo.isSkipTests()) //
+                .forwardPropertyNames(configuration.getForwardProperties()) //
+                .forwardPropertyValues(configuration.getForwardPropertyValues()) //
+                .addDefaultBuildArguments(scmRepo.isAddDefaultBuildArguments()) //
+                .verbosity(scmRepo.getVerbosity()) //
+                .output(output) //
+                .versionsMavenPluginVersion(maven.getVersionsMavenPluginVersion()) //
+                .useVersionsMavenPlugin(maven.isUseVersionsMavenPlugin()).buildIncludes(buildIncludes)
+                .excludeNonRequired(maven.isExcludeNonRequired())
+                .gradleModelTransformer(scmRepo.getGradle().getModelTransformer()) //
+                .build();
+    }
+
+    /**
+     * @return the {@link SourceTreeCache#fingerprint(Path)} of the dependent project, computed once per session
+     */
+    private String dependentProjectFingerprint() throws IOException {
+        String result = dependentProjectFingerprint;
+        if (result == null) {
+            result = SourceTreeCache.fingerprint(configurationProducer.getMultimoduleProjectRootDirectory());
+            dependentProjectFingerprint = result;
+        }
+        return result;
+    }
+
     /**
      * In case the {@link #delegate} does not find the given artifact and the given artifact's version string is a
      * srcdeps version string, then the version is built from source and returned.
@@ -319,51 +771,137 @@ public class SrcdepsLocalRepositoryManager implements LocalRepositoryManager {
      */
     @Override
     public LocalArtifactResult find(RepositorySystemSession session, LocalArtifactRequest request) {
+        try (Span span = flightRecorderEvents.begin(Type.lookup, null, null, request.getArtifact())) {
+            return findOrBuild(session, request);
+        }
+    }
+
+    @Override
+    public LocalMetadataResult find(RepositorySystemSession session, LocalMetadataRequest request) {
+        return delegate.find(session, request);
+    }
+
+    /**
+     * The implementation of {@link #find(RepositorySystemSession, LocalArtifactRequest)}.
+     */
+    private LocalArtifactResult findOrBuild(RepositorySystemSession session, LocalArtifactRequest request) {
         Artifact artifact = request.getArtifact();
         log.trace("srcdeps: Looking up locally [{}]", artifact);
-        final LocalArtifactResult result = delegate.find(session, request);
 
         final String version = artifact.getVersion();
         if (SrcVersion.isSrcVersion(version)) {
             /* A source dependency defined in pom.xml */
             final SrcVersion srcVersion = SrcVersion.parse(version);
-            if (srcVersion.isImmutable() && result.isAvailable()) {
-                /* Only tags and revisions do not need to get rebuilt once there in the local repo */
-                log.debug("srcdeps: Found [{}] in the local maven repository; no need to rebuild",
-                        request.getArtifact());
+            final LocalArtifactResult result;
+            if (srcVersion.isImmutable()) {
+                result = findImmutable(session, request);
+                if (result.isAvailable()) {
+                    /* Only tags and revisions do not need to get rebuilt once there in the local repo */
+                    log.debug("srcdeps: Found [{}] in the local maven repository; no need to rebuild",
+                            request.getArtifact());
+                    final ScmRepository scmRepo = scmRepositoryFinder
+                            .findScmRepo(artifact.getGroupId(), artifact.getArtifactId(), version).getRepository();
+                    if (scmRepo != null) {
+                        report.skip(scmRepo.getId(), "immutable version installed");
+                    }
+                    return result;
+                }
+            } else {
+                result = delegate.find(session, request);
+            }
+
+            if (configuration.isSkip()) {
+                log.debug("srcdeps: srcdeps is configured to be skipped");
                 return result;
             }
+            final ScmRepository scmRepo = scmRepositoryFinder.findScmRepo(artifact.getGroupId(),
+                    artifact.getArtifactId(), version).assertSuccess().getRepository();
+
+            /* Ensure that we fetch and build a branch just once per outer build */
+            return buildDependency(artifact, scmRepo, result, srcVersion, session, request);
+        }
 
+        final LocalArtifactResult result = delegate.find(session, request);
+        final ScmRepositoryResult queryResult = scmRepositoryFinder.findScmRepo(artifact.getGroupId(),
+                artifact.getArtifactId(), version);
+        if (queryResult.getRepository() != null && queryResult.matchesBuildVersionPattern()) {
+            /* A source dependency defined in srcdeps.yaml */
             if (configuration.isSkip()) {
                 log.debug("srcdeps: srcdeps is configured to be skipped");
             } else {
-                final ScmRepository scmRepo = configurationQueryService
-                        .findScmRepo(artifact.getGroupId(), artifact.getArtifactId(), version).assertSuccess()
-                        .getRepository();
-
-                /* Ensure that we fetch and build a branch just once per outer build */
-                return buildDependency(artifact, scmRepo, result, srcVersion, session, request);
+                final ScmRepository scmRepo = queryResult.getRepository();
+                return buildDependency(artifact, scmRepo, result, scmRepo.getBuildRef(), session, request);
             }
-        } else {
-            final ScmRepositoryResult queryResult = configurationQueryService.findScmRepo(artifact.getGroupId(),
-                    artifact.getArtifactId(), version);
-            if (queryResult.getRepository() != null && queryResult.matchesBuildVersionPattern()) {
-                /* A source dependency defined in srcdeps.yaml */
-                if (configuration.isSkip()) {
-                    log.debug("srcdeps: srcdeps is configured to be skipped");
-                } else {
-                    final ScmRepository scmRepo = queryResult.getRepository();
-                    return buildDependency(artifact, scmRepo, result, scmRepo.getBuildRef(), session, request);
-                }
+        }
+
+        return result;
+    }
+
+    /**
+     * Looks up an artifact having an immutable {@link SrcVersion} first in {@link #immutableArtifactIndex} and then,
+     * on a miss or if the installed file has changed since it was indexed, via {@link #delegate}. Artifacts found by
+     * the {@link #delegate} are added to {@link #immutableArtifactIndex}.
+     *
+     * @param session
+     *            the current {@link RepositorySystemSession}
+     * @param request
+     *            the request to satisfy
+     * @return a {@link LocalArtifactResult}
+     */
+    private LocalArtifactResult findImmutable(RepositorySystemSession session, LocalArtifactRequest request) {
+        final Artifact artifact = request.getArtifact();
+        if (immutableArtifactIndex != null) {
+            final Path file = localRepositoryPath.resolve(delegate.getPathForLocalArtifact(artifact));
+            if (immutableArtifactIndex.isInstalled(toIndexKey(artifact), file)) {
+                log.trace("srcdeps: Found [{}] in the immutable artifact index", artifact);
+                return new LocalArtifactResult(request).setFile(file.toFile()).setAvailable(true);
             }
         }
+        final LocalArtifactResult result = delegate.find(session, request);
+        if (result.isAvailable()) {
+            index(artifact, result);
+        }
+        return result;
+    }
 
+    /**
+     * @return the {@link ChromeTrace} of this session; {@link ChromeTrace#DISABLED} if no trace is collected
+     */
+    ChromeTrace getChromeTrace() {
+        return chromeTrace;
+    }
+
+    /**
+     * @param buildRequest
+     *            the {@link BuildRequest} whose source version should be looked up
+     * @return the commit ID the branch requested by the given {@link BuildRequest} pointed at when this or some other
+     *         JVM fetched it or looked it up within the {@code checkout.freshness} of the given SCM repository or
+     *         {@code null} if there is no such record
+     */
+    private String freshHead(BuildRequest buildRequest) {
+        final String scmRepoId = buildRequest.getScmRepositoryId();
+        final SrcVersion srcVersion = buildRequest.getSrcVersion();
+        final int freshness = options.getCheckoutFreshness(scmRepoId);
+        if (freshness == 0 || srcVersion.getWellKnownType() != SrcVersion.WellKnownType.branch) {
+            return null;
+        }
+        final String result = fetchStamps.get(scmRepoId, buildRequest.getScmUrls(), srcVersion,
+                TimeUnit.SECONDS.toMillis(freshness), System.currentTimeMillis());
+        if (result != null) {
+            log.info("srcdeps[{}]: [{}] was seen at revision [{}] less than [{}] s ago; not asking the remote again",
+                    scmRepoId, srcVersion, result, freshness);
+        }
         return result;
     }
 
-    @Override
-    public LocalMetadataResult find(RepositorySystemSession session, LocalMetadataRequest request) {
-        return delegate.find(session, request);
+    private HashAlgorithm getHashAlgorithm(String scmRepoId) {
+        final HashAlgorithm result = options.getHashAlgorithm(scmRepoId);
+        if (!result.isAvailable()) {
+            log.warn("srcdeps[{}]: Hash algorithm [{}] is not available on this JVM; using [{}] instead", scmRepoId,
+                    result, HashAlgorithm.xxh64);
+            return HashAlgorithm.xxh64;
+        }
+        return result;
     }
 
     @Override
@@ -391,26 +929,752 @@ public class SrcdepsLocalRepositoryManager implements LocalRepositoryManager {
         return delegate.getRepository();
     }
 
+    /**
+     * Builds the given planned {@link SourceDependency}. Run by {@link #buildScheduler}.
+     */
+    private void buildPlanned(SourceDependency sourceDep, RepositorySystemSession session)
+            throws BuildException, IOException {
+        final ScmRepository scmRepo = sourceDep.getScmRepository();
+        final FetchId fetchId = new FetchId(scmRepo.getId(), scmRepo.getUrls());
+        if (fetchLog.contains(fetchId)) {
+            return;
+        }
+        final Artifact artifact = sourceDep.getArtifact();
+        final LocalArtifactRequest request = new LocalArtifactRequest(artifact,
+                Collections.<RemoteRepository>emptyList(), null);
+        try {
+            buildScmRepository(artifact, scmRepo, sourceDep.getSrcVersion(), fetchId, session, request);
+        } catch (BuildException | IOException | RuntimeException e) {
+            log.error("srcdeps[" + scmRepo.getId() + "]: Could not build [" + sourceDep + "]", e);
+            report.record(sourceDep.getKey()).setOutcome(Outcome.failed, e.getMessage());
+            throw e;
+        }
+    }
+
+    /**
+     * Computes the build arguments for building only the modules of the source tree in {@code buildDir} that have
+     * changed between {@code pastCommitId} and {@code commitId} together with the modules depending on them. A path
+     * is mapped to the innermost module whose directory contains it. The whole source tree needs to be built if the
+     * root module has changed, because all other modules inherit from it.
+     *
+     * @return the {@code buildArgs} extended by {@code -pl <changed modules> -amd}, an empty list if no module has
+     *         changed or {@code null} if the whole source tree needs to be built
+     */
+    private List<String> incrementalBuildArguments(String scmRepoId, Path buildDir, String pastCommitId,
+            String commitId, List<String> buildArgs) {
+        if (buildArgs.contains("-pl") || buildArgs.contains("--projects")) {
+            log.info("srcdeps[{}]: Building the whole source tree because the build arguments select modules already",
+                    scmRepoId);
+            return null;
+        }
+        final List<String> changedPaths = shallowGitCheckout.changedPaths(buildDir, pastCommitId, commitId);
+        if (changedPaths == null) {
+            log.info(
+                    "srcdeps[{}]: Building the whole source tree because the changes since revision [{}] could not be determined",
+                    scmRepoId, pastCommitId);
+            return null;
+        }
+        final Map<String, String> modules;
+        try {
+            modules = new SourceTreeScanner().modules(buildDir);
+        } catch (IOException e) {
+            log.warn("srcdeps[" + scmRepoId + "]: Building the whole source tree because it could not be scanned", e);
+            return null;
+        }
+        final String rootModule = modules.get("");
+        if (rootModule == null) {
+            return null;
+        }
+        final Set<String> changedModules = SourceTreeScanner.changedModules(modules, changedPaths);
+        if (changedModules.contains(rootModule)) {
+            log.info(
+                    "srcdeps[{}]: Building the whole source tree because the root module has changed since revision [{}]",
+                    scmRepoId, pastCommitId);
+            return null;
+        } else if (changedModules.isEmpty()) {
+            log.info("srcdeps[{}]: No module has changed since revision [{}]; nothing to build", scmRepoId,
+                    pastCommitId);
+            return Collections.emptyList();
+        }
+        log.info("srcdeps[{}]: Building only the modules changed since revision [{}] and their dependents: {}",
+                scmRepoId, pastCommitId, changedModules);
+        final List<String> result = new ArrayList<>(buildArgs);
+        result.add("-pl");
+        result.add(String.join(",", changedModules));
+        result.add("-amd");
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Adds the given artifact having an immutable {@link SrcVersion} to {@link #immutableArtifactIndex}.
+     *
+     * @param artifact
+     *            the artifact to add
+     * @param result
+     *            the {@link LocalArtifactResult} saying where the artifact is installed
+     */
+    private void index(Artifact artifact, LocalArtifactResult result) {
+        if (immutableArtifactIndex != null && result.getFile() != null) {
+            try {
+                immutableArtifactIndex.put(toIndexKey(artifact), result.getFile().toPath());
+            } catch (IOException e) {
+                log.warn("srcdeps: Could not add [" + artifact + "] to the immutable artifact index", e);
+            }
+        }
+    }
+
+    /**
+     * Checks whether any of the artifacts installed by a past build of the given {@code scmRepoId} and
+     * {@code buildRequestHash} was changed since. Only the files whose size, last modification time or file key differ
+     * from the ones recorded in {@link #localBuildMetadataStore} are hashed and the check stops at the first changed
+     * file. If there are no stamps recorded yet, the SHA-1 sums stored in {@link #buildMetadataStore} by older
+     * versions of srcdeps are checked instead and the stamps are recorded for the next time.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param buildRequestHash
+     *            the hash of the {@link BuildRequest}
+     * @param gavSetWalker
+     *            the walker over the artifacts installed by the given SCM repository
+     * @return {@code true} if some artifact was changed, added or removed; {@code false} otherwise
+     * @throws IOException
+     *             on I/O errors
+     */
+    private boolean isAnyArtifactChanged(String scmRepoId, String buildRequestHash, GavSetWalker gavSetWalker)
+            throws IOException {
+        final GavSetWalker.GavPathCollector paths = new GavSetWalker.GavPathCollector();
+        walk(gavSetWalker, paths, scmRepoId);
+        final Set<Path> gavDirectories = paths.getGavPaths().keySet();
+        final LocalBuildMetadataStore.Stamps stamps;
+        try (Span span = flightRecorderEvents.begin(Type.metadata, scmRepoId, null, null)) {
+            stamps = localBuildMetadataStore.load(scmRepoId, buildRequestHash);
+        }
+        if (stamps == null) {
+            final BuildMetadataStore.CheckSha1Consumer checkSha1Consumer = buildMetadataStore
+                    .createCheckSha1Checker(scmRepoId, buildRequestHash);
+            walk(gavSetWalker, checkSha1Consumer, scmRepoId);
+            if (checkSha1Consumer.isAnyArtifactChanged()) {
+                return true;
+            }
+            try (Span span = flightRecorderEvents.begin(Type.metadata, scmRepoId, null, null)) {
+                localBuildMetadataStore.store(scmRepoId, buildRequestHash, getHashAlgorithm(scmRepoId),
+                        localRepositoryPath, gavDirectories);
+            }
+            return false;
+        }
+        final Path changed = stamps.findChanged(localRepositoryPath, gavDirectories);
+        if (changed != null) {
+            log.debug("srcdeps[{}]: [{}] has changed since it was built", scmRepoId, changed);
+            return true;
+        }
+        if (stamps.isDirty()) {
+            try (Span span = flightRecorderEvents.begin(Type.metadata, scmRepoId, null, null)) {
+                localBuildMetadataStore.save(stamps);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if any of the upstreams of the given {@code key} in {@link #sourceDependencyGraph} has
+     *         been rebuilt in the current session
+     */
+    private boolean isAnyUpstreamRebuilt(BuildKey key) {
+        for (BuildKey upstream : sourceDependencyGraph.getUpstreams(key)) {
+            if (rebuilt.contains(upstream)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the Maven version running the nested build in the given {@code projectBuildDir}
+     *         supports {@value StagingRepository#TAIL_PROPERTY}; {@code false} otherwise, in which case the build
+     *         must not be staged
+     */
+    private boolean isStagingSupported(String scmRepoId, Path projectBuildDir) throws IOException {
+        final String mavenVersion = StagingRepository.nestedMavenVersion(projectBuildDir, System.getProperties());
+        if (StagingRepository.isTailSupported(mavenVersion)) {
+            return true;
+        }
+        log.warn("srcdeps[{}]: Not staging the build because Maven [{}] does not support [{}]; Maven 3.9.0+ required",
+                scmRepoId, mavenVersion, StagingRepository.TAIL_PROPERTY);
+        return false;
+    }
+
+    private synchronized Path moduleTimingSpyJar() throws IOException {
+        if (moduleTimingSpyJar == null) {
+            moduleTimingSpyJar = ModuleTimings.createSpyJar(scrdepsDir.resolve("extensions"));
+        }
+        return moduleTimingSpyJar;
+    }
+
+    private PathLock openBuildDirectory(ScmRepository scmRepo, SrcVersion srcVersion) throws IOException {
+        try (Span span = flightRecorderEvents.begin(Type.lock, scmRepo.getId(), srcVersion, null)) {
+            return buildDirectoriesManager.openBuildDirectory(scmRepo.getId(), scmRepo.getIdAsPath(), srcVersion);
+        }
+    }
+
+    private ImmutableArtifactIndex openImmutableArtifactIndex() {
+        final Path indexFile = scrdepsDir.resolve("immutable-artifacts.idx");
+        try {
+            final ImmutableArtifactIndex result = ImmutableArtifactIndex.open(indexFile);
+            log.debug("srcdeps: Loaded [{}] entries from the immutable artifact index [{}]", result.size(),
+                    indexFile);
+            return result;
+        } catch (IOException e) {
+            log.warn("srcdeps: Could not read the immutable artifact index [" + indexFile + "]", e);
+            return null;
+        }
+    }
+
+    /**
+     * Waits for the running build plan, the prefetched checkouts, the stores to the build caches and the deletions in
+     * the {@link #trash} to finish and keeps the new ones from starting until {@link BackgroundWork#resume()} is
+     * called, so that no srcdeps thread runs concurrently with an in-process build.
+     */
+    private void pauseBackgroundWork() {
+        try {
+            /* The planner waits for prefetched checkouts, so it must not be running when they get paused */
+            buildPlan.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            /* logged by buildDependency() already */
+        }
+        backgroundWork.pause();
+    }
+
+    /**
+     * Waits for the prefetched checkouts of the given {@code roots}, scans the checked out sources for further source
+     * dependencies (prefetching them too) and computes the {@link SourceDependencyGraph} of all of them. Nothing is
+     * built here: once a source dependency is looked up, {@link #scheduleUpstreams(BuildKey, RepositorySystemSession)}
+     * schedules the builds of its upstreams in topological order, so that independent branches of the graph are built
+     * in parallel and each source dependency is built only after all its upstreams were built. Run on
+     * {@link #planner} thread.
+     *
+     * @param session
+     *            the current {@link RepositorySystemSession}
+     * @param roots
+     *            the source dependencies of the outer reactor
+     */
+    private void planBuilds(RepositorySystemSession session, List<SourceDependency> roots) {
+        final Map<BuildKey, SourceDependency> nodes = new LinkedHashMap<>();
+        final Map<BuildKey, Path> checkouts = new LinkedHashMap<>();
+        final SourceDependencyGraph graph = new SourceDependencyGraph();
+        final SourceTreeScanner scanner = new SourceTreeScanner();
+        final ArtifactTypeRegistry stereotypes = session.getArtifactTypeRegistry();
+
+        final Deque<SourceDependency> pending = new ArrayDeque<>(roots);
+        for (SourceDependency root : roots) {
+            nodes.put(root.getKey(), root);
+            graph.addNode(root.getKey());
+        }
+        while (!pending.isEmpty()) {
+            final SourceDependency sourceDep = pending.poll();
+            final BuildKey key = sourceDep.getKey();
+            final CheckoutPrefetcher.Checkout checkout = prefetcher.await(key);
+            if (checkout == null) {
+                continue;
+            }
+            checkouts.put(key, checkout.getBuildDirectory());
+            try {
+                for (Dependency dep : scanner.scan(checkout.getBuildDirectory(),
+                        sourceDep.getScmRepository().getBuildArguments())) {
+                    final Artifact artifact = RepositoryUtils.toDependency(dep, stereotypes).getArtifact();
+                    final SourceDependency upstream = toSourceDependency(session, artifact);
+                    if (upstream != null && !upstream.getKey().equals(key)) {
+                        final BuildKey upstreamKey = upstream.getKey();
+                        if (!nodes.containsKey(upstreamKey)) {
+                            log.debug("srcdeps[{}]: Found source dependency [{}]", key.getScmRepoId(), upstream);
+                            nodes.put(upstreamKey, upstream);
+                            prefetch(upstream);
+                            pending.add(upstream);
+                        }
+                        graph.addEdge(key, upstreamKey);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                log.warn("srcdeps[" + key.getScmRepoId() + "]: Could not scan the sources of [" + sourceDep + "]",
+                        e);
+            }
+        }
+
+        /*
+         * Dependencies on versions matching buildVersionPattern are not visible as -SRC- versions, so we check whether
+         * the source trees depend on any artifacts of such repositories
+         */
+        for (Entry<BuildKey, Path> en : checkouts.entrySet()) {
+            final SourceDependency downstream = nodes.get(en.getKey());
+            final Path dir = en.getValue();
+            if (!Files.exists(dir.resolve("pom.xml"))) {
+                continue;
+            }
+            final ScmRepository downstreamRepo = downstream.getScmRepository();
+            final String fingerprint;
+            try {
+                fingerprint = SourceTreeCache.fingerprint(dir);
+            } catch (IOException e) {
+                log.warn("srcdeps[" + downstreamRepo.getId() + "]: Could not read the sources of [" + downstream + "]",
+                        e);
+                continue;
+            }
+            for (SourceDependency upstream : nodes.values()) {
+                final ScmRepository upstreamRepo = upstream.getScmRepository();
+                if (!upstreamRepo.getId().equals(downstreamRepo.getId())
+                        && upstream.getSrcVersion().equals(upstreamRepo.getBuildRef())
+                        && !sourceTreeCache.filterDependencies(upstreamRepo.getId(), dir, fingerprint,
+                                downstreamRepo.getEncoding(), upstreamRepo.getGavSet(),
+                                downstreamRepo.getBuildArguments()).isEmpty()) {
+                    graph.addEdge(downstream.getKey(), upstream.getKey());
+                }
+            }
+        }
+
+        final List<BuildKey> order;
+        try {
+            order = graph.topologicalOrder();
+        } catch (IllegalStateException e) {
+            log.warn("srcdeps: {}; the source dependencies will be built on demand", e.getMessage());
+            return;
+        }
+        log.debug("srcdeps: Source dependency graph:\n{}", graph);
+        this.plannedDependencies = nodes;
+        this.sourceDependencyGraph = graph;
+        log.info("srcdeps: Planned [{}] source dependencies to be built on demand in the order {}", order.size(),
+                order);
+    }
+
+    /**
+     * Checks out the sources of the given {@code scmRepo} at the given {@code srcVersion}. This is what the
+     * {@link #prefetcher} runs on its threads.
+     */
+    private CheckoutPrefetcher.Checkout prefetchCheckout(ScmRepository scmRepo, SrcVersion srcVersion, String version)
+            throws BuildException, IOException {
+        final String scmRepoId = scmRepo.getId();
+        try (PathLock projectBuildDir = openBuildDirectory(scmRepo, srcVersion)) {
+            final List<String> buildArgs = enhanceBuildArguments(scmRepoId, scmRepo.getBuildArguments(),
+                    delegate.getRepository().getBasedir().getAbsolutePath());
+            final BuildRequest buildRequest = createBuildRequest(scmRepo, srcVersion, version,
+                    projectBuildDir.getPath(), buildArgs, Collections.<Ga>emptySet());
+            final String remoteHead = remoteHead(buildRequest);
+            if (remoteHead != null && remoteHead.equals(shallowGitCheckout.head(projectBuildDir.getPath()))) {
+                /* Let buildScmRepository() decide whether the sources need to be checked out again */
+                log.info("srcdeps[{}]: Skipped prefetching [{}] because [{}] is at its remote head [{}] already",
+                        scmRepoId, srcVersion, projectBuildDir.getPath(), remoteHead);
+                return new CheckoutPrefetcher.Checkout(projectBuildDir.getPath(), remoteHead, false);
+            }
+            final String commitId = checkout(buildRequest);
+            log.info("srcdeps[{}]: Prefetched [{}] at revision [{}]", scmRepoId, srcVersion, commitId);
+            return new CheckoutPrefetcher.Checkout(projectBuildDir.getPath(), commitId);
+        }
+    }
+
+    /**
+     * Starts the checkouts of all source dependencies found among the given {@code artifacts} on the bounded thread
+     * pool of {@link #prefetcher}. Both the {@code -SRC-} versions and the versions matching the
+     * {@code buildVersionPattern} of some SCM repository defined in {@code srcdeps.yaml} are considered. The later
+     * {@link #find(RepositorySystemSession, LocalArtifactRequest)} calls wait for the prefetched checkouts instead of
+     * performing them on their own.
+     *
+     * @param session
+     *            the current {@link RepositorySystemSession}
+     * @param artifacts
+     *            the artifacts to scan for source dependencies
+     */
+    public void prefetch(RepositorySystemSession session, Collection<Artifact> artifacts) {
+        if (configuration.isSkip() || !options.isPrefetch()) {
+            log.debug("srcdeps: Prefetching disabled");
+            return;
+        }
+        final List<SourceDependency> sourceDeps = new ArrayList<>();
+        for (Artifact artifact : artifacts) {
+            final SourceDependency sourceDep = toSourceDependency(session, artifact);
+            if (sourceDep != null && prefetch(sourceDep)) {
+                sourceDeps.add(sourceDep);
+            }
+        }
+        if (!sourceDeps.isEmpty()) {
+            log.info("srcdeps: Prefetching [{}] source dependencies", sourceDeps.size());
+            if (options.isBuildOrdered()) {
+                buildPlan = CompletableFuture.runAsync(() -> planBuilds(session, sourceDeps), planner);
+            }
+        }
+    }
+
+    private boolean prefetch(SourceDependency sourceDep) {
+        final ScmRepository scmRepo = sourceDep.getScmRepository();
+        final SrcVersion srcVersion = sourceDep.getSrcVersion();
+        final String version = sourceDep.getArtifact().getVersion();
+        return prefetcher.prefetch(sourceDep.getKey(), () -> prefetchCheckout(scmRepo, srcVersion, version));
+    }
+
+    /**
+     * Reduces the source tree in the given {@code buildDir} to the modules required by the given
+     * {@code buildIncludes} if the user wants.
+     */
+    private void reduceSourceTree(String scmRepoId, Path buildDir, Set<Ga> buildIncludes, BuildRequest buildRequest,
+            Predicate<Profile> isProfileActive) throws IOException {
+        if (Files.exists(buildDir.resolve("pom.xml")) && !buildIncludes.isEmpty()
+                && buildRequest.isExcludeNonRequired()) {
+            final MavenSourceTree depTree = sourceTreeCache.get(buildDir, SourceTreeCache.fingerprint(buildDir),
+                    StandardCharsets.UTF_8);
+            Set<Ga> includesClosure = depTree.computeModuleClosure(buildIncludes, isProfileActive);
+            log.info("srcdeps[{}]: Closure of required includes: {}", scmRepoId, includesClosure);
+            /* The tree gets modified */
+            sourceTreeCache.evict(buildDir);
+            depTree.unlinkUneededModules(includesClosure, isProfileActive);
+        }
+    }
+
+    /**
+     * @param buildRequest
+     *            the {@link BuildRequest} whose source version should be looked up
+     * @return the commit ID the branch requested by the given {@link BuildRequest} currently points at in the remote
+     *         repository as known from {@link #freshHead(BuildRequest)} or as queried from the remote or {@code null}
+     *         if the source version is not a branch, if the remote head check is disabled for the given SCM
+     *         repository or if the remote head could not be determined
+     */
+    private String remoteHead(BuildRequest buildRequest) {
+        final String freshHead = freshHead(buildRequest);
+        if (freshHead != null) {
+            return freshHead;
+        }
+        final String scmRepoId = buildRequest.getScmRepositoryId();
+        final SrcVersion srcVersion = buildRequest.getSrcVersion();
+        if (!options.isCheckoutRemoteHead(scmRepoId)
+                || srcVersion.getWellKnownType() != SrcVersion.WellKnownType.branch
+                || !ShallowGitCheckout.hasGitUrl(buildRequest.getScmUrls())) {
+            return null;
+        }
+        final Path dir = buildRequest.getProjectRootDirectory();
+        try (ChromeTrace.Span traceSpan = chromeTrace.begin("remoteHead", scmRepoId).arg("srcVersion",
+                srcVersion)) {
+            Files.createDirectories(dir);
+            final String result = shallowGitCheckout.remoteHead(scmRepoId, buildRequest.getScmUrls(), srcVersion,
+                    dir);
+            if (result != null) {
+                stampHead(buildRequest, result);
+            }
+            return result;
+        } catch (IOException e) {
+            log.debug("srcdeps[{}]: Could not create [{}]", scmRepoId, dir, e);
+            return null;
+        }
+    }
+
+    /**
+     * Restores the artifacts built from the given {@code commitId} from {@link #buildCache} or, if there is no
+     * matching entry there, from {@link #remoteBuildCache} to the given {@code repository}.
+     *
+     * @return {@code true} if the artifacts were restored; {@code false} if there is no matching entry in any of the
+     *         caches or if restoring failed
+     */
+    private boolean restoreFromBuildCache(String scmRepoId, String commitId, String cacheKey, Path repository,
+            ScmRepository scmRepo, String version, GavSetWalker gavSetWalker, BuildReport.Record record,
+            String rebuildReason)
+            throws IOException {
+        if (buildCache != null) {
+            try {
+                final int count = buildCache.restore(scmRepoId, commitId, cacheKey, repository);
+                if (count >= 0) {
+                    log.info("srcdeps[{}]: Restored [{}] files built at revision [{}] from the build cache",
+                            scmRepoId, count, commitId);
+                    record.setOutcome(Outcome.restoredFromCache, rebuildReason);
+                    return true;
+                }
+            } catch (IOException e) {
+                log.warn("srcdeps[" + scmRepoId + "]: Could not restore from the build cache", e);
+                uninstallGavSet(scmRepoId, scmRepo, gavSetWalker);
+            }
+        }
+        if (remoteBuildCache != null) {
+            try {
+                final GavSet gavSet = scmRepo.getGavSet();
+                if (remoteBuildCache.restore(scmRepoId, commitId, cacheKey, repository,
+                        (groupId, artifactId) -> gavSet.contains(groupId, artifactId, version), version) >= 0) {
+                    record.setOutcome(Outcome.restoredFromRemoteCache, rebuildReason);
+                    return true;
+                }
+            } catch (IOException e) {
+                log.warn("srcdeps[" + scmRepoId
+                        + "]: Could not restore from the remote build cache; going to build locally", e);
+                uninstallGavSet(scmRepoId, scmRepo, gavSetWalker);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a {@link CompletableFuture} that completes once the builds of all upstreams of the given {@code key} in
+     *         {@link #sourceDependencyGraph} have finished, scheduling those builds recursively unless they were
+     *         scheduled already
+     */
+    private CompletableFuture<Void> scheduleUpstreams(BuildKey key, RepositorySystemSession session) {
+        final Map<BuildKey, SourceDependency> planned = plannedDependencies;
+        final List<CompletableFuture<Void>> upstreams = new ArrayList<>();
+        for (BuildKey upstreamKey : sourceDependencyGraph.getUpstreams(key)) {
+            final SourceDependency upstream = planned.get(upstreamKey);
+            if (upstream == null) {
+                continue;
+            }
+            final CompletableFuture<Void> scheduled = buildScheduler.get(upstreamKey);
+            upstreams.add(scheduled != null ? scheduled
+                    : buildScheduler.schedule(upstreamKey, scheduleUpstreams(upstreamKey, session),
+                            () -> buildPlanned(upstream, session)));
+        }
+        return CompletableFuture.allOf(upstreams.toArray(new CompletableFuture[0]));
+    }
+
+    /**
+     * Stops the background threads of this {@link SrcdepsLocalRepositoryManager}. The builds and checkouts that have
+     * not started yet are cancelled and the running ones are waited for, so that the JVM exit does not kill them
+     * half way through. Called at the end of the Maven session.
+     */
+    public void shutdown() {
+        planner.shutdownNow();
+        prefetcher.shutdown();
+        buildScheduler.shutdown();
+        try {
+            if (!buildScheduler.awaitTermination(0, TimeUnit.MILLISECONDS)
+                    || !prefetcher.awaitTermination(0, TimeUnit.MILLISECONDS)) {
+                log.info("srcdeps: Waiting for the running nested builds and checkouts to finish");
+                buildScheduler.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+                prefetcher.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+            CompletableFuture.allOf(pendingStores.toArray(new CompletableFuture[0])).get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            /* logged by storeInBuildCache() already */
+        }
+        storeExecutor.shutdown();
+        hashPool.shutdown();
+        if (remoteBuildCache != null) {
+            remoteBuildCache.logStatistics();
+        }
+        writeReport();
+        writeTrace();
+        log.debug("srcdeps: Matched [{}] distinct GAVs against srcdeps.yaml", scmRepositoryFinder.size());
+        trash.shutdown();
+        if (inProcessMavenBuilder != null) {
+            inProcessMavenBuilder.close();
+        }
+    }
+
+    /**
+     * Records in {@link #fetchStamps} that the branch requested by the given {@link BuildRequest} points at the given
+     * {@code commitId} now, unless the {@code checkout.freshness} of the given SCM repository is {@code 0}.
+     */
+    private void stampHead(BuildRequest buildRequest, String commitId) {
+        final String scmRepoId = buildRequest.getScmRepositoryId();
+        final SrcVersion srcVersion = buildRequest.getSrcVersion();
+        if (commitId != null && options.getCheckoutFreshness(scmRepoId) > 0
+                && srcVersion.getWellKnownType() == SrcVersion.WellKnownType.branch) {
+            fetchStamps.put(scmRepoId, buildRequest.getScmUrls(), srcVersion, commitId, System.currentTimeMillis());
+        }
+    }
+
+    /**
+     * Copies the artifacts installed by a nested build to {@link #buildCache} and, if they were {@code built} rather
+     * than restored, uploads them to {@link #remoteBuildCache}. Both happens asynchronously on {@link #storeExecutor}
+     * after the lock of the build directory has been released and the checksums of the {@code stamps} recorded under
+     * the lock have been computed, so nothing is stored if the artifacts do not match the {@code stamps} anymore.
+     * {@link #shutdown()} waits for the pending stores.
+     */
+    private void storeInBuildCache(String scmRepoId, String commitId, String cacheKey, Set<Path> gavDirectories,
+            CompletableFuture<LocalBuildMetadataStore.Stamps> stampsFuture, boolean built, BuildReport.Record record) {
+        final CompletableFuture<Void> store = stampsFuture.thenAcceptAsync(stamps -> backgroundWork.wrap(() -> {
+            if (stamps == null) {
+                /* logged by storeStamps() already */
+                return;
+            }
+            final long start = System.nanoTime();
+            try {
+                final Path changed = stamps.findChanged(localRepositoryPath, gavDirectories);
+                if (changed != null) {
+                    log.debug("srcdeps[{}]: Not storing in the build cache because [{}] has changed since the build",
+                            scmRepoId, changed);
+                    return;
+                }
+                if (buildCache != null) {
+                    final int count = buildCache.store(scmRepoId, commitId, cacheKey, localRepositoryPath,
+                            gavDirectories);
+                    log.debug("srcdeps[{}]: Stored [{}] files built at revision [{}] in the build cache", scmRepoId,
+                            count, commitId);
+                }
+                if (built && remoteBuildCache != null) {
+                    remoteBuildCache.upload(scmRepoId, commitId, cacheKey, localRepositoryPath, gavDirectories);
+                }
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            } finally {
+                record.add(Phase.cacheStore, System.nanoTime() - start);
+            }
+        }).run(), storeExecutor);
+        pendingStores.add(store);
+        store.whenComplete((result, e) -> {
+            pendingStores.remove(store);
+            if (e != null) {
+                log.warn("srcdeps[" + scmRepoId + "]: Could not store the installed artifacts in the build cache", e);
+            }
+        });
+    }
+
+    /**
+     * Records the stamps of the artifacts installed by a nested build. Must be called while holding the lock of the
+     * build directory, so that the stamps describe exactly the artifacts installed by the build. Only the stat data
+     * is recorded synchronously; the checksums are computed and added asynchronously on {@link #storeExecutor} so
+     * that hashing the artifacts does not delay the resolution. {@link #shutdown()} waits for the checksums.
+     *
+     * @param scmRepoId
+     *            the ID of the SCM repository
+     * @param buildRequestHash
+     *            the hash of the {@link BuildRequest}
+     * @param gavDirectories
+     *            the version directories in the local Maven repository to record
+     * @param record
+     *            the {@link BuildReport.Record} to add the hashing time to
+     * @return a {@link CompletableFuture} completing with the stored {@link LocalBuildMetadataStore.Stamps}
+     *         including the checksums or with {@code null} if they could not be stored
+     */
+    private CompletableFuture<LocalBuildMetadataStore.Stamps> storeStamps(String scmRepoId, String buildRequestHash,
+            Set<Path> gavDirectories, BuildReport.Record record) {
+        final LocalBuildMetadataStore.Stamps stats;
+        try (Span span = flightRecorderEvents.begin(Type.metadata, scmRepoId, null, null)) {
+            stats = localBuildMetadataStore.stat(scmRepoId, buildRequestHash, localRepositoryPath, gavDirectories);
+            log.debug("srcdeps[{}]: Installed [{}] artifacts to [{}]", scmRepoId, stats.size(), localRepositoryPath);
+        } catch (IOException e) {
+            log.warn("srcdeps[" + scmRepoId + "]: Could not store the stamps of the installed artifacts", e);
+            return CompletableFuture.completedFuture(null);
+        }
+        final HashAlgorithm algorithm = getHashAlgorithm(scmRepoId);
+        final Callable<LocalBuildMetadataStore.Stamps> addChecksums = backgroundWork.wrap(() -> {
+            final long start = System.nanoTime();
+            try {
+                return localBuildMetadataStore.addChecksums(stats, algorithm, localRepositoryPath);
+            } finally {
+                record.add(Phase.stamps, System.nanoTime() - start);
+            }
+        });
+        final CompletableFuture<LocalBuildMetadataStore.Stamps> stamps = CompletableFuture.supplyAsync(() -> {
+            try {
+                return addChecksums.call();
+            } catch (Exception e) {
+                log.warn("srcdeps[" + scmRepoId + "]: Could not store the checksums of the installed artifacts", e);
+                return null;
+            }
+        }, storeExecutor);
+        pendingStores.add(stamps);
+        stamps.whenComplete((result, e) -> pendingStores.remove(stamps));
+        return stamps;
+    }
+
+    private static String toIndexKey(Artifact artifact) {
+        return new StringBuilder().append(artifact.getGroupId()).append(':').append(artifact.getArtifactId())
+                .append(':').append(artifact.getExtension()).append(':').append(artifact.getClassifier())
+                .append(':').append(artifact.getVersion()).toString();
+    }
+
+    /**
+     * @param session
+     *            the current {@link RepositorySystemSession}
+     * @param artifact
+     *            the artifact to check
+     * @return a new {@link SourceDependency} if the given {@code artifact} needs to be built from sources or
+     *         {@code null} otherwise
+     */
+    private SourceDependency toSourceDependency(RepositorySystemSession session, Artifact artifact) {
+        final String version = artifact.getVersion();
+        final ScmRepositoryResult queryResult = scmRepositoryFinder.findScmRepo(artifact.getGroupId(),
+                artifact.getArtifactId(), version);
+        final ScmRepository scmRepo = queryResult.getRepository();
+        if (scmRepo == null) {
+            return null;
+        }
+        final SrcVersion srcVersion;
+        if (SrcVersion.isSrcVersion(version)) {
+            srcVersion = SrcVersion.parse(version);
+            final LocalArtifactRequest request = new LocalArtifactRequest(artifact,
+                    Collections.<RemoteRepository>emptyList(), null);
+            if (srcVersion.isImmutable() && findImmutable(session, request).isAvailable()) {
+                /* No need to check out what will not be rebuilt */
+                return null;
+            }
+        } else if (queryResult.matchesBuildVersionPattern()) {
+            srcVersion = scmRepo.getBuildRef();
+        } else {
+            return null;
+        }
+        if (fetchLog.contains(new FetchId(scmRepo.getId(), scmRepo.getUrls()))) {
+            return null;
+        }
+        return new SourceDependency(artifact, scmRepo, srcVersion);
+    }
+
     void uninstallGavSet(String scmRepoId, ScmRepository currentRepo, GavSetWalker gavSetWalker) throws IOException {
         final GavSetWalker.GavPathCollector paths = new GavSetWalker.GavPathCollector();
-        gavSetWalker.walk(paths);
+        walk(gavSetWalker, paths, scmRepoId);
         final Map<Path, Gav> gavPaths = paths.getGavPaths();
         log.debug("srcdeps[{}]: Uninstalling [{}] GAVs before rebuilding them", scmRepoId, gavPaths.size());
-        final List<ScmRepository> repos = configuration.getRepositories();
         for (Entry<Path, Gav> en : gavPaths.entrySet()) {
             final Path gavDir = en.getKey();
             final Gav gav = en.getValue();
-            for (ScmRepository repo : repos) {
+            for (ScmRepository repo : scmRepositoryFinder.findAllScmRepos(gav.getGroupId(), gav.getArtifactId(),
+                    gav.getVersion())) {
                 if (currentRepo != repo) {
-                    if (repo.getGavSet().contains(gav.getGroupId(), gav.getArtifactId(), gav.getVersion())) {
-                        log.error(
-                                "srcdeps[{}]: Cannot rebuild because it includes artifact [{}] that is included by another SCM repository [{}]. Adjust includes/excludes of those repositories in srcdeps.yaml and retry",
-                                currentRepo.getId(), gav.toString(), repo.getId());
-                    }
+                    log.error(
+                            "srcdeps[{}]: Cannot rebuild because it includes artifact [{}] that is included by another SCM repository [{}]. Adjust includes/excludes of those repositories in srcdeps.yaml and retry",
+                            currentRepo.getId(), gav.toString(), repo.getId());
                 }
             }
             log.debug("srcdeps[{}]: Uninstalling [{}]", scmRepoId, gavDir);
-            SrcdepsCoreUtils.deleteDirectory(gavDir);
+            trash.delete(gavDir);
+        }
+    }
+
+    private void walk(GavSetWalker gavSetWalker, GavSetWalker.GavtcPathConsumer consumer, String scmRepoId)
+            throws IOException {
+        try (Span span = flightRecorderEvents.begin(Type.walk, scmRepoId, null, null)) {
+            gavSetWalker.walk(consumer);
+        }
+    }
+
+    /**
+     * Logs a summary of {@link #report} and writes it to the file given by
+     * {@link SrcdepsRepositoryManagerOptions#getReportFile(Path)} unless nothing was recorded.
+     */
+    private void writeReport() {
+        if (report.isEmpty()) {
+            return;
+        }
+        log.info("srcdeps: Summary of the work on source dependencies:\n{}", report.toTable());
+        final Path file = options.getReportFile(configurationProducer.getMultimoduleProjectRootDirectory());
+        if (file != null) {
+            try {
+                report.write(file);
+                log.info("srcdeps: Wrote the report to [{}]", file);
+            } catch (IOException e) {
+                log.warn("srcdeps: Could not write the report to [" + file + "]", e);
+            }
+        }
+    }
+
+    /**
+     * Writes {@link #chromeTrace} to the file given by {@link SrcdepsRepositoryManagerOptions#getTraceFile(Path)}
+     * unless nothing was recorded.
+     */
+    private void writeTrace() {
+        if (chromeTrace.isEmpty()) {
+            return;
+        }
+        final Path file = options.getTraceFile(configurationProducer.getMultimoduleProjectRootDirectory());
+        try {
+            chromeTrace.write(file);
+            log.info("srcdeps: Wrote the trace to [{}]", file);
+        } catch (IOException e) {
+            log.warn("srcdeps: Could not write the trace to [" + file + "]", e);
         }
     }
 
@@ -145,6 +145,6 @@ public class SrcdepsRepositoryManagerFactory implements LocalRepositoryManagerFa
 
         log.debug("srcdeps: Creating a new SrcdepsLocalRepositoryManager");
         return new SrcdepsLocalRepositoryManager(delegate.newInstance(session, repository), buildService, scmService,
-                pathLocker, configurationProducer);
+                pathLocker, configurationProducer, new SrcdepsRepositoryManagerOptions(System.getProperties()));
     }
 }
@@ -0,0 +1,422 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.net.URI;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Properties;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tuning options of {@link SrcdepsLocalRepositoryManager}. The options are read from system properties having the
+ * {@value #PREFIX} prefix, so they can be passed either on the command line or via {@code .mvn/maven.config}.
+ * <p>
+ * The options that can be set per SCM repository are looked up under
+ * {@code srcdeps.repomanager.repositories[<scmRepoId>].<option>} first and, if not set there, under
+ * {@code srcdeps.repomanager.<option>}.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+public class SrcdepsRepositoryManagerOptions {
+    public static final String BUILD_IN_PROCESS = "build.inprocess";
+    public static final String BUILD_INCREMENTAL = "build.incremental";
+    public static final String BUILD_ORDERED = "build.ordered";
+    public static final String BUILD_OUTPUT_BUFFER = "build.output.buffer";
+    public static final String BUILD_OUTPUT_OVERFLOW = "build.output.overflow";
+    public static final String BUILD_PARALLELISM = "build.parallelism";
+    public static final String BUILD_STAGED = "build.staged";
+    public static final String BUILD_TIMINGS = "build.timings";
+    public static final String CACHE_DIR = "cache.dir";
+    public static final String CACHE_LINK = "cache.link";
+    public static final String CACHE_REMOTE_TIMEOUT = "cache.remote.timeout";
+    public static final String CACHE_REMOTE_UPLOAD = "cache.remote.upload";
+    public static final String CACHE_REMOTE_URL = "cache.remote.url";
+    public static final String CHECKOUT_DEPTH = "checkout.depth";
+    public static final String CHECKOUT_FILTER = "checkout.filter";
+    public static final String CHECKOUT_FRESHNESS = "checkout.freshness";
+    public static final String CHECKOUT_MIRROR = "checkout.mirror";
+    public static final String CHECKOUT_REMOTE_HEAD = "checkout.remoteHead";
+    public static final String CHECKOUT_TIMEOUT = "checkout.timeout";
+    public static final String HASH_ALGORITHM = "hash.algorithm";
+    public static final String HASH_PARALLELISM = "hash.parallelism";
+    public static final String IMMUTABLE_INDEX = "immutable.index";
+    public static final String JFR = "jfr";
+    public static final String METADATA_STORE = "metadata.store";
+    public static final String PREFETCH = "prefetch";
+    public static final String PREFETCH_THREADS = "prefetch.threads";
+    public static final String PREFIX = "srcdeps.repomanager.";
+    public static final String REPORT = "report";
+    public static final String TRACE = "trace";
+
+    private static final int DEFAULT_BUILD_OUTPUT_BUFFER = 8192;
+    private static final int DEFAULT_BUILD_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_HASH_PARALLELISM = Runtime.getRuntime().availableProcessors();
+    private static final int DEFAULT_PREFETCH_THREADS = 4;
+    private static final int DEFAULT_REMOTE_CACHE_TIMEOUT_MS = 10000;
+    private static final String DEFAULT_REPORT = "target/srcdeps-report.json";
+
+    private final Properties properties;
+
+    public SrcdepsRepositoryManagerOptions(Properties properties) {
+        super();
+        this.properties = properties;
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return the number of lines of the output of the nested builds of the given SCM repository that can be buffered
+     *         by {@link AsyncLineConsumer}; {@code 0} if the output should be written synchronously
+     */
+    int getBuildOutputBuffer(String scmRepoId) {
+        return Math.max(0, getInt(scmRepoId, BUILD_OUTPUT_BUFFER, DEFAULT_BUILD_OUTPUT_BUFFER));
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return what {@link AsyncLineConsumer} should do when its buffer is full
+     * @throws IllegalArgumentException
+     *             if the configured value is not a known {@link AsyncLineConsumer.OverflowPolicy}
+     */
+    AsyncLineConsumer.OverflowPolicy getBuildOutputOverflow(String scmRepoId) {
+        final String value = getString(scmRepoId, BUILD_OUTPUT_OVERFLOW);
+        return value == null ? AsyncLineConsumer.OverflowPolicy.block : AsyncLineConsumer.OverflowPolicy.ofName(value);
+    }
+
+    /**
+     * @return the maximum number of nested builds of distinct SCM repositories that can run in parallel; always
+     *         {@code 1} if {@value #BUILD_IN_PROCESS} is enabled for some SCM repository, because the in-process builds
+     *         must not run concurrently with any other build
+     */
+    public int getBuildParallelism() {
+        if (isBuildInProcessAnywhere()) {
+            return 1;
+        }
+        return Math.max(1, getInt(null, BUILD_PARALLELISM, DEFAULT_BUILD_PARALLELISM));
+    }
+
+    /**
+     * @return the root directory of the {@link BuildCache} or {@code null} if the build cache is disabled
+     */
+    public Path getCacheDirectory() {
+        final String value = getString(null, CACHE_DIR);
+        return value == null || value.isEmpty() ? null : Paths.get(value).toAbsolutePath();
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return the number of commits to fetch when checking out the given SCM repository; {@code 0} for the full
+     *         history
+     */
+    int getCheckoutDepth(String scmRepoId) {
+        return Math.max(0, getInt(scmRepoId, CHECKOUT_DEPTH, 0));
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return the partial clone filter (such as {@code blob:none}) to use when checking out the given SCM repository
+     *         or {@code null} if all objects should be fetched
+     */
+    String getCheckoutFilter(String scmRepoId) {
+        final String value = getString(scmRepoId, CHECKOUT_FILTER);
+        return value == null || value.isEmpty() ? null : value;
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return the number of seconds after fetching a branch of the given SCM repository during which the commit it
+     *         pointed at is used without asking the remote again, also by other Maven invocations sharing the same
+     *         local Maven repository; {@code 0} if the branch should be looked up in every JVM
+     */
+    int getCheckoutFreshness(String scmRepoId) {
+        return Math.max(0, getInt(scmRepoId, CHECKOUT_FRESHNESS, 0));
+    }
+
+    /**
+     * @return the maximum time in milliseconds a single invocation of the {@code git} command line client may take
+     *         before it is killed
+     */
+    public long getCheckoutTimeoutMs() {
+        return TimeUnit.SECONDS.toMillis(Math.max(1, getInt(null, CHECKOUT_TIMEOUT,
+                (int) TimeUnit.MILLISECONDS.toSeconds(ShallowGitCheckout.DEFAULT_TIMEOUT_MS))));
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return the {@link HashAlgorithm} to use for detecting the changes of the artifacts installed by the nested builds
+     *         of the given SCM repository
+     * @throws IllegalArgumentException
+     *             if the configured value is not a known {@link HashAlgorithm}
+     */
+    HashAlgorithm getHashAlgorithm(String scmRepoId) {
+        final String value = getString(scmRepoId, HASH_ALGORITHM);
+        return value == null ? HashAlgorithm.sha1 : HashAlgorithm.ofName(value);
+    }
+
+    /**
+     * @return the number of threads to use for computing the checksums of installed artifacts
+     */
+    public int getHashParallelism() {
+        return Math.max(1, getInt(null, HASH_PARALLELISM, DEFAULT_HASH_PARALLELISM));
+    }
+
+    /**
+     * @return the Maven installation the outer build runs from or {@code null} if it is unknown
+     */
+    public Path getMavenHome() {
+        final String value = properties.getProperty("maven.home");
+        return value == null || value.isEmpty() ? null : Paths.get(value);
+    }
+
+    /**
+     * @return the number of threads to use for the checkouts started by
+     *         {@link SrcdepsLocalRepositoryManager#prefetch(org.eclipse.aether.RepositorySystemSession, java.util.Collection)}
+     */
+    public int getPrefetchThreads() {
+        return Math.max(1, getInt(null, PREFETCH_THREADS, DEFAULT_PREFETCH_THREADS));
+    }
+
+    /**
+     * @return the connect and read timeout in milliseconds for the requests to the {@link RemoteBuildCache}
+     */
+    public int getRemoteCacheTimeoutMs() {
+        return Math.max(1, getInt(null, CACHE_REMOTE_TIMEOUT, DEFAULT_REMOTE_CACHE_TIMEOUT_MS));
+    }
+
+    /**
+     * @return the base URI of the {@link RemoteBuildCache} or {@code null} if the remote build cache is disabled
+     * @throws IllegalArgumentException
+     *             if the configured value is not a valid URI
+     */
+    public URI getRemoteCacheUri() {
+        final String value = getString(null, CACHE_REMOTE_URL);
+        return value == null || value.isEmpty() ? null : URI.create(value);
+    }
+
+    /**
+     * @param projectRootDirectory
+     *            the root directory of the dependent project to resolve a relative path against
+     * @return the file to write the {@link BuildReport} to or {@code null} if no report should be written
+     */
+    public Path getReportFile(Path projectRootDirectory) {
+        final String value = getString(null, REPORT);
+        if (value == null) {
+            return projectRootDirectory.resolve(DEFAULT_REPORT);
+        }
+        return value.isEmpty() ? null : projectRootDirectory.resolve(value);
+    }
+
+    /**
+     * @param projectRootDirectory
+     *            the root directory of the dependent project to resolve a relative path against
+     * @return the file to write the {@link ChromeTrace} to or {@code null} if no trace should be collected
+     */
+    public Path getTraceFile(Path projectRootDirectory) {
+        final String value = getString(null, TRACE);
+        return value == null || value.isEmpty() ? null : projectRootDirectory.resolve(value);
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return {@code true} if only the modules changed since the past build of the given SCM repository and their
+     *         dependents should be rebuilt; {@code false} if the whole source tree should be rebuilt
+     */
+    boolean isBuildIncremental(String scmRepoId) {
+        return getBoolean(scmRepoId, BUILD_INCREMENTAL, false);
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return {@code true} if the given SCM repository should be built by {@link InProcessMavenBuilder} rather than
+     *         in a forked process
+     */
+    boolean isBuildInProcess(String scmRepoId) {
+        return getBoolean(scmRepoId, BUILD_IN_PROCESS, false);
+    }
+
+    /**
+     * @return {@code true} if {@value #BUILD_IN_PROCESS} is enabled globally or for at least one SCM repository
+     */
+    boolean isBuildInProcessAnywhere() {
+        if (isBuildInProcess(null)) {
+            return true;
+        }
+        final String prefix = PREFIX + "repositories[";
+        final String suffix = "]." + BUILD_IN_PROCESS;
+        for (String name : properties.stringPropertyNames()) {
+            if (name.startsWith(prefix) && name.endsWith(suffix)
+                    && Boolean.parseBoolean(properties.getProperty(name).trim())) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return {@code true} if the prefetched checkouts should be scanned for further source dependencies, so that the
+     *         upstreams of a source dependency are built before it in the order given by their mutual dependencies
+     *         once it is looked up; {@code false} if each source dependency should be built just when it is looked up
+     */
+    public boolean isBuildOrdered() {
+        return getBoolean(null, BUILD_ORDERED, true);
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return {@code true} if the nested builds of the given SCM repository should install to a
+     *         {@link StagingRepository} whose content is moved to the local Maven repository after a successful build;
+     *         {@code false} if they should install to the local Maven repository directly
+     */
+    boolean isBuildStaged(String scmRepoId) {
+        return getBoolean(scmRepoId, BUILD_STAGED, false);
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return {@code true} if the {@link ModuleTimings} of the nested Maven builds of the given SCM repository should
+     *         be captured by injecting {@link ModuleTimingSpy}; {@code false} otherwise
+     */
+    boolean isBuildTimings(String scmRepoId) {
+        return getBoolean(scmRepoId, BUILD_TIMINGS, false);
+    }
+
+    /**
+     * @return {@code true} if the files restored from the {@link BuildCache} should be hard linked rather than copied
+     */
+    public boolean isCacheLink() {
+        return getBoolean(null, CACHE_LINK, false);
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return {@code true} if the git objects of the given SCM repository should be fetched to a bare mirror shared
+     *         by all its build directories
+     */
+    boolean isCheckoutMirror(String scmRepoId) {
+        return getBoolean(scmRepoId, CHECKOUT_MIRROR, false);
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up
+     * @return {@code true} if the current head of a branch of the given SCM repository should be queried via
+     *         {@code git ls-remote} before fetching it, so that the fetch can be skipped if the head has not changed
+     *         since the past build; {@code false} otherwise
+     */
+    boolean isCheckoutRemoteHead(String scmRepoId) {
+        return getBoolean(scmRepoId, CHECKOUT_REMOTE_HEAD, false);
+    }
+
+    /**
+     * @return {@code true} if the artifacts with immutable source versions (tags and revisions) installed to the local
+     *         Maven repository should be remembered in a persistent index; {@code false} otherwise
+     */
+    public boolean isImmutableIndex() {
+        return getBoolean(null, IMMUTABLE_INDEX, true);
+    }
+
+    /**
+     * @return {@code true} if the Java Flight Recorder events defined in {@link FlightRecorderEvents} should be
+     *         emitted; {@code false} otherwise
+     */
+    public boolean isJfr() {
+        return getBoolean(null, JFR, false);
+    }
+
+    /**
+     * @return {@code true} if the build metadata should be stored by {@link LogBuildMetadataStore}; {@code false} if
+     *         it should be stored by {@link DirectoryBuildMetadataStore}
+     * @throws IllegalArgumentException
+     *             if the value of {@value #METADATA_STORE} is neither {@code directory} nor {@code log}
+     */
+    public boolean isMetadataLog() {
+        final String value = getString(null, METADATA_STORE);
+        if (value == null || "directory".equals(value)) {
+            return false;
+        } else if ("log".equals(value)) {
+            return true;
+        }
+        throw new IllegalArgumentException(String.format(
+                "Unexpected value [%s] of [%s%s]; expected [directory] or [log]", value, PREFIX, METADATA_STORE));
+    }
+
+    /**
+     * @return {@code true} if the checkouts of all source dependencies found in the reactor should be started right
+     *         after the projects were read; {@code false} otherwise
+     */
+    public boolean isPrefetch() {
+        return getBoolean(null, PREFETCH, true);
+    }
+
+    /**
+     * @return {@code true} if the artifacts built locally should be uploaded to the {@link RemoteBuildCache};
+     *         {@code false} if the remote build cache should be used read-only
+     */
+    public boolean isRemoteCacheUpload() {
+        return getBoolean(null, CACHE_REMOTE_UPLOAD, true);
+    }
+
+    boolean getBoolean(String scmRepoId, String option, boolean defaultValue) {
+        final String value = getString(scmRepoId, option);
+        return value == null ? defaultValue : Boolean.parseBoolean(value);
+    }
+
+    int getInt(String scmRepoId, String option, int defaultValue) {
+        final String value = getString(scmRepoId, option);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value);
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(
+                    String.format("srcdeps: Could not parse [%s] as an integer value of option [%s%s]", value, PREFIX,
+                            option),
+                    e);
+        }
+    }
+
+    /**
+     * @param scmRepoId
+     *            the SCM repository for which the option should be looked up or {@code null} if the option is global
+     * @param option
+     *            the name of the option without {@value #PREFIX}
+     * @return the value of the given option or {@code null} if not set
+     */
+    String getString(String scmRepoId, String option) {
+        if (scmRepoId != null) {
+            final String value = properties.getProperty(PREFIX + "repositories[" + scmRepoId + "]." + option);
+            if (value != null) {
+                return value.trim();
+            }
+        }
+        final String value = properties.getProperty(PREFIX + option);
+        return value == null ? null : value.trim();
+    }
+
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.inject.Named;
+import javax.inject.Singleton;
+
+import org.apache.maven.AbstractMavenLifecycleParticipant;
+import org.apache.maven.MavenExecutionException;
+import org.apache.maven.RepositoryUtils;
+import org.apache.maven.execution.MavenSession;
+import org.apache.maven.model.Dependency;
+import org.apache.maven.project.MavenProject;
+import org.eclipse.aether.RepositorySystemSession;
+import org.eclipse.aether.artifact.Artifact;
+import org.eclipse.aether.artifact.ArtifactTypeRegistry;
+import org.eclipse.aether.repository.LocalRepositoryManager;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * An {@link AbstractMavenLifecycleParticipant} that passes the dependencies of all reactor projects to
+ * {@link SrcdepsLocalRepositoryManager#prefetch(RepositorySystemSession, java.util.Collection)} as soon as the
+ * projects were read so that the source dependencies get checked out in parallel before Maven starts to resolve them
+ * one by one.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+@Named("srcdeps")
+@Singleton
+public class SrcdepsSessionParticipant extends AbstractMavenLifecycleParticipant {
+    private static final Logger log = LoggerFactory.getLogger(SrcdepsSessionParticipant.class);
+
+    static SrcdepsLocalRepositoryManager getSrcdepsLocalRepositoryManager(MavenSession session) {
+        final RepositorySystemSession repoSession = session.getRepositorySession();
+        if (repoSession != null) {
+            final LocalRepositoryManager lrm = repoSession.getLocalRepositoryManager();
+            if (lrm instanceof SrcdepsLocalRepositoryManager) {
+                return (SrcdepsLocalRepositoryManager) lrm;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public void afterProjectsRead(MavenSession session) throws MavenExecutionException {
+        final SrcdepsLocalRepositoryManager lrm = getSrcdepsLocalRepositoryManager(session);
+        if (lrm == null) {
+            log.debug("srcdeps: SrcdepsLocalRepositoryManager not active in this session");
+            return;
+        }
+        final RepositorySystemSession repoSession = session.getRepositorySession();
+        final ArtifactTypeRegistry stereotypes = repoSession.getArtifactTypeRegistry();
+        final Set<Artifact> artifacts = new LinkedHashSet<>();
+        final List<MavenProject> projects = session.getProjects();
+        for (MavenProject project : projects) {
+            final List<Dependency> deps = project.getDependencies();
+            if (deps != null) {
+                for (Dependency dep : deps) {
+                    artifacts.add(RepositoryUtils.toDependency(dep, stereotypes).getArtifact());
+                }
+            }
+        }
+        log.debug("srcdeps: Scanning [{}] dependencies of [{}] reactor projects for source dependencies",
+                artifacts.size(), projects.size());
+        lrm.prefetch(repoSession, artifacts);
+    }
+
+    @Override
+    public void afterSessionEnd(MavenSession session) throws MavenExecutionException {
+        final SrcdepsLocalRepositoryManager lrm = getSrcdepsLocalRepositoryManager(session);
+        if (lrm != null) {
+            lrm.shutdown();
+        }
+    }
+
+}
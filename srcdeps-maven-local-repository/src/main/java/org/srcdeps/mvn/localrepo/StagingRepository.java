@@ -0,0 +1,269 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Properties;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.srcdeps.core.util.SrcdepsCoreUtils;
+
+/**
+ * A private local Maven repository a nested build installs to instead of the local Maven repository of the outer
+ * build. The outer local repository is chained to the staging one read-only via {@value #TAIL_PROPERTY} (supported
+ * since Maven 3.9.0, see {@link #isTailSupported(String)}), so that the nested build still sees all artifacts
+ * available in there.
+ * <p>
+ * After a successful build, {@link #commit(Collection, Collection)} moves the staged files to the outer local
+ * repository one by one using atomic renames, each of them replacing the former version of the given file. Hence
+ * concurrent readers of the outer local repository either see the old or the new version of any file but never a
+ * missing or a partially written one. A failed build leaves the outer local repository untouched.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class StagingRepository implements Closeable {
+    private static final String MAVEN_VERSION_PROPERTY = "maven.version";
+    private static final String REPO_LOCAL_PREFIX = "-Dmaven.repo.local=";
+    static final String TAIL_PROPERTY = "maven.repo.local.tail";
+    private static final Pattern WRAPPER_DISTRIBUTION_VERSION = Pattern
+            .compile("apache-maven-([0-9][^/]*?)-bin\\.(?:zip|tar\\.gz)");
+
+    /**
+     * @param buildArguments
+     *            the build arguments as produced by the enhancement in {@link SrcdepsLocalRepositoryManager}
+     * @param localRepository
+     *            the local Maven repository of the outer build
+     * @return {@code true} if the nested build would install to the given {@code localRepository} and thus can be
+     *         staged; {@code false} if the user has set some other {@code maven.repo.local} in {@code srcdeps.yaml}
+     */
+    static boolean canStage(List<String> buildArguments, Path localRepository) {
+        return buildArguments.contains(REPO_LOCAL_PREFIX + localRepository.toAbsolutePath());
+    }
+
+    /**
+     * Creates a new empty {@link StagingRepository} in a subdirectory of the given {@code stagingDirectory}. The
+     * {@code stagingDirectory} should be on the same file system as {@code localRepository} so that the staged files
+     * can be renamed rather than copied.
+     *
+     * @param stagingDirectory
+     *            the parent directory of the staging repositories
+     * @param scmRepoId
+     *            the ID of the SCM repository to stage for
+     * @param localRepository
+     *            the local Maven repository of the outer build
+     * @return a new {@link StagingRepository}
+     * @throws IOException
+     *             if the directory could not be created
+     */
+    static StagingRepository create(Path stagingDirectory, String scmRepoId, Path localRepository)
+            throws IOException {
+        Files.createDirectories(stagingDirectory);
+        return new StagingRepository(Files.createTempDirectory(stagingDirectory, scmRepoId + "-"),
+                localRepository.toAbsolutePath());
+    }
+
+    /**
+     * @param mavenVersion
+     *            the Maven version to check, may be {@code null}
+     * @return {@code true} if the given Maven version is known to support {@value #TAIL_PROPERTY}, i.e. if it is
+     *         3.9.0 or newer; {@code false} otherwise
+     */
+    static boolean isTailSupported(String mavenVersion) {
+        if (mavenVersion == null) {
+            return false;
+        }
+        final String[] segments = mavenVersion.split("[.-]");
+        try {
+            final int major = Integer.parseInt(segments[0]);
+            final int minor = segments.length > 1 ? Integer.parseInt(segments[1]) : 0;
+            return major > 3 || (major == 3 && minor >= 9);
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
+    private static void moveAtomically(Path source, Path target) throws IOException {
+        try {
+            Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            /* Different file systems: copy next to the target first so that the final rename is atomic */
+            final Path tmp = target.resolveSibling(target.getFileName() + ".srcdeps-tmp");
+            Files.copy(source, tmp, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.COPY_ATTRIBUTES);
+            Files.move(tmp, target, StandardCopyOption.ATOMIC_MOVE);
+            Files.delete(source);
+        }
+    }
+
+    /**
+     * @param projectRootDirectory
+     *            the root directory of the source tree to build
+     * @param systemProperties
+     *            the system properties of the outer build
+     * @return the version of Maven that will run the nested build of the given source tree: the one required via the
+     *         Maven wrapper of the source tree if any, otherwise the one of the outer build, or {@code null} if it
+     *         cannot be determined
+     * @throws IOException
+     *             if the Maven wrapper properties cannot be read
+     */
+    static String nestedMavenVersion(Path projectRootDirectory, Properties systemProperties) throws IOException {
+        final Path wrapperProperties = projectRootDirectory.resolve(InProcessMavenBuilder.WRAPPER_PROPERTIES);
+        if (Files.exists(wrapperProperties)) {
+            final Properties props = new Properties();
+            try (Reader in = Files.newBufferedReader(wrapperProperties, StandardCharsets.ISO_8859_1)) {
+                props.load(in);
+            }
+            final String url = props.getProperty("distributionUrl");
+            final Matcher m = url == null ? null : WRAPPER_DISTRIBUTION_VERSION.matcher(url);
+            return m != null && m.find() ? m.group(1) : null;
+        }
+        return systemProperties.getProperty(MAVEN_VERSION_PROPERTY);
+    }
+
+    private final Path localRepository;
+    private final Path root;
+
+    StagingRepository(Path root, Path localRepository) {
+        super();
+        this.root = root;
+        this.localRepository = localRepository;
+    }
+
+    /**
+     * @param buildArguments
+     *            the build arguments for which {@link #canStage(List, Path)} returned {@code true}
+     * @return the given {@code buildArguments} with {@code maven.repo.local} pointing at this
+     *         {@link StagingRepository} and with the outer local repository as {@value #TAIL_PROPERTY}
+     */
+    public List<String> buildArguments(List<String> buildArguments) {
+        final String outer = REPO_LOCAL_PREFIX + localRepository;
+        final List<String> result = new ArrayList<>(buildArguments.size() + 2);
+        for (String arg : buildArguments) {
+            if (arg.equals(outer)) {
+                result.add(REPO_LOCAL_PREFIX + root);
+                result.add("-D" + TAIL_PROPERTY + "=" + localRepository);
+                result.add("-D" + TAIL_PROPERTY + ".ignoreAvailability=true");
+            } else {
+                result.add(arg);
+            }
+        }
+        return Collections.unmodifiableList(result);
+    }
+
+    /**
+     * Deletes this {@link StagingRepository} including any files not committed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (Files.exists(root)) {
+            SrcdepsCoreUtils.deleteDirectory(root);
+        }
+    }
+
+    /**
+     * Moves the files from the given {@code stagedGavDirectories} to the respective version directories in the outer
+     * local repository. Each file is moved by an atomic rename replacing its former version. The files not produced
+     * by the staged build are deleted afterwards from the respective directories and so are the
+     * {@code installedGavDirectories} not produced by the staged build at all. Finally, the files the nested build
+     * has downloaded to this {@link StagingRepository} are moved to the outer local repository unless they exist
+     * there already.
+     *
+     * @param stagedGavDirectories
+     *            the version directories under {@link #getRoot()} installed by the nested build
+     * @param installedGavDirectories
+     *            the version directories in the outer local repository to replace
+     * @return the number of the files installed by the nested build moved to the outer local repository
+     * @throws IOException
+     *             on I/O errors
+     */
+    public int commit(Collection<Path> stagedGavDirectories, Collection<Path> installedGavDirectories)
+            throws IOException {
+        int result = 0;
+        final Set<Path> committed = new HashSet<>();
+        for (Path stagedGavDir : stagedGavDirectories) {
+            final Path gavDir = localRepository.resolve(root.relativize(stagedGavDir).toString());
+            Files.createDirectories(gavDir);
+            final Set<String> stagedNames = new HashSet<>();
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(stagedGavDir)) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file)) {
+                        final String name = file.getFileName().toString();
+                        stagedNames.add(name);
+                        moveAtomically(file, gavDir.resolve(name));
+                        result++;
+                    }
+                }
+            }
+            try (DirectoryStream<Path> files = Files.newDirectoryStream(gavDir)) {
+                for (Path file : files) {
+                    if (Files.isRegularFile(file) && LocalBuildMetadataStore.isArtifact(file)
+                            && !stagedNames.contains(file.getFileName().toString())) {
+                        Files.delete(file);
+                    }
+                }
+            }
+            committed.add(gavDir);
+        }
+        for (Path gavDir : installedGavDirectories) {
+            if (!committed.contains(gavDir.toAbsolutePath())) {
+                SrcdepsCoreUtils.deleteDirectory(gavDir);
+            }
+        }
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                final Path target = localRepository.resolve(root.relativize(file).toString());
+                if (!Files.exists(target)) {
+                    Files.createDirectories(target.getParent());
+                    try {
+                        Files.move(file, target);
+                    } catch (FileAlreadyExistsException e) {
+                        /* Downloaded by some other build in the meantime */
+                    }
+                }
+                return FileVisitResult.CONTINUE;
+            }
+        });
+        return result;
+    }
+
+    /**
+     * @return the root directory of this {@link StagingRepository}
+     */
+    public Path getRoot() {
+        return root;
+    }
+
+}
@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.srcdeps.core.util.SrcdepsCoreUtils;
+
+/**
+ * Deletes directories in the background. {@link #delete(Path)} just renames the given directory to a unique name
+ * under the trash directory, which is a cheap operation if both are on the same file system, and the actual recursive
+ * deletion happens on a single daemon thread. Hence deleting large directories does not block the caller.
+ * <p>
+ * The trash directory should be on the same file system as the directories to delete. If the rename fails for any
+ * reason, the directory is deleted synchronously. Whatever is left in the trash directory at the end of the JVM (e.g.
+ * because the JVM exited before the deleting thread was done) is deleted when a new {@link Trash} is created for the
+ * same directory.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class Trash {
+    private static final Logger log = LoggerFactory.getLogger(Trash.class);
+
+    private static void deleteQuietly(Path dir) {
+        try {
+            SrcdepsCoreUtils.deleteDirectory(dir);
+        } catch (IOException e) {
+            /* Possibly being deleted by some other process sharing the same trash directory */
+            log.debug("srcdeps: Could not delete [{}]", dir, e);
+        }
+    }
+
+    private final BackgroundWork backgroundWork;
+    private final ExecutorService deleter;
+    private final Path directory;
+
+    Trash(Path directory) {
+        this(directory, new BackgroundWork());
+    }
+
+    /**
+     * @param directory
+     *            the directory to move the deleted directories to
+     * @param backgroundWork
+     *            the {@link BackgroundWork} through which the deletions can be paused
+     */
+    Trash(Path directory, BackgroundWork backgroundWork) {
+        super();
+        this.directory = directory;
+        this.backgroundWork = backgroundWork;
+        this.deleter = Executors.newSingleThreadExecutor(new DaemonThreadFactory("srcdeps-trash"));
+        deleter.execute(backgroundWork.wrap(() -> {
+            if (Files.isDirectory(directory)) {
+                try (DirectoryStream<Path> leftovers = Files.newDirectoryStream(directory)) {
+                    for (Path leftover : leftovers) {
+                        deleteQuietly(leftover);
+                    }
+                } catch (IOException e) {
+                    log.debug("srcdeps: Could not list [{}]", directory, e);
+                }
+            }
+        }));
+    }
+
+    /**
+     * Waits for the pending deletions to finish after {@link #shutdown()}.
+     *
+     * @param timeout
+     *            the maximum time to wait
+     * @param unit
+     *            the unit of {@code timeout}
+     * @return {@code true} if all pending deletions have finished; {@code false} if the timeout elapsed before
+     * @throws InterruptedException
+     *             if interrupted while waiting
+     */
+    boolean awaitTermination(long timeout, TimeUnit unit) throws InterruptedException {
+        return deleter.awaitTermination(timeout, unit);
+    }
+
+    /**
+     * Moves the given directory out of the way and deletes it asynchronously. Does nothing if the given directory does
+     * not exist.
+     *
+     * @param dir
+     *            the directory to delete
+     * @throws IOException
+     *             if the directory could neither be moved nor deleted synchronously
+     */
+    public void delete(Path dir) throws IOException {
+        if (!Files.exists(dir)) {
+            return;
+        }
+        final Path trashed = directory.resolve(UUID.randomUUID().toString());
+        try {
+            Files.createDirectories(directory);
+            Files.move(dir, trashed, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            log.debug("srcdeps: Could not move [{}] to [{}]; deleting it synchronously", dir, trashed, e);
+            SrcdepsCoreUtils.deleteDirectory(dir);
+            return;
+        }
+        deleter.execute(backgroundWork.wrap(() -> deleteQuietly(trashed)));
+    }
+
+    /**
+     * Stops accepting new deletions. The pending ones continue on the daemon thread without blocking the caller.
+     */
+    public void shutdown() {
+        deleter.shutdown();
+    }
+}
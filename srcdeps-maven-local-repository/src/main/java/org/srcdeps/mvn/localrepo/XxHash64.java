@@ -0,0 +1,130 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+/**
+ * A streaming implementation of the non-cryptographic 64-bit
+ * <a href="https://github.com/Cyan4973/xxHash/blob/dev/doc/xxhash_spec.md">XXH64</a> hash function with seed
+ * {@code 0}. Not thread safe.
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+class XxHash64 {
+    private static final long PRIME64_1 = 0x9E3779B185EBCA87L;
+    private static final long PRIME64_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long PRIME64_3 = 0x165667B19E3779F9L;
+    private static final long PRIME64_4 = 0x85EBCA77C2B2AE63L;
+    private static final long PRIME64_5 = 0x27D4EB2F165667C5L;
+    private static final int STRIPE_LENGTH = 32;
+
+    private static long mergeRound(long acc, long val) {
+        acc ^= round(0, val);
+        return acc * PRIME64_1 + PRIME64_4;
+    }
+
+    private static long round(long acc, long input) {
+        acc += input * PRIME64_2;
+        acc = Long.rotateLeft(acc, 31);
+        return acc * PRIME64_1;
+    }
+
+    private long acc1 = PRIME64_1 + PRIME64_2;
+    private long acc2 = PRIME64_2;
+    private long acc3 = 0;
+    private long acc4 = -PRIME64_1;
+    /** The bytes not consumed by a full stripe yet */
+    private final ByteBuffer pending = ByteBuffer.allocate(STRIPE_LENGTH).order(ByteOrder.LITTLE_ENDIAN);
+    private long totalLength;
+
+    private void consumeStripe(ByteBuffer stripe) {
+        acc1 = round(acc1, stripe.getLong());
+        acc2 = round(acc2, stripe.getLong());
+        acc3 = round(acc3, stripe.getLong());
+        acc4 = round(acc4, stripe.getLong());
+    }
+
+    /**
+     * @return the hash of all bytes passed to {@link #update(ByteBuffer)} so far
+     */
+    public long digest() {
+        long result;
+        if (totalLength >= STRIPE_LENGTH) {
+            result = Long.rotateLeft(acc1, 1) + Long.rotateLeft(acc2, 7) + Long.rotateLeft(acc3, 12)
+                    + Long.rotateLeft(acc4, 18);
+            result = mergeRound(result, acc1);
+            result = mergeRound(result, acc2);
+            result = mergeRound(result, acc3);
+            result = mergeRound(result, acc4);
+        } else {
+            result = PRIME64_5;
+        }
+        result += totalLength;
+
+        final ByteBuffer rest = pending.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        rest.flip();
+        while (rest.remaining() >= 8) {
+            result ^= round(0, rest.getLong());
+            result = Long.rotateLeft(result, 27) * PRIME64_1 + PRIME64_4;
+        }
+        if (rest.remaining() >= 4) {
+            result ^= (rest.getInt() & 0xFFFFFFFFL) * PRIME64_1;
+            result = Long.rotateLeft(result, 23) * PRIME64_2 + PRIME64_3;
+        }
+        while (rest.hasRemaining()) {
+            result ^= (rest.get() & 0xFFL) * PRIME64_5;
+            result = Long.rotateLeft(result, 11) * PRIME64_1;
+        }
+
+        result ^= result >>> 33;
+        result *= PRIME64_2;
+        result ^= result >>> 29;
+        result *= PRIME64_3;
+        result ^= result >>> 32;
+        return result;
+    }
+
+    /**
+     * Feeds all remaining bytes of the given {@code input} to this hash.
+     *
+     * @param input
+     *            the bytes to hash
+     */
+    public void update(ByteBuffer input) {
+        final ByteBuffer in = input.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        totalLength += in.remaining();
+        if (pending.position() > 0) {
+            while (pending.hasRemaining() && in.hasRemaining()) {
+                pending.put(in.get());
+            }
+            if (pending.hasRemaining()) {
+                input.position(input.limit());
+                return;
+            }
+            pending.flip();
+            consumeStripe(pending);
+            pending.clear();
+        }
+        while (in.remaining() >= STRIPE_LENGTH) {
+            consumeStripe(in);
+        }
+        pending.put(in);
+        input.position(input.limit());
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Compares {@link ArtifactHasher} using the given {@link #algorithm} with the serial streaming SHA-1 hashing formerly
+ * used to check the artifacts installed by nested builds. Note that {@code crc32c} requires Java 9+. The benchmark
+ * runs on a synthetic local Maven repository of {@link #artifactCount} GAVs, each having a jar of {@link #jarSize}
+ * bytes and a small pom.
+ * <p>
+ * Run from the {@code srcdeps-maven-local-repository} directory with
+ *
+ * <pre>
+ * mvn test-compile exec:exec
+ * </pre>
+ *
+ * @author <a href="https://github.com/ppalaga">Peter Palaga</a>
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Fork(1)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+public class ArtifactHasherBenchmark {
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder().include(ArtifactHasherBenchmark.class.getSimpleName()).build()).run();
+    }
+
+    @Param({ "sha1", "xxh64", "crc32c" })
+    public String algorithm;
+
+    @Param("500")
+    public int artifactCount;
+
+    private List<Path> files;
+    private ArtifactHasher hasher;
+
+    @Param("262144")
+    public int jarSize;
+
+    private ForkJoinPool pool;
+
+    private Path root;
+
+    @Benchmark
+    public Map<Path, String> parallelMapped() throws IOException {
+        return hasher.hashAll(files, HashAlgorithm.valueOf(algorithm));
+    }
+
+    @Benchmark
+    public Map<Path, String> serialStreaming() throws Exception {
+        final Map<Path, String> result = new LinkedHashMap<>();
+        final byte[] buffer = new byte[8192];
+        for (Path file : files) {
+            final MessageDigest digest = MessageDigest.getInstance("SHA-1");
+            try (InputStream in = Files.newInputStream(file)) {
+                int len;
+                while ((len = in.read(buffer)) >= 0) {
+                    digest.update(buffer, 0, len);
+                }
+            }
+            result.put(file, ArtifactHasher.toHex(digest.digest()));
+        }
+        return result;
+    }
+
+    @Setup
+    public void setup() throws IOException {
+        root = Files.createTempDirectory(ArtifactHasherBenchmark.class.getSimpleName());
+        files = new ArrayList<>(artifactCount * 2);
+        final Random random = new Random(42);
+        final byte[] jar = new byte[jarSize];
+        for (int i = 0; i < artifactCount; i++) {
+            final String artifactId = "artifact-" + i;
+            final Path gavDir = root.resolve("org/example").resolve(artifactId).resolve("1.0-SRC-branch-master");
+            Files.createDirectories(gavDir);
+            random.nextBytes(jar);
+            files.add(Files.write(gavDir.resolve(artifactId + "-1.0-SRC-branch-master.jar"), jar));
+            final String pom = "<project><artifactId>" + artifactId + "</artifactId></project>";
+            files.add(Files.write(gavDir.resolve(artifactId + "-1.0-SRC-branch-master.pom"), pom.getBytes("UTF-8")));
+        }
+        pool = new ForkJoinPool();
+        hasher = new ArtifactHasher(pool);
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        pool.shutdown();
+        Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult postVisitDirectory(Path dir, IOException exc) throws IOException {
+                Files.delete(dir);
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+                Files.delete(file);
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+}
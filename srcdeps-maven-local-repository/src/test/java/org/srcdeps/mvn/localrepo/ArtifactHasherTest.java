@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ArtifactHasherTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void findFirstMismatch() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path a = Files.write(dir.resolve("a"), "abc".getBytes(StandardCharsets.UTF_8));
+        final Path b = Files.write(dir.resolve("b"), "abd".getBytes(StandardCharsets.UTF_8));
+        final Path c = Files.write(dir.resolve("c"), "abe".getBytes(StandardCharsets.UTF_8));
+        final ArtifactHasher hasher = new ArtifactHasher(ForkJoinPool.commonPool());
+        final Map<Path, String> hashes = hasher.hashAll(Arrays.asList(a, b, c), HashAlgorithm.xxh64);
+        Assert.assertEquals(Arrays.asList(a, b, c), Arrays.asList(hashes.keySet().toArray()));
+        Assert.assertNull(hasher.findFirstMismatch(hashes));
+
+        final Map<Path, String> expected = new LinkedHashMap<>(hashes);
+        expected.put(b, hashes.get(a));
+        Assert.assertEquals(b, hasher.findFirstMismatch(expected));
+
+        expected.put(b, "unknown:0123");
+        Assert.assertEquals(b, hasher.findFirstMismatch(expected));
+    }
+
+    @Test
+    public void hash() throws Exception {
+        final Path file = Files.write(tempDir.getRoot().toPath().resolve("f"), "abc".getBytes(StandardCharsets.UTF_8));
+        final ArtifactHasher hasher = new ArtifactHasher(ForkJoinPool.commonPool());
+        Assert.assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", hasher.hash(file, HashAlgorithm.sha1));
+        Assert.assertEquals("xxh64:44bc2cf5ad770999", hasher.hash(file, HashAlgorithm.xxh64));
+    }
+
+    @Test
+    public void mappedAndStreamedEqual() throws Exception {
+        final byte[] bytes = new byte[ArtifactHasher.MAP_THRESHOLD * 3 + 17];
+        for (int i = 0; i < bytes.length; i++) {
+            bytes[i] = (byte) (i * 31);
+        }
+        final Path file = Files.write(tempDir.getRoot().toPath().resolve("big"), bytes);
+        for (HashAlgorithm algorithm : new HashAlgorithm[] { HashAlgorithm.sha1, HashAlgorithm.xxh64 }) {
+            Assert.assertEquals(new ArtifactHasher(ForkJoinPool.commonPool(), false).hash(file, algorithm),
+                    new ArtifactHasher(ForkJoinPool.commonPool(), true).hash(file, algorithm));
+        }
+    }
+}
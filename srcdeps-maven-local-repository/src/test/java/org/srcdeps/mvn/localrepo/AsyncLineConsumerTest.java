@@ -0,0 +1,149 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.Flushable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.srcdeps.core.shell.LineConsumer;
+
+public class AsyncLineConsumerTest {
+
+    static class RecordingLineConsumer implements LineConsumer, Flushable {
+        private volatile boolean closed;
+        private volatile int flushes;
+        private final List<String> lines = Collections.synchronizedList(new ArrayList<>());
+
+        @Override
+        public void accept(String line) {
+            lines.add(line);
+        }
+
+        @Override
+        public void close() {
+            closed = true;
+        }
+
+        @Override
+        public void flush() {
+            flushes++;
+        }
+    }
+
+    @Test
+    public void block() throws Exception {
+        final int producers = 4;
+        final int linesPerProducer = 10000;
+        final RecordingLineConsumer delegate = new RecordingLineConsumer() {
+            @Override
+            public void accept(String line) {
+                if (line.endsWith("000")) {
+                    /* slow down the writer now and then to fill the buffer */
+                    try {
+                        Thread.sleep(1);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.accept(line);
+            }
+        };
+        final AsyncLineConsumer consumer = new AsyncLineConsumer(delegate, 10,
+                AsyncLineConsumer.OverflowPolicy.block, new DaemonThreadFactory("test-output"));
+        final List<Thread> threads = new ArrayList<>();
+        for (int p = 0; p < producers; p++) {
+            final int producer = p;
+            final Thread thread = new Thread(() -> {
+                for (int i = 0; i < linesPerProducer; i++) {
+                    consumer.accept(producer + ":" + i);
+                }
+            });
+            threads.add(thread);
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        consumer.close();
+
+        Assert.assertTrue(delegate.closed);
+        Assert.assertTrue(delegate.flushes > 0);
+        Assert.assertEquals(0, consumer.getDroppedCount());
+        Assert.assertEquals(producers * linesPerProducer, delegate.lines.size());
+        final int[] next = new int[producers];
+        for (String line : delegate.lines) {
+            final String[] parts = line.split(":");
+            final int producer = Integer.parseInt(parts[0]);
+            Assert.assertEquals(line, next[producer]++, Integer.parseInt(parts[1]));
+        }
+    }
+
+    @Test
+    public void drop() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final RecordingLineConsumer delegate = new RecordingLineConsumer() {
+            @Override
+            public void accept(String line) {
+                if ("first".equals(line)) {
+                    entered.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+                super.accept(line);
+            }
+        };
+        final AsyncLineConsumer consumer = new AsyncLineConsumer(delegate, 3, AsyncLineConsumer.OverflowPolicy.drop,
+                new DaemonThreadFactory("test-output"));
+        consumer.accept("first");
+        Assert.assertTrue(entered.await(10, TimeUnit.SECONDS));
+        for (int i = 0; i < 10; i++) {
+            consumer.accept(String.valueOf(i));
+        }
+        Assert.assertEquals(6, consumer.getDroppedCount());
+        release.countDown();
+        consumer.close();
+
+        Assert.assertTrue(delegate.closed);
+        Assert.assertEquals(Arrays.asList("first", "0", "1", "2", "3",
+                "[srcdeps] Dropped 6 lines of the build output because they were produced faster than they could be "
+                        + "written"),
+                delegate.lines);
+        consumer.accept("after close");
+        Assert.assertEquals(6, delegate.lines.size());
+    }
+
+    @Test
+    public void overflowPolicy() {
+        Assert.assertEquals(AsyncLineConsumer.OverflowPolicy.drop, AsyncLineConsumer.OverflowPolicy.ofName("drop"));
+        try {
+            AsyncLineConsumer.OverflowPolicy.ofName("wait");
+            Assert.fail("IllegalArgumentException expected");
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+}
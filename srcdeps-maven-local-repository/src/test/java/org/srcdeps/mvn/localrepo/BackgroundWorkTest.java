@@ -0,0 +1,83 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class BackgroundWorkTest {
+
+    @Test
+    public void pauseKeepsNewTasksFromStarting() throws Exception {
+        final BackgroundWork backgroundWork = new BackgroundWork();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            backgroundWork.pause();
+            final AtomicBoolean ran = new AtomicBoolean();
+            final Future<?> task;
+            try {
+                task = executor.submit(backgroundWork.wrap(() -> ran.set(true)));
+                try {
+                    task.get(200, TimeUnit.MILLISECONDS);
+                    Assert.fail("TimeoutException expected");
+                } catch (TimeoutException expected) {
+                }
+                Assert.assertFalse(ran.get());
+            } finally {
+                backgroundWork.resume();
+            }
+            task.get(10, TimeUnit.SECONDS);
+            Assert.assertTrue(ran.get());
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+    @Test
+    public void pauseWaitsForRunningTasks() throws Exception {
+        final BackgroundWork backgroundWork = new BackgroundWork();
+        final ExecutorService executor = Executors.newSingleThreadExecutor();
+        try {
+            final CountDownLatch started = new CountDownLatch(1);
+            final AtomicBoolean finished = new AtomicBoolean();
+            executor.submit(backgroundWork.wrap(() -> {
+                started.countDown();
+                Thread.sleep(200);
+                finished.set(true);
+                return null;
+            }));
+            Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            backgroundWork.pause();
+            try {
+                Assert.assertTrue(finished.get());
+            } finally {
+                backgroundWork.resume();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+    }
+
+}
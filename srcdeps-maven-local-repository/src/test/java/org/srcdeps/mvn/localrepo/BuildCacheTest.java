@@ -0,0 +1,104 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BuildCacheTest {
+    private static final String COMMIT_ID = "cafebabe";
+    private static final String GAV_PATH = "org/example/a/1.0-SRC-revision-cafebabe";
+    private static final String KEY = "0123abcd";
+    private static final String REPO_ID = "org.example";
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void breakLinks() throws Exception {
+        final Path root = tempDir.getRoot().toPath();
+        final BuildCache cache = new BuildCache(root.resolve("cache"), true);
+        final Path repo1 = root.resolve("repo1");
+        cache.store(REPO_ID, COMMIT_ID, KEY, repo1, Collections.singleton(installed(repo1)));
+        final Path repo2 = root.resolve("repo2");
+        cache.restore(REPO_ID, COMMIT_ID, KEY, repo2);
+        final Path jar = repo2.resolve(GAV_PATH).resolve("a-1.0-SRC-revision-cafebabe.jar");
+        final Path cached = root.resolve("cache").resolve(REPO_ID).resolve(COMMIT_ID).resolve(KEY).resolve(GAV_PATH)
+                .resolve("a-1.0-SRC-revision-cafebabe.jar");
+        Assert.assertTrue(Files.isSameFile(jar, cached));
+
+        Assert.assertEquals(2, cache.breakLinks(Collections.singleton(repo2.resolve(GAV_PATH))));
+        Assert.assertFalse(Files.isSameFile(jar, cached));
+        Assert.assertEquals(0, cache.breakLinks(Collections.singleton(repo2.resolve(GAV_PATH))));
+
+        /* Installing over the copy in place does not go through to the cache */
+        Files.write(jar, "rebuilt".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals("jar", new String(Files.readAllBytes(cached), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void copy() throws Exception {
+        final Path root = tempDir.getRoot().toPath();
+        final BuildCache cache = new BuildCache(root.resolve("cache"), false);
+        Assert.assertEquals(2, cache.store(REPO_ID, COMMIT_ID, KEY, root.resolve("repo1"),
+                Collections.singleton(installed(root.resolve("repo1")))));
+
+        final Path repo2 = root.resolve("repo2");
+        Assert.assertEquals(2, cache.restore(REPO_ID, COMMIT_ID, KEY, repo2));
+        final Path jar = repo2.resolve(GAV_PATH).resolve("a-1.0-SRC-revision-cafebabe.jar");
+        Assert.assertEquals("jar", new String(Files.readAllBytes(jar), StandardCharsets.UTF_8));
+        Assert.assertFalse(Files.isSameFile(jar, root.resolve("cache").resolve(REPO_ID).resolve(COMMIT_ID)
+                .resolve(KEY).resolve(GAV_PATH).resolve("a-1.0-SRC-revision-cafebabe.jar")));
+        Assert.assertFalse(Files.exists(repo2.resolve(GAV_PATH).resolve("_remote.repositories")));
+    }
+
+    private Path installed(Path localRepo) throws Exception {
+        final Path gavDir = localRepo.resolve(GAV_PATH);
+        Files.createDirectories(gavDir);
+        Files.write(gavDir.resolve("a-1.0-SRC-revision-cafebabe.jar"), "jar".getBytes(StandardCharsets.UTF_8));
+        Files.write(gavDir.resolve("a-1.0-SRC-revision-cafebabe.pom"), "pom".getBytes(StandardCharsets.UTF_8));
+        Files.write(gavDir.resolve("_remote.repositories"), "x".getBytes(StandardCharsets.UTF_8));
+        return gavDir;
+    }
+
+    @Test
+    public void link() throws Exception {
+        final Path root = tempDir.getRoot().toPath();
+        final BuildCache cache = new BuildCache(root.resolve("cache"), true);
+        Assert.assertEquals(-1, cache.restore(REPO_ID, COMMIT_ID, KEY, root.resolve("repo2")));
+        final Path repo1 = root.resolve("repo1");
+        Assert.assertEquals(2,
+                cache.store(REPO_ID, COMMIT_ID, KEY, repo1, Collections.singleton(installed(repo1))));
+        /* An existing entry is not overwritten */
+        Assert.assertEquals(0,
+                cache.store(REPO_ID, COMMIT_ID, KEY, repo1, Collections.singleton(repo1.resolve(GAV_PATH))));
+
+        final Path repo2 = root.resolve("repo2");
+        Assert.assertEquals(2, cache.restore(REPO_ID, COMMIT_ID, KEY, repo2));
+        final Path pom = repo2.resolve(GAV_PATH).resolve("a-1.0-SRC-revision-cafebabe.pom");
+        Assert.assertTrue(Files.isSameFile(pom, root.resolve("cache").resolve(REPO_ID).resolve(COMMIT_ID)
+                .resolve(KEY).resolve(GAV_PATH).resolve("a-1.0-SRC-revision-cafebabe.pom")));
+        Assert.assertEquals(-1, cache.restore(REPO_ID, "other", KEY, repo2));
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.srcdeps.core.SrcVersion;
+import org.srcdeps.mvn.localrepo.BuildReport.Outcome;
+import org.srcdeps.mvn.localrepo.BuildReport.Phase;
+
+public class BuildReportTest {
+    private static final SrcVersion VERSION = SrcVersion.parse("1.0-SRC-revision-cafebabe");
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static BuildReport report() {
+        final BuildReport report = new BuildReport();
+        final BuildReport.Record record = report.record(new BuildKey("org.example", VERSION));
+        record.add(Phase.checkout, TimeUnit.MILLISECONDS.toNanos(1200));
+        record.add(Phase.build, TimeUnit.MILLISECONDS.toNanos(34000));
+        record.add(Phase.build, TimeUnit.MILLISECONDS.toNanos(500));
+        record.setCommitId("cafebabe");
+        record.setOutcome(Outcome.built, "new \"revision\"");
+        report.skip("org.example", "built in this session");
+        report.skip("org.example", "built in this session");
+        report.skip("org.other", "immutable version installed");
+        return report;
+    }
+
+    @Test
+    public void json() throws Exception {
+        final BuildReport report = report();
+        Assert.assertFalse(report.isEmpty());
+        final Path file = tempDir.getRoot().toPath().resolve("target/srcdeps-report.json");
+        report.write(file);
+        final String expected = "{\n" //
+                + "  \"repositories\": [\n" //
+                + "    {\n" //
+                + "      \"id\": \"org.example\",\n" //
+                + "      \"skips\": {\"built in this session\": 2},\n" //
+                + "      \"builds\": [\n" //
+                + "        {\n" //
+                + "          \"srcVersion\": \"" + VERSION + "\",\n" //
+                + "          \"commitId\": \"cafebabe\",\n" //
+                + "          \"outcome\": \"built\",\n" //
+                + "          \"reason\": \"new \\\"revision\\\"\",\n" //
+                + "          \"totalMs\": 35700,\n" //
+                + "          \"phasesMs\": {\"prefetch\": 0, \"lock\": 0, \"includes\": 0, \"checkout\": 1200, "
+                + "\"verify\": 0, \"uninstall\": 0, \"restore\": 0, \"build\": 34500, \"install\": 0, \"stamps\": 0, "
+                + "\"cacheStore\": 0}\n" //
+                + "        }\n" //
+                + "      ]\n" //
+                + "    },\n" //
+                + "    {\n" //
+                + "      \"id\": \"org.other\",\n" //
+                + "      \"skips\": {\"immutable version installed\": 1},\n" //
+                + "      \"builds\": []\n" //
+                + "    }\n" //
+                + "  ]\n" //
+                + "}\n";
+        Assert.assertEquals(expected, new String(Files.readAllBytes(file), StandardCharsets.UTF_8));
+        Assert.assertEquals("{\n  \"repositories\": []\n}\n", new BuildReport().toJson());
+        Assert.assertTrue(new BuildReport().isEmpty());
+    }
+
+    @Test
+    public void modules() throws Exception {
+        final BuildReport report = new BuildReport();
+        final BuildReport.Record record = report.record(new BuildKey("org.example", VERSION));
+        record.setOutcome(Outcome.built, null);
+        final Map<String, Long> mojos = new LinkedHashMap<>();
+        mojos.put("maven-surefire-plugin:test (default-test)", 900L);
+        mojos.put("maven-compiler-plugin:compile (default-compile)", 100L);
+        record.setModuleTimings(new ModuleTimings(Arrays.asList(
+                new ModuleTimings.Module("org.example:core", 1000, "success", mojos),
+                new ModuleTimings.Module("org.example:parent", 5, "success", Collections.emptyMap()))));
+
+        final String json = report.toJson();
+        Assert.assertTrue(json, json.contains(", \"cacheStore\": 0},\n" //
+                + "          \"modules\": [\n" //
+                + "            {\"id\": \"org.example:core\", \"result\": \"success\", \"ms\": 1000, \"mojosMs\": "
+                + "{\"maven-surefire-plugin:test (default-test)\": 900, "
+                + "\"maven-compiler-plugin:compile (default-compile)\": 100}},\n" //
+                + "            {\"id\": \"org.example:parent\", \"result\": \"success\", \"ms\": 5, \"mojosMs\": {}}\n"
+                + "          ]\n" //
+                + "        }\n"));
+
+        final String[] lines = report.toTable().split("\n");
+        Assert.assertEquals(3, lines.length);
+        Assert.assertEquals("Slowest modules of org.example " + VERSION
+                + ": org.example:core 1000 ms (maven-surefire-plugin:test (default-test) 900 ms);"
+                + " org.example:parent 5 ms", lines[2]);
+    }
+
+    @Test
+    public void table() {
+        final String table = report().toTable();
+        final String[] lines = table.split("\n");
+        Assert.assertEquals(4, lines.length);
+        Assert.assertTrue(lines[0],
+                lines[0].matches("SCM repository +Source version +Outcome +Total ms +checkout +build"));
+        Assert.assertTrue(lines[1],
+                lines[1].matches("org\\.example +\\Q" + VERSION + "\\E +built +35700 +1200 +34500"));
+        Assert.assertEquals("Skipped lookups of org.example: built in this session 2x", lines[2]);
+        Assert.assertEquals("Skipped lookups of org.other: immutable version installed 1x", lines[3]);
+    }
+}
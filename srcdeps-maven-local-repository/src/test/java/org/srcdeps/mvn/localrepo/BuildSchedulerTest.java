@@ -0,0 +1,115 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.srcdeps.core.BuildException;
+import org.srcdeps.core.SrcVersion;
+
+public class BuildSchedulerTest {
+    private static final BuildKey KEY_A = new BuildKey("org.example.a", SrcVersion.parse("1.0-SRC-branch-master"));
+    private static final BuildKey KEY_B = new BuildKey("org.example.b", SrcVersion.parse("1.0-SRC-branch-master"));
+
+    @Test
+    public void deduplicated() throws Exception {
+        final BuildScheduler scheduler = new BuildScheduler(2);
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            final CountDownLatch release = new CountDownLatch(1);
+            final CompletableFuture<Void> first = scheduler.schedule(KEY_A, () -> {
+                release.await();
+                runs.incrementAndGet();
+            });
+            final CompletableFuture<Void> second = scheduler.schedule(KEY_A, runs::incrementAndGet);
+            Assert.assertSame(first, second);
+            Assert.assertSame(first, scheduler.get(KEY_A));
+            release.countDown();
+            first.get(10, TimeUnit.SECONDS);
+            /* Also after the build has finished */
+            Assert.assertSame(first, scheduler.schedule(KEY_A, runs::incrementAndGet));
+            Assert.assertEquals(1, runs.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void failureCached() throws Exception {
+        final BuildScheduler scheduler = new BuildScheduler(1);
+        try {
+            final AtomicInteger runs = new AtomicInteger();
+            final CompletableFuture<Void> failed = scheduler.schedule(KEY_A, () -> {
+                runs.incrementAndGet();
+                throw new BuildException("Build failed");
+            });
+            try {
+                failed.get(10, TimeUnit.SECONDS);
+                Assert.fail("ExecutionException expected");
+            } catch (ExecutionException expected) {
+                Assert.assertTrue(expected.getCause() instanceof BuildException);
+            }
+            /* The failure is remembered for the session rather than retried */
+            Assert.assertSame(failed, scheduler.schedule(KEY_A, runs::incrementAndGet));
+            Assert.assertTrue(scheduler.get(KEY_A).isCompletedExceptionally());
+            Assert.assertEquals(1, runs.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void parallel() throws Exception {
+        final BuildScheduler scheduler = new BuildScheduler(2);
+        try {
+            /* Each of the builds waits for the other one to start */
+            final CountDownLatch started = new CountDownLatch(2);
+            final CompletableFuture<Void> a = scheduler.schedule(KEY_A, () -> {
+                started.countDown();
+                Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            });
+            final CompletableFuture<Void> b = scheduler.schedule(KEY_B, () -> {
+                started.countDown();
+                Assert.assertTrue(started.await(10, TimeUnit.SECONDS));
+            });
+            CompletableFuture.allOf(a, b).get(20, TimeUnit.SECONDS);
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+
+    @Test
+    public void prerequisiteFailed() throws Exception {
+        final BuildScheduler scheduler = new BuildScheduler(2);
+        try {
+            final CompletableFuture<Void> upstream = scheduler.schedule(KEY_A, () -> {
+                throw new BuildException("Build failed");
+            });
+            final AtomicInteger runs = new AtomicInteger();
+            scheduler.schedule(KEY_B, upstream, runs::incrementAndGet).get(10, TimeUnit.SECONDS);
+            Assert.assertEquals(1, runs.get());
+        } finally {
+            scheduler.shutdown();
+        }
+    }
+}
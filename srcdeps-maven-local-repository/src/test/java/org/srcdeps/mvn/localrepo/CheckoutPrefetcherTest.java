@@ -0,0 +1,112 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.file.Path;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.srcdeps.core.BuildException;
+import org.srcdeps.core.SrcVersion;
+
+public class CheckoutPrefetcherTest {
+    private static final BuildKey KEY = new BuildKey("org.example", SrcVersion.parse("1.0-SRC-branch-master"));
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void awaitFailed() {
+        final CheckoutPrefetcher prefetcher = new CheckoutPrefetcher(1);
+        try {
+            Assert.assertTrue(prefetcher.prefetch(KEY, () -> {
+                throw new BuildException("Could not fetch");
+            }));
+            /* null tells the caller to check out synchronously */
+            Assert.assertNull(prefetcher.await(KEY));
+            /* The failure is not retried in the background */
+            Assert.assertFalse(prefetcher.prefetch(KEY, () -> new CheckoutPrefetcher.Checkout(null, "cafe")));
+            Assert.assertNull(prefetcher.await(KEY));
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void awaitNotPrefetched() {
+        final CheckoutPrefetcher prefetcher = new CheckoutPrefetcher(1);
+        try {
+            Assert.assertNull(prefetcher.await(KEY));
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void buildDirectoryReused() {
+        final Path dir = tempDir.getRoot().toPath().resolve("build");
+        final AtomicInteger calls = new AtomicInteger();
+        final CheckoutPrefetcher prefetcher = new CheckoutPrefetcher(2);
+        try {
+            Assert.assertTrue(prefetcher.prefetch(KEY, () -> {
+                calls.incrementAndGet();
+                return new CheckoutPrefetcher.Checkout(dir, "cafe");
+            }));
+            Assert.assertFalse(prefetcher.prefetch(KEY, () -> {
+                calls.incrementAndGet();
+                return new CheckoutPrefetcher.Checkout(dir, "babe");
+            }));
+            final CheckoutPrefetcher.Checkout checkout = prefetcher.await(KEY);
+            Assert.assertEquals("cafe", checkout.getCommitId());
+            Assert.assertTrue(checkout.isCheckedOut());
+            Assert.assertTrue(checkout.isReusableIn(dir));
+            /* A build which got some other build directory has to check out synchronously */
+            Assert.assertFalse(checkout.isReusableIn(tempDir.getRoot().toPath().resolve("build-1")));
+            Assert.assertSame(checkout, prefetcher.await(KEY));
+            Assert.assertEquals(1, calls.get());
+        } finally {
+            prefetcher.shutdown();
+        }
+    }
+
+    @Test
+    public void shutdown() throws Exception {
+        final BuildKey otherKey = new BuildKey("org.example", SrcVersion.parse("1.0-SRC-branch-other"));
+        final CountDownLatch started = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final CheckoutPrefetcher prefetcher = new CheckoutPrefetcher(1);
+        prefetcher.prefetch(KEY, () -> {
+            started.countDown();
+            release.await();
+            return new CheckoutPrefetcher.Checkout(null, "cafe");
+        });
+        prefetcher.prefetch(otherKey, () -> new CheckoutPrefetcher.Checkout(null, "babe"));
+        started.await();
+        prefetcher.shutdown();
+        Assert.assertFalse(prefetcher.awaitTermination(0, TimeUnit.MILLISECONDS));
+        release.countDown();
+        Assert.assertTrue(prefetcher.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals("cafe", prefetcher.await(KEY).getCommitId());
+        /* Not started before the shutdown */
+        Assert.assertNull(prefetcher.await(otherKey));
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ChromeTraceTest {
+
+    private static final Pattern COMPLETE_EVENT = Pattern.compile(
+            "\\{\"name\": \"((?:[^\"\\\\]|\\\\.)*)\", \"cat\": \"([^\"]*)\", "
+                    + "\"ph\": \"X\", \"ts\": (\\d+), \"dur\": (\\d+), \"pid\": 1, \"tid\": (\\d+), "
+                    + "\"args\": \\{([^}]*)\\}\\}");
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void disabled() {
+        final ChromeTrace trace = ChromeTrace.create(false);
+        Assert.assertSame(ChromeTrace.DISABLED, trace);
+        Assert.assertFalse(trace.isEnabled());
+        try (ChromeTrace.Span span = trace.begin("build", "org.example").arg("srcVersion", "1.0-SRC-revision-1")) {
+        }
+        Assert.assertTrue(trace.isEmpty());
+    }
+
+    @Test
+    public void spans() throws Exception {
+        final ChromeTrace trace = ChromeTrace.create(true);
+        Assert.assertTrue(trace.isEnabled());
+        Assert.assertTrue(trace.isEmpty());
+        try (ChromeTrace.Span outer = trace.begin("project", "org.example:app").arg("version", "1.0")) {
+            final Thread worker = new Thread(() -> {
+                try (ChromeTrace.Span span = trace.begin("checkout", "org.\"dep\"").arg("srcVersion", null)) {
+                    Thread.sleep(2);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }, "srcdeps-worker");
+            worker.start();
+            worker.join();
+        }
+        Assert.assertFalse(trace.isEmpty());
+
+        final Path file = tempDir.getRoot().toPath().resolve("target/srcdeps-trace.json");
+        trace.write(file);
+        final String json = new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+        Assert.assertEquals(trace.toJson(), json);
+        Assert.assertTrue(json, json.startsWith("{\n  \"displayTimeUnit\": \"ms\",\n  \"traceEvents\": [\n"));
+        Assert.assertTrue(json, json.endsWith("\n  ]\n}\n"));
+        Assert.assertTrue(json, json.contains("\"args\": {\"name\": \"srcdeps-worker\"}"));
+        Assert.assertTrue(json, json.contains("\"args\": {\"name\": \"" + Thread.currentThread().getName() + "\"}"));
+
+        final Matcher m = COMPLETE_EVENT.matcher(json);
+        Assert.assertTrue(json, m.find());
+        Assert.assertEquals("org.example:app", m.group(1));
+        Assert.assertEquals("project", m.group(2));
+        final long outerTs = Long.parseLong(m.group(3));
+        final long outerDur = Long.parseLong(m.group(4));
+        final String outerTid = m.group(5);
+        Assert.assertEquals(String.valueOf(Thread.currentThread().getId()), outerTid);
+        Assert.assertEquals("\"version\": \"1.0\"", m.group(6));
+
+        Assert.assertTrue(json, m.find());
+        Assert.assertEquals("org.\\\"dep\\\"", m.group(1));
+        Assert.assertEquals("checkout", m.group(2));
+        final long innerTs = Long.parseLong(m.group(3));
+        final long innerDur = Long.parseLong(m.group(4));
+        Assert.assertNotEquals(outerTid, m.group(5));
+        Assert.assertEquals("", m.group(6));
+        Assert.assertTrue(innerDur >= 2000);
+        Assert.assertTrue(outerTs <= innerTs);
+        Assert.assertTrue(innerTs + innerDur <= outerTs + outerDur);
+
+        Assert.assertFalse(json, m.find());
+    }
+
+}
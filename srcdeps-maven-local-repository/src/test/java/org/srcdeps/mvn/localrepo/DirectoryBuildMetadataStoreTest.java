@@ -0,0 +1,179 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.srcdeps.core.fs.PersistentBuildMetadataStore;
+
+public class DirectoryBuildMetadataStoreTest {
+    private static final String HASH = "0123abcd";
+    private static final String REPO_ID = "org.example";
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private Path gavDir() throws Exception {
+        final Path gavDir = tempDir.getRoot().toPath().resolve("repo/org/example/a/1.0-SRC-branch-master");
+        Files.createDirectories(gavDir);
+        Files.write(gavDir.resolve("a-1.0-SRC-branch-master.jar"), "jar".getBytes(StandardCharsets.UTF_8));
+        Files.write(gavDir.resolve("a-1.0-SRC-branch-master.pom"), "pom".getBytes(StandardCharsets.UTF_8));
+        Files.write(gavDir.resolve("_remote.repositories"), "x".getBytes(StandardCharsets.UTF_8));
+        return gavDir;
+    }
+
+    private DirectoryBuildMetadataStore newStore() {
+        final Path root = tempDir.getRoot().toPath();
+        return new DirectoryBuildMetadataStore(root.resolve("stamps"),
+                new PersistentBuildMetadataStore(root.resolve("build-metadata")),
+                new ArtifactHasher(ForkJoinPool.commonPool()));
+    }
+
+    @Test
+    public void added() throws Exception {
+        final Path gavDir = gavDir();
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final DirectoryBuildMetadataStore store = newStore();
+        store.store(REPO_ID, HASH, HashAlgorithm.xxh64, localRepo, Collections.singleton(gavDir));
+
+        final Path sources = Files.write(gavDir.resolve("a-1.0-SRC-branch-master-sources.jar"),
+                "src".getBytes(StandardCharsets.UTF_8));
+        Assert.assertEquals(sources,
+                store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+    }
+
+    @Test
+    public void algorithmChanged() throws Exception {
+        final Path gavDir = gavDir();
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final DirectoryBuildMetadataStore store = newStore();
+        store.store(REPO_ID, HASH, HashAlgorithm.sha1, localRepo, Collections.singleton(gavDir));
+
+        /* The stamps stored with sha1 get verified with sha1 */
+        final Path jar = gavDir.resolve("a-1.0-SRC-branch-master.jar");
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 10000));
+        Assert.assertNull(store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+        Files.write(jar, "JAR".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 20000));
+        Assert.assertEquals(jar, store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+    }
+
+    @Test
+    public void bookkeepingIgnored() throws Exception {
+        final Path gavDir = gavDir();
+        final List<Path> artifacts = LocalBuildMetadataStore.listArtifacts(gavDir);
+        Assert.assertEquals(2, artifacts.size());
+
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final DirectoryBuildMetadataStore store = newStore();
+        store.store(REPO_ID, HASH, HashAlgorithm.xxh64, localRepo, Collections.singleton(gavDir));
+        Files.write(gavDir.resolve("_remote.repositories"), "changed".getBytes(StandardCharsets.UTF_8));
+        Assert.assertNull(store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+    }
+
+    @Test
+    public void changed() throws Exception {
+        final Path gavDir = gavDir();
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final DirectoryBuildMetadataStore store = newStore();
+        store.store(REPO_ID, HASH, HashAlgorithm.xxh64, localRepo, Collections.singleton(gavDir));
+
+        final Path jar = gavDir.resolve("a-1.0-SRC-branch-master.jar");
+        Files.write(jar, "JAR".getBytes(StandardCharsets.UTF_8));
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 10000));
+        Assert.assertEquals(jar, store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+    }
+
+    @Test
+    public void checksumsAdded() throws Exception {
+        final Path gavDir = gavDir();
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final DirectoryBuildMetadataStore store = newStore();
+        final LocalBuildMetadataStore.Stamps stats = store.stat(REPO_ID, HASH, localRepo,
+                Collections.singleton(gavDir));
+        Assert.assertEquals(2, store.addChecksums(stats, HashAlgorithm.xxh64, localRepo).size());
+
+        final Path jar = gavDir.resolve("a-1.0-SRC-branch-master.jar");
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 10000));
+        Assert.assertNull(store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+    }
+
+    @Test
+    public void missingStamps() throws Exception {
+        Assert.assertNull(newStore().load(REPO_ID, HASH));
+    }
+
+    @Test
+    public void removed() throws Exception {
+        final Path gavDir = gavDir();
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final DirectoryBuildMetadataStore store = newStore();
+        store.store(REPO_ID, HASH, HashAlgorithm.xxh64, localRepo, Collections.singleton(gavDir));
+
+        final Path pom = gavDir.resolve("a-1.0-SRC-branch-master.pom");
+        Files.delete(pom);
+        Assert.assertEquals(pom, store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+    }
+
+    @Test
+    public void statOnly() throws Exception {
+        final Path gavDir = gavDir();
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final DirectoryBuildMetadataStore store = newStore();
+        final LocalBuildMetadataStore.Stamps stats = store.stat(REPO_ID, HASH, localRepo,
+                Collections.singleton(gavDir));
+        Assert.assertNull(store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+
+        /* Without a checksum, a touched file cannot be verified */
+        final Path jar = gavDir.resolve("a-1.0-SRC-branch-master.jar");
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 10000));
+        Assert.assertEquals(jar, store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+
+        /* The jar changed after it was stat-ed, so its checksum is not recorded */
+        Assert.assertEquals(1, store.addChecksums(stats, HashAlgorithm.xxh64, localRepo).size());
+        Assert.assertEquals(jar, store.load(REPO_ID, HASH).findChanged(localRepo, Collections.singleton(gavDir)));
+    }
+
+    @Test
+    public void touched() throws Exception {
+        final Path gavDir = gavDir();
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final DirectoryBuildMetadataStore store = newStore();
+        store.store(REPO_ID, HASH, HashAlgorithm.xxh64, localRepo, Collections.singleton(gavDir));
+
+        final Path jar = gavDir.resolve("a-1.0-SRC-branch-master.jar");
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() + 10000));
+        final LocalBuildMetadataStore.Stamps stamps = store.load(REPO_ID, HASH);
+        Assert.assertNull(stamps.findChanged(localRepo, Collections.singleton(gavDir)));
+        Assert.assertTrue(stamps.isDirty());
+        store.save(stamps);
+
+        final LocalBuildMetadataStore.Stamps reloaded = store.load(REPO_ID, HASH);
+        Assert.assertNull(reloaded.findChanged(localRepo, Collections.singleton(gavDir)));
+        Assert.assertFalse(reloaded.isDirty());
+    }
+}
@@ -0,0 +1,100 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.srcdeps.core.SrcVersion;
+
+public class FetchStampsTest {
+    private static final SrcVersion MASTER = SrcVersion.parse("1.0-SRC-branch-master");
+    private static final String REPO_ID = "org.example";
+    private static final List<String> URLS = Collections.singletonList("git:https://example.com/repo.git");
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void concurrent() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final int count = 16;
+        final ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            final List<Future<?>> futures = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                final int index = i;
+                /* A new instance per task to mimic distinct JVMs sharing the directory */
+                final FetchStamps stamps = new FetchStamps(dir);
+                futures.add(executor.submit(() -> stamps.put(REPO_ID, URLS,
+                        SrcVersion.parse("1.0-SRC-branch-b" + index), "c" + index, 1000L)));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+        final FetchStamps stamps = new FetchStamps(dir);
+        for (int i = 0; i < count; i++) {
+            Assert.assertEquals("c" + i,
+                    stamps.get(REPO_ID, URLS, SrcVersion.parse("1.0-SRC-branch-b" + i), 1000L, 1500L));
+        }
+    }
+
+    @Test
+    public void freshness() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final FetchStamps stamps = new FetchStamps(dir);
+        Assert.assertNull(stamps.get(REPO_ID, URLS, MASTER, 60000L, 1000L));
+
+        stamps.put(REPO_ID, URLS, MASTER, "abc", 1000L);
+        Assert.assertEquals("abc", stamps.get(REPO_ID, URLS, MASTER, 60000L, 1000L));
+        Assert.assertEquals("abc", stamps.get(REPO_ID, URLS, MASTER, 60000L, 61000L));
+        Assert.assertNull(stamps.get(REPO_ID, URLS, MASTER, 60000L, 61001L));
+        /* A stamp from the future is not trusted */
+        Assert.assertNull(stamps.get(REPO_ID, URLS, MASTER, 60000L, 999L));
+
+        /* Persisted */
+        final FetchStamps reopened = new FetchStamps(dir);
+        Assert.assertEquals("abc", reopened.get(REPO_ID, URLS, MASTER, 60000L, 2000L));
+
+        /* Overwritten by a later fetch */
+        reopened.put(REPO_ID, URLS, MASTER, "def", 2000L);
+        Assert.assertEquals("def", stamps.get(REPO_ID, URLS, MASTER, 60000L, 2000L));
+    }
+
+    @Test
+    public void keys() throws Exception {
+        final FetchStamps stamps = new FetchStamps(tempDir.getRoot().toPath());
+        stamps.put(REPO_ID, URLS, MASTER, "abc", 1000L);
+        Assert.assertNull(stamps.get(REPO_ID, URLS, SrcVersion.parse("1.0-SRC-branch-dev"), 60000L, 1000L));
+        Assert.assertNull(stamps.get("org.other", URLS, MASTER, 60000L, 1000L));
+        Assert.assertNull(stamps.get(REPO_ID, Arrays.asList("git:https://example.com/other.git"), MASTER, 60000L,
+                1000L));
+    }
+}
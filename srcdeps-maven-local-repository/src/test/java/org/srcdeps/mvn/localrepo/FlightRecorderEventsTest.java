@@ -0,0 +1,47 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.srcdeps.mvn.localrepo.FlightRecorderEvents.Span;
+import org.srcdeps.mvn.localrepo.FlightRecorderEvents.Type;
+
+public class FlightRecorderEventsTest {
+
+    @Test
+    public void disabled() {
+        final FlightRecorderEvents events = FlightRecorderEvents.create(false);
+        Assert.assertSame(FlightRecorderEvents.DISABLED, events);
+        Assert.assertFalse(events.isEnabled());
+        final Span span = events.begin(Type.build, "org.example", "1.0-SRC-revision-cafebabe", null);
+        Assert.assertSame(span, events.begin(Type.lookup, null, null, "org.example:a:jar:1.0"));
+        span.close();
+    }
+
+    @Test
+    public void enabled() {
+        final FlightRecorderEvents events = FlightRecorderEvents.create(true);
+        /* JFR is available since Java 11 */
+        Assert.assertEquals(!System.getProperty("java.specification.version").startsWith("1."), events.isEnabled());
+        for (Type type : Type.values()) {
+            try (Span span = events.begin(type, "org.example", "1.0-SRC-revision-cafebabe", "org.example:a:jar:1.0")) {
+                Assert.assertNotNull(span);
+            }
+        }
+    }
+}
@@ -0,0 +1,76 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+public class HashAlgorithmTest {
+
+    private static String hash(HashAlgorithm algorithm, String input, int chunkSize) {
+        final HashAlgorithm.Digester digester = algorithm.newDigester();
+        final byte[] bytes = input.getBytes(StandardCharsets.UTF_8);
+        for (int i = 0; i < bytes.length; i += chunkSize) {
+            digester.update(ByteBuffer.wrap(bytes, i, Math.min(chunkSize, bytes.length - i)));
+        }
+        return algorithm.format(digester.digest());
+    }
+
+    @Test
+    public void crc32c() {
+        if (HashAlgorithm.crc32c.isAvailable()) {
+            Assert.assertEquals("crc32c:e3069283", hash(HashAlgorithm.crc32c, "123456789", 4));
+        }
+    }
+
+    @Test
+    public void ofChecksum() {
+        Assert.assertEquals(HashAlgorithm.sha1, HashAlgorithm.ofChecksum("a9993e364706816aba3e25717850c26c9cd0d89d"));
+        Assert.assertEquals(HashAlgorithm.xxh64, HashAlgorithm.ofChecksum("xxh64:44bc2cf5ad770999"));
+        Assert.assertEquals(HashAlgorithm.crc32c, HashAlgorithm.ofChecksum("crc32c:e3069283"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ofChecksumUnknown() {
+        HashAlgorithm.ofChecksum("md5:0123");
+    }
+
+    @Test
+    public void ofName() {
+        Assert.assertEquals(HashAlgorithm.sha1, HashAlgorithm.ofName("SHA-1"));
+        Assert.assertEquals(HashAlgorithm.xxh64, HashAlgorithm.ofName("xxh64"));
+        Assert.assertEquals(HashAlgorithm.crc32c, HashAlgorithm.ofName("CRC32C"));
+    }
+
+    @Test
+    public void sha1() {
+        Assert.assertEquals("a9993e364706816aba3e25717850c26c9cd0d89d", hash(HashAlgorithm.sha1, "abc", 1));
+    }
+
+    @Test
+    public void xxh64() {
+        Assert.assertEquals("xxh64:ef46db3751d8e999", hash(HashAlgorithm.xxh64, "", 1));
+        Assert.assertEquals("xxh64:44bc2cf5ad770999", hash(HashAlgorithm.xxh64, "abc", 1));
+        final String spam = "Nobody inspects the spammish repetition";
+        for (int chunkSize : new int[] { 1, 3, 8, 32, 33, 1000 }) {
+            Assert.assertEquals("xxh64:fbcea83c8a378bf1", hash(HashAlgorithm.xxh64, spam, chunkSize));
+        }
+    }
+}
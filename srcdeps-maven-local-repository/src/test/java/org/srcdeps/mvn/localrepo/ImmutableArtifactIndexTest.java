@@ -0,0 +1,208 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ImmutableArtifactIndexTest {
+    private static final String KEY = "org.example:a:jar::1.0-SRC-revision-123";
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void appendAfterTruncatedRecord() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path jar = Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        final Path indexFile = dir.resolve("immutable-artifacts.idx");
+        final String key2 = "org.example:b:jar::1.0-SRC-revision-123";
+        final String key3 = "org.example:c:jar::1.0-SRC-revision-123";
+
+        ImmutableArtifactIndex index = ImmutableArtifactIndex.open(indexFile);
+        index.put(KEY, jar);
+        index.put(key2, jar);
+        try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+
+        /* The torn record must not make the records appended after it unreadable */
+        index = ImmutableArtifactIndex.open(indexFile);
+        index.put(key3, jar);
+        index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertEquals(2, index.size());
+        Assert.assertTrue(index.isInstalled(KEY, jar));
+        Assert.assertFalse(index.isInstalled(key2, jar));
+        Assert.assertTrue(index.isInstalled(key3, jar));
+    }
+
+    @Test
+    public void appendedByOtherProcess() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path jar = Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        final Path indexFile = dir.resolve("immutable-artifacts.idx");
+        final String key2 = "org.example:b:jar::1.0-SRC-revision-123";
+        final String key3 = "org.example:c:jar::1.0-SRC-revision-123";
+
+        final ImmutableArtifactIndex index1 = ImmutableArtifactIndex.open(indexFile);
+        index1.put(KEY, jar);
+        final ImmutableArtifactIndex index2 = ImmutableArtifactIndex.open(indexFile);
+        index2.put(key2, jar);
+
+        /* index1 reads the record appended by index2 before appending its own one */
+        index1.put(key3, jar);
+        Assert.assertEquals(3, index1.size());
+        Assert.assertEquals(3, index1.getRecordCount());
+        Assert.assertTrue(index1.isInstalled(key2, jar));
+
+        final ImmutableArtifactIndex index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertEquals(3, index.size());
+        Assert.assertTrue(index.isInstalled(KEY, jar));
+        Assert.assertTrue(index.isInstalled(key2, jar));
+        Assert.assertTrue(index.isInstalled(key3, jar));
+    }
+
+    @Test
+    public void changedFile() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path jar = Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        final Path indexFile = dir.resolve("srcdeps/immutable-artifacts.idx");
+
+        ImmutableArtifactIndex index = ImmutableArtifactIndex.open(indexFile);
+        index.put(KEY, jar);
+        Assert.assertTrue(index.isInstalled(KEY, jar));
+
+        Files.setLastModifiedTime(jar, FileTime.fromMillis(Files.getLastModifiedTime(jar).toMillis() - 10000));
+        Assert.assertFalse(index.isInstalled(KEY, jar));
+        Files.delete(jar);
+        Assert.assertFalse(index.isInstalled(KEY, jar));
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path jar = Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        final Path indexFile = dir.resolve("immutable-artifacts.idx");
+        final StringBuilder sb = new StringBuilder("org.example:a:jar:");
+        while (sb.length() < 4000) {
+            sb.append("0123456789abcdef");
+        }
+        final String longKey = sb.append(":1.0-SRC-revision-123").toString();
+        final int rounds = (int) (ImmutableArtifactIndex.COMPACTION_THRESHOLD / longKey.length()) + 1;
+        final long lastModified = Files.getLastModifiedTime(jar).toMillis();
+
+        ImmutableArtifactIndex index = ImmutableArtifactIndex.open(indexFile);
+        index.put(KEY, jar);
+        for (int i = 1; i <= rounds; i++) {
+            Files.setLastModifiedTime(jar, FileTime.fromMillis(lastModified - i * 1000L));
+            index.put(longKey, jar);
+        }
+        Assert.assertTrue(index.getRecordCount() < rounds);
+        Assert.assertTrue(Files.size(indexFile) < ImmutableArtifactIndex.COMPACTION_THRESHOLD);
+
+        index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertEquals(2, index.size());
+        Assert.assertTrue(index.isInstalled(longKey, jar));
+        Assert.assertFalse(index.isInstalled(KEY, jar));
+    }
+
+    @Test
+    public void createdByOtherProcess() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path jar = Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        final Path indexFile = dir.resolve("immutable-artifacts.idx");
+        final String key2 = "org.example:b:jar::1.0-SRC-revision-123";
+
+        /* Both opened while the file did not exist yet */
+        final ImmutableArtifactIndex index1 = ImmutableArtifactIndex.open(indexFile);
+        final ImmutableArtifactIndex index2 = ImmutableArtifactIndex.open(indexFile);
+        index1.put(KEY, jar);
+        index2.put(key2, jar);
+
+        final ImmutableArtifactIndex index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertEquals(2, index.size());
+        Assert.assertTrue(index.isInstalled(KEY, jar));
+        Assert.assertTrue(index.isInstalled(key2, jar));
+    }
+
+    @Test
+    public void invalidHeader() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path jar = Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        final Path indexFile = Files.write(dir.resolve("immutable-artifacts.idx"),
+                "garbage garbage".getBytes(StandardCharsets.UTF_8));
+
+        ImmutableArtifactIndex index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertEquals(0, index.size());
+        index.put(KEY, jar);
+
+        index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertEquals(1, index.size());
+        Assert.assertTrue(index.isInstalled(KEY, jar));
+    }
+
+    @Test
+    public void persistence() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path jar1 = Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        final Path jar2 = Files.write(dir.resolve("b.jar"), "bb".getBytes(StandardCharsets.UTF_8));
+        final Path indexFile = dir.resolve("srcdeps/immutable-artifacts.idx");
+        final String key2 = "org.example:b:jar::1.0-SRC-revision-123";
+
+        ImmutableArtifactIndex index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertFalse(index.isInstalled(KEY, jar1));
+        index.put(KEY, jar1);
+        index.put(key2, jar2);
+        /* no duplicate record for an unchanged file */
+        final long size = Files.size(indexFile);
+        index.put(KEY, jar1);
+        Assert.assertEquals(size, Files.size(indexFile));
+
+        index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertEquals(2, index.size());
+        Assert.assertTrue(index.isInstalled(KEY, jar1));
+        Assert.assertTrue(index.isInstalled(key2, jar2));
+        Assert.assertFalse(index.isInstalled(KEY, jar2));
+    }
+
+    @Test
+    public void truncatedRecord() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path jar = Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        final Path indexFile = dir.resolve("immutable-artifacts.idx");
+
+        ImmutableArtifactIndex index = ImmutableArtifactIndex.open(indexFile);
+        index.put(KEY, jar);
+        index.put("org.example:b:jar::1.0-SRC-revision-123", jar);
+        try (FileChannel ch = FileChannel.open(indexFile, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+
+        index = ImmutableArtifactIndex.open(indexFile);
+        Assert.assertEquals(1, index.size());
+        Assert.assertTrue(index.isInstalled(KEY, jar));
+    }
+}
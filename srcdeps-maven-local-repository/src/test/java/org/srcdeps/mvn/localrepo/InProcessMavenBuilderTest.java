@@ -0,0 +1,124 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class InProcessMavenBuilderTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void canBuild() throws IOException {
+        final Path mavenHome = tempDir.newFolder("maven").toPath();
+        final Path project = tempDir.newFolder("project").toPath();
+        final InProcessMavenBuilder builder = new InProcessMavenBuilder(mavenHome);
+        Files.write(project.resolve("pom.xml"), "<project/>".getBytes("UTF-8"));
+        Assert.assertFalse("no Maven runtime", builder.canBuild(project));
+
+        Files.createDirectories(mavenHome.resolve("lib"));
+        Assert.assertTrue(builder.canBuild(project));
+
+        final Path wrapperProperties = project.resolve(InProcessMavenBuilder.WRAPPER_PROPERTIES);
+        Files.createDirectories(wrapperProperties.getParent());
+        Files.write(wrapperProperties, "distributionUrl=x".getBytes("UTF-8"));
+        Assert.assertFalse("own Maven version", builder.canBuild(project));
+
+        Files.delete(project.resolve("pom.xml"));
+        Files.delete(wrapperProperties);
+        Assert.assertFalse("not a Maven source tree", builder.canBuild(project));
+    }
+
+    @Test
+    public void forwardedProperties() {
+        final Properties properties = new Properties();
+        properties.setProperty("a.b", "1");
+        properties.setProperty("a.c", "2");
+        properties.setProperty("ab", "3");
+        properties.setProperty("d", "4");
+        Assert.assertEquals(Arrays.asList("-Da.b=1", "-Da.c=2", "-Dd=4", "-De=5"), InProcessMavenBuilder
+                .forwardedProperties(Arrays.asList("a.*", "d", "x"), Collections.singletonMap("e", "5"), properties));
+    }
+
+    @Test
+    public void isMultiThreaded() {
+        Assert.assertFalse(InProcessMavenBuilder.isMultiThreaded(Arrays.asList("clean", "install")));
+        Assert.assertFalse(InProcessMavenBuilder.isMultiThreaded(Arrays.asList("-T", "1", "install")));
+        Assert.assertFalse(InProcessMavenBuilder.isMultiThreaded(Arrays.asList("-T1", "install")));
+        Assert.assertTrue(InProcessMavenBuilder.isMultiThreaded(Arrays.asList("-T", "4", "install")));
+        Assert.assertTrue(InProcessMavenBuilder.isMultiThreaded(Arrays.asList("-T1C", "install")));
+        Assert.assertTrue(InProcessMavenBuilder.isMultiThreaded(Arrays.asList("--threads", "2", "install")));
+        Assert.assertTrue(InProcessMavenBuilder.isMultiThreaded(Arrays.asList("--threads=2", "install")));
+    }
+
+    @Test
+    public void lineOutputStream() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        try (PrintStream out = new PrintStream(
+                new InProcessMavenBuilder.LineOutputStream(lines::add, new ByteArrayOutputStream()), true, "UTF-8")) {
+            out.print("first\r\nsec");
+            out.print("ond\n\n\u017elu\u0165ou\u010dk\u00fd");
+        }
+        Assert.assertEquals(Arrays.asList("first", "second", "", "\u017elu\u0165ou\u010dk\u00fd"), lines);
+    }
+    @Test
+    public void lineOutputStreamReentrant() throws IOException {
+        final List<String> lines = new ArrayList<>();
+        final ByteArrayOutputStream fallback = new ByteArrayOutputStream();
+        final PrintStream[] out = new PrintStream[1];
+        out[0] = new PrintStream(new InProcessMavenBuilder.LineOutputStream(line -> {
+            lines.add(line);
+            out[0].println("logged " + line);
+        }, fallback), true, "UTF-8");
+        out[0].println("a");
+        out[0].println("b");
+        out[0].close();
+        Assert.assertEquals(Arrays.asList("a", "b"), lines);
+        Assert.assertEquals("logged a" + System.lineSeparator() + "logged b" + System.lineSeparator(),
+                new String(fallback.toByteArray(), "UTF-8"));
+    }
+
+    @Test
+    public void outerBuildArguments() throws IOException {
+        final Path project = tempDir.newFolder("project").toPath();
+        final Properties properties = new Properties();
+        properties.setProperty("sun.java.command", "org.codehaus.plexus.classworlds.launcher.Launcher -B install");
+        Assert.assertEquals(Arrays.asList("-q", "org.codehaus.plexus.classworlds.launcher.Launcher", "-B", "install"),
+                InProcessMavenBuilder.outerBuildArguments(project, properties, " -q "));
+
+        Files.createDirectories(project.resolve(".mvn"));
+        Files.write(project.resolve(".mvn/maven.config"), "-T 4\n-e".getBytes("UTF-8"));
+        Assert.assertEquals(Arrays.asList("-T", "4", "-e", "org.codehaus.plexus.classworlds.launcher.Launcher", "-B",
+                "install"), InProcessMavenBuilder.outerBuildArguments(project, properties, null));
+    }
+
+}
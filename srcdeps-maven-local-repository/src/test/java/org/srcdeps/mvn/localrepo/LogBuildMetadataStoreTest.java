@@ -0,0 +1,71 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Collections;
+import java.util.concurrent.ForkJoinPool;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.srcdeps.core.fs.PersistentBuildMetadataStore;
+
+public class LogBuildMetadataStoreTest {
+    private static final String HASH = "0123abcd";
+    private static final String REPO_ID = "org.example";
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void migration() throws Exception {
+        final Path root = tempDir.getRoot().toPath();
+        final Path localRepo = root.resolve("repo");
+        final Path gavDir = localRepo.resolve("org/example/a/1.0-SRC-branch-master");
+        Files.createDirectories(gavDir);
+        Files.write(gavDir.resolve("a-1.0-SRC-branch-master.jar"), "jar".getBytes(StandardCharsets.UTF_8));
+        final ArtifactHasher hasher = new ArtifactHasher(ForkJoinPool.commonPool());
+        final DirectoryBuildMetadataStore legacyStore = new DirectoryBuildMetadataStore(root.resolve("stamps"),
+                new PersistentBuildMetadataStore(root.resolve("build-metadata")), hasher);
+        legacyStore.store(REPO_ID, HASH, HashAlgorithm.xxh64, localRepo, Collections.singleton(gavDir));
+        Assert.assertNotNull(legacyStore.load(REPO_ID, HASH));
+
+        final Path legacyBuildRequest = root.resolve("build-metadata/" + HASH);
+        Files.createDirectories(legacyBuildRequest);
+        Files.write(legacyBuildRequest.resolve("commitId"), "cafe".getBytes(StandardCharsets.UTF_8));
+
+        LogBuildMetadataStore store = new LogBuildMetadataStore(root.resolve("log"), legacyStore,
+                hash -> root.resolve("build-metadata/" + hash), hasher);
+        final LocalBuildMetadataStore.Stamps stamps = store.load(REPO_ID, HASH);
+        Assert.assertEquals(1, stamps.size());
+        Assert.assertNull(stamps.findChanged(localRepo, Collections.singleton(gavDir)));
+        Assert.assertNull(legacyStore.load(REPO_ID, HASH));
+        /* The commit ID is not in the log yet */
+        Assert.assertTrue(Files.exists(legacyBuildRequest));
+
+        store.storeCommitId(REPO_ID, HASH, "cafe");
+        Assert.assertFalse(Files.exists(legacyBuildRequest));
+        store = new LogBuildMetadataStore(root.resolve("log"), legacyStore,
+                hash -> root.resolve("build-metadata/" + hash), hasher);
+        Assert.assertEquals("cafe", store.retrieveCommitId(REPO_ID, HASH));
+        Assert.assertEquals(1, store.load(REPO_ID, HASH).size());
+    }
+}
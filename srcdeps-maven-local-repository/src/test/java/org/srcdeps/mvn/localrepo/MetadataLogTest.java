@@ -0,0 +1,135 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class MetadataLogTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void appendedByOtherInstance() throws Exception {
+        final Path file = tempDir.getRoot().toPath().resolve("srcdeps/org.example.log");
+        final MetadataLog log1 = MetadataLog.open(file);
+        final MetadataLog log2 = MetadataLog.open(file);
+        log1.put("a", "1");
+        log2.put("b", "2");
+        Assert.assertEquals("2", log1.get("b"));
+        Assert.assertEquals("1", log2.get("a"));
+        Assert.assertEquals(2, MetadataLog.open(file).getRecordCount());
+    }
+
+    @Test
+    public void compaction() throws Exception {
+        final Path file = tempDir.getRoot().toPath().resolve("org.example.log");
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 1024; i++) {
+            sb.append("0123456789abcdef");
+        }
+        final String value = sb.toString();
+        final int rounds = (int) (MetadataLog.COMPACTION_THRESHOLD / value.length()) + 1;
+
+        MetadataLog log = MetadataLog.open(file);
+        for (int i = 0; i < rounds; i++) {
+            log.put("a", value + i);
+        }
+        log.put("b", "2");
+        Assert.assertTrue(log.getRecordCount() < rounds);
+        Assert.assertTrue(Files.size(file) < MetadataLog.COMPACTION_THRESHOLD);
+
+        log = MetadataLog.open(file);
+        Assert.assertEquals(2, log.size());
+        Assert.assertEquals(value + (rounds - 1), log.get("a"));
+        Assert.assertEquals("2", log.get("b"));
+    }
+
+    @Test
+    public void corruptedRecord() throws Exception {
+        final Path file = tempDir.getRoot().toPath().resolve("org.example.log");
+        final MetadataLog log = MetadataLog.open(file);
+        log.put("a", "1");
+        log.put("b", "2");
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ch.write(ByteBuffer.wrap(new byte[] { 'x' }), ch.size() - 1);
+        }
+        final MetadataLog reopened = MetadataLog.open(file);
+        Assert.assertEquals("1", reopened.get("a"));
+        Assert.assertNull(reopened.get("b"));
+    }
+
+    @Test
+    public void invalidHeader() throws Exception {
+        final Path file = Files.write(tempDir.getRoot().toPath().resolve("org.example.log"),
+                "garbage garbage".getBytes(StandardCharsets.UTF_8));
+        MetadataLog log = MetadataLog.open(file);
+        Assert.assertEquals(0, log.size());
+        log.put("a", "1");
+
+        log = MetadataLog.open(file);
+        Assert.assertEquals(1, log.size());
+        Assert.assertEquals("1", log.get("a"));
+    }
+
+    @Test
+    public void persistence() throws Exception {
+        final Path file = tempDir.getRoot().toPath().resolve("srcdeps/org.example.log");
+        MetadataLog log = MetadataLog.open(file);
+        Assert.assertNull(log.get("a"));
+        log.put("a", "1");
+        log.put("b", "\u017elu\u0165ou\u010dk\u00fd\n2");
+        log.put("a", "3");
+        Assert.assertEquals("3", log.get("a"));
+
+        log = MetadataLog.open(file);
+        Assert.assertEquals(2, log.size());
+        Assert.assertEquals(3, log.getRecordCount());
+        Assert.assertEquals("3", log.get("a"));
+        Assert.assertEquals("\u017elu\u0165ou\u010dk\u00fd\n2", log.get("b"));
+    }
+
+    @Test
+    public void truncatedRecord() throws Exception {
+        final Path file = tempDir.getRoot().toPath().resolve("org.example.log");
+        MetadataLog log = MetadataLog.open(file);
+        log.put("a", "1");
+        log.put("b", "2");
+        try (FileChannel ch = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            ch.truncate(ch.size() - 3);
+        }
+
+        log = MetadataLog.open(file);
+        Assert.assertEquals(1, log.size());
+        Assert.assertEquals("1", log.get("a"));
+        log.put("c", "3");
+
+        log = MetadataLog.open(file);
+        Assert.assertEquals(2, log.size());
+        Assert.assertEquals("3", log.get("c"));
+    }
+}
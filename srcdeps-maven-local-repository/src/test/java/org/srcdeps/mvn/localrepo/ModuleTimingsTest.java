@@ -0,0 +1,107 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.File;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class ModuleTimingsTest {
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void buildArguments() {
+        final Path jar = Paths.get("/srcdeps/extensions/spy.jar");
+        final Path timings = Paths.get("/srcdeps/builds/1-timings.txt");
+        Assert.assertEquals(
+                Arrays.asList("-DskipTests", "-Dmaven.ext.class.path=" + jar, "-Dsrcdeps.timings.file=" + timings),
+                ModuleTimings.buildArguments(Collections.singletonList("-DskipTests"), jar, timings));
+        Assert.assertEquals(
+                Arrays.asList("-Dmaven.ext.class.path=/other.jar" + File.pathSeparator + jar, "-Pfast",
+                        "-Dsrcdeps.timings.file=" + timings),
+                ModuleTimings.buildArguments(Arrays.asList("-Dmaven.ext.class.path=/other.jar", "-Pfast"), jar,
+                        timings));
+    }
+
+    @Test
+    public void createSpyJar() throws Exception {
+        final Path dir = tempDir.getRoot().toPath().resolve("extensions");
+        final Path jar = ModuleTimings.createSpyJar(dir);
+        Assert.assertTrue(jar.getFileName().toString().matches("srcdeps-module-timing-spy-[0-9a-f]{16}\\.jar"));
+        Assert.assertEquals(jar, ModuleTimings.createSpyJar(dir));
+        Assert.assertEquals(1, dir.toFile().list().length);
+
+        try (JarFile jarFile = new JarFile(jar.toFile())) {
+            final List<String> entries = new ArrayList<>();
+            for (JarEntry entry : Collections.list(jarFile.entries())) {
+                entries.add(entry.getName());
+            }
+            Assert.assertEquals(Arrays.asList("META-INF/MANIFEST.MF", "META-INF/plexus/components.xml",
+                    "org/srcdeps/mvn/localrepo/ModuleTimingSpy.class"), entries);
+        }
+    }
+
+    @Test
+    public void read() throws Exception {
+        final Path file = tempDir.getRoot().toPath().resolve("1-timings.txt");
+        Files.write(file, Arrays.asList( //
+                "mojo\torg.example:core\tmaven-compiler-plugin:compile (default-compile)\t100\tsuccess", //
+                "mojo\torg.example:core\tmaven-surefire-plugin:test (default-test)\t900\tsuccess", //
+                "mojo\torg.example:core\tmaven-compiler-plugin:compile (default-compile)\t50\tsuccess", //
+                "project\torg.example:core\t1100\tsuccess", //
+                "project\torg.example:parent\t5\tsuccess", //
+                "mojo\torg.example:app\tmaven-javadoc-plugin:jar (attach-javadocs)\t3000\tfailure", //
+                "project\torg.example:app\t3100\tfailure", //
+                "garbage"), StandardCharsets.UTF_8);
+
+        final List<ModuleTimings.Module> modules = ModuleTimings.read(file).getModules();
+        Assert.assertEquals(3, modules.size());
+
+        Assert.assertEquals("org.example:app", modules.get(0).getId());
+        Assert.assertEquals(3100, modules.get(0).getMillis());
+        Assert.assertEquals("failure", modules.get(0).getResult());
+        Assert.assertEquals(Collections.singletonMap("maven-javadoc-plugin:jar (attach-javadocs)", 3000L),
+                modules.get(0).getMojoMillis());
+
+        Assert.assertEquals("org.example:core", modules.get(1).getId());
+        Assert.assertEquals(1100, modules.get(1).getMillis());
+        Assert.assertEquals(Arrays.asList("maven-surefire-plugin:test (default-test)",
+                "maven-compiler-plugin:compile (default-compile)"),
+                new ArrayList<>(modules.get(1).getMojoMillis().keySet()));
+        Assert.assertEquals(Long.valueOf(150), modules.get(1).getMojoMillis()
+                .get("maven-compiler-plugin:compile (default-compile)"));
+
+        Assert.assertEquals("org.example:parent", modules.get(2).getId());
+        Assert.assertTrue(modules.get(2).getMojoMillis().isEmpty());
+    }
+
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.srcdeps.core.ConfigurationQueryService;
+import org.srcdeps.core.ConfigurationQueryService.ScmRepositoryResult;
+import org.srcdeps.core.config.Configuration;
+import org.srcdeps.core.config.ScmRepository;
+import org.srcdeps.core.config.tree.walk.DefaultsAndInheritanceVisitor;
+
+public class ScmRepositoryFinderTest {
+    private static final String VERSION = "1.0-SRC-revision-cafebabe";
+
+    private static Configuration configuration() {
+        final Map<String, ScmRepository.Builder> repos = new LinkedHashMap<>();
+        for (ScmRepository.Builder repo : Arrays.asList( //
+                ScmRepository.builder().id("org.example.a").include("org.example:a")
+                        .url("git:https://example.com/a.git"), //
+                ScmRepository.builder().id("org.example.all").include("org.example")
+                        .url("git:https://example.com/all.git"))) {
+            repos.put(repo.getName(), repo);
+        }
+        return Configuration.builder().repositories(repos).accept(new DefaultsAndInheritanceVisitor()).build();
+    }
+
+    private static List<String> ids(List<ScmRepository> repos) {
+        return repos.stream().map(ScmRepository::getId).collect(Collectors.toList());
+    }
+
+    @Test
+    public void findAllScmRepos() {
+        final Configuration config = configuration();
+        final ScmRepositoryFinder finder = new ScmRepositoryFinder(new ConfigurationQueryService(config),
+                config.getRepositories());
+        /* org.example:a is claimed by both repositories, in the order of their definition */
+        final List<ScmRepository> claimingA = finder.findAllScmRepos("org.example", "a", VERSION);
+        Assert.assertEquals(Arrays.asList("org.example.a", "org.example.all"), ids(claimingA));
+        Assert.assertEquals(Collections.singletonList("org.example.all"),
+                ids(finder.findAllScmRepos("org.example", "b", VERSION)));
+        Assert.assertEquals(Collections.emptyList(), finder.findAllScmRepos("org.other", "c", VERSION));
+    }
+
+    @Test
+    public void findScmRepoFirstMatch() {
+        final Configuration config = configuration();
+        final ScmRepositoryFinder finder = new ScmRepositoryFinder(new ConfigurationQueryService(config),
+                config.getRepositories());
+        /* The first repository defined in srcdeps.yaml wins although org.example:a is claimed by both */
+        Assert.assertEquals("org.example.a", finder.findScmRepo("org.example", "a", VERSION).getRepository().getId());
+        Assert.assertEquals("org.example.all",
+                finder.findScmRepo("org.example", "b", VERSION).getRepository().getId());
+        Assert.assertNull(finder.findScmRepo("org.other", "c", VERSION).getRepository());
+    }
+
+    @Test
+    public void findScmRepoMemoized() {
+        final Configuration config = configuration();
+        final AtomicInteger queries = new AtomicInteger();
+        final ScmRepositoryFinder finder = new ScmRepositoryFinder(new ConfigurationQueryService(config) {
+            @Override
+            public ScmRepositoryResult findScmRepo(String groupId, String artifactId, String version) {
+                queries.incrementAndGet();
+                return super.findScmRepo(groupId, artifactId, version);
+            }
+        }, config.getRepositories());
+
+        final ScmRepositoryResult a = finder.findScmRepo("org.example", "a", VERSION);
+        Assert.assertSame(a, finder.findScmRepo("org.example", "a", VERSION));
+        Assert.assertEquals(1, queries.get());
+
+        /* Negative results are remembered too */
+        final ScmRepositoryResult other = finder.findScmRepo("org.other", "c", VERSION);
+        Assert.assertSame(other, finder.findScmRepo("org.other", "c", VERSION));
+        Assert.assertEquals(2, queries.get());
+
+        /* The version is a part of the key */
+        finder.findScmRepo("org.example", "a", "1.0-SRC-revision-deadbeef");
+        Assert.assertEquals(3, queries.get());
+        Assert.assertEquals(3, finder.size());
+    }
+}
@@ -0,0 +1,244 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.srcdeps.core.BuildException;
+import org.srcdeps.core.SrcVersion;
+
+public class ShallowGitCheckoutTest {
+    private static final String REPO_ID = "org.example";
+
+    private static String git(Path dir, String... args) throws IOException, InterruptedException {
+        final List<String> command = new ArrayList<>();
+        command.add("git");
+        command.addAll(Arrays.asList(args));
+        final Process process = new ProcessBuilder(command).directory(dir.toFile()).redirectErrorStream(true)
+                .start();
+        final String output = new String(readAll(process), StandardCharsets.UTF_8).trim();
+        Assert.assertEquals(command + ": " + output, 0, process.waitFor());
+        return output;
+    }
+
+    private static byte[] readAll(Process process) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int len;
+        while ((len = process.getInputStream().read(buffer)) >= 0) {
+            out.write(buffer, 0, len);
+        }
+        return out.toByteArray();
+    }
+
+    private final List<String> commits = new ArrayList<>();
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private Path upstream;
+
+    @Test
+    public void branch() throws Exception {
+        final Path dir = tempDir.getRoot().toPath().resolve("build");
+        final String commitId = newCheckout().checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-branch-master"), dir, 1, null, false);
+        Assert.assertEquals(commits.get(commits.size() - 1), commitId);
+        Assert.assertEquals("1", git(dir, "rev-list", "--count", "HEAD"));
+        Assert.assertEquals("4", new String(Files.readAllBytes(dir.resolve("file.txt")), StandardCharsets.UTF_8));
+
+        /* A new commit upstream gets fetched on the next checkout */
+        commit(5);
+        Assert.assertEquals(commits.get(5), newCheckout().checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-branch-master"), dir, 1, null, false));
+    }
+
+    @Test
+    public void changedPaths() throws Exception {
+        final Path dir = tempDir.getRoot().toPath().resolve("build");
+        final ShallowGitCheckout checkout = newCheckout();
+        checkout.checkout(REPO_ID, urls(), SrcVersion.parse("1.0-SRC-branch-master"), dir, 0, null, false);
+        final Path moduleFile = upstream.resolve("module/src/A.java");
+        Files.createDirectories(moduleFile.getParent());
+        Files.write(moduleFile, "class A {}".getBytes(StandardCharsets.UTF_8));
+        git(upstream, "add", "module");
+        commit(5);
+        checkout.checkout(REPO_ID, urls(), SrcVersion.parse("1.0-SRC-branch-master"), dir, 0, null, false);
+        Assert.assertEquals(Arrays.asList("file.txt", "module/src/A.java"),
+                checkout.changedPaths(dir, commits.get(4), commits.get(5)));
+        Assert.assertEquals(Collections.emptyList(), checkout.changedPaths(dir, commits.get(5), commits.get(5)));
+
+        /* The past commit is not available in a shallow clone */
+        final Path shallowDir = tempDir.getRoot().toPath().resolve("shallow");
+        checkout.checkout(REPO_ID, urls(), SrcVersion.parse("1.0-SRC-branch-master"), shallowDir, 1, null, false);
+        Assert.assertNull(checkout.changedPaths(shallowDir, commits.get(4), commits.get(5)));
+    }
+
+    private void commit(int i) throws Exception {
+        Files.write(upstream.resolve("file.txt"), String.valueOf(i).getBytes(StandardCharsets.UTF_8));
+        git(upstream, "add", "file.txt");
+        git(upstream, "commit", "--quiet", "-m", "Commit " + i);
+        commits.add(git(upstream, "rev-parse", "HEAD"));
+    }
+
+    @Test
+    public void filter() throws Exception {
+        final Path dir = tempDir.getRoot().toPath().resolve("build");
+        final String commitId = newCheckout().checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-tag-1.0"), dir, 0, "blob:none", false);
+        Assert.assertEquals(commits.get(2), commitId);
+        Assert.assertEquals("true", git(dir, "config", "remote.origin.promisor"));
+        Assert.assertEquals("3", git(dir, "rev-list", "--count", "HEAD"));
+        Assert.assertEquals("2", new String(Files.readAllBytes(dir.resolve("file.txt")), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void headIgnoresStandardError() throws Exception {
+        /* A git printing a warning to stderr, as e.g. git-lfs or a misconfigured credential helper do */
+        final ShallowGitCheckout checkout = new ShallowGitCheckout(
+                Arrays.asList("sh", "-c", "echo 'warning: noise' >&2; echo cafebabe", "sh"), mirrors(), 10000);
+        final Path dir = Files.createDirectories(tempDir.getRoot().toPath().resolve("build/.git")).getParent();
+        Assert.assertEquals("cafebabe", checkout.head(dir));
+    }
+
+    @Test
+    public void mirror() throws Exception {
+        final Path root = tempDir.getRoot().toPath();
+        final Path dir1 = root.resolve("build/1");
+        Assert.assertEquals(commits.get(4), newCheckout().checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-branch-master"), dir1, 0, null, true));
+        Assert.assertTrue(Files.isRegularFile(dir1.resolve(".git")));
+        Assert.assertTrue(Files.isDirectory(mirrors().resolve(REPO_ID + ".git/objects")));
+
+        /* The other versions are served by the mirror without accessing the upstream */
+        final Path moved = root.resolve("moved");
+        Files.move(upstream, moved);
+        final Path dir2 = root.resolve("build/2");
+        Assert.assertEquals(commits.get(2), newCheckout().checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-tag-1.0"), dir2, 0, null, true));
+        Assert.assertEquals("2", new String(Files.readAllBytes(dir2.resolve("file.txt")), StandardCharsets.UTF_8));
+        Assert.assertEquals(commits.get(1), newCheckout().checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-revision-" + commits.get(1)), dir1, 0, null, true));
+        Assert.assertEquals("1", new String(Files.readAllBytes(dir1.resolve("file.txt")), StandardCharsets.UTF_8));
+        Assert.assertFalse(Files.exists(dir2.resolve(".git/objects")));
+
+        /* Branches are always fetched */
+        Files.move(moved, upstream);
+        commit(5);
+        Assert.assertEquals(commits.get(5), newCheckout().checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-branch-master"), dir2, 0, null, true));
+    }
+
+    private Path mirrors() {
+        return tempDir.getRoot().toPath().resolve("git-mirrors");
+    }
+
+    private ShallowGitCheckout newCheckout() {
+        return new ShallowGitCheckout(mirrors());
+    }
+
+    @Test
+    public void remoteHead() throws Exception {
+        final Path dir = tempDir.getRoot().toPath().resolve("build");
+        final ShallowGitCheckout checkout = newCheckout();
+        final SrcVersion master = SrcVersion.parse("1.0-SRC-branch-master");
+        Files.createDirectories(dir);
+        Assert.assertNull(checkout.head(dir));
+        Assert.assertEquals(commits.get(4), checkout.remoteHead(REPO_ID, urls(), master, dir));
+
+        checkout.checkout(REPO_ID, urls(), master, dir, 1, null, false);
+        Assert.assertEquals(commits.get(4), checkout.head(dir));
+        commit(5);
+        Assert.assertEquals(commits.get(5), checkout.remoteHead(REPO_ID, urls(), master, dir));
+        Assert.assertEquals(commits.get(4), checkout.head(dir));
+
+        Assert.assertNull(checkout.remoteHead(REPO_ID, urls(), SrcVersion.parse("1.0-SRC-branch-missing"), dir));
+        Assert.assertNull(checkout.remoteHead(REPO_ID, urls(), SrcVersion.parse("1.0-SRC-tag-1.0"), dir));
+        Assert.assertNull(checkout.remoteHead(REPO_ID, Collections.singletonList("svn:https://example.com/svn"),
+                master, dir));
+        /* An unreachable URL is skipped */
+        final List<String> urls = new ArrayList<>();
+        urls.add(ShallowGitCheckout.GIT_PREFIX + tempDir.getRoot().toPath().resolve("missing").toUri());
+        urls.addAll(urls());
+        Assert.assertEquals(commits.get(5), checkout.remoteHead(REPO_ID, urls, master, dir));
+    }
+
+    @Test
+    public void revisionDeepened() throws Exception {
+        final Path dir = tempDir.getRoot().toPath().resolve("build");
+        /* Protocol version 0 does not allow fetching unadvertised commits by default */
+        final ShallowGitCheckout checkout = new ShallowGitCheckout(
+                Arrays.asList("git", "-c", "protocol.version=0"), mirrors());
+        final String commitId = checkout.checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-revision-" + commits.get(1)), dir, 1, null, false);
+        Assert.assertEquals(commits.get(1), commitId);
+        Assert.assertEquals("1", new String(Files.readAllBytes(dir.resolve("file.txt")), StandardCharsets.UTF_8));
+    }
+
+    @Test(expected = BuildException.class)
+    public void revisionUnreachable() throws Exception {
+        new ShallowGitCheckout(Arrays.asList("git", "-c", "protocol.version=0"), mirrors()).checkout(REPO_ID, urls(),
+                SrcVersion.parse("1.0-SRC-revision-0123456789012345678901234567890123456789"),
+                tempDir.getRoot().toPath().resolve("build"), 1, null, false);
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        upstream = tempDir.newFolder("upstream").toPath();
+        git(upstream, "init", "--quiet");
+        git(upstream, "config", "user.name", "srcdeps");
+        git(upstream, "config", "user.email", "srcdeps@example.com");
+        git(upstream, "config", "uploadpack.allowFilter", "true");
+        git(upstream, "checkout", "--quiet", "-b", "master");
+        for (int i = 0; i < 5; i++) {
+            commit(i);
+            if (i == 2) {
+                git(upstream, "tag", "1.0");
+            }
+        }
+    }
+
+    @Test
+    public void timeout() throws Exception {
+        /* A git that hangs forever, e.g. waiting for credentials */
+        final ShallowGitCheckout checkout = new ShallowGitCheckout(Arrays.asList("sh", "-c", "sleep 60", "sh"),
+                mirrors(), 500);
+        try {
+            checkout.checkout(REPO_ID, urls(), SrcVersion.parse("1.0-SRC-branch-master"),
+                    tempDir.getRoot().toPath().resolve("build"), 1, null, false);
+            Assert.fail("BuildException expected");
+        } catch (BuildException expected) {
+        }
+    }
+
+    private List<String> urls() {
+        return Collections.singletonList(ShallowGitCheckout.GIT_PREFIX + upstream.toUri().toString());
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.srcdeps.core.SrcVersion;
+
+public class SourceDependencyGraphTest {
+    private static final BuildKey A = new BuildKey("a", SrcVersion.parse("1.0-SRC-revision-aaa"));
+    private static final BuildKey B = new BuildKey("b", SrcVersion.parse("1.0-SRC-revision-bbb"));
+    private static final BuildKey C = new BuildKey("c", SrcVersion.parse("1.0-SRC-revision-ccc"));
+    private static final BuildKey D = new BuildKey("d", SrcVersion.parse("1.0-SRC-revision-ddd"));
+
+    @Test
+    public void cycle() {
+        final SourceDependencyGraph graph = new SourceDependencyGraph();
+        graph.addEdge(A, B);
+        graph.addEdge(B, C);
+        graph.addEdge(C, A);
+        try {
+            graph.topologicalOrder();
+            Assert.fail("IllegalStateException expected");
+        } catch (IllegalStateException expected) {
+            Assert.assertTrue(expected.getMessage(), expected.getMessage().startsWith("Cycle in source dependencies: "));
+        }
+    }
+
+    @Test
+    public void diamond() {
+        final SourceDependencyGraph graph = new SourceDependencyGraph();
+        graph.addEdge(A, B);
+        graph.addEdge(A, C);
+        graph.addEdge(B, D);
+        graph.addEdge(C, D);
+        final List<BuildKey> order = graph.topologicalOrder();
+        Assert.assertEquals(Arrays.asList(D, B, C, A), order);
+    }
+
+    @Test
+    public void selfEdge() {
+        final SourceDependencyGraph graph = new SourceDependencyGraph();
+        graph.addEdge(A, A);
+        Assert.assertTrue(graph.getUpstreams(A).isEmpty());
+        Assert.assertEquals(Arrays.asList(A), graph.topologicalOrder());
+    }
+
+    @Test
+    public void unknownNode() {
+        Assert.assertTrue(new SourceDependencyGraph().getUpstreams(A).isEmpty());
+    }
+}
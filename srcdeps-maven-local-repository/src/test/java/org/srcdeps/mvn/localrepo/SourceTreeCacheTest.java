@@ -0,0 +1,80 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SourceTreeCacheTest {
+
+    private static void write(Path file, String content) throws IOException {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void configurationFingerprint() throws IOException {
+        final Path root = tempDir.getRoot().toPath();
+        final Properties props = new Properties();
+        props.setProperty("user.name", "joe");
+        final String empty = SourceTreeCache.configurationFingerprint(root, props);
+
+        write(root.resolve("srcdeps.yaml"), "configModelVersion: 2.4");
+        final String withYaml = SourceTreeCache.configurationFingerprint(root, props);
+        Assert.assertNotEquals(empty, withYaml);
+
+        props.setProperty("user.name", "jane");
+        Assert.assertEquals(withYaml, SourceTreeCache.configurationFingerprint(root, props));
+
+        props.setProperty("srcdeps.maven.failWith", "release");
+        Assert.assertNotEquals(withYaml, SourceTreeCache.configurationFingerprint(root, props));
+    }
+
+    @Test
+    public void fingerprint() throws IOException {
+        final Path root = tempDir.getRoot().toPath();
+        write(root.resolve("pom.xml"), "<project/>");
+        write(root.resolve("module/pom.xml"), "<project><artifactId>m</artifactId></project>");
+        final String initial = SourceTreeCache.fingerprint(root);
+        Assert.assertEquals(initial, SourceTreeCache.fingerprint(root));
+
+        /* Sources, build outputs and hidden directories do not count */
+        write(root.resolve("module/src/main/java/A.java"), "class A {}");
+        write(root.resolve("module/target/classes/pom.xml"), "<project/>");
+        write(root.resolve(".git/pom.xml"), "<project/>");
+        Assert.assertEquals(initial, SourceTreeCache.fingerprint(root));
+
+        write(root.resolve("module/pom.xml"), "<project><artifactId>n</artifactId></project>");
+        final String changed = SourceTreeCache.fingerprint(root);
+        Assert.assertNotEquals(initial, changed);
+
+        /* The same content at another path */
+        Files.move(root.resolve("module"), root.resolve("other"));
+        Assert.assertNotEquals(changed, SourceTreeCache.fingerprint(root));
+    }
+}
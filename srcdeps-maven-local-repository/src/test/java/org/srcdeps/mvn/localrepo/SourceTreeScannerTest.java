@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.io.IOException;
+import java.net.URISyntaxException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeSet;
+
+import org.apache.maven.model.Dependency;
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class SourceTreeScannerTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    @Test
+    public void changedModules() {
+        final Map<String, String> modules = new LinkedHashMap<>();
+        modules.put("", "org.example:root");
+        modules.put("a", "org.example:a");
+        modules.put("a/b", "org.example:b");
+        modules.put("c", "org.example:c");
+        Assert.assertEquals(new TreeSet<>(Arrays.asList("org.example:a", "org.example:b")), SourceTreeScanner
+                .changedModules(modules, Arrays.asList("a/b/src/B.java", "a/pom.xml", "a/bb/file.txt")));
+        Assert.assertEquals(Collections.singleton("org.example:root"),
+                SourceTreeScanner.changedModules(modules, Arrays.asList("README.adoc", "d/file.txt")));
+        Assert.assertEquals(Collections.emptySet(), SourceTreeScanner.changedModules(modules, Collections.emptyList()));
+    }
+
+    @Test
+    public void externalEntity() throws Exception {
+        final Path dir = tempDir.getRoot().toPath();
+        final Path secret = Files.write(dir.resolve("secret.txt"),
+                "1.0-SRC-revision-123".getBytes(StandardCharsets.UTF_8));
+        final String pom = "<?xml version=\"1.0\"?>\n" //
+                + "<!DOCTYPE project [<!ENTITY secret SYSTEM \"" + secret.toUri() + "\">]>\n" //
+                + "<project><groupId>org.example</groupId><artifactId>a</artifactId><version>&secret;</version>"
+                + "</project>\n";
+        Files.write(dir.resolve("pom.xml"), pom.getBytes(StandardCharsets.UTF_8));
+        try {
+            new SourceTreeScanner().modules(dir);
+            Assert.fail("IOException expected");
+        } catch (IOException expected) {
+        }
+    }
+
+    @Test
+    public void interpolate() {
+        final Map<String, String> props = new HashMap<>();
+        props.put("a", "${b}-a");
+        props.put("b", "b");
+        Assert.assertEquals("b-a", SourceTreeScanner.interpolate("${a}", props));
+        Assert.assertEquals("plain", SourceTreeScanner.interpolate("plain", props));
+        Assert.assertNull(SourceTreeScanner.interpolate("${missing}", props));
+        Assert.assertNull(SourceTreeScanner.interpolate(null, Collections.<String, String>emptyMap()));
+    }
+
+    @Test
+    public void modules() throws Exception {
+        final Map<String, String> expected = new LinkedHashMap<>();
+        expected.put("", "org.example.root:root");
+        expected.put("module-a", "org.example.root:module-a");
+        Assert.assertEquals(expected, new SourceTreeScanner().modules(resource("source-tree-scanner")));
+    }
+
+    @Test
+    public void scan() throws Exception {
+        /* The managed version alone does not count, but it is used for the module's versionless dependency */
+        Assert.assertEquals(Arrays.asList( //
+                "org.example:in-profile:2.0-SRC-tag-v2", //
+                "org.example:in-module:1.0-SRC-revision-123", //
+                "org.example:managed:1.0-SRC-revision-123", //
+                "org.example.root:sibling:0.1-SNAPSHOT" //
+        ), scanDependencies("-Pextra"));
+    }
+
+    @Test
+    public void scanProfiles() throws Exception {
+        Assert.assertEquals(Arrays.asList("org.example:by-default:1.0-SRC-branch-main"), scanDependencies());
+        Assert.assertEquals(Arrays.asList("org.example:by-property:1.0-SRC-branch-main"),
+                scanDependencies("-Dwith.property"));
+        Assert.assertEquals(Arrays.asList("org.example:by-property:1.0-SRC-branch-main"),
+                scanDependencies("-D", "with.property=true"));
+        Assert.assertEquals(Collections.emptyList(), scanDependencies("-P", "!by-default"));
+        Assert.assertEquals(Arrays.asList( //
+                "org.example:by-default:1.0-SRC-branch-main", //
+                "org.example:in-profile:2.0-SRC-tag-v2", //
+                "org.example:in-module:1.0-SRC-revision-123", //
+                "org.example:managed:1.0-SRC-revision-123", //
+                "org.example.root:sibling:0.1-SNAPSHOT" //
+        ), scanDependencies("--activate-profiles", "by-default,extra"));
+    }
+
+    private static List<String> scanDependencies(String... buildArgs) throws Exception {
+        final List<String> result = new ArrayList<>();
+        for (Dependency d : new SourceTreeScanner().scan(resource("source-tree-scanner"), Arrays.asList(buildArgs))) {
+            result.add(d.getGroupId() + ":" + d.getArtifactId() + ":" + d.getVersion());
+        }
+        return result;
+    }
+
+    private static Path resource(String name) throws URISyntaxException {
+        return Paths.get(SourceTreeScannerTest.class.getClassLoader().getResource(name).toURI());
+    }
+}
@@ -0,0 +1,133 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class StagingRepositoryTest {
+    private static final String GAV_PATH = "org/example/a/1.0-SRC-revision-cafebabe";
+    private static final String OTHER_GAV_PATH = "org/example/b/1.0-SRC-revision-cafebabe";
+
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static String read(Path file) throws Exception {
+        return new String(Files.readAllBytes(file), StandardCharsets.UTF_8);
+    }
+
+    private static void write(Path file, String content) throws Exception {
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void buildArguments() throws Exception {
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final List<String> args = Arrays.asList("-Pfoo", "-Dmaven.repo.local=" + localRepo);
+        Assert.assertTrue(StagingRepository.canStage(args, localRepo));
+        Assert.assertFalse(StagingRepository.canStage(Arrays.asList("-Dmaven.repo.local=/other"), localRepo));
+
+        try (StagingRepository staging = StagingRepository.create(tempDir.getRoot().toPath().resolve("staging"),
+                "org.example", localRepo)) {
+            Assert.assertTrue(Files.isDirectory(staging.getRoot()));
+            Assert.assertEquals(
+                    Arrays.asList("-Pfoo", "-Dmaven.repo.local=" + staging.getRoot(),
+                            "-Dmaven.repo.local.tail=" + localRepo, "-Dmaven.repo.local.tail.ignoreAvailability=true"),
+                    staging.buildArguments(args));
+            staging.close();
+            Assert.assertFalse(Files.exists(staging.getRoot()));
+        }
+    }
+
+    @Test
+    public void commit() throws Exception {
+        final Path localRepo = tempDir.getRoot().toPath().resolve("repo");
+        final Path gavDir = localRepo.resolve(GAV_PATH);
+        write(gavDir.resolve("a-1.0-SRC-revision-cafebabe.jar"), "old jar");
+        write(gavDir.resolve("a-1.0-SRC-revision-cafebabe-tests.jar"), "stale");
+        write(gavDir.resolve("_remote.repositories"), "old");
+        final Path otherGavDir = localRepo.resolve(OTHER_GAV_PATH);
+        write(otherGavDir.resolve("b-1.0-SRC-revision-cafebabe.jar"), "stale");
+        write(localRepo.resolve("org/example/dep/1.0/dep-1.0.jar"), "installed dep");
+
+        try (StagingRepository staging = StagingRepository.create(tempDir.getRoot().toPath().resolve("staging"),
+                "org.example", localRepo)) {
+            final Path stagedGavDir = staging.getRoot().resolve(GAV_PATH);
+            write(stagedGavDir.resolve("a-1.0-SRC-revision-cafebabe.jar"), "new jar");
+            write(stagedGavDir.resolve("a-1.0-SRC-revision-cafebabe.pom"), "new pom");
+            write(staging.getRoot().resolve("org/example/dep/1.0/dep-1.0.jar"), "downloaded dep");
+            write(staging.getRoot().resolve("org/example/plugin/1.0/plugin-1.0.jar"), "downloaded plugin");
+
+            final Path jar = gavDir.resolve("a-1.0-SRC-revision-cafebabe.jar");
+            final Object fileKey = Files.readAttributes(stagedGavDir.resolve("a-1.0-SRC-revision-cafebabe.jar"),
+                    BasicFileAttributes.class).fileKey();
+            Assert.assertEquals(2, staging.commit(Collections.singleton(stagedGavDir),
+                    Arrays.asList(gavDir, otherGavDir)));
+
+            Assert.assertEquals("new jar", read(jar));
+            if (fileKey != null) {
+                /* renamed rather than copied */
+                Assert.assertEquals(fileKey, Files.readAttributes(jar,
+                        BasicFileAttributes.class).fileKey());
+            }
+            Assert.assertEquals("new pom", read(gavDir.resolve("a-1.0-SRC-revision-cafebabe.pom")));
+            Assert.assertFalse(Files.exists(gavDir.resolve("a-1.0-SRC-revision-cafebabe-tests.jar")));
+            /* resolver bookkeeping is kept */
+            Assert.assertEquals("old", read(gavDir.resolve("_remote.repositories")));
+            Assert.assertFalse(Files.exists(otherGavDir));
+            Assert.assertEquals("installed dep", read(localRepo.resolve("org/example/dep/1.0/dep-1.0.jar")));
+            Assert.assertEquals("downloaded plugin",
+                    read(localRepo.resolve("org/example/plugin/1.0/plugin-1.0.jar")));
+        }
+    }
+
+    @Test
+    public void isTailSupported() {
+        Assert.assertFalse(StagingRepository.isTailSupported(null));
+        Assert.assertFalse(StagingRepository.isTailSupported("3.8.8"));
+        Assert.assertFalse(StagingRepository.isTailSupported("3"));
+        Assert.assertTrue(StagingRepository.isTailSupported("3.9.0"));
+        Assert.assertTrue(StagingRepository.isTailSupported("3.9.6"));
+        Assert.assertTrue(StagingRepository.isTailSupported("4.0.0-alpha-7"));
+        Assert.assertFalse(StagingRepository.isTailSupported("unknown"));
+    }
+
+    @Test
+    public void nestedMavenVersion() throws Exception {
+        final Path project = tempDir.newFolder("project").toPath();
+        final Properties systemProperties = new Properties();
+        Assert.assertNull(StagingRepository.nestedMavenVersion(project, systemProperties));
+        systemProperties.setProperty("maven.version", "3.9.6");
+        Assert.assertEquals("3.9.6", StagingRepository.nestedMavenVersion(project, systemProperties));
+
+        write(project.resolve(InProcessMavenBuilder.WRAPPER_PROPERTIES), "distributionUrl=https\\://repo.maven.apache"
+                + ".org/maven2/org/apache/maven/apache-maven/3.8.6/apache-maven-3.8.6-bin.zip\n");
+        Assert.assertEquals("3.8.6", StagingRepository.nestedMavenVersion(project, systemProperties));
+    }
+}
@@ -0,0 +1,67 @@
+/**
+ * Copyright 2015-2019 Maven Source Dependencies
+ * Plugin contributors as indicated by the @author tags.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.srcdeps.mvn.localrepo;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class TrashTest {
+    @Rule
+    public TemporaryFolder tempDir = new TemporaryFolder();
+
+    private static Path createTree(Path dir) throws Exception {
+        Files.createDirectories(dir.resolve("sub"));
+        Files.write(dir.resolve("a.jar"), "a".getBytes(StandardCharsets.UTF_8));
+        Files.write(dir.resolve("sub/b.pom"), "b".getBytes(StandardCharsets.UTF_8));
+        return dir;
+    }
+
+    @Test
+    public void delete() throws Exception {
+        final Path root = tempDir.getRoot().toPath();
+        final Path trashDir = root.resolve("trash");
+        final Trash trash = new Trash(trashDir);
+        final Path gavDir = createTree(root.resolve("repo/org/example/a/1.0"));
+        trash.delete(gavDir);
+        Assert.assertFalse(Files.exists(gavDir));
+        Assert.assertTrue(Files.exists(root.resolve("repo/org/example/a")));
+        /* no-op */
+        trash.delete(gavDir);
+
+        trash.shutdown();
+        Assert.assertTrue(trash.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, trashDir.toFile().list().length);
+    }
+
+    @Test
+    public void leftovers() throws Exception {
+        final Path trashDir = tempDir.getRoot().toPath().resolve("trash");
+        createTree(trashDir.resolve("left-over-1"));
+        createTree(trashDir.resolve("left-over-2"));
+        final Trash trash = new Trash(trashDir);
+        trash.shutdown();
+        Assert.assertTrue(trash.awaitTermination(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, trashDir.toFile().list().length);
+    }
+}